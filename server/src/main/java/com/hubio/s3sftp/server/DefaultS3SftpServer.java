@@ -95,7 +95,11 @@ class DefaultS3SftpServer implements S3SftpServer {
         // file system
         val fileSystemFactory =
                 new S3FileSystemFactory(sessionBucket, sessionHome, sessionJail, URI.create(configuration.getUri()),
-                                        FileSystemProviderFactory.s3SftpProviderFactory(),
+                                        FileSystemProviderFactory.s3SftpProviderFactory(
+                                                configuration.getFileChannelFactory(),
+                                                configuration.getListingCache(),
+                                                configuration.getRenameJournalDirectory(),
+                                                configuration.isDeleteDirectoryTrees()),
                                         sessionFileSystemResolver
                 );
         sshServer.setFileSystemFactory(fileSystemFactory);
@@ -23,22 +23,42 @@
 
 package com.hubio.s3sftp.server;
 
+import com.hubio.s3sftp.server.filechannel.AbandonableChannel;
+import com.hubio.s3sftp.server.filechannel.ObjectChecksums;
 import com.hubio.s3sftp.server.filesystem.UserFileSystemResolver;
 import com.upplication.s3fs.S3FileSystem;
 import com.upplication.s3fs.S3Path;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.digest.Digest;
+import org.apache.sshd.common.subsystem.sftp.SftpConstants;
+import org.apache.sshd.common.subsystem.sftp.extensions.openssh.AbstractOpenSSHExtensionParser.OpenSSHExtension;
+import org.apache.sshd.common.subsystem.sftp.extensions.openssh.FsyncExtensionParser;
 import org.apache.sshd.common.util.SelectorUtils;
+import org.apache.sshd.common.util.buffer.Buffer;
 import org.apache.sshd.common.util.threads.CloseableExecutorService;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.server.subsystem.sftp.FileHandle;
+import org.apache.sshd.server.subsystem.sftp.Handle;
 import org.apache.sshd.server.subsystem.sftp.SftpErrorStatusDataHandler;
 import org.apache.sshd.server.subsystem.sftp.SftpFileSystemAccessor;
 import org.apache.sshd.server.subsystem.sftp.SftpSubsystem;
 import org.apache.sshd.server.subsystem.sftp.UnsupportedAttributePolicy;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 
 /**
  * {@link SftpSubsystem} where the user is jailed within a subdirectory specified by a {@link SessionHome}.
@@ -205,9 +225,169 @@ class JailedSftpSubsystem extends SftpSubsystem {
         return homeDir;
     }
 
+    /**
+     * Abandons the files still open when the session ends, as their client never closed them, so that any upload to
+     * them may be resumed rather than completed with only the data written so far.
+     */
+    @Override
+    protected void closeAllHandles() {
+        for (final Handle handle : handles.values()) {
+            if (handle instanceof FileHandle) {
+                final Channel channel = ((FileHandle) handle).getFileChannel();
+                if (channel instanceof AbandonableChannel && channel.isOpen()) {
+                    log.debug("abandoning {}", handle);
+                    try {
+                        ((AbandonableChannel) channel).abandon();
+                    } catch (IOException e) {
+                        log.error("Failed to abandon {}", handle, e);
+                    }
+                }
+            }
+        }
+        super.closeAllHandles();
+    }
+
+    /**
+     * Advertises {@code fsync@openssh.com}, even where the session configures its own OpenSSH extensions, so that
+     * clients may checkpoint a long upload rather than have it only committed to S3 when the file is closed.
+     *
+     * @param session The session
+     *
+     * @return the extensions to advertise
+     */
+    @Override
+    protected List<OpenSSHExtension> resolveOpenSSHExtensions(final ServerSession session) {
+        final List<OpenSSHExtension> extensions = super.resolveOpenSSHExtensions(session);
+        if (extensions.stream()
+                      .anyMatch(extension -> FsyncExtensionParser.NAME.equals(extension.getName()))) {
+            return extensions;
+        }
+        final List<OpenSSHExtension> withFsync = new ArrayList<>(extensions);
+        withFsync.add(new OpenSSHExtension(FsyncExtensionParser.NAME, "1"));
+        return withFsync;
+    }
+
+    /**
+     * Copies data between files with {@link FileChannel#transferTo(long, long, WritableByteChannel)}
+     * rather than through the handles, so that a whole file copied to a new one is copied within S3, and other data is
+     * streamed from S3 in large reads.
+     *
+     * <p>Copies within a single file, and anything not between file handles, are left to the subsystem.</p>
+     */
+    @Override
+    protected void doCopyData(
+            final int id, final String readHandle, final long readOffset, final long readLength,
+            final String writeHandle, final long writeOffset
+                             ) throws IOException {
+        final Handle source = handles.get(readHandle);
+        final Handle target = handles.get(writeHandle);
+        if (readHandle.equals(writeHandle) || !(source instanceof FileHandle) || !(target instanceof FileHandle)
+                || !(((FileHandle) source).getFileChannel() instanceof FileChannel)) {
+            super.doCopyData(id, readHandle, readOffset, readLength, writeHandle, writeOffset);
+            return;
+        }
+        log.debug("doCopyData({}, {}, {}, {}, {})", source, readOffset, readLength, target, writeOffset);
+        final FileHandle sourceFile = (FileHandle) source;
+        final FileHandle targetFile = (FileHandle) target;
+        if ((sourceFile.getAccessMask() & SftpConstants.ACE4_READ_DATA) == 0) {
+            throw new AccessDeniedException(sourceFile.getFile()
+                                                      .toString(), null, "Source file not opened for read");
+        }
+        if ((targetFile.getAccessMask() & SftpConstants.ACE4_WRITE_DATA) == 0) {
+            throw new AccessDeniedException(targetFile.getFile()
+                                                      .toString(), null, "Target file not opened for write");
+        }
+        if (readOffset < 0 || readLength < 0 || writeOffset < 0) {
+            throw new IllegalArgumentException("Negative offset or length");
+        }
+        final FileChannel sourceChannel = (FileChannel) sourceFile.getFileChannel();
+        final long available = sourceChannel.size() - readOffset;
+        final long length = readLength == 0 ? available : Math.min(readLength, available);
+        if (length <= 0) {
+            throw new IllegalArgumentException("Nothing to copy from offset " + readOffset);
+        }
+        final WritableByteChannel targetChannel = targetFile.getFileChannel()
+                                                            .position(writeOffset);
+        long copied = 0;
+        while (copied < length) {
+            final long transferred = sourceChannel.transferTo(readOffset + copied, length - copied, targetChannel);
+            if (transferred <= 0) {
+                throw new EOFException("Premature EOF while still remaining " + (length - copied) + " bytes");
+            }
+            copied += transferred;
+        }
+    }
+
+    /**
+     * Answers a request for the checksum of a whole file from the checksum stored for it, if there is one, rather than
+     * by reading the file.
+     */
+    @Override
+    protected void doCheckFileHash(
+            final int id, final Path file, final NamedFactory<? extends Digest> factory, final long startOffset,
+            final long length, final int blockSize, final Buffer buffer
+                                  ) throws Exception {
+        final Optional<byte[]> checksum;
+        if (blockSize == 0) {
+            checksum = storedChecksum(file, factory.getName(), startOffset, length);
+        } else {
+            checksum = Optional.empty();
+        }
+        if (checksum.isPresent()) {
+            log.debug("doCheckFileHash({}, {}) from stored checksum", file, factory.getName());
+            buffer.putString(factory.getName());
+            buffer.putBytes(checksum.get());
+            return;
+        }
+        super.doCheckFileHash(id, file, factory, startOffset, length, blockSize, buffer);
+    }
+
+    /**
+     * Answers a request for the MD5 checksum of a whole file from the checksum stored for it, if there is one and no
+     * quick check of the start of the file is requested, rather than by reading the file.
+     */
+    @Override
+    protected byte[] doMD5Hash(
+            final int id, final Path path, final long startOffset, final long length, final byte[] quickCheckHash
+                              ) throws Exception {
+        if (quickCheckHash == null || quickCheckHash.length == 0) {
+            final Optional<byte[]> checksum = storedChecksum(path, ObjectChecksums.MD5, startOffset, length);
+            if (checksum.isPresent()) {
+                log.debug("doMD5Hash({}) from stored checksum", path);
+                return checksum.get();
+            }
+        }
+        return super.doMD5Hash(id, path, startOffset, length, quickCheckHash);
+    }
+
+    private static Optional<byte[]> storedChecksum(
+            final Path file, final String algorithm, final long startOffset, final long length
+                                                  ) throws IOException {
+        if (startOffset != 0) {
+            return Optional.empty();
+        }
+        final Object checksum = Files.readAttributes(file, ObjectChecksums.VIEW + ":" + algorithm)
+                                     .get(algorithm);
+        if (!(checksum instanceof byte[]) || (length != 0 && length < Files.size(file))) {
+            return Optional.empty();
+        }
+        return Optional.of((byte[]) checksum);
+    }
+
+    /**
+     * Sets attributes other than permissions as sshd would. Permissions are only offered to the file system, which
+     * stores them with a file being uploaded, and are otherwise ignored.
+     */
     @Override
     protected void doSetAttributes(final Path file, final Map<String, ?> attributes) throws IOException {
-        attributes.remove("permissions");
+        final Object permissions = attributes.remove("permissions");
+        if (permissions != null && file instanceof S3Path) {
+            try {
+                Files.setAttribute(file, "posix:permissions", permissions);
+            } catch (UnsupportedOperationException e) {
+                log.debug("Ignoring permissions for {}", file);
+            }
+        }
         super.doSetAttributes(file, attributes);
     }
 }
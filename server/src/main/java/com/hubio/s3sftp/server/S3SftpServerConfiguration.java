@@ -23,11 +23,14 @@
 
 package com.hubio.s3sftp.server;
 
+import com.hubio.s3sftp.server.filechannel.FileChannelFactory;
+import com.hubio.s3sftp.server.filesystem.ListingCache;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.NonNull;
 
 import java.io.File;
+import java.nio.file.Path;
 
 /**
  * Configuration for {@link S3SftpServer}.
@@ -61,6 +64,16 @@ public class S3SftpServerConfiguration {
     @NonNull
     private final String uri;
 
+    @NonNull
+    private final FileChannelFactory fileChannelFactory;
+
+    @NonNull
+    private final ListingCache listingCache;
+
+    private final Path renameJournalDirectory;
+
+    private final boolean deleteDirectoryTrees;
+
     /**
      * Builder for {@link S3SftpServerConfiguration}.
      *
@@ -70,6 +83,14 @@ public class S3SftpServerConfiguration {
      *     <li>hostKeyAlgorithm: RSA</li>
      *     <li>sessionHome: "" (i.e. the root of the bucket)</li>
      *     <li>sessionJail: "" (i.e. unjailed)</li>
+     *     <li>fileChannelFactory: a factory with the default {@link
+     *     com.hubio.s3sftp.server.filechannel.FileChannelConfiguration}</li>
+     *     <li>listingCache: listings held for 10 seconds, up to 100,000 entries, and missing paths for 5 seconds -
+     *     use {@link ListingCache#disabled()} to always ask S3</li>
+     *     <li>renameJournalDirectory: none - when set, directory renames are journalled in this directory so that
+     *     those interrupted are finished or rolled back</li>
+     *     <li>deleteDirectoryTrees: false - when set, deleting a directory deletes everything within it in batches,
+     *     rather than failing unless the directory is empty</li>
      * </ul>
      */
     // Default configuration values
@@ -86,5 +107,9 @@ public class S3SftpServerConfiguration {
 
         private SessionJail sessionJail = session -> "";
 
+        private FileChannelFactory fileChannelFactory = FileChannelFactory.create();
+
+        private ListingCache listingCache = ListingCache.create();
+
     }
 }
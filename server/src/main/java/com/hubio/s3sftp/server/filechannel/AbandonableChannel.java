@@ -0,0 +1,45 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filechannel;
+
+import java.io.IOException;
+import java.nio.channels.Channel;
+
+/**
+ * A channel that can tell being closed by its client from being left open when the client went away.
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+public interface AbandonableChannel extends Channel {
+
+    /**
+     * Closes the channel because its client has gone away without closing it.
+     *
+     * <p>An upload that may be resumed is left incomplete, rather than storing the object with only the data written
+     * so far.</p>
+     *
+     * @throws IOException if the channel could not be closed
+     */
+    void abandon() throws IOException;
+}
@@ -0,0 +1,184 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filechannel;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.ByteBuffer;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct {@link ByteBuffer}s shared by the channels created by a {@link FileChannelFactory}.
+ *
+ * <p>Buffers are pooled in size classes, each a power of two from 64KB. A lease is served from the smallest class
+ * large enough, reusing a returned buffer where one is free. The total size of the direct buffers allocated by the
+ * pool never exceeds its capacity: free buffers of other classes are dropped to make room if needed and, once every
+ * buffer is leased, further leases are given ordinary heap buffers instead and counted as allocation failures.</p>
+ *
+ * <p>Leased buffers are cleared and limited to the size requested. They must not be used after being released.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@Slf4j
+public final class BufferPool {
+
+    private static final int MIN_CLASS_SIZE = 64 * 1024;
+
+    private final long capacity;
+
+    private final Map<Integer, Deque<ByteBuffer>> free = new ConcurrentHashMap<>();
+
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    private final AtomicLong leasedBytes = new AtomicLong();
+
+    private final AtomicLong allocationFailures = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The maximum total size of the direct buffers allocated by the pool
+     */
+    BufferPool(final long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * The maximum total size of the direct buffers allocated by the pool.
+     *
+     * @return the capacity in bytes
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * The total size of the direct buffers allocated by the pool, whether leased or free.
+     *
+     * @return the allocated size in bytes
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /**
+     * The total size of the direct buffers currently leased.
+     *
+     * @return the leased size in bytes
+     */
+    public long getLeasedBytes() {
+        return leasedBytes.get();
+    }
+
+    /**
+     * The number of leases that could not be served from the pool and were given heap buffers.
+     *
+     * @return the number of allocation failures
+     */
+    public long getAllocationFailures() {
+        return allocationFailures.get();
+    }
+
+    /**
+     * Leases a buffer.
+     *
+     * @param size The size of the buffer needed
+     *
+     * @return a buffer with its limit set to the size requested
+     */
+    ByteBuffer lease(final int size) {
+        final int classSize = classSize(size);
+        ByteBuffer buffer = freeList(classSize).pollFirst();
+        if (buffer == null) {
+            buffer = allocate(classSize);
+        }
+        if (buffer == null) {
+            allocationFailures.incrementAndGet();
+            log.debug("Buffer pool exhausted: leasing {} bytes from the heap", size);
+            return ByteBuffer.allocate(size);
+        }
+        leasedBytes.addAndGet(classSize);
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Returns a leased buffer to the pool.
+     *
+     * <p>Heap buffers given out when the pool was exhausted, and {@code null}, are ignored.</p>
+     *
+     * @param buffer The buffer to return
+     */
+    void release(final ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        final int classSize = buffer.capacity();
+        leasedBytes.addAndGet(-classSize);
+        freeList(classSize).offerFirst(buffer);
+    }
+
+    private ByteBuffer allocate(final int classSize) {
+        while (true) {
+            final long allocated = allocatedBytes.get();
+            if (allocated + classSize <= capacity) {
+                if (allocatedBytes.compareAndSet(allocated, allocated + classSize)) {
+                    return ByteBuffer.allocateDirect(classSize);
+                }
+            } else if (!dropFreeBuffer()) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Drops a free buffer of any size class, so its memory can be allocated to another.
+     */
+    private boolean dropFreeBuffer() {
+        for (final Deque<ByteBuffer> buffers : free.values()) {
+            final ByteBuffer dropped = buffers.pollLast();
+            if (dropped != null) {
+                allocatedBytes.addAndGet(-dropped.capacity());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Deque<ByteBuffer> freeList(final int classSize) {
+        return free.computeIfAbsent(classSize, size -> new ConcurrentLinkedDeque<>());
+    }
+
+    private static int classSize(final int size) {
+        if (size <= MIN_CLASS_SIZE) {
+            return MIN_CLASS_SIZE;
+        }
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+}
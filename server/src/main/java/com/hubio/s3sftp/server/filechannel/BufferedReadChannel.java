@@ -0,0 +1,131 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filechannel;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * A read-only {@link SeekableByteChannel} over the whole content of a small object, read with a single GET.
+ *
+ * <p>The buffer holding the content is returned to the {@link BufferPool} when the channel is closed.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@Slf4j
+class BufferedReadChannel implements SeekableByteChannel {
+
+    private final ByteBuffer content;
+
+    private final BufferPool bufferPool;
+
+    private long position;
+
+    private boolean open = true;
+
+    /**
+     * Constructor.
+     *
+     * @param content    The content of the object, from position zero to its limit
+     * @param bufferPool The pool the buffer was leased from
+     */
+    BufferedReadChannel(final ByteBuffer content, final BufferPool bufferPool) {
+        log.trace("new({})", content);
+        this.content = content;
+        this.bufferPool = bufferPool;
+    }
+
+    @Override
+    public synchronized int read(final ByteBuffer dst) throws IOException {
+        ensureOpen();
+        final long size = content.limit();
+        if (position >= size) {
+            return -1;
+        }
+        final ByteBuffer source = content.duplicate();
+        source.position((int) position);
+        source.limit((int) Math.min(size, position + dst.remaining()));
+        final int read = source.remaining();
+        dst.put(source);
+        position += read;
+        return read;
+    }
+
+    @Override
+    public int write(final ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(final long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public synchronized long size() throws IOException {
+        ensureOpen();
+        return content.limit();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(final long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() {
+        log.trace("close()");
+        if (open) {
+            open = false;
+            bufferPool.release(content);
+        }
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,537 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filechannel;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.upplication.s3fs.S3Path;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Default implementation of {@link FileChannelFactory}.
+ *
+ * <p>Channels opened only for reading stream the object from S3, unless it is small enough to be read whole into a
+ * buffer with a single GET. Channels opened to replace the object, by writing with {@code TRUNCATE_EXISTING} or
+ * {@code CREATE_NEW} and without reading, upload it as it is written. Channels opened to append without reading upload
+ * the new data after a copy of the existing object made within S3. Any other channel is staged in a local temporary
+ * file.</p>
+ *
+ * <p>Objects are copied within S3, with a single request when S3 allows it and otherwise as a multipart upload whose
+ * parts are copied concurrently.</p>
+ *
+ * <p>All channels created by one factory share a thread pool for background transfers and a limit on the number of
+ * concurrent ranged GETs, and another on the number of parts being uploaded at once. Buffers for read-ahead blocks,
+ * upload parts and transfers are leased from a {@link BufferPool}, also shared by all the channels, unless upload
+ * parts are held in a {@link Spool}.</p>
+ *
+ * <p>When an upload journal is configured, uploads are recorded in an {@link UploadJournal} so that they may be
+ * resumed by a later channel, and a background task aborts those that have not been updated for too long.</p>
+ *
+ * <p>Uploads to temporary files that are stored with a single PUT are held back in {@link DeferredUploads} for a short
+ * time, so that the rename that usually follows them stores them once, under their final name. Any other use of a
+ * file held back stores it first.</p>
+ *
+ * <p>File attributes set on a file while it is being uploaded, or while its upload is held back, are held by the
+ * upload's {@link S3ObjectWriter} and stored with the object. The writer is kept for a few seconds after its channel
+ * is closed, as clients set the attributes of a file just after they upload it, and those are stored by tagging the
+ * object again.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@Slf4j
+class DefaultFileChannelFactory implements FileChannelFactory {
+
+    private static final long CLOSED_UPLOAD_SECONDS = 10L;
+
+    private static final FileChannelFactory DEFAULT =
+            new DefaultFileChannelFactory(FileChannelConfiguration.builder()
+                                                                  .build());
+
+    private final FileChannelConfiguration configuration;
+
+    private final ExecutorService executor;
+
+    private final Semaphore downloadPermits;
+
+    private final Semaphore uploadPermits;
+
+    @Getter
+    private final ReadAheadMetrics readAheadMetrics = new ReadAheadMetrics();
+
+    @Getter
+    private final BufferPool bufferPool;
+
+    private final Spool spool;
+
+    private final UploadJournal journal;
+
+    private final DeferredUploads deferredUploads;
+
+    private final Map<ObjectKey, S3ObjectWriter> openUploads = new ConcurrentHashMap<>();
+
+    private final Cache<ObjectKey, S3ObjectWriter> closedUploads =
+            CacheBuilder.newBuilder()
+                        .expireAfterWrite(CLOSED_UPLOAD_SECONDS, TimeUnit.SECONDS)
+                        .build();
+
+    private final Map<String, AmazonS3> clients = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param configuration The configuration for the channels
+     */
+    DefaultFileChannelFactory(final FileChannelConfiguration configuration) {
+        this.configuration = configuration;
+        this.executor = Executors.newCachedThreadPool(new TransferThreadFactory("s3-transfer-"));
+        this.downloadPermits = new Semaphore(configuration.getParallelDownloadGlobal());
+        this.uploadPermits = new Semaphore(configuration.getUploadConcurrencyGlobal());
+        this.bufferPool = new BufferPool(configuration.getBufferPoolCapacity());
+        if (configuration.getSpoolDirectory() == null) {
+            this.spool = null;
+        } else {
+            this.spool = new Spool(configuration.getSpoolDirectory(), configuration.getMultipartPartSize(),
+                                   configuration.getSpoolCapacity(), configuration.getSpoolCapacityPerUser(),
+                                   configuration.getSpoolTimeout());
+        }
+        if (configuration.getUploadJournalDirectory() == null) {
+            this.journal = null;
+        } else {
+            this.journal = new UploadJournal(configuration.getUploadJournalDirectory());
+            final ScheduledExecutorService sweeper =
+                    Executors.newSingleThreadScheduledExecutor(new TransferThreadFactory("s3-journal-sweeper-"));
+            final long interval = configuration.getUploadJournalSweepInterval()
+                                               .toMillis();
+            sweeper.scheduleWithFixedDelay(new JournalSweeper(journal, clients, configuration.getUploadJournalExpiry()
+                                                                                             .toMillis()),
+                                           interval, interval, TimeUnit.MILLISECONDS);
+        }
+        if (configuration.getTemporaryFileDelay()
+                         .isZero() || configuration.getTemporaryFileSuffixes()
+                                                   .isEmpty()) {
+            this.deferredUploads = null;
+        } else {
+            this.deferredUploads = new DeferredUploads(bufferPool, configuration.getTemporaryFileSuffixes(),
+                                                       configuration.getTemporaryFileDelay(),
+                                                       Executors.newSingleThreadScheduledExecutor(
+                                                               new TransferThreadFactory("s3-deferred-upload-")),
+                                                       executor);
+        }
+    }
+
+    /**
+     * The factory using the default configuration.
+     *
+     * @return the default factory
+     */
+    static FileChannelFactory defaultFactory() {
+        return DEFAULT;
+    }
+
+    @Override
+    public FileChannel open(final S3Path path, final Set<? extends OpenOption> openOptions) throws IOException {
+        log.trace("open({}, {})", path, openOptions);
+        storeDeferred(path);
+        if (S3FileChannel.isReadOnly(openOptions)) {
+            final S3ObjectReader objectReader = S3ObjectReader.of(path);
+            final long size;
+            final S3StreamingReadChannel streamingChannel;
+            if (configuration.getSmallObjectThreshold() > 0) {
+                final S3ObjectReader.SmallObject object =
+                        objectReader.readSmall(configuration.getSmallObjectThreshold(), bufferPool);
+                if (object.getContent() != null) {
+                    return new S3FileChannel(new BufferedReadChannel(object.getContent(), bufferPool), bufferPool);
+                }
+                size = object.getSize();
+                streamingChannel = new S3StreamingReadChannel(objectReader, size, object.getStream(),
+                                                              configuration.getSmallObjectThreshold());
+            } else {
+                size = objectReader.size();
+                streamingChannel = new S3StreamingReadChannel(objectReader, size);
+            }
+            return new S3FileChannel(readAhead(streamingChannel, objectReader, size), objectReader, bufferPool);
+        }
+        if (isStreamingUpload(openOptions)) {
+            checkExistence(path, openOptions);
+            final S3ObjectWriter objectWriter = S3ObjectWriter.of(path);
+            discardResumable(path, objectWriter);
+            final MultipartUploadChannel upload = upload(path, objectWriter);
+            if (deferredUploads != null && deferredUploads.isTemporary(path)) {
+                upload.deferTo(deferredUploads, path);
+            }
+            return track(path, objectWriter, upload);
+        }
+        if (isResumable(openOptions)) {
+            final Optional<JournalEntry> entry = findResumable(path);
+            if (entry.isPresent()) {
+                final S3ObjectWriter objectWriter = S3ObjectWriter.of(path);
+                final MultipartUploadChannel upload = upload(path, objectWriter);
+                upload.resume(entry.get());
+                return track(path, objectWriter, upload);
+            }
+        }
+        if (isAppend(openOptions)) {
+            final S3ObjectWriter objectWriter = S3ObjectWriter.of(path);
+            return track(path, objectWriter, append(path, objectWriter, openOptions));
+        }
+        return new S3FileChannel(path, openOptions, bufferPool);
+    }
+
+    /**
+     * Opens an upload that starts with the content of any existing object.
+     *
+     * <p>Appending uploads are not journaled, as the parts copied from the existing object are not the size of the
+     * parts written.</p>
+     */
+    private MultipartUploadChannel append(
+            final S3Path path, final S3ObjectWriter objectWriter, final Set<? extends OpenOption> options
+                                         ) throws IOException {
+        final S3ObjectReader objectReader = S3ObjectReader.of(path);
+        ObjectMetadata existing = null;
+        try {
+            existing = objectReader.metadata();
+        } catch (NoSuchFileException e) {
+            if (!options.contains(StandardOpenOption.CREATE) && !options.contains(StandardOpenOption.CREATE_NEW)) {
+                throw e;
+            }
+        }
+        if (existing != null && options.contains(StandardOpenOption.CREATE_NEW)) {
+            throw new FileAlreadyExistsException(path.toString());
+        }
+        final MultipartUploadChannel upload =
+                new MultipartUploadChannel(objectWriter, configuration.getMultipartPartSize(), executor,
+                                           uploadPermits, configuration.getUploadConcurrencyPerTransfer(),
+                                           partBuffers(path));
+        if (existing != null) {
+            boolean appended = false;
+            try {
+                upload.appendTo(objectReader, existing);
+                appended = true;
+            } finally {
+                if (!appended) {
+                    upload.close();
+                }
+            }
+        }
+        return upload;
+    }
+
+    /**
+     * Keeps the writer of an upload while its channel is open, so that attributes set on the file meanwhile are held
+     * by it.
+     */
+    private S3FileChannel track(
+            final S3Path path, final S3ObjectWriter objectWriter, final MultipartUploadChannel upload
+                               ) {
+        final ObjectKey key = ObjectKey.of(path);
+        openUploads.put(key, objectWriter);
+        final S3FileChannel channel = new S3FileChannel(upload, bufferPool);
+        channel.whenClosed(() -> {
+            openUploads.remove(key, objectWriter);
+            closedUploads.put(key, objectWriter);
+        });
+        return channel;
+    }
+
+    @Override
+    public OptionalLong resumableSize(final S3Path path) throws IOException {
+        final Optional<JournalEntry> entry = findResumable(path);
+        if (entry.isPresent()) {
+            return OptionalLong.of(entry.get()
+                                        .size());
+        }
+        return OptionalLong.empty();
+    }
+
+    @Override
+    public void copy(final S3Path source, final S3Path target, final boolean replaceExisting) throws IOException {
+        log.trace("copy({}, {}, {})", source, target, replaceExisting);
+        storeDeferred(source);
+        storeDeferred(target);
+        final S3ObjectReader objectReader = S3ObjectReader.of(source);
+        final ObjectMetadata existing = objectReader.metadata();
+        if (!replaceExisting && S3ObjectReader.of(target)
+                                              .exists()) {
+            throw new FileAlreadyExistsException(target.toString());
+        }
+        final S3ObjectWriter objectWriter = S3ObjectWriter.of(target);
+        discardResumable(target, objectWriter);
+        if (existing.getContentLength() <= MultipartUploadChannel.MAX_COPY_PART_SIZE) {
+            objectWriter.copy(objectReader.getBucket(), objectReader.getKey());
+            return;
+        }
+        final MultipartUploadChannel upload =
+                new MultipartUploadChannel(objectWriter, configuration.getMultipartPartSize(), executor,
+                                           uploadPermits, configuration.getUploadConcurrencyPerTransfer(),
+                                           PartBuffers.pooled(bufferPool, configuration.getMultipartPartSize()));
+        try {
+            upload.appendTo(objectReader, existing);
+        } finally {
+            upload.close();
+        }
+    }
+
+    @Override
+    public boolean moveDeferred(final S3Path source, final S3Path target, final boolean replaceExisting)
+            throws IOException {
+        log.trace("moveDeferred({}, {}, {})", source, target, replaceExisting);
+        if (!deferredSize(source).isPresent()) {
+            return false;
+        }
+        if (source.equals(target)) {
+            return true;
+        }
+        if (!replaceExisting && (deferredSize(target).isPresent() || S3ObjectReader.of(target)
+                                                                                   .exists())) {
+            throw new FileAlreadyExistsException(target.toString());
+        }
+        final S3ObjectWriter objectWriter = S3ObjectWriter.of(target);
+        discardResumable(target, objectWriter);
+        return deferredUploads.move(source, target, objectWriter);
+    }
+
+    @Override
+    public OptionalLong deferredSize(final S3Path path) {
+        if (deferredUploads == null) {
+            return OptionalLong.empty();
+        }
+        return deferredUploads.size(path);
+    }
+
+    @Override
+    public void storeDeferred(final S3Path path) throws IOException {
+        if (deferredUploads != null) {
+            deferredUploads.store(path);
+        }
+    }
+
+    @Override
+    public boolean discardDeferred(final S3Path path) {
+        log.trace("discardDeferred({})", path);
+        return deferredUploads != null && deferredUploads.discard(path);
+    }
+
+    @Override
+    public boolean holdAttribute(final S3Path path, final String attribute, final Object value) {
+        log.trace("holdAttribute({}, {}, {})", path, attribute, value);
+        final ObjectKey key = ObjectKey.of(path);
+        final S3ObjectWriter objectWriter = openUploads.get(key);
+        if (objectWriter != null) {
+            return objectWriter.hold(attribute, value);
+        }
+        if (deferredUploads != null && deferredUploads.hold(path, attribute, value)) {
+            return true;
+        }
+        final S3ObjectWriter closedWriter = closedUploads.getIfPresent(key);
+        return closedWriter != null && closedWriter.store(attribute, value);
+    }
+
+    @Override
+    public Map<String, Object> heldAttributes(final S3Path path) {
+        log.trace("heldAttributes({})", path);
+        final ObjectKey key = ObjectKey.of(path);
+        S3ObjectWriter objectWriter = openUploads.get(key);
+        if (objectWriter == null && deferredUploads != null) {
+            objectWriter = deferredUploads.writerFor(path)
+                                          .orElse(null);
+        }
+        if (objectWriter == null) {
+            objectWriter = closedUploads.getIfPresent(key);
+        }
+        if (objectWriter == null) {
+            return Collections.emptyMap();
+        }
+        return objectWriter.heldAttributes();
+    }
+
+    @Override
+    public Map<String, byte[]> checksums(final S3Path path) throws IOException {
+        log.trace("checksums({})", path);
+        storeDeferred(path);
+        return ObjectChecksums.read(S3ObjectReader.of(path));
+    }
+
+    private MultipartUploadChannel upload(final S3Path path, final S3ObjectWriter objectWriter) throws IOException {
+        final String owner = ownerOf(path);
+        if (journal != null) {
+            clients.put(owner, path.getFileSystem()
+                                   .getClient());
+        }
+        return new MultipartUploadChannel(objectWriter, configuration.getMultipartPartSize(), executor, uploadPermits,
+                                          configuration.getUploadConcurrencyPerTransfer(), partBuffers(path),
+                                          journal, owner, configuration.isSha256Checksums());
+    }
+
+    private static String ownerOf(final S3Path path) {
+        return path.getFileSystem()
+                   .getKey();
+    }
+
+    /**
+     * Finds the journal entry for an abandoned upload that can be resumed with the configured part size.
+     */
+    private Optional<JournalEntry> findResumable(final S3Path path) throws IOException {
+        if (journal == null) {
+            return Optional.empty();
+        }
+        final S3ObjectWriter objectWriter = S3ObjectWriter.of(path);
+        return journal.find(ownerOf(path), objectWriter.getBucket(), objectWriter.getKey())
+                      .filter(entry -> entry.getPartSize() == configuration.getMultipartPartSize());
+    }
+
+    /**
+     * Aborts any abandoned upload to an object that is being replaced.
+     */
+    private void discardResumable(final S3Path path, final S3ObjectWriter objectWriter) throws IOException {
+        if (journal == null) {
+            return;
+        }
+        final Optional<JournalEntry> entry = journal.find(ownerOf(path), objectWriter.getBucket(),
+                                                          objectWriter.getKey());
+        if (entry.isPresent()) {
+            log.info("Discarding abandoned upload {} of {}", entry.get()
+                                                                   .getUploadId(), path);
+            objectWriter.abort(entry.get()
+                                    .getUploadId());
+            journal.remove(ownerOf(path), objectWriter.getBucket(), objectWriter.getKey());
+        }
+    }
+
+    /**
+     * The buffers for the parts of an upload, spooled when a spool directory is configured.
+     *
+     * <p>The spool space is shared by the uploads to each file system, of which each user has their own.</p>
+     */
+    private PartBuffers partBuffers(final S3Path path) throws IOException {
+        if (spool == null) {
+            return PartBuffers.pooled(bufferPool, configuration.getMultipartPartSize());
+        }
+        return spool.open(path.getFileSystem()
+                              .getKey(), path.toString());
+    }
+
+    /**
+     * Checks whether the options write to the object without replacing it or reading it, as a client resuming an
+     * upload does.
+     */
+    private static boolean isResumable(final Set<? extends OpenOption> options) {
+        return (options.contains(StandardOpenOption.WRITE) || options.contains(StandardOpenOption.APPEND))
+                && !options.contains(StandardOpenOption.READ)
+                && !options.contains(StandardOpenOption.TRUNCATE_EXISTING)
+                && !options.contains(StandardOpenOption.CREATE_NEW)
+                && !options.contains(StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    /**
+     * Checks whether the options append to the object without reading it.
+     */
+    private static boolean isAppend(final Set<? extends OpenOption> options) {
+        return options.contains(StandardOpenOption.APPEND)
+                && !options.contains(StandardOpenOption.READ)
+                && !options.contains(StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    /**
+     * Checks whether the options replace the whole object with data written by the channel and never read it.
+     */
+    private static boolean isStreamingUpload(final Set<? extends OpenOption> options) {
+        return options.contains(StandardOpenOption.WRITE)
+                && !options.contains(StandardOpenOption.READ)
+                && !options.contains(StandardOpenOption.APPEND)
+                && !options.contains(StandardOpenOption.DELETE_ON_CLOSE)
+                && (options.contains(StandardOpenOption.TRUNCATE_EXISTING)
+                || options.contains(StandardOpenOption.CREATE_NEW));
+    }
+
+    private static void checkExistence(final S3Path path, final Set<? extends OpenOption> options)
+            throws IOException {
+        if (options.contains(StandardOpenOption.CREATE_NEW)) {
+            if (S3ObjectReader.of(path)
+                              .exists()) {
+                throw new FileAlreadyExistsException(path.toString());
+            }
+        } else if (!options.contains(StandardOpenOption.CREATE) && !S3ObjectReader.of(path)
+                                                                                  .exists()) {
+            throw new NoSuchFileException(path.toString());
+        }
+    }
+
+    private ReadAheadChannel readAhead(
+            final S3StreamingReadChannel streamingChannel, final S3ObjectReader objectReader, final long size
+                                      ) {
+        if (size >= configuration.getParallelDownloadThreshold()) {
+            final int perTransfer = configuration.getParallelDownloadPerTransfer();
+            return new ReadAheadChannel(streamingChannel, objectReader, size, executor, downloadPermits, bufferPool,
+                                        readAheadMetrics, configuration.getParallelDownloadBlockSize(), perTransfer,
+                                        perTransfer);
+        }
+        return new ReadAheadChannel(streamingChannel, objectReader, size, executor, downloadPermits, bufferPool,
+                                    readAheadMetrics, configuration.getReadAheadBlockSize(), 1,
+                                    configuration.getReadAheadMaxWindow());
+    }
+
+    /**
+     * Creates daemon threads for background transfers, so that they never prevent the JVM from exiting.
+     */
+    private static final class TransferThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        TransferThreadFactory(final String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filechannel;
+
+import com.upplication.s3fs.S3Path;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads to temporary files, held back for a short time after their channel is closed rather than stored at once.
+ *
+ * <p>Many clients upload to a temporary name, such as {@code name.filepart}, and rename the file once it is complete.
+ * In S3 that rename is a copy of the whole object followed by a delete. While an upload is held back, a rename instead
+ * stores it under its new name, so that it is only written once. Uploads that are not renamed in time are stored
+ * under their own name.</p>
+ *
+ * <p>Only objects stored with a single PUT are held back, as a multipart upload can only be completed under the key
+ * it was started with. Their content is copied into a buffer leased from the {@link BufferPool}, and is stored at once
+ * when the pool is exhausted.</p>
+ *
+ * <p>The client is told an upload has succeeded while it is still held back, so an upload is lost if the server stops,
+ * or its PUT fails, before it is stored.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@Slf4j
+class DeferredUploads {
+
+    private final Map<ObjectKey, Upload> uploads = new ConcurrentHashMap<>();
+
+    private final BufferPool bufferPool;
+
+    private final List<String> suffixes;
+
+    private final long delay;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Executor executor;
+
+    /**
+     * Constructor.
+     *
+     * @param bufferPool The pool to lease buffers for the content of the uploads from
+     * @param suffixes   The suffixes of the names of temporary files
+     * @param delay      How long an upload is held back for
+     * @param scheduler  The scheduler for storing uploads that are not renamed in time
+     * @param executor   The executor to store them on
+     */
+    DeferredUploads(
+            final BufferPool bufferPool, final List<String> suffixes, final Duration delay,
+            final ScheduledExecutorService scheduler, final Executor executor
+                   ) {
+        this.bufferPool = bufferPool;
+        this.suffixes = suffixes;
+        this.delay = delay.toMillis();
+        this.scheduler = scheduler;
+        this.executor = executor;
+    }
+
+    /**
+     * Whether the path is named as a temporary file.
+     *
+     * @param path The path
+     *
+     * @return true if uploads to the path may be held back
+     */
+    boolean isTemporary(final S3Path path) {
+        final Path fileName = path.getFileName();
+        if (fileName == null) {
+            return false;
+        }
+        final String name = fileName.toString();
+        return suffixes.stream()
+                       .anyMatch(name::endsWith);
+    }
+
+    /**
+     * Holds back the upload of an object, replacing any held back for the same path.
+     *
+     * @param path         The path of the object
+     * @param objectWriter The writer to store the object with, if it is not renamed
+     * @param content      The content of the object, from its position to its limit, which is copied
+     * @param checksums    The checksums of the content
+     *
+     * @return true if the upload is held back, or false if it must be stored now
+     */
+    boolean defer(
+            final S3Path path, final S3ObjectWriter objectWriter, final ByteBuffer content,
+            final Map<String, byte[]> checksums
+                 ) {
+        log.trace("defer({}, {})", path, content);
+        final ByteBuffer copy = bufferPool.lease(content.remaining());
+        if (!copy.isDirect()) {
+            log.debug("Storing {} at once, as the buffer pool is exhausted", path);
+            return false;
+        }
+        copy.put(content.duplicate());
+        copy.flip();
+        final ObjectKey key = ObjectKey.of(path);
+        final Upload upload = new Upload(objectWriter, copy, checksums);
+        final Upload previous = uploads.put(key, upload);
+        if (previous != null) {
+            previous.discard();
+        }
+        upload.expiry = scheduler.schedule(() -> executor.execute(() -> expire(key, upload)), delay,
+                                           TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * The size of the object held back for the path.
+     *
+     * @param path The path
+     *
+     * @return the size, or empty if no upload to the path is held back
+     */
+    OptionalLong size(final S3Path path) {
+        final Upload upload = uploads.get(ObjectKey.of(path));
+        if (upload == null) {
+            return OptionalLong.empty();
+        }
+        return OptionalLong.of(upload.content.remaining());
+    }
+
+    /**
+     * Holds a file attribute set on a path whose upload is held back, to be stored with it.
+     *
+     * @param path      The path
+     * @param attribute The name of the attribute, optionally qualified by its view
+     * @param value     The value of the attribute
+     *
+     * @return true if the attribute is held, or false if no upload to the path is held back or the attribute cannot
+     * be stored with it
+     */
+    boolean hold(final S3Path path, final String attribute, final Object value) {
+        log.trace("hold({}, {}, {})", path, attribute, value);
+        final Upload upload = uploads.get(ObjectKey.of(path));
+        return upload != null && upload.objectWriter.hold(attribute, value);
+    }
+
+    /**
+     * The writer of the upload held back for a path.
+     *
+     * @param path The path
+     *
+     * @return the writer, or empty if no upload to the path is held back
+     */
+    Optional<S3ObjectWriter> writerFor(final S3Path path) {
+        final Upload upload = uploads.get(ObjectKey.of(path));
+        return Optional.ofNullable(upload)
+                       .map(held -> held.objectWriter);
+    }
+
+    /**
+     * Stores an upload held back for a path under the key of another, and forgets any held back for that other.
+     *
+     * <p>If the object cannot be stored under its new key, it is stored under its own, so that it is not lost.</p>
+     *
+     * @param source       The path the upload was held back for
+     * @param target       The path to store it at
+     * @param targetWriter The writer for the object at the target
+     *
+     * @return true if the upload was stored at the target, or false if none was held back for the source
+     *
+     * @throws IOException if the object could not be stored at the target
+     */
+    boolean move(final S3Path source, final S3Path target, final S3ObjectWriter targetWriter) throws IOException {
+        log.trace("move({}, {})", source, target);
+        final ObjectKey key = ObjectKey.of(source);
+        final Upload upload = uploads.get(key);
+        if (upload == null || !uploads.remove(key, upload)) {
+            return false;
+        }
+        upload.cancel();
+        discard(target);
+        targetWriter.holdAttributesOf(upload.objectWriter);
+        try {
+            targetWriter.put(upload.content.duplicate(), upload.checksums);
+        } catch (IOException e) {
+            try {
+                upload.objectWriter.put(upload.content.duplicate(), upload.checksums);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        } finally {
+            bufferPool.release(upload.content);
+        }
+        return true;
+    }
+
+    /**
+     * Stores now any uploads held back for the path, or for paths below it.
+     *
+     * @param path The path of a file or directory
+     *
+     * @throws IOException if an upload could not be stored
+     */
+    void store(final S3Path path) throws IOException {
+        log.trace("store({})", path);
+        final ObjectKey key = ObjectKey.of(path);
+        for (final Map.Entry<ObjectKey, Upload> entry : uploads.entrySet()) {
+            if (entry.getKey()
+                     .isAt(key) && uploads.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue()
+                     .cancel();
+                store(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Forgets any upload held back for the path, without storing it.
+     *
+     * @param path The path
+     *
+     * @return true if an upload was held back for the path
+     */
+    boolean discard(final S3Path path) {
+        log.trace("discard({})", path);
+        final Upload upload = uploads.remove(ObjectKey.of(path));
+        if (upload == null) {
+            return false;
+        }
+        upload.discard();
+        return true;
+    }
+
+    private void expire(final ObjectKey key, final Upload upload) {
+        if (!uploads.remove(key, upload)) {
+            return;
+        }
+        try {
+            store(upload);
+        } catch (IOException e) {
+            log.error("Could not store held back upload {}/{}, which is lost", key.getBucket(), key.getKey(), e);
+        }
+    }
+
+    private void store(final Upload upload) throws IOException {
+        try {
+            upload.objectWriter.put(upload.content.duplicate(), upload.checksums);
+        } finally {
+            bufferPool.release(upload.content);
+        }
+    }
+
+    /**
+     * An upload held back, which is stored or discarded by whoever removes it from the map.
+     */
+    private final class Upload {
+
+        private final S3ObjectWriter objectWriter;
+
+        private final ByteBuffer content;
+
+        private final Map<String, byte[]> checksums;
+
+        private volatile ScheduledFuture<?> expiry;
+
+        Upload(final S3ObjectWriter objectWriter, final ByteBuffer content, final Map<String, byte[]> checksums) {
+            this.objectWriter = objectWriter;
+            this.content = content;
+            this.checksums = checksums;
+        }
+
+        void cancel() {
+            final ScheduledFuture<?> scheduled = expiry;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+        }
+
+        void discard() {
+            cancel();
+            bufferPool.release(content);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filechannel;
+
+import lombok.Builder;
+import lombok.Getter;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Configuration for the {@link java.nio.channels.FileChannel}s created by a {@link FileChannelFactory}.
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@Getter
+@Builder
+public class FileChannelConfiguration {
+
+    private final int smallObjectThreshold;
+
+    private final int readAheadBlockSize;
+
+    private final int readAheadMaxWindow;
+
+    private final long parallelDownloadThreshold;
+
+    private final int parallelDownloadBlockSize;
+
+    private final int parallelDownloadPerTransfer;
+
+    private final int parallelDownloadGlobal;
+
+    private final int multipartPartSize;
+
+    private final int uploadConcurrencyPerTransfer;
+
+    private final int uploadConcurrencyGlobal;
+
+    private final long bufferPoolCapacity;
+
+    private final Path spoolDirectory;
+
+    private final long spoolCapacity;
+
+    private final long spoolCapacityPerUser;
+
+    private final Duration spoolTimeout;
+
+    private final Path uploadJournalDirectory;
+
+    private final Duration uploadJournalExpiry;
+
+    private final Duration uploadJournalSweepInterval;
+
+    private final boolean sha256Checksums;
+
+    private final List<String> temporaryFileSuffixes;
+
+    private final Duration temporaryFileDelay;
+
+    /**
+     * Builder for {@link FileChannelConfiguration}.
+     *
+     * <p>Default values:</p>
+     * <ul>
+     *     <li>smallObjectThreshold: 1MB - files no larger than this are read whole into a buffer with a single GET,
+     *     without first asking S3 for their size - use zero to always stream</li>
+     *     <li>readAheadBlockSize: 256KB</li>
+     *     <li>readAheadMaxWindow: 16 blocks</li>
+     *     <li>parallelDownloadThreshold: 64MB - objects at least this large are downloaded in parallel</li>
+     *     <li>parallelDownloadBlockSize: 8MB</li>
+     *     <li>parallelDownloadPerTransfer: 8 concurrent ranges for each file</li>
+     *     <li>parallelDownloadGlobal: 32 concurrent ranges across all files</li>
+     *     <li>multipartPartSize: 8MB - must be at least 5MB, the minimum S3 allows for all but the last part</li>
+     *     <li>uploadConcurrencyPerTransfer: 4 parts in flight for each file</li>
+     *     <li>uploadConcurrencyGlobal: 16 parts in flight across all files</li>
+     *     <li>bufferPoolCapacity: 256MB of direct buffers shared by all files</li>
+     *     <li>spoolDirectory: none - when set, upload parts are held in memory-mapped files in this directory rather
+     *     than in pooled buffers</li>
+     *     <li>spoolCapacity: 1GB of spooled parts across all files</li>
+     *     <li>spoolCapacityPerUser: 256MB of spooled parts across the files of each user</li>
+     *     <li>spoolTimeout: 30 seconds - how long a write waits for spool space before it fails</li>
+     *     <li>uploadJournalDirectory: none - when set, uploads are journalled in this directory so that they may be
+     *     resumed after the client disconnects</li>
+     *     <li>uploadJournalExpiry: 24 hours - journalled uploads not updated for this long are aborted</li>
+     *     <li>uploadJournalSweepInterval: 1 hour between checks for expired uploads</li>
+     *     <li>sha256Checksums: false - when set, the SHA-256 checksum of each uploaded file is stored with it, in
+     *     addition to its MD5 and CRC32C checksums</li>
+     *     <li>temporaryFileSuffixes: ".filepart", ".part" and ".tmp" - files with names ending in these are taken to be
+     *     temporary files that will be renamed once uploaded</li>
+     *     <li>temporaryFileDelay: zero, i.e. temporary files are stored at once - when set, how long a temporary file
+     *     uploaded with a single PUT is held back for, so that renaming it stores it under its new name rather than
+     *     copying it. Closing the file succeeds while it is held back only in memory, so it is lost if the server
+     *     stops, or the delayed PUT fails, before it is stored, and it cannot be seen by other servers or readers of
+     *     the bucket until then</li>
+     * </ul>
+     */
+    // Default configuration values
+    //lombok @Builder will expand upon this class, using the default values provided
+    public static class FileChannelConfigurationBuilder {
+
+        private static final int KB = 1024;
+
+        private static final int MB = KB * KB;
+
+        private int smallObjectThreshold = MB;
+
+        private int readAheadBlockSize = 256 * KB;
+
+        private int readAheadMaxWindow = 16;
+
+        private long parallelDownloadThreshold = 64L * MB;
+
+        private int parallelDownloadBlockSize = 8 * MB;
+
+        private int parallelDownloadPerTransfer = 8;
+
+        private int parallelDownloadGlobal = 32;
+
+        private int multipartPartSize = 8 * MB;
+
+        private int uploadConcurrencyPerTransfer = 4;
+
+        private int uploadConcurrencyGlobal = 16;
+
+        private long bufferPoolCapacity = 256L * MB;
+
+        private long spoolCapacity = 1024L * MB;
+
+        private long spoolCapacityPerUser = 256L * MB;
+
+        private Duration spoolTimeout = Duration.ofSeconds(30);
+
+        private Duration uploadJournalExpiry = Duration.ofHours(24);
+
+        private Duration uploadJournalSweepInterval = Duration.ofHours(1);
+
+        private List<String> temporaryFileSuffixes = Arrays.asList(".filepart", ".part", ".tmp");
+
+        private Duration temporaryFileDelay = Duration.ZERO;
+
+    }
+}
@@ -28,6 +28,8 @@ import com.upplication.s3fs.S3Path;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
 import java.nio.file.OpenOption;
+import java.util.Map;
+import java.util.OptionalLong;
 import java.util.Set;
 
 /**
@@ -38,7 +40,7 @@ import java.util.Set;
 public interface FileChannelFactory {
 
     /**
-     * Create a {@link FileChannel} for the path with the specific open options.
+     * Create a {@link FileChannel} for the path with the specific open options, using the default configuration.
      *
      * @param path        The path of the file to open an channel to
      * @param openOptions The options for opening the file channel
@@ -46,8 +48,189 @@ public interface FileChannelFactory {
      * @return The file channel
      *
      * @throws IOException if an I/O error occurs
+     *
+     * @see #open(S3Path, Set)
      */
     static FileChannel of(final S3Path path, final Set<? extends OpenOption> openOptions) throws IOException {
-        return new S3FileChannel(path, openOptions);
+        return DefaultFileChannelFactory.defaultFactory()
+                                        .open(path, openOptions);
     }
+
+    /**
+     * Create a factory for {@link FileChannel}s with the given configuration.
+     *
+     * @param configuration The configuration for the channels
+     *
+     * @return the factory
+     */
+    static FileChannelFactory create(final FileChannelConfiguration configuration) {
+        return new DefaultFileChannelFactory(configuration);
+    }
+
+    /**
+     * Create a factory for {@link FileChannel}s with the default configuration.
+     *
+     * @return the factory
+     */
+    static FileChannelFactory create() {
+        return create(FileChannelConfiguration.builder()
+                                              .build());
+    }
+
+    /**
+     * Create a {@link FileChannel} for the path with the specific open options.
+     *
+     * <p>When the options only permit reading, the object is streamed from S3 without being staged locally, and
+     * blocks ahead of the reader are prefetched while it is read sequentially. Objects larger than the parallel
+     * download threshold are fetched as several concurrent ranges. Objects no larger than the small object threshold
+     * are instead read whole into a buffer with a single GET, which also finds their size.
+     * When the options replace the object, by writing with {@code TRUNCATE_EXISTING} or {@code CREATE_NEW} and
+     * without reading, the data is uploaded in parts as it is written.
+     * When an upload journal is configured, and the options write without truncating or append to an object whose
+     * upload was abandoned, that upload is resumed from the end of the data it had uploaded.
+     * When the options append without reading, the existing object is copied within S3 as the first parts of an
+     * upload, followed by the data written.
+     * Otherwise, the object is staged in a local temporary file that is uploaded when the channel is closed.
+     * An upload to a path named as a temporary file, which is stored with a single PUT, is held back for a short time
+     * after the channel is closed, so that it may be {@link #moveDeferred(S3Path, S3Path, boolean) moved}.</p>
+     *
+     * @param path        The path of the file to open an channel to
+     * @param openOptions The options for opening the file channel
+     *
+     * @return The file channel
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    FileChannel open(S3Path path, Set<? extends OpenOption> openOptions) throws IOException;
+
+    /**
+     * The size of the data uploaded by an abandoned upload to the path, which a client resuming the upload should
+     * continue from.
+     *
+     * @param path The path of the file
+     *
+     * @return the size uploaded, or empty if there is no upload to resume
+     *
+     * @throws IOException if the upload journal could not be read
+     */
+    OptionalLong resumableSize(S3Path path) throws IOException;
+
+    /**
+     * Copies an object to another path without its content leaving S3, keeping its content type and user metadata.
+     *
+     * <p>Objects of up to 5GB are copied with a single request. Larger objects are copied as a multipart upload of
+     * parts copied from ranges of the object.</p>
+     *
+     * @param source          The path of the object to copy
+     * @param target          The path to copy the object to
+     * @param replaceExisting Whether to replace any object already at the target
+     *
+     * @throws java.nio.file.FileAlreadyExistsException if there is an object at the target and it is not to be
+     *                                                  replaced
+     * @throws IOException                              if the source does not exist or an I/O error occurs
+     */
+    void copy(S3Path source, S3Path target, boolean replaceExisting) throws IOException;
+
+    /**
+     * Moves an upload to a temporary file that is being held back, by storing it at the target rather than at its own
+     * path.
+     *
+     * <p>Uploads to files named as temporary files, which fit in a single PUT, are held back for a short time after
+     * their channel is closed, as clients usually rename them once they are complete. A move of the file while it is
+     * held back means the object is written once, rather than stored and then copied.</p>
+     *
+     * @param source          The path of the temporary file
+     * @param target          The path to move it to
+     * @param replaceExisting Whether to replace any object already at the target
+     *
+     * @return true if the upload was moved, or false if no upload to the source is being held back
+     *
+     * @throws java.nio.file.FileAlreadyExistsException if there is an object at the target and it is not to be
+     *                                                  replaced
+     * @throws IOException                              if the object could not be stored at the target, in which case
+     *                                                  it is stored at the source
+     */
+    boolean moveDeferred(S3Path source, S3Path target, boolean replaceExisting) throws IOException;
+
+    /**
+     * The size of the upload to the path that is being held back, which does not yet exist in S3.
+     *
+     * @param path The path of the file
+     *
+     * @return the size of the file, or empty if no upload to the path is being held back
+     */
+    OptionalLong deferredSize(S3Path path);
+
+    /**
+     * Stores now any uploads being held back for the path, or for files below it when it is a directory, before it
+     * is used in a way that needs them to exist in S3.
+     *
+     * @param path The path of the file or directory
+     *
+     * @throws IOException if an upload could not be stored
+     */
+    void storeDeferred(S3Path path) throws IOException;
+
+    /**
+     * Discards any upload being held back for the path, as when the file is deleted.
+     *
+     * @param path The path of the file
+     *
+     * @return true if an upload was being held back for the path
+     */
+    boolean discardDeferred(S3Path path);
+
+    /**
+     * Holds a file attribute set on a file that is being uploaded, or whose upload is being held back, so that it is
+     * stored with the object when it is stored, rather than by changing the object afterwards. An attribute set on a
+     * file uploaded within the last few seconds is stored by tagging the object again.
+     *
+     * <p>The last modified time and permissions are stored with the object, as its user metadata when it is stored
+     * with a single PUT, and otherwise as its tags. The last access and creation times are accepted and discarded.</p>
+     *
+     * @param path      The path of the file
+     * @param attribute The name of the attribute, optionally qualified by its view, as for {@link
+     *                  java.nio.file.Files#setAttribute}
+     * @param value     The value of the attribute
+     *
+     * @return true if the attribute is held, or false if the file is not being uploaded or the attribute cannot be
+     * stored with it
+     */
+    boolean holdAttribute(S3Path path, String attribute, Object value);
+
+    /**
+     * The file attributes held by {@link #holdAttribute(S3Path, String, Object)} for a file being uploaded, or one
+     * uploaded moments ago, without asking S3 for those stored with the object.
+     *
+     * @param path The path of the file
+     *
+     * @return the last modified time and permissions, by the names of their attributes, if they are held
+     */
+    Map<String, Object> heldAttributes(S3Path path);
+
+    /**
+     * The checksums stored for the object at the path, from which a client may verify a transfer without the object
+     * being read.
+     *
+     * @param path The path of the object
+     *
+     * @return the checksums, keyed by the name of their algorithm, such as {@link ObjectChecksums#MD5}
+     *
+     * @throws IOException if the object does not exist or an I/O error occurs
+     */
+    Map<String, byte[]> checksums(S3Path path) throws IOException;
+
+    /**
+     * The metrics for the read-ahead of files being read sequentially through channels from this factory.
+     *
+     * @return the read-ahead metrics
+     */
+    ReadAheadMetrics getReadAheadMetrics();
+
+    /**
+     * The pool of buffers used by channels from this factory, which reports its occupancy and allocation failures.
+     *
+     * @return the buffer pool
+     */
+    BufferPool getBufferPool();
 }
@@ -0,0 +1,200 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filechannel;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectTaggingRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.Tag;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * File attributes set while an object is being uploaded, held to be stored with it when the upload completes, rather
+ * than by copying the object onto itself once it is stored.
+ *
+ * <p>The last modified time is held in seconds since the epoch, and permissions in their symbolic form, such as
+ * {@code rw-r--r--}. Like checksums, they are stored as user metadata on objects uploaded with a single PUT, and as
+ * tags on objects uploaded in parts. The last access and creation times are accepted but not held, as S3 has no
+ * place for them.</p>
+ *
+ * <p>The attributes stored with an object are {@link #read read} back from its user metadata and its tags, with the
+ * tags taking precedence, as attributes set just after an object is stored are added to its tags.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@Slf4j
+public final class HeldAttributes {
+
+    /**
+     * The name of the user metadata or tag holding the last modified time.
+     */
+    static final String MTIME = "s3sftp-mtime";
+
+    /**
+     * The name of the user metadata or tag holding the permissions.
+     */
+    static final String PERMISSIONS = "s3sftp-permissions";
+
+    private static final String TAGGING_COUNT = "x-amz-tagging-count";
+
+    private final Map<String, String> values = new ConcurrentHashMap<>();
+
+    /**
+     * Holds an attribute, if it is one that can be stored with the object.
+     *
+     * @param attribute The name of the attribute, optionally qualified by its view, as for {@link
+     *                  java.nio.file.Files#setAttribute}
+     * @param value     The value of the attribute
+     *
+     * @return true if the attribute is held or has no place in S3, or false if it is not supported
+     */
+    @SuppressWarnings("unchecked")
+    boolean hold(final String attribute, final Object value) {
+        log.trace("hold({}, {})", attribute, value);
+        final String name = attribute.substring(attribute.indexOf(':') + 1);
+        switch (name) {
+            case "lastModifiedTime":
+                values.put(MTIME, Long.toString(((FileTime) value).to(TimeUnit.SECONDS)));
+                return true;
+            case "lastAccessTime":
+            case "creationTime":
+                return true;
+            case "permissions":
+                values.put(PERMISSIONS, PosixFilePermissions.toString((Set<PosixFilePermission>) value));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Holds all the attributes held by another, as when an upload is moved.
+     *
+     * @param other The other attributes
+     */
+    void holdAll(final HeldAttributes other) {
+        values.putAll(other.values);
+    }
+
+    boolean isEmpty() {
+        return values.isEmpty();
+    }
+
+    /**
+     * The user metadata to store the attributes as.
+     *
+     * @return the user metadata
+     */
+    Map<String, String> userMetadata() {
+        return new HashMap<>(values);
+    }
+
+    /**
+     * The attributes held, as file attributes.
+     *
+     * @return the last modified time and permissions, by the names of their attributes, if they are held
+     */
+    Map<String, Object> fileAttributes() {
+        return fileAttributes(values);
+    }
+
+    /**
+     * Reads the attributes stored with an object from the metadata already fetched for it, and, if it has any, its
+     * tags.
+     *
+     * <p>Failure to read the tags of the object is logged rather than thrown, as the object's own attributes can still
+     * be used.</p>
+     *
+     * @param client   The client to read the tags of the object with
+     * @param bucket   The bucket holding the object
+     * @param key      The key of the object
+     * @param metadata The metadata of the object
+     *
+     * @return the last modified time and permissions, by the names of their attributes, if they are stored
+     */
+    public static Map<String, Object> read(
+            final AmazonS3 client, final String bucket, final String key, final ObjectMetadata metadata
+                                          ) {
+        final Map<String, String> stored = new HashMap<>();
+        metadata.getUserMetadata()
+                .forEach((name, value) -> addStored(stored, name, value));
+        final Object tagCount = metadata.getRawMetadataValue(TAGGING_COUNT);
+        if (tagCount != null && !"0".equals(tagCount.toString())) {
+            try {
+                client.getObjectTagging(new GetObjectTaggingRequest(bucket, key))
+                      .getTagSet()
+                      .forEach(tag -> addStored(stored, tag.getKey(), tag.getValue()));
+            } catch (SdkClientException e) {
+                log.debug("Could not read attributes of {} from its tags", key, e);
+            }
+        }
+        return fileAttributes(stored);
+    }
+
+    private static void addStored(final Map<String, String> stored, final String name, final String value) {
+        if (MTIME.equals(name) || PERMISSIONS.equals(name)) {
+            stored.put(name, value);
+        }
+    }
+
+    private static Map<String, Object> fileAttributes(final Map<String, String> stored) {
+        final Map<String, Object> fileAttributes = new HashMap<>();
+        try {
+            if (stored.containsKey(MTIME)) {
+                fileAttributes.put("lastModifiedTime",
+                                   FileTime.from(Long.parseLong(stored.get(MTIME)), TimeUnit.SECONDS));
+            }
+            if (stored.containsKey(PERMISSIONS)) {
+                fileAttributes.put("permissions", PosixFilePermissions.fromString(stored.get(PERMISSIONS)));
+            }
+        } catch (IllegalArgumentException e) {
+            log.debug("Ignoring malformed stored attributes: {}", stored, e);
+        }
+        return fileAttributes;
+    }
+
+    /**
+     * The tags to store the attributes as.
+     *
+     * @return the tags
+     */
+    List<Tag> tags() {
+        return values.entrySet()
+                     .stream()
+                     .map(entry -> new Tag(entry.getKey(), entry.getValue()))
+                     .collect(Collectors.toList());
+    }
+}
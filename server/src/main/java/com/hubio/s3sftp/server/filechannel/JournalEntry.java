@@ -0,0 +1,68 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filechannel;
+
+import com.amazonaws.services.s3.model.PartETag;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+import java.util.List;
+
+/**
+ * The state of a multipart upload that may be resumed, as kept in an {@link UploadJournal}.
+ *
+ * <p>The parts are those uploaded without a gap from the start of the object, so the upload may be resumed by
+ * writing from the end of the last of them.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@Getter
+@ToString
+@RequiredArgsConstructor
+class JournalEntry {
+
+    private final String owner;
+
+    private final String bucket;
+
+    private final String key;
+
+    private final String uploadId;
+
+    private final int partSize;
+
+    private final List<PartETag> parts;
+
+    private final long updated;
+
+    /**
+     * The number of bytes uploaded, and so the position at which the upload resumes.
+     *
+     * @return the size of the parts
+     */
+    long size() {
+        return (long) parts.size() * partSize;
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filechannel;
+
+import com.amazonaws.services.s3.AmazonS3;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Aborts the resumable uploads in an {@link UploadJournal} that have not been updated for too long, so that the parts
+ * of uploads that are never resumed do not pile up in S3.
+ *
+ * <p>An upload is aborted using the S3 client of the last file system its owner uploaded through. Entries of owners
+ * that have not uploaded anything since the server started are left until they do.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@Slf4j
+class JournalSweeper implements Runnable {
+
+    private final UploadJournal journal;
+
+    private final Map<String, AmazonS3> clients;
+
+    private final long expiryMillis;
+
+    /**
+     * Constructor.
+     *
+     * @param journal      The journal to sweep
+     * @param clients      The S3 clients for each owner
+     * @param expiryMillis The time after an entry was last updated that its upload is aborted
+     */
+    JournalSweeper(final UploadJournal journal, final Map<String, AmazonS3> clients, final long expiryMillis) {
+        this.journal = journal;
+        this.clients = clients;
+        this.expiryMillis = expiryMillis;
+    }
+
+    @Override
+    public void run() {
+        log.trace("run()");
+        try {
+            sweep(System.currentTimeMillis());
+        } catch (IOException e) {
+            log.warn("Could not sweep upload journal", e);
+        }
+    }
+
+    /**
+     * Aborts the uploads that have expired.
+     *
+     * @param now The current time in milliseconds
+     *
+     * @throws IOException if the journal could not be read or updated
+     */
+    void sweep(final long now) throws IOException {
+        for (final JournalEntry entry : journal.entries()) {
+            if (now - entry.getUpdated() < expiryMillis) {
+                continue;
+            }
+            final AmazonS3 client = clients.get(entry.getOwner());
+            if (client == null) {
+                log.debug("no client to abort stale upload of {}/{} for {}", entry.getBucket(), entry.getKey(),
+                          entry.getOwner());
+                continue;
+            }
+            log.info("Aborting stale upload {} of {}/{}", entry.getUploadId(), entry.getBucket(), entry.getKey());
+            new S3ObjectWriter(client, entry.getBucket(), entry.getKey(), null).abort(entry.getUploadId());
+            journal.remove(entry.getOwner(), entry.getBucket(), entry.getKey());
+        }
+    }
+}
@@ -0,0 +1,812 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filechannel;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+import com.upplication.s3fs.S3Path;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A write-only {@link SeekableByteChannel} that uploads to S3 as the data is written.
+ *
+ * <p>The object is divided into parts of a fixed size, part {@code n} holding the bytes from {@code n * partSize}.
+ * Writes may arrive at any position, as they do from clients that pipeline their requests, and are held in the
+ * buffer for their part. As soon as every byte of a part has been written, it is uploaded as that part of a multipart
+ * upload, which is only started once the first part is ready. Closing the channel uploads the remaining parts, with
+ * any bytes never written left as zeros, and completes the upload. If no more than one part was written, the object
+ * is stored with a single PUT instead.</p>
+ *
+ * <p>Parts are uploaded concurrently on a shared executor. Each upload may have a limited number of parts in flight,
+ * and so may all uploads together. When either limit is reached, the write that completed a part waits until an
+ * earlier part has finished uploading, stalling the SFTP client rather than letting buffered parts accumulate.</p>
+ *
+ * <p>Parts are held in {@link PartBuffers}, either pooled direct buffers or slots of a memory-mapped spool file. When
+ * they are spooled a region within a part may also be mapped, and the part is then only uploaded when the channel is
+ * closed, as there is no telling when the caller has finished writing to the mapping.</p>
+ *
+ * <p>Data cannot be rewritten once its part has been uploaded. If anything fails the upload is aborted, so no partial
+ * object is left behind.</p>
+ *
+ * <p>A channel may instead {@link #appendTo(S3ObjectReader, ObjectMetadata) append} to an existing object. An object
+ * large enough to be a part is copied into the first parts of the upload within S3, and the parts written follow it.
+ * A smaller object is read into the first part, as S3 requires every part but the last to be at least 5MB. A channel
+ * to which nothing has been written may likewise start with a {@link #copyOf(S3ObjectReader) copy} of another
+ * object.</p>
+ *
+ * <p>The channel may be {@link #force() forced} to commit what has been written so far, short of the part being
+ * written at the end of the object.</p>
+ *
+ * <p>The checksums of the object are computed from its parts as they are uploaded, and stored as tags once the upload
+ * completes, provided the parts were all written in order. An object stored with a PUT has its checksums stored as
+ * user metadata. Each part, and each PUT, is sent with its MD5 checksum for S3 to verify.</p>
+ *
+ * <p>When given an {@link UploadJournal}, the parts uploaded without a gap from the start of the object are recorded
+ * in it as they complete. An abandoned channel leaves the upload incomplete in the journal, from where a later channel
+ * may {@link #resume(JournalEntry)} it. An upload that starts with parts copied within S3 is not journaled, as those
+ * parts are not the size of the parts written, and is completed when abandoned.</p>
+ *
+ * <p>An object stored with a PUT may be {@link #deferTo(DeferredUploads, S3Path) held back} when the channel is
+ * closed, so that a rename soon after stores it under its new name instead.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@Slf4j
+class MultipartUploadChannel implements SeekableByteChannel {
+
+    static final long MIN_COPY_PART_SIZE = 5L * 1024 * 1024;
+
+    static final long MAX_COPY_PART_SIZE = 5L * 1024 * 1024 * 1024;
+
+    private static final int PREFILL_BUFFER_SIZE = 64 * 1024;
+
+    private final S3ObjectWriter objectWriter;
+
+    private final int partSize;
+
+    private final Map<Long, Part> pending = new HashMap<>();
+
+    private final Map<Long, Future<PartETag>> uploaded = new TreeMap<>();
+
+    private final Executor executor;
+
+    private final Semaphore uploadPermits;
+
+    private final Semaphore globalPermits;
+
+    private final PartBuffers partBuffers;
+
+    private final boolean sha256;
+
+    private final UploadChecksums checksums;
+
+    private UploadJournal journal;
+
+    private final String owner;
+
+    private DeferredUploads deferredUploads;
+
+    private S3Path path;
+
+    private int journaledParts;
+
+    private long base;
+
+    private int copiedParts;
+
+    private String uploadId;
+
+    private long position;
+
+    private long size;
+
+    private boolean open = true;
+
+    private boolean failed;
+
+    /**
+     * Constructor.
+     *
+     * @param objectWriter  The writer for the object
+     * @param partSize      The size of each part of the upload
+     * @param executor      The executor to upload parts on
+     * @param globalPermits The permits, shared between uploads, needed for each part in flight
+     * @param concurrency   The maximum number of parts of this upload in flight at once
+     * @param partBuffers   The buffers to hold parts in until they are uploaded
+     */
+    MultipartUploadChannel(
+            final S3ObjectWriter objectWriter, final int partSize, final Executor executor,
+            final Semaphore globalPermits, final int concurrency, final PartBuffers partBuffers
+                          ) {
+        this(objectWriter, partSize, executor, globalPermits, concurrency, partBuffers, null, null, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param objectWriter  The writer for the object
+     * @param partSize      The size of each part of the upload
+     * @param executor      The executor to upload parts on
+     * @param globalPermits The permits, shared between uploads, needed for each part in flight
+     * @param concurrency   The maximum number of parts of this upload in flight at once
+     * @param partBuffers   The buffers to hold parts in until they are uploaded
+     * @param journal       The journal to record the upload in, so that it may be resumed, or null
+     * @param owner         The owner of the upload in the journal
+     * @param sha256        Whether to compute and store the SHA-256 checksum of the object
+     */
+    @SuppressWarnings("parameternumber")
+    MultipartUploadChannel(
+            final S3ObjectWriter objectWriter, final int partSize, final Executor executor,
+            final Semaphore globalPermits, final int concurrency, final PartBuffers partBuffers,
+            final UploadJournal journal, final String owner, final boolean sha256
+                          ) {
+        log.trace("new({}, {}, {}, {}, {}, {}, {}, {}, {})", objectWriter, partSize, executor, globalPermits,
+                  concurrency, partBuffers, journal, owner, sha256);
+        this.objectWriter = objectWriter;
+        this.partSize = partSize;
+        this.executor = executor;
+        this.globalPermits = globalPermits;
+        this.uploadPermits = new Semaphore(concurrency);
+        this.partBuffers = partBuffers;
+        this.journal = journal;
+        this.owner = owner;
+        this.sha256 = sha256;
+        this.checksums = new UploadChecksums(sha256);
+    }
+
+    /**
+     * Holds back the object when the channel is closed, if it is then stored with a single PUT.
+     *
+     * @param deferredUploads The uploads to hold the object back in
+     * @param path            The path of the object
+     */
+    synchronized void deferTo(final DeferredUploads deferredUploads, final S3Path path) {
+        log.trace("deferTo({})", path);
+        this.deferredUploads = deferredUploads;
+        this.path = path;
+    }
+
+    /**
+     * Continues an upload from where it was abandoned, with the parts it had uploaded.
+     *
+     * @param entry The journal entry for the upload
+     */
+    synchronized void resume(final JournalEntry entry) {
+        log.trace("resume({})", entry);
+        uploadId = entry.getUploadId();
+        checksums.invalidate();
+        for (final PartETag part : entry.getParts()) {
+            uploaded.put((long) part.getPartNumber() - 1, CompletableFuture.completedFuture(part));
+        }
+        journaledParts = entry.getParts()
+                              .size();
+        size = entry.size();
+        position = size;
+        record(journaledParts);
+    }
+
+    /**
+     * Starts the object with the content of the existing object, so that the data written is appended to it.
+     *
+     * <p>Content at least {@link #MIN_COPY_PART_SIZE} long is copied into the first parts within S3, each no more than
+     * {@link #MAX_COPY_PART_SIZE}, and cannot be rewritten. Shorter content is read and written to the channel.</p>
+     *
+     * @param objectReader The reader for the existing object
+     * @param existing     The metadata of the existing object
+     *
+     * @throws IOException if the upload could not be started or the existing content could not be read
+     */
+    synchronized void appendTo(final S3ObjectReader objectReader, final ObjectMetadata existing) throws IOException {
+        log.trace("appendTo({}, {})", objectReader, existing);
+        boolean appended = false;
+        try {
+            start(objectReader, existing);
+            appended = true;
+        } finally {
+            if (!appended) {
+                fail();
+            }
+        }
+    }
+
+    /**
+     * Starts the object with a copy of another object, as when {@link #appendTo(S3ObjectReader, ObjectMetadata)
+     * appending} to it, provided nothing has yet been written.
+     *
+     * @param objectReader The reader for the object to copy
+     *
+     * @return {@code true} if the object was copied, or {@code false} if data has already been written
+     *
+     * @throws IOException if the upload could not be started or the object could not be read
+     */
+    synchronized boolean copyOf(final S3ObjectReader objectReader) throws IOException {
+        log.trace("copyOf({})", objectReader);
+        ensureOpen();
+        if (size > 0 || position > 0 || uploadId != null) {
+            return false;
+        }
+        appendTo(objectReader, objectReader.metadata());
+        return true;
+    }
+
+    private void start(final S3ObjectReader objectReader, final ObjectMetadata existing) throws IOException {
+        final long length = existing.getContentLength();
+        if (length < MIN_COPY_PART_SIZE) {
+            prefill(objectReader, length);
+            return;
+        }
+        stopJournaling();
+        uploadId = objectWriter.initiateAppend(existing);
+        checksums.invalidate();
+        final long count = (length + MAX_COPY_PART_SIZE - 1) / MAX_COPY_PART_SIZE;
+        copiedParts = (int) count;
+        for (int i = 0; i < count; i++) {
+            final long firstByte = length * i / count;
+            final long lastByte = length * (i + 1) / count - 1;
+            final int partNumber = i + 1;
+            final String id = uploadId;
+            submit(i - count, () -> objectWriter.copyPart(id, partNumber, objectReader.getBucket(),
+                                                          objectReader.getKey(), firstByte, lastByte), null);
+        }
+        base = length;
+        size = length;
+        position = length;
+    }
+
+    private void prefill(final S3ObjectReader objectReader, final long length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, PREFILL_BUFFER_SIZE));
+        long offset = 0;
+        while (offset < length) {
+            buffer.clear();
+            if (objectReader.read(buffer, offset) < 0) {
+                throw new IOException("Object shorter than expected: " + objectWriter.getKey());
+            }
+            buffer.flip();
+            position = offset;
+            offset += write(buffer);
+        }
+        position = length;
+    }
+
+    @Override
+    public int read(final ByteBuffer dst) {
+        throw new NonReadableChannelException();
+    }
+
+    @Override
+    public synchronized int write(final ByteBuffer src) throws IOException {
+        log.trace("write({})", src);
+        ensureOpen();
+        checkUploads();
+        final int length = src.remaining();
+        long offset = position;
+        while (src.hasRemaining()) {
+            final long index = indexOf(offset);
+            final int start = (int) (offset - startOf(index));
+            final ByteBuffer slice = src.duplicate();
+            slice.limit(slice.position() + Math.min(slice.remaining(), partSize - start));
+            final int written = slice.remaining();
+            partFor(index).write(start, slice);
+            src.position(slice.position());
+            offset += written;
+            size = Math.max(size, offset);
+            final Part part = pending.get(index);
+            if (part.isComplete()) {
+                pending.remove(index);
+                upload(index, part.buffer, checksums.update(index, part.buffer));
+            }
+        }
+        position = offset;
+        return length;
+    }
+
+    /**
+     * The index of the part holding the byte at the offset, which is negative for the bytes copied from an existing
+     * object.
+     */
+    private long indexOf(final long offset) {
+        return Math.floorDiv(offset - base, (long) partSize);
+    }
+
+    private long startOf(final long index) {
+        return base + index * partSize;
+    }
+
+    private int partNumberOf(final long index) {
+        return (int) (index + copiedParts + 1);
+    }
+
+    private Part partFor(final long index) throws IOException {
+        if (index < 0 || uploaded.containsKey(index)) {
+            throw new IOException(
+                    String.format("Cannot rewrite part %d of %s after it has been uploaded",
+                                  Math.max(1, partNumberOf(index)), objectWriter.getKey()));
+        }
+        Part part = pending.get(index);
+        if (part == null) {
+            part = new Part(partBuffers.acquire());
+            pending.put(index, part);
+        }
+        return part;
+    }
+
+    /**
+     * Maps a region of the object into memory, so that it may be written through the mapping.
+     *
+     * <p>The region must lie within a single part that has not been uploaded. It is treated as written, and the part
+     * is not uploaded until the channel is closed.</p>
+     *
+     * @param mode     The mode, which must be {@code READ_WRITE} as the channel is not readable
+     * @param position The position of the region
+     * @param length   The size of the region
+     *
+     * @return the mapped region
+     *
+     * @throws IOException                   if the region spans parts or is in a part that has been uploaded
+     * @throws UnsupportedOperationException if the parts are not held in a spool file
+     */
+    synchronized MappedByteBuffer map(final FileChannel.MapMode mode, final long position, final long length)
+            throws IOException {
+        log.trace("map({}, {}, {})", mode, position, length);
+        ensureOpen();
+        if (mode != FileChannel.MapMode.READ_WRITE) {
+            throw new NonReadableChannelException();
+        }
+        if (position < 0 || length < 0) {
+            throw new IllegalArgumentException("Negative position or size");
+        }
+        final long index = indexOf(position);
+        final int start = (int) (position - startOf(index));
+        if (start + length > partSize) {
+            throw new IOException(
+                    String.format("Cannot map %d bytes at %d of %s across parts", length, position,
+                                  objectWriter.getKey()));
+        }
+        final Part part = partFor(index);
+        final MappedByteBuffer mapped = partBuffers.map(part.buffer, start, (int) length);
+        part.mapped(start, (int) length);
+        size = Math.max(size, position + length);
+        return mapped;
+    }
+
+    /**
+     * Starts uploading a part, once permits are available for it.
+     */
+    private void upload(final long index, final ByteBuffer content, final byte[] md5) throws IOException {
+        try {
+            if (uploadId == null) {
+                uploadId = objectWriter.initiate(content);
+                record(0);
+            }
+        } catch (IOException e) {
+            partBuffers.release(content);
+            fail();
+            throw e;
+        }
+        final String id = uploadId;
+        final int partNumber = partNumberOf(index);
+        submit(index, () -> objectWriter.uploadPart(id, partNumber, content, md5), content);
+    }
+
+    /**
+     * Starts transferring a part once permits are available for it, releasing its content, if any, once done.
+     */
+    private void submit(final long index, final Callable<PartETag> transfer, final ByteBuffer content)
+            throws IOException {
+        boolean permitted = false;
+        try {
+            Transfers.acquire(uploadPermits, "upload of " + objectWriter.getKey());
+            try {
+                Transfers.acquire(globalPermits, "upload of " + objectWriter.getKey());
+                permitted = true;
+            } finally {
+                if (!permitted) {
+                    uploadPermits.release();
+                }
+            }
+        } finally {
+            if (!permitted) {
+                partBuffers.release(content);
+            }
+        }
+        final FutureTask<PartETag> task =
+                new FutureTask<PartETag>(transfer) {
+                    @Override
+                    protected void done() {
+                        partBuffers.release(content);
+                        globalPermits.release();
+                        uploadPermits.release();
+                    }
+                };
+        uploaded.put(index, task);
+        executor.execute(task);
+    }
+
+    /**
+     * Fails the upload if any part has failed to upload.
+     */
+    private void checkUploads() throws IOException {
+        for (final Future<PartETag> future : uploaded.values()) {
+            if (future.isDone()) {
+                awaitPart(future);
+            }
+        }
+        final List<PartETag> parts = completedParts();
+        if (parts.size() > journaledParts) {
+            record(parts.size());
+        }
+    }
+
+    /**
+     * The parts that have been uploaded without a gap from the start of the object.
+     */
+    private List<PartETag> completedParts() {
+        final List<PartETag> parts = new ArrayList<>();
+        for (long index = 0; ; index++) {
+            final Future<PartETag> future = uploaded.get(index);
+            if (future == null || !future.isDone() || future.isCancelled()) {
+                return parts;
+            }
+            try {
+                parts.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread()
+                      .interrupt();
+                return parts;
+            } catch (ExecutionException e) {
+                return parts;
+            }
+        }
+    }
+
+    /**
+     * Records the upload in the journal with the given number of parts from the start of the object.
+     *
+     * <p>Failure to update the journal is logged rather than thrown, as it only prevents the upload being resumed.</p>
+     */
+    private void record(final int partCount) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.record(new JournalEntry(owner, objectWriter.getBucket(), objectWriter.getKey(), uploadId, partSize,
+                                            completedParts().subList(0, partCount), System.currentTimeMillis()));
+            journaledParts = partCount;
+        } catch (IOException e) {
+            log.warn("Could not journal upload {} of {}", uploadId, objectWriter.getKey(), e);
+        }
+    }
+
+    /**
+     * Forgets any journal entry for the object and journals nothing more for this upload.
+     */
+    private void stopJournaling() {
+        forget();
+        journal = null;
+    }
+
+    private void forget() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.remove(owner, objectWriter.getBucket(), objectWriter.getKey());
+        } catch (IOException e) {
+            log.warn("Could not remove upload {} of {} from journal", uploadId, objectWriter.getKey(), e);
+        }
+    }
+
+    private PartETag awaitPart(final Future<PartETag> future) throws IOException {
+        try {
+            return Transfers.await(future, "upload of " + objectWriter.getKey());
+        } catch (IOException e) {
+            fail();
+            throw e;
+        }
+    }
+
+    private void fail() {
+        failed = true;
+        pending.values()
+               .forEach(part -> partBuffers.release(part.buffer));
+        pending.clear();
+        uploaded.values()
+                .forEach(future -> future.cancel(true));
+        if (uploadId != null) {
+            objectWriter.abort(uploadId);
+            forget();
+        }
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(final long newPosition) throws IOException {
+        log.trace("position({})", newPosition);
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public synchronized long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel truncate(final long newSize) throws IOException {
+        log.trace("truncate({})", newSize);
+        ensureOpen();
+        if (newSize < size) {
+            throw new IOException(
+                    String.format("Cannot truncate %s to %d while uploading", objectWriter.getKey(), newSize));
+        }
+        return this;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        log.trace("close()");
+        if (!open) {
+            return;
+        }
+        open = false;
+        try {
+            if (!failed) {
+                finish();
+            }
+        } finally {
+            partBuffers.close();
+        }
+    }
+
+    /**
+     * Commits the data written so far to S3, so that little is lost should the channel never be closed.
+     *
+     * <p>While nothing beyond a single part has been written the object is stored as it stands with a PUT, to be
+     * replaced when the channel is closed. Otherwise every part written in full is already being uploaded, so this
+     * waits for those uploads and records the parts in the journal, from where the upload may be resumed. The part
+     * at the end of the object, and any other part not yet written in full, stays buffered, as S3 only allows the last
+     * part of an upload to be shorter than the others.</p>
+     *
+     * @throws IOException if the object could not be stored or a part failed to upload
+     */
+    synchronized void force() throws IOException {
+        log.trace("force()");
+        ensureOpen();
+        if (uploadId == null) {
+            final Part part = pending.get(0L);
+            if (part != null && size <= partSize) {
+                final int length = (int) size;
+                part.zeroUnwritten(length);
+                final ByteBuffer content = part.buffer.duplicate();
+                content.position(0);
+                content.limit(length);
+                objectWriter.put(content, UploadChecksums.of(sha256, content));
+                // stored under its own key, which holding it back when closed would leave stale
+                deferredUploads = null;
+            }
+            return;
+        }
+        for (final Future<PartETag> future : uploaded.values()) {
+            awaitPart(future);
+        }
+        final List<PartETag> parts = completedParts();
+        if (parts.size() > journaledParts) {
+            record(parts.size());
+        }
+    }
+
+    /**
+     * Closes the channel without completing the upload, so that it may be resumed from the parts that have been
+     * uploaded. Parts still being uploaded are left to finish, but data not yet uploaded is discarded.
+     *
+     * <p>Without a journal the upload could never be resumed, so it is completed as if the channel were closed.</p>
+     *
+     * @throws IOException if the channel could not be closed
+     */
+    synchronized void abandon() throws IOException {
+        log.trace("abandon()");
+        if (journal == null) {
+            close();
+            return;
+        }
+        if (!open) {
+            return;
+        }
+        open = false;
+        try {
+            if (!failed) {
+                if (uploadId == null) {
+                    log.info("Abandoned upload of {} before any part was uploaded", objectWriter.getKey());
+                } else {
+                    record(completedParts().size());
+                    log.info("Abandoned upload {} of {} after {} parts", uploadId, objectWriter.getKey(),
+                             journaledParts);
+                }
+                pending.values()
+                       .forEach(part -> partBuffers.release(part.buffer));
+                pending.clear();
+            }
+        } finally {
+            partBuffers.close();
+        }
+    }
+
+    /**
+     * Uploads the parts that remain and completes the upload, or stores a single part with a PUT unless it is held
+     * back.
+     */
+    private void finish() throws IOException {
+        final long partCount = (size - base + partSize - 1) / partSize;
+        if (uploadId == null && partCount <= 1) {
+            final ByteBuffer content = contentOf(0);
+            try {
+                final Map<String, byte[]> digests = UploadChecksums.of(sha256, content);
+                if (deferredUploads == null || !deferredUploads.defer(path, objectWriter, content, digests)) {
+                    objectWriter.put(content, digests);
+                }
+            } finally {
+                partBuffers.release(content);
+            }
+            return;
+        }
+        for (long index = 0; index < partCount; index++) {
+            if (!uploaded.containsKey(index)) {
+                final ByteBuffer content = contentOf(index);
+                upload(index, content, checksums.update(index, content));
+            }
+        }
+        final List<PartETag> parts = new ArrayList<>();
+        for (final Future<PartETag> future : uploaded.values()) {
+            parts.add(awaitPart(future));
+        }
+        try {
+            objectWriter.complete(uploadId, parts);
+        } catch (IOException e) {
+            fail();
+            throw e;
+        }
+        forget();
+        final Map<String, byte[]> digests = checksums.checksums();
+        if (!digests.isEmpty() || objectWriter.hasHeldAttributes()) {
+            objectWriter.tag(ObjectChecksums.tags(digests));
+        }
+    }
+
+    /**
+     * The content of a part that has not been uploaded, with any bytes not written left as zeros.
+     */
+    private ByteBuffer contentOf(final long index) throws IOException {
+        final int length = (int) Math.max(0, Math.min(partSize, size - startOf(index)));
+        Part part = pending.remove(index);
+        if (part == null) {
+            part = new Part(partBuffers.acquire());
+        }
+        part.zeroUnwritten(length);
+        part.buffer.limit(length);
+        return part.buffer;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        if (failed) {
+            throw new IOException("Upload has failed: " + objectWriter.getKey());
+        }
+    }
+
+    /**
+     * A part that has not been uploaded, and the ranges within it that have been written.
+     */
+    private static final class Part {
+
+        private static final byte[] ZEROS = new byte[8 * 1024];
+
+        private final ByteBuffer buffer;
+
+        private final RangeSet<Integer> written = TreeRangeSet.create();
+
+        private final Range<Integer> whole;
+
+        private boolean mapped;
+
+        Part(final ByteBuffer buffer) {
+            this.buffer = buffer;
+            whole = Range.closedOpen(0, buffer.limit());
+        }
+
+        void write(final int start, final ByteBuffer src) {
+            final int length = src.remaining();
+            final ByteBuffer target = buffer.duplicate();
+            target.position(start);
+            target.put(src);
+            written.add(Range.closedOpen(start, start + length));
+        }
+
+        void mapped(final int start, final int length) {
+            mapped = true;
+            written.add(Range.closedOpen(start, start + length));
+        }
+
+        boolean isComplete() {
+            return !mapped && written.encloses(whole);
+        }
+
+        /**
+         * Zeros the bytes before the given length that have not been written, as part buffers are reused.
+         */
+        void zeroUnwritten(final int length) {
+            final ByteBuffer target = buffer.duplicate();
+            for (final Range<Integer> gap : written.complement()
+                                                   .subRangeSet(Range.closedOpen(0, length))
+                                                   .asRanges()) {
+                target.position(gap.lowerEndpoint());
+                int remaining = gap.upperEndpoint() - gap.lowerEndpoint();
+                while (remaining > 0) {
+                    final int chunk = Math.min(remaining, ZEROS.length);
+                    target.put(ZEROS, 0, chunk);
+                    remaining -= chunk;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filechannel;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.Tag;
+import com.google.common.io.BaseEncoding;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * The checksums of S3 objects, as stored when they were uploaded, so that a client verifying a transfer need not
+ * read the object again.
+ *
+ * <p>Checksums computed during an upload are stored as user metadata on objects uploaded with a single PUT, and as tags
+ * on objects uploaded in parts, whose metadata is fixed before their content is seen. The checksums of an object may be
+ * read as the {@value #VIEW} file attribute view, with attributes named for their algorithm, such as {@value #MD5},
+ * whose values are the bytes of the checksum. The MD5 checksum of an object uploaded with a single PUT is its ETag,
+ * unless it is encrypted with a key other than the S3 managed key.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@Slf4j
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+@SuppressWarnings("hideutilityclassconstructor")
+public final class ObjectChecksums {
+
+    /**
+     * The name of the file attribute view for the checksums of an object.
+     */
+    public static final String VIEW = "checksum";
+
+    /**
+     * The name of the MD5 checksum.
+     */
+    public static final String MD5 = "md5";
+
+    /**
+     * The name of the CRC32C checksum.
+     */
+    public static final String CRC32C = "crc32c";
+
+    /**
+     * The name of the SHA-256 checksum.
+     */
+    public static final String SHA256 = "sha256";
+
+    private static final String PREFIX = "s3sftp-checksum-";
+
+    private static final Pattern PLAIN_MD5 = Pattern.compile("[0-9a-f]{32}");
+
+    private static final BaseEncoding HEX = BaseEncoding.base16()
+                                                        .lowerCase();
+
+    /**
+     * Reads the checksums stored for an object.
+     *
+     * <p>Failure to read the tags of the object is logged rather than thrown, as the checksums can still be computed
+     * from its content.</p>
+     *
+     * @param objectReader The reader for the object
+     *
+     * @return the checksums, keyed by the name of their algorithm
+     *
+     * @throws IOException if the object does not exist or an I/O error occurs
+     */
+    static Map<String, byte[]> read(final S3ObjectReader objectReader) throws IOException {
+        final ObjectMetadata metadata = objectReader.metadata();
+        final Map<String, byte[]> checksums = new HashMap<>();
+        try {
+            metadata.getUserMetadata()
+                    .forEach((name, value) -> addChecksum(checksums, name, value));
+            if (checksums.isEmpty()) {
+                objectReader.tags()
+                            .forEach(tag -> addChecksum(checksums, tag.getKey(), tag.getValue()));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            log.debug("Could not read checksums of {}", objectReader.getKey(), e);
+        }
+        if (isPlainMd5(metadata)) {
+            checksums.put(MD5, HEX.decode(metadata.getETag()));
+        }
+        return checksums;
+    }
+
+    private static void addChecksum(final Map<String, byte[]> checksums, final String name, final String value) {
+        if (isChecksum(name)) {
+            checksums.put(name.substring(PREFIX.length()), HEX.decode(value));
+        }
+    }
+
+    private static boolean isChecksum(final String name) {
+        return name.startsWith(PREFIX);
+    }
+
+    /**
+     * Checks whether the ETag of an object is the MD5 checksum of its content, which is the case for objects uploaded
+     * with a single PUT that are not encrypted with a customer or KMS managed key.
+     */
+    private static boolean isPlainMd5(final ObjectMetadata metadata) {
+        final String eTag = metadata.getETag();
+        return eTag != null
+                && PLAIN_MD5.matcher(eTag)
+                            .matches()
+                && metadata.getSSECustomerAlgorithm() == null
+                && (metadata.getSSEAlgorithm() == null
+                || ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION.equals(metadata.getSSEAlgorithm()));
+    }
+
+    /**
+     * The tags to store checksums as.
+     *
+     * @param checksums The checksums, keyed by the name of their algorithm
+     *
+     * @return the tags
+     */
+    static List<Tag> tags(final Map<String, byte[]> checksums) {
+        return checksums.entrySet()
+                        .stream()
+                        .map(entry -> new Tag(PREFIX + entry.getKey(), HEX.encode(entry.getValue())))
+                        .collect(Collectors.toList());
+    }
+
+    /**
+     * The user metadata to store checksums as.
+     *
+     * @param checksums The checksums, keyed by the name of their algorithm
+     *
+     * @return the user metadata
+     */
+    static Map<String, String> userMetadata(final Map<String, byte[]> checksums) {
+        return checksums.entrySet()
+                        .stream()
+                        .collect(Collectors.toMap(entry -> PREFIX + entry.getKey(),
+                                                  entry -> HEX.encode(entry.getValue())));
+    }
+
+    /**
+     * User metadata without any checksums, for an object whose content is about to change.
+     *
+     * @param userMetadata The user metadata
+     *
+     * @return the user metadata that is not a checksum
+     */
+    static Map<String, String> withoutChecksums(final Map<String, String> userMetadata) {
+        return userMetadata.entrySet()
+                           .stream()
+                           .filter(entry -> !isChecksum(entry.getKey()))
+                           .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filechannel;
+
+import com.upplication.s3fs.S3Path;
+import lombok.Value;
+
+/**
+ * An object in a bucket, as seen by a file system.
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@Value
+class ObjectKey {
+
+    private final String owner;
+
+    private final String bucket;
+
+    private final String key;
+
+    static ObjectKey of(final S3Path path) {
+        return new ObjectKey(path.getFileSystem()
+                                 .getKey(), path.getFileStore()
+                                                .name(), path.getKey());
+    }
+
+    /**
+     * Whether this is the object at the other, or below it when the other is a directory.
+     *
+     * @param other The other object or directory
+     *
+     * @return true if this is at or below the other
+     */
+    boolean isAt(final ObjectKey other) {
+        if (!owner.equals(other.owner) || !bucket.equals(other.bucket)) {
+            return false;
+        }
+        final String prefix = other.key;
+        return key.equals(prefix) || prefix.isEmpty() || key.startsWith(prefix.endsWith("/")
+                                                                          ? prefix
+                                                                          : prefix + "/");
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filechannel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * The buffers that a {@link MultipartUploadChannel} holds parts in until they are uploaded.
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+interface PartBuffers extends Closeable {
+
+    /**
+     * Buffers leased from a {@link BufferPool}.
+     *
+     * @param bufferPool The pool to lease buffers from
+     * @param partSize   The size of each part
+     *
+     * @return the part buffers
+     */
+    static PartBuffers pooled(final BufferPool bufferPool, final int partSize) {
+        return new PooledPartBuffers(bufferPool, partSize);
+    }
+
+    /**
+     * Acquires a buffer for a part, blocking if none may be acquired until another is released, for no longer than
+     * the buffers allow.
+     *
+     * <p>The buffer is cleared, with a limit of the part size, but may contain data from an earlier part.</p>
+     *
+     * @return the buffer
+     *
+     * @throws IOException if the buffer could not be created, or the wait timed out or was interrupted
+     */
+    ByteBuffer acquire() throws IOException;
+
+    /**
+     * Releases a buffer acquired from these part buffers. May be called from any thread.
+     *
+     * @param buffer The buffer
+     */
+    void release(ByteBuffer buffer);
+
+    /**
+     * Maps a region of a part buffer into memory, so that writes to the mapping are written to the buffer.
+     *
+     * @param buffer The buffer, which must not have been released
+     * @param offset The offset of the region within the buffer
+     * @param size   The size of the region
+     *
+     * @return the mapped region
+     *
+     * @throws IOException                   if the region could not be mapped
+     * @throws UnsupportedOperationException if the buffers are not backed by a file
+     */
+    MappedByteBuffer map(ByteBuffer buffer, int offset, int size) throws IOException;
+}
@@ -0,0 +1,62 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filechannel;
+
+import lombok.RequiredArgsConstructor;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Part buffers leased from a {@link BufferPool}.
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@RequiredArgsConstructor
+class PooledPartBuffers implements PartBuffers {
+
+    private final BufferPool bufferPool;
+
+    private final int partSize;
+
+    @Override
+    public ByteBuffer acquire() {
+        return bufferPool.lease(partSize);
+    }
+
+    @Override
+    public void release(final ByteBuffer buffer) {
+        bufferPool.release(buffer);
+    }
+
+    @Override
+    public MappedByteBuffer map(final ByteBuffer buffer, final int offset, final int size) {
+        throw new UnsupportedOperationException("Pooled part buffers cannot be mapped");
+    }
+
+    @Override
+    public void close() {
+        // nothing to close, as each buffer is returned to the pool when it is released
+    }
+}
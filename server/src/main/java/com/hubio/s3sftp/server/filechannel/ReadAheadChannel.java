@@ -0,0 +1,383 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filechannel;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A read-only {@link SeekableByteChannel} that prefetches the following blocks of an object while it is being read
+ * sequentially.
+ *
+ * <p>SFTP clients read a file in small requests, typically 32KB, each waiting on the response to the last. Once a
+ * channel has been read sequentially, blocks ahead of the current position are fetched from S3 in the background
+ * using range requests, so that the next reads are served from memory rather than waiting on S3.</p>
+ *
+ * <p>The number of blocks kept in flight, the window, starts at an initial size and doubles each time the reader moves
+ * onto the next block, up to a maximum. Large objects start with the window at its maximum, so that several ranges are
+ * fetched concurrently over separate connections and reassembled in order. Blocks ahead of the reader are only fetched
+ * while a permit is available from a pool shared by all channels, which caps the total number of concurrent GETs. A
+ * read that is not at the position where the last one finished is treated as random access: the window collapses, any
+ * prefetched blocks are discarded and the read is passed to the delegate channel.</p>
+ *
+ * <p>The delegate channel's request is released when the window opens, so that its connection is not held idle while
+ * the blocks are fetched over others.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@Slf4j
+class ReadAheadChannel implements SeekableByteChannel {
+
+    static final int SEQUENTIAL_THRESHOLD = 2;
+
+    private final S3StreamingReadChannel delegate;
+
+    private final S3ObjectReader objectReader;
+
+    private final long size;
+
+    private final ExecutorService executor;
+
+    private final Semaphore permits;
+
+    private final BufferPool bufferPool;
+
+    private final ReadAheadMetrics metrics;
+
+    private final int blockSize;
+
+    private final int initialWindow;
+
+    private final int maxWindow;
+
+    private final Map<Long, Block> blocks = new TreeMap<>();
+
+    private long position;
+
+    private long expectedPosition;
+
+    private int sequentialReads;
+
+    private long currentBlock = -1;
+
+    private int window;
+
+    private boolean open = true;
+
+    /**
+     * Constructor.
+     *
+     * @param delegate      The channel to read from when access is not sequential
+     * @param objectReader  The reader for fetching blocks from S3
+     * @param size          The size of the object
+     * @param executor      The executor to fetch blocks on
+     * @param permits       The permits, shared between channels, needed to prefetch a block
+     * @param bufferPool    The pool to lease the buffers for blocks from
+     * @param metrics       The metrics to record hits, misses and the window size in
+     * @param blockSize     The size of each block fetched
+     * @param initialWindow The number of blocks to keep in flight once access is found to be sequential
+     * @param maxWindow     The maximum number of blocks to keep in flight
+     */
+    @SuppressWarnings("parameternumber")
+    ReadAheadChannel(
+            final S3StreamingReadChannel delegate, final S3ObjectReader objectReader, final long size,
+            final ExecutorService executor, final Semaphore permits, final BufferPool bufferPool,
+            final ReadAheadMetrics metrics, final int blockSize, final int initialWindow, final int maxWindow
+                    ) {
+        log.trace("new({}, {}, {}, {}, {}, {}, {}, {}, {}, {})", delegate, objectReader, size, executor, permits,
+                  bufferPool, metrics, blockSize, initialWindow, maxWindow);
+        this.delegate = delegate;
+        this.objectReader = objectReader;
+        this.size = size;
+        this.executor = executor;
+        this.permits = permits;
+        this.bufferPool = bufferPool;
+        this.metrics = metrics;
+        this.blockSize = blockSize;
+        this.initialWindow = initialWindow;
+        this.maxWindow = maxWindow;
+    }
+
+    /**
+     * The number of blocks currently being kept in flight ahead of the reader.
+     *
+     * @return the size of the window in blocks
+     */
+    synchronized int getWindow() {
+        return window;
+    }
+
+    @Override
+    public synchronized int read(final ByteBuffer dst) throws IOException {
+        log.trace("read({})", dst);
+        ensureOpen();
+        if (position >= size) {
+            return -1;
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        trackAccessPattern();
+        final int read;
+        if (window == 0) {
+            metrics.miss();
+            delegate.position(position);
+            read = delegate.read(dst);
+        } else {
+            read = readFromBlocks(dst);
+        }
+        if (read > 0) {
+            position += read;
+        }
+        expectedPosition = position;
+        return read;
+    }
+
+    private void trackAccessPattern() {
+        if (position == expectedPosition) {
+            sequentialReads++;
+            if (window == 0 && sequentialReads >= SEQUENTIAL_THRESHOLD) {
+                resize(initialWindow);
+            }
+        } else {
+            log.debug("random access: expected {}, got {}", expectedPosition, position);
+            sequentialReads = 0;
+            collapse();
+        }
+    }
+
+    private int readFromBlocks(final ByteBuffer dst) throws IOException {
+        int read = 0;
+        long offset = position;
+        while (dst.hasRemaining() && offset < size) {
+            final long block = offset / blockSize;
+            advanceTo(block);
+            final Future<ByteBuffer> future = blocks.get(block).task;
+            if (future.isDone()) {
+                metrics.hit();
+            } else {
+                metrics.miss();
+            }
+            final ByteBuffer data = Transfers.await(future, "read-ahead").duplicate();
+            final int start = (int) (offset - block * blockSize);
+            if (start >= data.limit()) {
+                break;
+            }
+            data.position(start);
+            final int length = Math.min(data.remaining(), dst.remaining());
+            data.limit(start + length);
+            dst.put(data);
+            read += length;
+            offset += length;
+        }
+        if (read == 0) {
+            return -1;
+        }
+        return read;
+    }
+
+    private void advanceTo(final long block) {
+        if (block != currentBlock) {
+            if (currentBlock >= 0 && block == currentBlock + 1) {
+                resize(Math.min(window * 2, maxWindow));
+            }
+            currentBlock = block;
+            final Iterator<Map.Entry<Long, Block>> iterator = blocks.entrySet()
+                                                                    .iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<Long, Block> entry = iterator.next();
+                if (entry.getKey() < block) {
+                    entry.getValue()
+                         .discard();
+                    iterator.remove();
+                }
+            }
+        }
+        final long lastBlock = (size - 1) / blockSize;
+        final long end = Math.min(block + window, lastBlock);
+        if (!blocks.containsKey(block)) {
+            blocks.put(block, new Block(block, false));
+        }
+        for (long b = block + 1; b <= end; b++) {
+            if (!blocks.containsKey(b)) {
+                if (!permits.tryAcquire()) {
+                    log.trace("no permits for read-ahead of block {}", b);
+                    break;
+                }
+                blocks.put(b, new Block(b, true));
+            }
+        }
+    }
+
+    private void collapse() {
+        blocks.values()
+              .forEach(Block::discard);
+        blocks.clear();
+        currentBlock = -1;
+        resize(0);
+    }
+
+    private void resize(final int newWindow) {
+        if (newWindow != window) {
+            log.trace("resize({} -> {})", window, newWindow);
+            if (window == 0) {
+                delegate.release();
+            }
+            metrics.adjustWindow(newWindow - window);
+            window = newWindow;
+        }
+    }
+
+    @Override
+    public int write(final ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(final long newPosition) throws IOException {
+        log.trace("position({})", newPosition);
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(final long newSize) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        log.trace("close()");
+        if (open) {
+            open = false;
+            collapse();
+            delegate.close();
+        }
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * A block of the object being fetched, and the pooled buffer it is fetched into.
+     *
+     * <p>The block the reader is waiting for is always fetched. Blocks ahead of it are only fetched when a permit has
+     * been acquired, which is released once the fetch completes or is cancelled. A fetch that has started when its
+     * block is discarded is left to finish, and returns its buffer to the pool itself.</p>
+     */
+    private final class Block {
+
+        private final FutureTask<ByteBuffer> task;
+
+        private ByteBuffer buffer;
+
+        private boolean discarded;
+
+        Block(final long block, final boolean permitted) {
+            final long start = block * blockSize;
+            final int length = (int) Math.min(blockSize, size - start);
+            log.trace("fetch({}: {}+{})", block, start, length);
+            task = new FutureTask<ByteBuffer>(() -> fetch(start, length)) {
+                @Override
+                protected void done() {
+                    if (permitted) {
+                        permits.release();
+                    }
+                }
+            };
+            executor.execute(task);
+        }
+
+        private ByteBuffer fetch(final long start, final int length) throws IOException {
+            final ByteBuffer fetched = bufferPool.lease(length);
+            boolean filled = false;
+            try {
+                while (fetched.hasRemaining()) {
+                    if (objectReader.read(fetched, start + fetched.position()) < 0) {
+                        break;
+                    }
+                }
+                filled = true;
+            } finally {
+                if (!filled) {
+                    bufferPool.release(fetched);
+                }
+            }
+            fetched.flip();
+            synchronized (this) {
+                if (discarded) {
+                    bufferPool.release(fetched);
+                    return null;
+                }
+                buffer = fetched;
+            }
+            return fetched;
+        }
+
+        void discard() {
+            task.cancel(false);
+            synchronized (this) {
+                discarded = true;
+                bufferPool.release(buffer);
+                buffer = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filechannel;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics for the read-ahead of sequentially read files.
+ *
+ * <p>A hit is a block of a file that had already been fetched from S3 by the time it was read. A miss is a read that
+ * had to wait for S3, either because the block was still in flight or because the read was not part of a sequential
+ * pattern and so was not prefetched.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+public final class ReadAheadMetrics {
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicInteger windowBlocks = new AtomicInteger();
+
+    /**
+     * Constructor.
+     */
+    ReadAheadMetrics() {
+    }
+
+    /**
+     * The number of reads served from blocks that had already been fetched.
+     *
+     * @return the number of hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * The number of reads that had to wait for S3.
+     *
+     * @return the number of misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * The proportion of reads that were hits.
+     *
+     * @return the hit rate, between 0 and 1, or 0 if nothing has been read
+     */
+    public double getHitRate() {
+        final long hitCount = hits.get();
+        final long total = hitCount + misses.get();
+        if (total == 0) {
+            return 0;
+        }
+        return (double) hitCount / total;
+    }
+
+    /**
+     * The total size of the read-ahead windows, in blocks, of all open channels.
+     *
+     * @return the number of blocks
+     */
+    public int getWindowBlocks() {
+        return windowBlocks.get();
+    }
+
+    void hit() {
+        hits.incrementAndGet();
+    }
+
+    void miss() {
+        misses.incrementAndGet();
+    }
+
+    void adjustWindow(final int delta) {
+        windowBlocks.addAndGet(delta);
+    }
+}
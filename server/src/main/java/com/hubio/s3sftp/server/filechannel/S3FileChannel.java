@@ -23,11 +23,13 @@
 
 package com.hubio.s3sftp.server.filechannel;
 
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import com.upplication.s3fs.S3Path;
 import com.upplication.s3fs.S3SeekableByteChannel;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
@@ -36,7 +38,10 @@ import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Presents an {@link S3SeekableByteChannel} as a {@link FileChannel}.
@@ -44,35 +49,96 @@ import java.util.Set;
  * <p>A {@link FileChannel} that simply directs calls to
  * {@link S3SeekableByteChannel} so that Apache MINA can work with s3fs.</p>
  *
+ * <p>Positional reads on a channel opened only for reading are served directly from S3 using range requests.</p>
+ *
+ * <p>{@link #transferTo(long, long, WritableByteChannel)} and {@link #transferFrom(ReadableByteChannel, long, long)}
+ * move data through a direct buffer leased from the {@link BufferPool} and returned when the channel is closed. On a
+ * channel opened only for reading, {@code transferTo} streams the requested range straight from S3 with a single GET,
+ * unless the whole object is transferred to a new upload, which then starts with a copy of it made within S3.</p>
+ *
+ * <p>{@link #map(MapMode, long, long)} is only supported by uploads whose parts are held in a spool file.</p>
+ *
+ * <p>{@link #force(boolean)} commits the data written so far to S3, as far as the channel is able, so that a client
+ * may checkpoint a long upload. A channel opened only for reading has nothing to commit.</p>
+ *
+ * <p>An upload that is {@link #abandon() abandoned} is left incomplete, so that it may be resumed.</p>
+ *
  * @author Ross W. Drew (ross.drew@hubio.com)
  * @author Paul Campbell (paul.campbell@hubio.com)
  */
 @Slf4j
-class S3FileChannel extends FileChannel {
+class S3FileChannel extends FileChannel implements AbandonableChannel, NotifyingChannel {
+
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
 
     private final SeekableByteChannel byteChannel;
 
+    private final S3ObjectReader objectReader;
+
+    private final BufferPool bufferPool;
+
+    private final Object transferLock = new Object();
+
+    private final List<Runnable> closeActions = new CopyOnWriteArrayList<>();
+
+    private ByteBuffer transferBuffer;
+
     /**
      * Constructor.
      *
      * @param byteChannel The channel for reading and writing
+     * @param bufferPool  The pool to lease buffers for transfers from
      */
-    S3FileChannel(final SeekableByteChannel byteChannel) {
-        log.trace("new({})", byteChannel);
+    S3FileChannel(final SeekableByteChannel byteChannel, final BufferPool bufferPool) {
+        this(byteChannel, null, bufferPool);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param byteChannel  The channel for reading and writing
+     * @param objectReader The reader for positional reads from S3, or {@code null} to read from the byteChannel
+     * @param bufferPool   The pool to lease buffers for transfers from
+     */
+    S3FileChannel(
+            final SeekableByteChannel byteChannel, final S3ObjectReader objectReader, final BufferPool bufferPool
+                 ) {
+        log.trace("new({}, {}, {})", byteChannel, objectReader, bufferPool);
         this.byteChannel = byteChannel;
+        this.objectReader = objectReader;
+        this.bufferPool = bufferPool;
     }
 
     /**
      * Constructor.
      *
-     * @param path    The path of the local file
-     * @param options The options to use when opening the file
+     * @param path       The path of the local file
+     * @param options    The options to use when opening the file
+     * @param bufferPool The pool to lease buffers for transfers from
      *
      * @throws IOException if an I/O error occurs
      */
-    S3FileChannel(final S3Path path, final Set<? extends OpenOption> options) throws IOException {
-        log.trace("new({}, {})", path, options);
-        this.byteChannel = new S3SeekableByteChannel(path, options);
+    S3FileChannel(final S3Path path, final Set<? extends OpenOption> options, final BufferPool bufferPool)
+            throws IOException {
+        log.trace("new({}, {}, {})", path, options, bufferPool);
+        this.bufferPool = bufferPool;
+        this.byteChannel = new StagedByteChannel(path, options);
+        if (isReadOnly(options)) {
+            this.objectReader = S3ObjectReader.of(path);
+        } else {
+            this.objectReader = null;
+        }
+    }
+
+    /**
+     * Checks whether the options open a channel for reading only.
+     *
+     * @param options The options used to open the channel
+     *
+     * @return {@code true} if neither {@code WRITE} nor {@code APPEND} is requested
+     */
+    static boolean isReadOnly(final Set<? extends OpenOption> options) {
+        return !options.contains(StandardOpenOption.WRITE) && !options.contains(StandardOpenOption.APPEND);
     }
 
     @Override
@@ -94,14 +160,39 @@ class S3FileChannel extends FileChannel {
 
     @Override
     public int read(final ByteBuffer dst, final long position) throws IOException {
-        log.error("read({}, {})", dst, position);
-        throw new UnsupportedOperationException();
+        log.trace("read({}, {})", dst, position);
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        if (objectReader != null) {
+            return objectReader.read(dst, position);
+        }
+        synchronized (byteChannel) {
+            final long original = byteChannel.position();
+            try {
+                byteChannel.position(position);
+                return byteChannel.read(dst);
+            } finally {
+                byteChannel.position(original);
+            }
+        }
     }
 
     @Override
     public int write(final ByteBuffer src, final long position) throws IOException {
-        log.error("write({}, {})", src, position);
-        throw new UnsupportedOperationException();
+        log.trace("write({}, {})", src, position);
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        synchronized (byteChannel) {
+            final long original = byteChannel.position();
+            try {
+                byteChannel.position(position);
+                return byteChannel.write(src);
+            } finally {
+                byteChannel.position(original);
+            }
+        }
     }
 
     @Override
@@ -130,7 +221,8 @@ class S3FileChannel extends FileChannel {
     @Override
     public FileChannel position(final long newPosition) throws IOException {
         log.trace("position({})", newPosition);
-        return new S3FileChannel(byteChannel.position(newPosition));
+        byteChannel.position(newPosition);
+        return this;
     }
 
     @Override
@@ -142,29 +234,126 @@ class S3FileChannel extends FileChannel {
     @Override
     public FileChannel truncate(final long size) throws IOException {
         log.trace("truncate({})", size);
-        return new S3FileChannel(byteChannel.truncate(size));
+        byteChannel.truncate(size);
+        return this;
     }
 
     @Override
     public void force(final boolean metaData) throws IOException {
-        log.error("force({})", metaData);
-        throw new UnsupportedOperationException();
+        log.trace("force({})", metaData);
+        if (byteChannel instanceof MultipartUploadChannel) {
+            ((MultipartUploadChannel) byteChannel).force();
+        } else if (byteChannel instanceof StagedByteChannel) {
+            ((StagedByteChannel) byteChannel).force();
+        }
     }
 
     @Override
     public long transferTo(final long position, final long count, final WritableByteChannel target) throws IOException {
-        log.error("transferTo({}, {}, {})", position, count, target);
-        throw new UnsupportedOperationException();
+        log.trace("transferTo({}, {}, {})", position, count, target);
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException("Negative position or count");
+        }
+        final long available = Math.min(count, size() - position);
+        if (available <= 0) {
+            return 0;
+        }
+        if (objectReader != null && position == 0 && available == size() && target instanceof S3FileChannel
+                && ((S3FileChannel) target).copyOf(objectReader)) {
+            return available;
+        }
+        synchronized (transferLock) {
+            allocateTransferBuffer();
+            if (objectReader != null) {
+                final S3ObjectInputStream stream = objectReader.openStream(position, position + available - 1);
+                boolean complete = false;
+                try {
+                    final long transferred = transferTo(stream, available, target);
+                    complete = transferred == available;
+                    return transferred;
+                } finally {
+                    if (!complete) {
+                        stream.abort();
+                    }
+                    stream.close();
+                }
+            }
+            return transferTo(new PositionalReader(position), available, target);
+        }
+    }
+
+    /**
+     * Starts an upload with a copy of the object, made within S3, if nothing has yet been written to it.
+     */
+    private boolean copyOf(final S3ObjectReader source) throws IOException {
+        if (byteChannel instanceof MultipartUploadChannel) {
+            return ((MultipartUploadChannel) byteChannel).copyOf(source);
+        }
+        return false;
+    }
+
+    private void allocateTransferBuffer() {
+        if (transferBuffer == null) {
+            transferBuffer = bufferPool.lease(TRANSFER_BUFFER_SIZE);
+        }
+    }
+
+    private long transferTo(final InputStream stream, final long count, final WritableByteChannel target)
+            throws IOException {
+        return transferTo(dst -> S3ObjectReader.transfer(stream, dst), count, target);
+    }
+
+    private long transferTo(final ChunkReader reader, final long count, final WritableByteChannel target)
+            throws IOException {
+        long total = 0;
+        while (total < count) {
+            transferBuffer.clear();
+            transferBuffer.limit((int) Math.min(TRANSFER_BUFFER_SIZE, count - total));
+            if (reader.read(transferBuffer) <= 0) {
+                break;
+            }
+            transferBuffer.flip();
+            final int length = transferBuffer.remaining();
+            while (transferBuffer.hasRemaining()) {
+                if (target.write(transferBuffer) == 0) {
+                    return total + length - transferBuffer.remaining();
+                }
+            }
+            total += length;
+        }
+        return total;
     }
 
     @Override
     public long transferFrom(final ReadableByteChannel src, final long position, final long count) throws IOException {
-        log.error("transferFrom({}, {}, {})", src, position, count);
-        throw new UnsupportedOperationException();
+        log.trace("transferFrom({}, {}, {})", src, position, count);
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException("Negative position or count");
+        }
+        long total = 0;
+        synchronized (transferLock) {
+            allocateTransferBuffer();
+            while (total < count) {
+                transferBuffer.clear();
+                transferBuffer.limit((int) Math.min(TRANSFER_BUFFER_SIZE, count - total));
+                if (src.read(transferBuffer) <= 0) {
+                    break;
+                }
+                transferBuffer.flip();
+                while (transferBuffer.hasRemaining()) {
+                    total += write(transferBuffer, position + total);
+                }
+            }
+        }
+        return total;
     }
 
     @Override
     public MappedByteBuffer map(final MapMode mode, final long position, final long size) throws IOException {
+        if (byteChannel instanceof MultipartUploadChannel) {
+            log.trace("map({}, {}, {})", mode, position, size);
+            return ((MultipartUploadChannel) byteChannel).map(mode, position, size);
+        }
         log.error("map({}, {}, {})", mode, position, size);
         throw new UnsupportedOperationException();
     }
@@ -181,9 +370,72 @@ class S3FileChannel extends FileChannel {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Abandons an upload, leaving it to be resumed, before closing the channel. Any other channel is simply closed.
+     *
+     * @throws IOException if the channel could not be closed
+     */
+    @Override
+    public void abandon() throws IOException {
+        log.trace("abandon()");
+        if (byteChannel instanceof MultipartUploadChannel) {
+            ((MultipartUploadChannel) byteChannel).abandon();
+        }
+        close();
+    }
+
+    @Override
+    public void whenClosed(final Runnable action) {
+        log.trace("whenClosed({})", action);
+        closeActions.add(action);
+        if (!isOpen() && closeActions.remove(action)) {
+            action.run();
+        }
+    }
+
     @Override
     protected void implCloseChannel() throws IOException {
         log.trace("implCloseChannel()");
-        byteChannel.close();
+        try {
+            byteChannel.close();
+        } finally {
+            synchronized (transferLock) {
+                bufferPool.release(transferBuffer);
+                transferBuffer = null;
+            }
+            closeActions.stream()
+                        .filter(closeActions::remove)
+                        .forEach(Runnable::run);
+        }
+    }
+
+    /**
+     * Reads the next chunk of a transfer into a buffer.
+     */
+    @FunctionalInterface
+    private interface ChunkReader {
+
+        int read(ByteBuffer dst) throws IOException;
+    }
+
+    /**
+     * Reads successive chunks of this channel from a position, without moving the channel's position.
+     */
+    private final class PositionalReader implements ChunkReader {
+
+        private long position;
+
+        PositionalReader(final long position) {
+            this.position = position;
+        }
+
+        @Override
+        public int read(final ByteBuffer dst) throws IOException {
+            final int read = S3FileChannel.this.read(dst, position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
     }
 }
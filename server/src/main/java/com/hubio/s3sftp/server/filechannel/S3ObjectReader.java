@@ -0,0 +1,357 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filechannel;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.GetObjectTaggingRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.Tag;
+import com.upplication.s3fs.S3Path;
+import lombok.Getter;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.util.List;
+
+/**
+ * Reads byte ranges of an S3 object using HTTP range requests.
+ *
+ * <p>Only the bytes requested are transferred from S3, so a read at an arbitrary offset within a large object does not
+ * require the preceding content to be downloaded first.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@Slf4j
+class S3ObjectReader {
+
+    private static final int NOT_FOUND = 404;
+
+    private static final int RANGE_NOT_SATISFIABLE = 416;
+
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    private static final ThreadLocal<byte[]> COPY_BUFFER = ThreadLocal.withInitial(() -> new byte[COPY_BUFFER_SIZE]);
+
+    private final AmazonS3 client;
+
+    @Getter
+    private final String bucket;
+
+    @Getter
+    private final String key;
+
+    /**
+     * Constructor.
+     *
+     * @param client The Amazon S3 client
+     * @param bucket The name of the bucket containing the object
+     * @param key    The key of the object
+     */
+    S3ObjectReader(final AmazonS3 client, final String bucket, final String key) {
+        this.client = client;
+        this.bucket = bucket;
+        this.key = key;
+    }
+
+    /**
+     * Create a reader for the object at the path.
+     *
+     * @param path The path of the object
+     *
+     * @return the reader
+     */
+    static S3ObjectReader of(final S3Path path) {
+        return new S3ObjectReader(path.getFileSystem()
+                                      .getClient(), path.getFileStore()
+                                                        .name(), path.getKey());
+    }
+
+    /**
+     * Returns the size of the object.
+     *
+     * @return the size of the object in bytes
+     *
+     * @throws IOException if the object does not exist or an I/O error occurs
+     */
+    long size() throws IOException {
+        log.trace("size()");
+        return metadata().getContentLength();
+    }
+
+    /**
+     * Returns the metadata of the object.
+     *
+     * @return the metadata of the object
+     *
+     * @throws IOException if the object does not exist or an I/O error occurs
+     */
+    ObjectMetadata metadata() throws IOException {
+        log.trace("metadata()");
+        try {
+            return client.getObjectMetadata(bucket, key);
+        } catch (AmazonS3Exception e) {
+            throw translate(e);
+        }
+    }
+
+    /**
+     * Reads the whole object with a single GET, if it is no larger than the limit, finding its size without a HEAD
+     * request.
+     *
+     * <p>The GET asks for the first {@code limit} bytes, which is all of a small object. When the object turns out to
+     * be larger, its stream is returned unread, so that reading the object can start from it rather than from a new
+     * request. The caller must close it, or {@link S3ObjectInputStream#abort()} it if it is not read to the end.</p>
+     *
+     * @param limit      The size of the largest object to read
+     * @param bufferPool The pool to lease the buffer to read the object into from
+     *
+     * @return the size of the object, with its content if it is no larger than the limit, or otherwise the stream of
+     * its first {@code limit} bytes
+     *
+     * @throws IOException if the object does not exist or an I/O error occurs
+     */
+    SmallObject readSmall(final int limit, final BufferPool bufferPool) throws IOException {
+        log.trace("readSmall({})", limit);
+        final S3Object object;
+        try {
+            object = client.getObject(new GetObjectRequest(bucket, key).withRange(0L, limit - 1L));
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == RANGE_NOT_SATISFIABLE) {
+                // only an empty object cannot satisfy a range from its first byte
+                return new SmallObject(0L, ByteBuffer.allocate(0), null);
+            }
+            throw translate(e);
+        }
+        final S3ObjectInputStream stream = object.getObjectContent();
+        final long size = object.getObjectMetadata()
+                                .getInstanceLength();
+        if (size > limit) {
+            return new SmallObject(size, null, stream);
+        }
+        try (S3ObjectInputStream in = stream) {
+            final ByteBuffer content = bufferPool.lease((int) size);
+            boolean complete = false;
+            try {
+                final int read = Math.max(0, transfer(in, content));
+                if (read < size) {
+                    throw new IOException(String.format("Object %s/%s ended after %d of %d bytes", bucket, key, read,
+                                                        size));
+                }
+                complete = true;
+            } finally {
+                if (!complete) {
+                    bufferPool.release(content);
+                }
+            }
+            content.flip();
+            return new SmallObject(size, content, null);
+        }
+    }
+
+    /**
+     * The size of an object, with its content when it is small enough to have been read whole, or otherwise the stream
+     * its content was to be read from.
+     */
+    @Value
+    static class SmallObject {
+
+        private final long size;
+
+        /**
+         * The content of the object, from position zero to its limit, or {@code null} if it was too large to read.
+         */
+        private final ByteBuffer content;
+
+        /**
+         * The unread stream of the first bytes of an object too large to read, or {@code null} if it was read.
+         */
+        private final S3ObjectInputStream stream;
+    }
+
+    /**
+     * Returns the tags of the object.
+     *
+     * @return the tags of the object
+     *
+     * @throws IOException if the object does not exist or an I/O error occurs
+     */
+    List<Tag> tags() throws IOException {
+        log.trace("tags()");
+        try {
+            return client.getObjectTagging(new GetObjectTaggingRequest(bucket, key))
+                         .getTagSet();
+        } catch (AmazonS3Exception e) {
+            throw translate(e);
+        }
+    }
+
+    /**
+     * Checks whether the object exists.
+     *
+     * @return {@code true} if the object exists
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    boolean exists() throws IOException {
+        log.trace("exists()");
+        try {
+            size();
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Opens a stream of the object's content from the given position to the end of the object.
+     *
+     * <p>The caller must close the stream, or {@link S3ObjectInputStream#abort()} it if it is not read to the end.</p>
+     *
+     * @param position The position within the object at which the stream should start
+     *
+     * @return the stream
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    S3ObjectInputStream openStream(final long position) throws IOException {
+        log.trace("openStream({})", position);
+        return openStream(new GetObjectRequest(bucket, key).withRange(position));
+    }
+
+    /**
+     * Opens a stream of a range of the object's content.
+     *
+     * <p>The caller must close the stream, or {@link S3ObjectInputStream#abort()} it if it is not read to the end.</p>
+     *
+     * @param position The position within the object at which the stream should start
+     * @param last     The position of the last byte to include in the stream
+     *
+     * @return the stream
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    S3ObjectInputStream openStream(final long position, final long last) throws IOException {
+        log.trace("openStream({}, {})", position, last);
+        return openStream(new GetObjectRequest(bucket, key).withRange(position, last));
+    }
+
+    private S3ObjectInputStream openStream(final GetObjectRequest request) throws IOException {
+        try {
+            return client.getObject(request)
+                         .getObjectContent();
+        } catch (AmazonS3Exception e) {
+            throw translate(e);
+        }
+    }
+
+    /**
+     * Reads a sequence of bytes from the object into the buffer, starting at the given position.
+     *
+     * <p>A single ranged GET is issued for {@code dst.remaining()} bytes from {@code position}.</p>
+     *
+     * @param dst      The buffer into which bytes are to be transferred
+     * @param position The position within the object at which the transfer is to begin
+     *
+     * @return the number of bytes read, possibly zero, or {@code -1} if the position is at or beyond the end of the
+     * object
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    int read(final ByteBuffer dst, final long position) throws IOException {
+        log.trace("read({}, {})", dst, position);
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        final long lastByte = position + dst.remaining() - 1;
+        final GetObjectRequest request = new GetObjectRequest(bucket, key).withRange(position, lastByte);
+        try (S3Object object = client.getObject(request)) {
+            return transfer(object.getObjectContent(), dst);
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == RANGE_NOT_SATISFIABLE) {
+                return -1;
+            }
+            throw translate(e);
+        }
+    }
+
+    /**
+     * Converts an exception from the S3 client into an {@link IOException}.
+     *
+     * @param e The exception from the S3 client
+     *
+     * @return the equivalent IOException
+     */
+    IOException translate(final AmazonS3Exception e) {
+        if (e.getStatusCode() == NOT_FOUND) {
+            return new NoSuchFileException(bucket + "/" + key);
+        }
+        return new IOException(String.format("Cannot read object: %s/%s", bucket, key), e);
+    }
+
+    /**
+     * Copies bytes from the stream into the buffer until either the buffer is full or the stream is exhausted.
+     *
+     * @param in  The stream to read from
+     * @param dst The buffer to write to
+     *
+     * @return the number of bytes copied, or {@code -1} if the stream was already exhausted
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    static int transfer(final InputStream in, final ByteBuffer dst) throws IOException {
+        int total = 0;
+        if (dst.hasArray()) {
+            while (dst.hasRemaining()) {
+                final int read = in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+                if (read < 0) {
+                    break;
+                }
+                dst.position(dst.position() + read);
+                total += read;
+            }
+        } else {
+            final byte[] chunk = COPY_BUFFER.get();
+            while (dst.hasRemaining()) {
+                final int read = in.read(chunk, 0, Math.min(chunk.length, dst.remaining()));
+                if (read < 0) {
+                    break;
+                }
+                dst.put(chunk, 0, read);
+                total += read;
+            }
+        }
+        if (total == 0 && dst.hasRemaining()) {
+            return -1;
+        }
+        return total;
+    }
+}
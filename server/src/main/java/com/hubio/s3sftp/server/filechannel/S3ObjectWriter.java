@@ -0,0 +1,408 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filechannel;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.ObjectTagging;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.SetObjectTaggingRequest;
+import com.amazonaws.services.s3.model.Tag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.google.common.io.BaseEncoding;
+import com.upplication.s3fs.S3Path;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.tika.Tika;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the content of an S3 object, either with a single PUT or as a multipart upload.
+ *
+ * <p>The content type of the object is detected from its name and the first bytes written, as it is when s3fs
+ * uploads a file.</p>
+ *
+ * <p>File attributes set while the object is being written are {@link #hold(String, Object) held} by the writer, and
+ * stored with the object along with its checksums. Those set just after it has been stored are {@link #store(String,
+ * Object) stored} by tagging the object again.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@Slf4j
+class S3ObjectWriter {
+
+    private static final int DETECT_LENGTH = 8 * 1024;
+
+    private static final Tika TIKA = new Tika();
+
+    private static final BaseEncoding BASE64 = BaseEncoding.base64();
+
+    private final AmazonS3 client;
+
+    @Getter
+    private final String bucket;
+
+    @Getter
+    private final String key;
+
+    private final String fileName;
+
+    private final HeldAttributes attributes = new HeldAttributes();
+
+    private volatile List<Tag> tags = Collections.emptyList();
+
+    /**
+     * Constructor.
+     *
+     * @param client   The S3 client
+     * @param bucket   The bucket containing the object
+     * @param key      The key of the object
+     * @param fileName The name of the file, used to detect the content type, or {@code null}
+     */
+    S3ObjectWriter(final AmazonS3 client, final String bucket, final String key, final String fileName) {
+        this.client = client;
+        this.bucket = bucket;
+        this.key = key;
+        this.fileName = fileName;
+    }
+
+    /**
+     * Creates a writer for the object at the path.
+     *
+     * @param path The path of the object
+     *
+     * @return the writer
+     */
+    static S3ObjectWriter of(final S3Path path) {
+        final Path fileName = path.getFileName();
+        return new S3ObjectWriter(path.getFileSystem()
+                                      .getClient(), path.getFileStore()
+                                                        .name(), path.getKey(),
+                                  fileName == null ? null : fileName.toString());
+    }
+
+    /**
+     * Writes the whole object with a single PUT.
+     *
+     * <p>The MD5 checksum of the content is sent with it, so that S3 rejects the object if it is corrupted on the
+     * way, and the checksums given, and any attributes held, are stored as its user metadata.</p>
+     *
+     * @param content   The content of the object, from its position to its limit
+     * @param checksums The checksums of the content, keyed by the name of their algorithm
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    void put(final ByteBuffer content, final Map<String, byte[]> checksums) throws IOException {
+        log.trace("put({}, {})", content, checksums.keySet());
+        final ObjectMetadata metadata = metadata(content);
+        metadata.setContentLength(content.remaining());
+        metadata.setContentMD5(BASE64.encode(checksums.containsKey(ObjectChecksums.MD5)
+                                             ? checksums.get(ObjectChecksums.MD5)
+                                             : UploadChecksums.md5(content)));
+        final Map<String, String> userMetadata = attributes.userMetadata();
+        userMetadata.putAll(ObjectChecksums.userMetadata(checksums));
+        metadata.setUserMetadata(userMetadata);
+        try {
+            client.putObject(new PutObjectRequest(bucket, key, streamOf(content), metadata));
+        } catch (AmazonS3Exception e) {
+            throw translate(e);
+        }
+    }
+
+    /**
+     * Starts a multipart upload.
+     *
+     * @param firstPart The content of the first part, used to detect the content type
+     *
+     * @return the id of the upload
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    String initiate(final ByteBuffer firstPart) throws IOException {
+        log.trace("initiate()");
+        try {
+            return client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key, metadata(firstPart)))
+                         .getUploadId();
+        } catch (AmazonS3Exception e) {
+            throw translate(e);
+        }
+    }
+
+    /**
+     * Starts a multipart upload that will replace the object with existing content, its own or that of another object,
+     * followed by more, keeping the content type and user metadata of the existing object, other than its checksums.
+     *
+     * @param existing The metadata of the existing object
+     *
+     * @return the id of the upload
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    String initiateAppend(final ObjectMetadata existing) throws IOException {
+        log.trace("initiateAppend()");
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType(existing.getContentType());
+        metadata.setUserMetadata(ObjectChecksums.withoutChecksums(existing.getUserMetadata()));
+        try {
+            return client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key, metadata))
+                         .getUploadId();
+        } catch (AmazonS3Exception e) {
+            throw translate(e);
+        }
+    }
+
+    /**
+     * Replaces the object with a copy of another, made within S3 with a single request, keeping the content type and
+     * user metadata of the source.
+     *
+     * <p>S3 only copies objects of up to 5GB this way. Larger objects must be copied in parts.</p>
+     *
+     * @param sourceBucket The bucket containing the object to copy
+     * @param sourceKey    The key of the object to copy
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    void copy(final String sourceBucket, final String sourceKey) throws IOException {
+        log.trace("copy({}, {})", sourceBucket, sourceKey);
+        try {
+            client.copyObject(new CopyObjectRequest(sourceBucket, sourceKey, bucket, key));
+        } catch (AmazonS3Exception e) {
+            throw translate(e);
+        }
+    }
+
+    /**
+     * Copies a range of an existing object, which may be this one, into a part of a multipart upload, without the data
+     * leaving S3.
+     *
+     * @param uploadId     The id of the upload
+     * @param partNumber   The number of the part, starting from 1
+     * @param sourceBucket The bucket containing the object to copy from
+     * @param sourceKey    The key of the object to copy from
+     * @param firstByte    The position of the first byte of the range
+     * @param lastByte     The position of the last byte of the range
+     *
+     * @return the tag identifying the copied part
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    PartETag copyPart(
+            final String uploadId, final int partNumber, final String sourceBucket, final String sourceKey,
+            final long firstByte, final long lastByte
+                     ) throws IOException {
+        log.trace("copyPart({}, {}, {}, {}, {}, {})", uploadId, partNumber, sourceBucket, sourceKey, firstByte,
+                  lastByte);
+        final CopyPartRequest request = new CopyPartRequest().withSourceBucketName(sourceBucket)
+                                                             .withSourceKey(sourceKey)
+                                                             .withDestinationBucketName(bucket)
+                                                             .withDestinationKey(key)
+                                                             .withUploadId(uploadId)
+                                                             .withPartNumber(partNumber)
+                                                             .withFirstByte(firstByte)
+                                                             .withLastByte(lastByte);
+        try {
+            return client.copyPart(request)
+                         .getPartETag();
+        } catch (AmazonS3Exception e) {
+            throw translate(e);
+        }
+    }
+
+    /**
+     * Uploads a part of a multipart upload.
+     *
+     * <p>The MD5 checksum of the part is sent with it, so that S3 rejects the part if it is corrupted on the way. It is
+     * given by the caller, who digests the part along with the whole object, rather than read from the part again.</p>
+     *
+     * @param uploadId   The id of the upload
+     * @param partNumber The number of the part, starting from 1
+     * @param content    The content of the part, from its position to its limit
+     * @param md5        The MD5 checksum of the content
+     *
+     * @return the tag identifying the uploaded part
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    PartETag uploadPart(final String uploadId, final int partNumber, final ByteBuffer content, final byte[] md5)
+            throws IOException {
+        log.trace("uploadPart({}, {}, {})", uploadId, partNumber, content);
+        final UploadPartRequest request = new UploadPartRequest().withBucketName(bucket)
+                                                                 .withKey(key)
+                                                                 .withUploadId(uploadId)
+                                                                 .withPartNumber(partNumber)
+                                                                 .withPartSize(content.remaining())
+                                                                 .withMD5Digest(BASE64.encode(md5))
+                                                                 .withInputStream(streamOf(content));
+        try {
+            return client.uploadPart(request)
+                         .getPartETag();
+        } catch (AmazonS3Exception e) {
+            throw translate(e);
+        }
+    }
+
+    /**
+     * Completes a multipart upload.
+     *
+     * @param uploadId The id of the upload
+     * @param parts    The tags of the uploaded parts, in order
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    void complete(final String uploadId, final List<PartETag> parts) throws IOException {
+        log.trace("complete({}, {})", uploadId, parts.size());
+        try {
+            client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, parts));
+        } catch (AmazonS3Exception e) {
+            throw translate(e);
+        }
+    }
+
+    /**
+     * Replaces the tags of the object with these and any attributes held.
+     *
+     * <p>Failure to tag the object is logged rather than thrown, as the object itself has been stored.</p>
+     *
+     * @param tags The tags
+     */
+    void tag(final List<Tag> tags) {
+        log.trace("tag({})", tags.size());
+        this.tags = new ArrayList<>(tags);
+        final List<Tag> allTags = new ArrayList<>(attributes.tags());
+        allTags.addAll(tags);
+        try {
+            client.setObjectTagging(new SetObjectTaggingRequest(bucket, key, new ObjectTagging(allTags)));
+        } catch (AmazonClientException e) {
+            log.warn("Could not tag {}/{}", bucket, key, e);
+        }
+    }
+
+    /**
+     * Holds a file attribute set while the object is being written, to be stored with it.
+     *
+     * @param attribute The name of the attribute, optionally qualified by its view
+     * @param value     The value of the attribute
+     *
+     * @return true if the attribute is held, or false if it cannot be stored with the object
+     */
+    boolean hold(final String attribute, final Object value) {
+        return attributes.hold(attribute, value);
+    }
+
+    /**
+     * Stores a file attribute set after the object has been written, by tagging it again with the tags it was given
+     * and all the attributes held.
+     *
+     * @param attribute The name of the attribute, optionally qualified by its view
+     * @param value     The value of the attribute
+     *
+     * @return true if the attribute is stored, or false if it cannot be stored with the object
+     */
+    boolean store(final String attribute, final Object value) {
+        log.trace("store({}, {})", attribute, value);
+        if (!attributes.hold(attribute, value)) {
+            return false;
+        }
+        tag(tags);
+        return true;
+    }
+
+    /**
+     * The attributes held, as file attributes.
+     *
+     * @return the last modified time and permissions, by the names of their attributes, if they are held
+     */
+    Map<String, Object> heldAttributes() {
+        return attributes.fileAttributes();
+    }
+
+    /**
+     * Holds the attributes held by another writer, whose object is to be stored by this one instead.
+     *
+     * @param other The other writer
+     */
+    void holdAttributesOf(final S3ObjectWriter other) {
+        attributes.holdAll(other.attributes);
+    }
+
+    /**
+     * Whether any attributes are held, which need the object to be tagged once it is stored in parts.
+     *
+     * @return true if attributes are held
+     */
+    boolean hasHeldAttributes() {
+        return !attributes.isEmpty();
+    }
+
+    /**
+     * Aborts a multipart upload, discarding any parts already uploaded.
+     *
+     * <p>Failure to abort is logged rather than thrown, as it is always done while handling an earlier error.</p>
+     *
+     * @param uploadId The id of the upload
+     */
+    void abort(final String uploadId) {
+        log.trace("abort({})", uploadId);
+        try {
+            client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+        } catch (AmazonClientException e) {
+            log.warn("Could not abort upload {} of {}/{}", uploadId, bucket, key, e);
+        }
+    }
+
+    private ObjectMetadata metadata(final ByteBuffer content) {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        if (fileName != null) {
+            final byte[] prefix = new byte[Math.min(content.remaining(), DETECT_LENGTH)];
+            content.duplicate()
+                   .get(prefix);
+            metadata.setContentType(TIKA.detect(prefix, fileName));
+        }
+        return metadata;
+    }
+
+    private static InputStream streamOf(final ByteBuffer content) {
+        return new ByteBufferInputStream(content);
+    }
+
+    private IOException translate(final AmazonS3Exception e) {
+        return new IOException(String.format("Cannot write object: %s/%s", bucket, key), e);
+    }
+}
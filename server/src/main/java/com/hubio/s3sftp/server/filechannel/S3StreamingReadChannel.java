@@ -0,0 +1,213 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filechannel;
+
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * A read-only {@link SeekableByteChannel} that streams the content of an S3 object directly into the caller's
+ * buffers.
+ *
+ * <p>Nothing is staged on local disk. A single GET, open-ended from the current position, is kept open while the
+ * channel is read sequentially. Changing the position abandons that request and a new one is started from the new
+ * position on the next read, unless the new position is only a short distance ahead, in which case the intervening
+ * bytes are skipped.</p>
+ *
+ * <p>The channel may be given a stream already opened on the first bytes of the object, which it reads from before
+ * starting a request for the rest.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@Slf4j
+class S3StreamingReadChannel implements SeekableByteChannel {
+
+    private static final long MAX_SKIP = 128 * 1024;
+
+    private final S3ObjectReader objectReader;
+
+    private final long size;
+
+    private long position;
+
+    private S3ObjectInputStream stream;
+
+    private long streamPosition;
+
+    private long streamEnd;
+
+    private boolean open = true;
+
+    /**
+     * Constructor.
+     *
+     * @param objectReader The reader for the object
+     * @param size         The size of the object
+     */
+    S3StreamingReadChannel(final S3ObjectReader objectReader, final long size) {
+        this(objectReader, size, null, 0L);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param objectReader The reader for the object
+     * @param size         The size of the object
+     * @param firstStream  An open stream of the object from its first byte, or {@code null}
+     * @param firstLength  The number of bytes in the first stream
+     */
+    S3StreamingReadChannel(
+            final S3ObjectReader objectReader, final long size, final S3ObjectInputStream firstStream,
+            final long firstLength
+                          ) {
+        log.trace("new({}, {}, {})", objectReader, size, firstLength);
+        this.objectReader = objectReader;
+        this.size = size;
+        this.stream = firstStream;
+        this.streamEnd = Math.min(firstLength, size);
+    }
+
+    @Override
+    public synchronized int read(final ByteBuffer dst) throws IOException {
+        log.trace("read({})", dst);
+        ensureOpen();
+        if (position >= size) {
+            return -1;
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        seekStream();
+        final int read = S3ObjectReader.transfer(stream, dst);
+        if (read < 0) {
+            closeStream();
+            return -1;
+        }
+        position += read;
+        streamPosition += read;
+        return read;
+    }
+
+    private void seekStream() throws IOException {
+        if (stream != null && position > streamPosition && position - streamPosition <= MAX_SKIP) {
+            long remaining = position - streamPosition;
+            while (remaining > 0) {
+                final long skipped = stream.skip(remaining);
+                if (skipped <= 0) {
+                    break;
+                }
+                remaining -= skipped;
+                streamPosition += skipped;
+            }
+        }
+        if (stream == null || streamPosition != position || streamPosition >= streamEnd) {
+            closeStream();
+            stream = objectReader.openStream(position);
+            streamPosition = position;
+            streamEnd = size;
+        }
+    }
+
+    /**
+     * Abandons the request being streamed from, if any, so that its connection is not held while the channel is not
+     * being read. A new request is started from the current position on the next read.
+     */
+    synchronized void release() {
+        log.trace("release()");
+        try {
+            closeStream();
+        } catch (IOException e) {
+            log.debug("Could not close abandoned stream", e);
+        }
+    }
+
+    private void closeStream() throws IOException {
+        if (stream != null) {
+            if (streamPosition < streamEnd) {
+                stream.abort();
+            }
+            stream.close();
+            stream = null;
+        }
+    }
+
+    @Override
+    public int write(final ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(final long newPosition) throws IOException {
+        log.trace("position({})", newPosition);
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(final long newSize) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        log.trace("close()");
+        if (open) {
+            open = false;
+            closeStream();
+        }
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filechannel;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A local directory in which uploads hold their parts, in memory-mapped spool files, until they are uploaded.
+ *
+ * <p>Each upload has its own {@link SpoolFile}, deleted once it is closed. The space used by parts waiting to be
+ * uploaded is limited for all uploads, and for all the uploads of each owner. A writer that needs a part when either
+ * limit has been reached waits until another part has been uploaded, stalling the SFTP client rather than failing its
+ * upload, for up to a timeout. The write then fails, as the parts holding the space may be ones that only the waiting
+ * writer can finish. The limits are counted in whole parts, and always allow at least one.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@Slf4j
+class Spool {
+
+    private final Path directory;
+
+    private final int partSize;
+
+    private final Semaphore permits;
+
+    private final int partsPerOwner;
+
+    private final long timeout;
+
+    private final Map<String, Semaphore> ownerPermits = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param directory        The directory to create spool files in
+     * @param partSize         The size of each part
+     * @param capacity         The maximum bytes of parts held for all uploads
+     * @param capacityPerOwner The maximum bytes of parts held for the uploads of each owner
+     * @param timeout          The longest a writer waits for space before its write fails
+     */
+    Spool(
+            final Path directory, final int partSize, final long capacity, final long capacityPerOwner,
+            final Duration timeout
+         ) {
+        log.trace("new({}, {}, {}, {}, {})", directory, partSize, capacity, capacityPerOwner, timeout);
+        this.directory = directory;
+        this.partSize = partSize;
+        this.permits = new Semaphore(parts(capacity));
+        this.partsPerOwner = parts(capacityPerOwner);
+        this.timeout = timeout.toNanos();
+    }
+
+    private int parts(final long capacity) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, capacity / partSize));
+    }
+
+    /**
+     * Creates a spool file for an upload.
+     *
+     * @param owner       The owner of the upload, whose uploads share a limit on the space they use
+     * @param description What is being uploaded, for the messages of any exceptions
+     *
+     * @return the spool file
+     *
+     * @throws IOException if the file could not be created
+     */
+    SpoolFile open(final String owner, final String description) throws IOException {
+        log.trace("open({}, {})", owner, description);
+        Files.createDirectories(directory);
+        final Path file = Files.createTempFile(directory, "upload-", ".spool");
+        final FileChannel channel =
+                FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                                 StandardOpenOption.DELETE_ON_CLOSE);
+        return new SpoolFile(channel, partSize, permits,
+                             ownerPermits.computeIfAbsent(owner, key -> new Semaphore(partsPerOwner)), timeout,
+                             description);
+    }
+
+    /**
+     * The number of parts that may still be held before writers have to wait.
+     *
+     * @return the available parts
+     */
+    int availableParts() {
+        return permits.availablePermits();
+    }
+}
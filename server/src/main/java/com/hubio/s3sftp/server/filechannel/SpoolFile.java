@@ -0,0 +1,181 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filechannel;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Part buffers that are memory-mapped slots of a spool file.
+ *
+ * <p>The file is divided into slots the size of a part. A slot is mapped the first time it is needed and reused once
+ * its part has been uploaded, so the file only grows to hold the parts in flight at once. The data is written into the
+ * page cache rather than the Java heap, and the parts are uploaded straight from the mapped slots.</p>
+ *
+ * <p>Acquiring a slot takes a permit for the owner of the upload and one shared by all uploads, waiting if either is
+ * unavailable. Both are returned when the slot is released. The wait is limited, as the slots may be held by parts
+ * that only the writer waiting for them can finish, and the writer's upload fails if it is not given a slot in
+ * time.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@Slf4j
+class SpoolFile implements PartBuffers {
+
+    private final FileChannel file;
+
+    private final int partSize;
+
+    private final Semaphore permits;
+
+    private final Semaphore ownerPermits;
+
+    private final long timeout;
+
+    private final String description;
+
+    private final List<MappedByteBuffer> slots = new ArrayList<>();
+
+    private final Deque<Integer> free = new ArrayDeque<>();
+
+    private final Map<ByteBuffer, Integer> leased = new IdentityHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param file         The spool file, opened for reading and writing
+     * @param partSize     The size of each part
+     * @param permits      The permits, shared between all uploads, needed for each slot
+     * @param ownerPermits The permits, shared between the uploads of one owner, needed for each slot
+     * @param timeout      The longest to wait for a slot, in nanoseconds
+     * @param description  What is being uploaded, for the messages of any exceptions
+     */
+    SpoolFile(
+            final FileChannel file, final int partSize, final Semaphore permits, final Semaphore ownerPermits,
+            final long timeout, final String description
+             ) {
+        this.file = file;
+        this.partSize = partSize;
+        this.permits = permits;
+        this.ownerPermits = ownerPermits;
+        this.timeout = timeout;
+        this.description = description;
+    }
+
+    @Override
+    public ByteBuffer acquire() throws IOException {
+        log.trace("acquire()");
+        final long deadline = System.nanoTime() + timeout;
+        Transfers.tryAcquire(ownerPermits, timeout, "spool for " + description);
+        try {
+            Transfers.tryAcquire(permits, deadline - System.nanoTime(), "spool for " + description);
+        } catch (IOException e) {
+            ownerPermits.release();
+            throw e;
+        }
+        boolean acquired = false;
+        try {
+            final ByteBuffer slot = slot();
+            acquired = true;
+            return slot;
+        } finally {
+            if (!acquired) {
+                permits.release();
+                ownerPermits.release();
+            }
+        }
+    }
+
+    private synchronized ByteBuffer slot() throws IOException {
+        Integer index = free.poll();
+        if (index == null) {
+            index = slots.size();
+            slots.add(file.map(FileChannel.MapMode.READ_WRITE, offsetOf(index), partSize));
+        }
+        final MappedByteBuffer slot = slots.get(index);
+        slot.clear();
+        leased.put(slot, index);
+        return slot;
+    }
+
+    private long offsetOf(final int index) {
+        return (long) index * partSize;
+    }
+
+    @Override
+    public void release(final ByteBuffer buffer) {
+        log.trace("release({})", buffer);
+        synchronized (this) {
+            final Integer index = leased.remove(buffer);
+            if (index == null) {
+                return;
+            }
+            free.push(index);
+        }
+        permits.release();
+        ownerPermits.release();
+    }
+
+    @Override
+    public synchronized MappedByteBuffer map(final ByteBuffer buffer, final int offset, final int size)
+            throws IOException {
+        log.trace("map({}, {}, {})", buffer, offset, size);
+        final Integer index = leased.get(buffer);
+        if (index == null) {
+            throw new IllegalArgumentException("Buffer is not a slot of the spool for " + description);
+        }
+        return file.map(FileChannel.MapMode.READ_WRITE, offsetOf(index) + offset, size);
+    }
+
+    /**
+     * The number of slots the file has been divided into so far.
+     *
+     * @return the number of slots
+     */
+    synchronized int getSlots() {
+        return slots.size();
+    }
+
+    /**
+     * Closes and deletes the file. Slots still leased remain mapped until they are released.
+     *
+     * @throws IOException if the file could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        log.trace("close()");
+        file.close();
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filechannel;
+
+import com.upplication.s3fs.S3Path;
+import com.upplication.s3fs.S3SeekableByteChannel;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+
+/**
+ * An {@link S3SeekableByteChannel}, staging the object in a local file, that can store the file to S3 before it is
+ * closed.
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@Slf4j
+class StagedByteChannel extends S3SeekableByteChannel {
+
+    private final boolean storable;
+
+    /**
+     * Constructor.
+     *
+     * @param path    The path of the object
+     * @param options The options to use when opening the file
+     *
+     * @throws IOException if the object could not be staged
+     */
+    StagedByteChannel(final S3Path path, final Set<? extends OpenOption> options) throws IOException {
+        super(path, options);
+        storable = !S3FileChannel.isReadOnly(options) && !options.contains(StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    /**
+     * Stores the staged file as the object, as closing the channel would, but leaves the channel open.
+     *
+     * <p>Nothing is stored when the channel was not opened for writing, or the object is to be deleted when it is
+     * closed.</p>
+     *
+     * @throws IOException if the file could not be stored
+     */
+    void force() throws IOException {
+        log.trace("force()");
+        if (storable) {
+            sync();
+        }
+    }
+}
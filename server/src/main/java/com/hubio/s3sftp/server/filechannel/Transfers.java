@@ -0,0 +1,111 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filechannel;
+
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Helpers for waiting on background transfers from the thread serving an SFTP request.
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+@SuppressWarnings("hideutilityclassconstructor")
+final class Transfers {
+
+    /**
+     * Waits for a transfer to complete and returns its result.
+     *
+     * @param future      The transfer
+     * @param description What the transfer is, for the message of any exception
+     * @param <T>         The type of the result
+     *
+     * @return the result of the transfer
+     *
+     * @throws IOException if the transfer failed, or the wait was interrupted
+     */
+    static <T> T await(final Future<T> future, final String description) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread()
+                  .interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + description);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(description + " failed", cause);
+        }
+    }
+
+    /**
+     * Acquires a permit, blocking until one is available.
+     *
+     * @param permits     The permits
+     * @param description What the permit is for, for the message of any exception
+     *
+     * @throws InterruptedIOException if the wait was interrupted
+     */
+    static void acquire(final Semaphore permits, final String description) throws InterruptedIOException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread()
+                  .interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + description);
+        }
+    }
+
+    /**
+     * Acquires a permit, blocking until one is available or the timeout expires.
+     *
+     * @param permits     The permits
+     * @param timeout     The longest to wait, in nanoseconds
+     * @param description What the permit is for, for the message of any exception
+     *
+     * @throws IOException if no permit became available in time, or the wait was interrupted
+     */
+    static void tryAcquire(final Semaphore permits, final long timeout, final String description)
+            throws IOException {
+        try {
+            if (!permits.tryAcquire(timeout, TimeUnit.NANOSECONDS)) {
+                throw new IOException("Timed out waiting for " + description);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread()
+                  .interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + description);
+        }
+    }
+}
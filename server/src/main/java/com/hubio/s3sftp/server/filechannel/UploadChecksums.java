@@ -0,0 +1,174 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filechannel;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Ints;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Digests the content of an object as its parts are uploaded, so that its checksums can be stored with it without
+ * reading it again.
+ *
+ * <p>The MD5 and CRC32C checksums are always computed, and the SHA-256 checksum when requested, as it costs
+ * noticeably more for each byte uploaded.</p>
+ *
+ * <p>The parts must be given in order, as the digests cover the object from its start. Once a part is given out of
+ * order, or the content of the object is not all seen, the checksums are {@link #invalidate() invalidated} and none
+ * are stored.</p>
+ *
+ * <p>Each part is read once, a chunk at a time, digesting each chunk for the object and for the MD5 checksum sent with
+ * the part while it is still in the processor's cache, rather than reading the whole part again for each.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+class UploadChecksums {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final Map<String, MessageDigest> digests = new HashMap<>();
+
+    private final Hasher crc32c = Hashing.crc32c()
+                                         .newHasher();
+
+    private long next;
+
+    private boolean valid = true;
+
+    /**
+     * Constructor.
+     *
+     * @param sha256 Whether to compute the SHA-256 checksum
+     */
+    UploadChecksums(final boolean sha256) {
+        digests.put(ObjectChecksums.MD5, digest("MD5"));
+        if (sha256) {
+            digests.put(ObjectChecksums.SHA256, digest("SHA-256"));
+        }
+    }
+
+    private static MessageDigest digest(final String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(algorithm + " is not available", e);
+        }
+    }
+
+    /**
+     * The checksums of content held in a single buffer.
+     *
+     * @param sha256  Whether to compute the SHA-256 checksum
+     * @param content The content, from its position to its limit, which is left unchanged
+     *
+     * @return the checksums, keyed by the name of their algorithm
+     */
+    static Map<String, byte[]> of(final boolean sha256, final ByteBuffer content) {
+        final UploadChecksums checksums = new UploadChecksums(sha256);
+        checksums.update(0, content);
+        return checksums.checksums();
+    }
+
+    /**
+     * The MD5 checksum of a part, as sent with its upload so that S3 can reject it if it is corrupted on the way.
+     *
+     * @param content The content of the part, from its position to its limit, which is left unchanged
+     *
+     * @return the checksum
+     */
+    static byte[] md5(final ByteBuffer content) {
+        final MessageDigest digest = digest("MD5");
+        digest.update(content.duplicate());
+        return digest.digest();
+    }
+
+    /**
+     * Adds a part to the digests, invalidating them if it is not the next part of the object.
+     *
+     * @param index   The index of the part within the object
+     * @param content The content of the part, from its position to its limit, which is left unchanged
+     *
+     * @return the MD5 checksum of the part, which is computed even once the digests of the object are invalidated
+     */
+    byte[] update(final long index, final ByteBuffer content) {
+        if (valid && index != next) {
+            invalidate();
+        }
+        final MessageDigest partMd5 = digest("MD5");
+        final ByteBuffer chunk = content.duplicate();
+        final int limit = chunk.limit();
+        while (chunk.position() < limit) {
+            final int start = chunk.position();
+            final int end = Math.min(limit, start + CHUNK_SIZE);
+            chunk.limit(end);
+            partMd5.update(chunk);
+            if (valid) {
+                for (final MessageDigest digest : digests.values()) {
+                    chunk.position(start);
+                    digest.update(chunk);
+                }
+                chunk.position(start);
+                crc32c.putBytes(chunk);
+            }
+            chunk.limit(limit);
+            chunk.position(end);
+        }
+        if (valid) {
+            next++;
+        }
+        return partMd5.digest();
+    }
+
+    /**
+     * Gives up digesting the object, as some of its content will not be seen in order.
+     */
+    void invalidate() {
+        valid = false;
+    }
+
+    /**
+     * The checksums of the whole object, keyed by the name of their algorithm.
+     *
+     * <p>The CRC32C checksum is given big-endian, as S3 and most tools present it.</p>
+     *
+     * @return the checksums, or an empty map if they were invalidated
+     */
+    Map<String, byte[]> checksums() {
+        if (!valid) {
+            return Collections.emptyMap();
+        }
+        final Map<String, byte[]> checksums = new HashMap<>();
+        digests.forEach((name, digest) -> checksums.put(name, digest.digest()));
+        checksums.put(ObjectChecksums.CRC32C, Ints.toByteArray(crc32c.hash()
+                                                                     .asInt()));
+        return checksums;
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filechannel;
+
+import com.amazonaws.services.s3.model.PartETag;
+import com.google.common.hash.Hashing;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+
+/**
+ * A local journal of the multipart uploads that may be resumed.
+ *
+ * <p>Each upload is kept in a properties file in the journal directory, named for the owner and the object it is
+ * uploading, so that an owner may have only one resumable upload to each object. Files are replaced atomically, so an
+ * entry is never left half written.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@Slf4j
+class UploadJournal {
+
+    private static final String SUFFIX = ".properties";
+
+    private static final String OWNER = "owner";
+
+    private static final String BUCKET = "bucket";
+
+    private static final String KEY = "key";
+
+    private static final String UPLOAD_ID = "uploadId";
+
+    private static final String PART_SIZE = "partSize";
+
+    private static final String PARTS = "parts";
+
+    private static final String PART = "part.";
+
+    private static final String UPDATED = "updated";
+
+    private final Path directory;
+
+    /**
+     * Constructor.
+     *
+     * @param directory The directory to keep the journal in
+     */
+    UploadJournal(final Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Finds the resumable upload of an object by an owner.
+     *
+     * @param owner  The owner of the upload
+     * @param bucket The bucket of the object
+     * @param key    The key of the object
+     *
+     * @return the entry for the upload, or empty if there is none
+     *
+     * @throws IOException if the entry could not be read
+     */
+    Optional<JournalEntry> find(final String owner, final String bucket, final String key) throws IOException {
+        log.trace("find({}, {}, {})", owner, bucket, key);
+        try {
+            return Optional.of(read(fileFor(owner, bucket, key)));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Records the state of an upload, replacing any earlier entry for the same owner and object.
+     *
+     * @param entry The entry for the upload
+     *
+     * @throws IOException if the entry could not be written
+     */
+    void record(final JournalEntry entry) throws IOException {
+        log.trace("record({})", entry);
+        final Properties properties = new Properties();
+        properties.setProperty(OWNER, entry.getOwner());
+        properties.setProperty(BUCKET, entry.getBucket());
+        properties.setProperty(KEY, entry.getKey());
+        properties.setProperty(UPLOAD_ID, entry.getUploadId());
+        properties.setProperty(PART_SIZE, Integer.toString(entry.getPartSize()));
+        properties.setProperty(PARTS, Integer.toString(entry.getParts()
+                                                             .size()));
+        for (final PartETag part : entry.getParts()) {
+            properties.setProperty(PART + part.getPartNumber(), part.getETag());
+        }
+        properties.setProperty(UPDATED, Long.toString(entry.getUpdated()));
+        Files.createDirectories(directory);
+        final Path temp = Files.createTempFile(directory, "entry-", ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            properties.store(out, "Resumable upload");
+        }
+        Files.move(temp, fileFor(entry.getOwner(), entry.getBucket(), entry.getKey()),
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Removes the entry for an upload, if there is one.
+     *
+     * @param owner  The owner of the upload
+     * @param bucket The bucket of the object
+     * @param key    The key of the object
+     *
+     * @throws IOException if the entry could not be removed
+     */
+    void remove(final String owner, final String bucket, final String key) throws IOException {
+        log.trace("remove({}, {}, {})", owner, bucket, key);
+        Files.deleteIfExists(fileFor(owner, bucket, key));
+    }
+
+    /**
+     * All the entries in the journal. Entries that cannot be read are logged and skipped.
+     *
+     * @return the entries
+     *
+     * @throws IOException if the journal directory could not be listed
+     */
+    List<JournalEntry> entries() throws IOException {
+        final List<JournalEntry> entries = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return entries;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (final Path file : files) {
+                try {
+                    entries.add(read(file));
+                } catch (IOException | IllegalArgumentException e) {
+                    log.warn("Could not read journal entry {}", file, e);
+                }
+            }
+        }
+        return entries;
+    }
+
+    private Path fileFor(final String owner, final String bucket, final String key) {
+        final String name = Hashing.sha256()
+                                   .hashString(owner + '\n' + bucket + '/' + key, StandardCharsets.UTF_8)
+                                   .toString();
+        return directory.resolve(name + SUFFIX);
+    }
+
+    private static JournalEntry read(final Path file) throws IOException {
+        final Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        final int count = Integer.parseInt(required(properties, PARTS));
+        final List<PartETag> parts = new ArrayList<>(count);
+        for (int partNumber = 1; partNumber <= count; partNumber++) {
+            parts.add(new PartETag(partNumber, required(properties, PART + partNumber)));
+        }
+        return new JournalEntry(required(properties, OWNER), required(properties, BUCKET),
+                                required(properties, KEY), required(properties, UPLOAD_ID),
+                                Integer.parseInt(required(properties, PART_SIZE)), parts,
+                                Long.parseLong(required(properties, UPDATED)));
+    }
+
+    private static String required(final Properties properties, final String name) {
+        final String value = properties.getProperty(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Journal entry has no " + name);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filesystem;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.upplication.s3fs.S3Path;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.Executor;
+
+/**
+ * Deletes a directory along with everything within it, in batches of objects with a {@link PrefixDeleter}, rather
+ * than a request for every object, when configured to delete trees.
+ *
+ * <p>Otherwise a directory that is not empty cannot be deleted, as with any other file system, so that a stray RMDIR
+ * never erases a tree, and an empty directory is deleted by the provider.</p>
+ *
+ * <p>Files are deleted by the provider.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@Slf4j
+class BatchDeletingS3SftpFileSystemProvider extends S3SftpFileSystemProviderDecorator {
+
+    private final PrefixDeleter prefixDeleter;
+
+    private final boolean deleteTrees;
+
+    /**
+     * Constructor.
+     *
+     * @param provider    The provider to delete files with
+     * @param executor    The executor to delete batches on
+     * @param deleteTrees Whether a directory is deleted along with everything within it, rather than only when empty
+     */
+    BatchDeletingS3SftpFileSystemProvider(
+            final S3SftpFileSystemProvider provider, final Executor executor, final boolean deleteTrees
+                                         ) {
+        super(provider);
+        this.prefixDeleter = new PrefixDeleter(executor);
+        this.deleteTrees = deleteTrees;
+    }
+
+    @Override
+    public void delete(final Path path) throws IOException {
+        log.trace("delete({})", path);
+        if (!isDirectory(path)) {
+            super.delete(path);
+            return;
+        }
+        if (!deleteTrees) {
+            checkEmpty((S3Path) path);
+            super.delete(path);
+            return;
+        }
+        deleteTree((S3Path) path);
+    }
+
+    @Override
+    public boolean deleteIfExists(final Path path) throws IOException {
+        log.trace("deleteIfExists({})", path);
+        if (!isDirectory(path)) {
+            return super.deleteIfExists(path);
+        }
+        if (!deleteTrees) {
+            checkEmpty((S3Path) path);
+            return super.deleteIfExists(path);
+        }
+        deleteTree((S3Path) path);
+        return true;
+    }
+
+    private boolean isDirectory(final Path path) throws IOException {
+        if (!(path instanceof S3Path) || ((S3Path) path).getKey()
+                                                       .isEmpty()) {
+            return false;
+        }
+        try {
+            return readAttributes(path, BasicFileAttributes.class).isDirectory();
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    private void checkEmpty(final S3Path dir) throws IOException {
+        final String prefix = prefixOf(dir);
+        final ListObjectsV2Result page;
+        try {
+            page = dir.getFileSystem()
+                      .getClient()
+                      .listObjectsV2(new ListObjectsV2Request().withBucketName(dir.getFileStore()
+                                                                                  .name())
+                                                               .withPrefix(prefix)
+                                                               .withMaxKeys(2));
+        } catch (AmazonClientException e) {
+            throw new IOException("Cannot list " + dir, e);
+        }
+        if (page.getObjectSummaries()
+                .stream()
+                .anyMatch(summary -> !summary.getKey()
+                                             .equals(prefix))) {
+            throw new DirectoryNotEmptyException(dir.toString());
+        }
+    }
+
+    private void deleteTree(final S3Path dir) throws IOException {
+        prefixDeleter.delete(dir.getFileSystem()
+                                .getClient(), dir.getFileStore()
+                                                 .name(), prefixOf(dir), dir.toString());
+    }
+
+    private static String prefixOf(final S3Path dir) {
+        final String key = dir.getKey();
+        return key.endsWith("/") ? key : key + "/";
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filesystem;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs tasks on an executor with no more than a limited number running at once, and waits for them all to finish.
+ *
+ * <p>Tasks are expected to handle their own failures.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+class BoundedTasks {
+
+    private final Executor executor;
+
+    private final Semaphore permits;
+
+    private final Phaser running = new Phaser(1);
+
+    /**
+     * Constructor.
+     *
+     * @param executor   The executor to run the tasks on
+     * @param concurrent The maximum number of tasks to run at once
+     */
+    BoundedTasks(final Executor executor, final int concurrent) {
+        this.executor = executor;
+        this.permits = new Semaphore(concurrent);
+    }
+
+    /**
+     * Runs a task, once fewer than the maximum number are running.
+     *
+     * @param task The task
+     *
+     * @throws InterruptedException if interrupted while waiting for a task to finish
+     */
+    void submit(final Runnable task) throws InterruptedException {
+        permits.acquire();
+        running.register();
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    finished();
+                }
+            });
+        } catch (RuntimeException e) {
+            finished();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for every task submitted to finish. No more tasks may be submitted afterwards.
+     */
+    void awaitAll() {
+        running.arriveAndAwaitAdvance();
+    }
+
+    private void finished() {
+        permits.release();
+        running.arriveAndDeregister();
+    }
+}
@@ -0,0 +1,317 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filesystem;
+
+import com.hubio.s3sftp.server.filechannel.NotifyingChannel;
+import com.upplication.s3fs.S3Path;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Lists directories from a {@link ListingCache} where it can, and invalidates the listings affected by every change
+ * made through it.
+ *
+ * <p>A file opened for writing invalidates the listings both when it is opened and when it is closed, as the object
+ * only appears in S3 once it has been stored. Only channels that are a {@link NotifyingChannel} can tell when that
+ * is; the object written through any other appears in listings once they expire.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@Slf4j
+@SuppressWarnings("classfanoutcomplexity")
+class CachedListingS3SftpFileSystemProvider extends S3SftpFileSystemProviderDecorator {
+
+    private static final DirectoryStream.Filter<Path> ACCEPT_ALL = entry -> true;
+
+    private final ListingCache listingCache;
+
+    /**
+     * Constructor.
+     *
+     * @param provider     The provider to cache the listings of
+     * @param listingCache The cache to hold the listings in
+     */
+    CachedListingS3SftpFileSystemProvider(final S3SftpFileSystemProvider provider, final ListingCache listingCache) {
+        super(provider);
+        this.listingCache = listingCache;
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(
+            final Path dir, final DirectoryStream.Filter<? super Path> filter
+                                                   ) throws IOException {
+        log.trace("newDirectoryStream({}, {})", dir, filter);
+        if (!(dir instanceof S3Path)) {
+            return super.newDirectoryStream(dir, filter);
+        }
+        final S3Path s3Dir = (S3Path) dir;
+        final Optional<List<Path>> cached = listingCache.get(s3Dir);
+        if (cached.isPresent()) {
+            log.debug("newDirectoryStream({}) from cached listing", dir);
+            return new FilteredDirectoryStream(cached.get()
+                                                     .iterator(), filter, null, null, 0L);
+        }
+        final long marker = listingCache.marker();
+        final DirectoryStream<Path> stream = super.newDirectoryStream(dir, ACCEPT_ALL);
+        return new FilteredDirectoryStream(stream.iterator(), filter, stream,
+                                           entries -> listingCache.put(s3Dir, entries, marker),
+                                           listingCache.getMaximumListingEntries());
+    }
+
+    @Override
+    public FileChannel newFileChannel(
+            final Path path, final Set<? extends OpenOption> options, final FileAttribute<?>... attrs
+                                     ) throws IOException {
+        log.trace("newFileChannel({}, {}, {})", path, options, attrs);
+        if (isReadOnly(options)) {
+            return super.newFileChannel(path, options, attrs);
+        }
+        try {
+            final FileChannel channel = super.newFileChannel(path, options, attrs);
+            if (channel instanceof NotifyingChannel) {
+                ((NotifyingChannel) channel).whenClosed(() -> listingCache.invalidate(path));
+            }
+            return channel;
+        } finally {
+            listingCache.invalidate(path);
+        }
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel(
+            final Path path, final Set<? extends OpenOption> options, final FileAttribute<?>[] attrs
+                                             ) throws IOException {
+        log.trace("newByteChannel({}, {}, {})", path, options, attrs);
+        if (isReadOnly(options)) {
+            return super.newByteChannel(path, options, attrs);
+        }
+        try {
+            final SeekableByteChannel channel = super.newByteChannel(path, options, attrs);
+            if (channel instanceof NotifyingChannel) {
+                ((NotifyingChannel) channel).whenClosed(() -> listingCache.invalidate(path));
+            }
+            return channel;
+        } finally {
+            listingCache.invalidate(path);
+        }
+    }
+
+    @Override
+    public OutputStream newOutputStream(final Path path, final OpenOption... options) throws IOException {
+        log.trace("newOutputStream({}, {})", path, options);
+        try {
+            return super.newOutputStream(path, options);
+        } finally {
+            listingCache.invalidate(path);
+        }
+    }
+
+    @Override
+    public void createDirectory(final Path dir, final FileAttribute<?>[] attrs) throws IOException {
+        log.trace("createDirectory({}, {})", dir, attrs);
+        try {
+            super.createDirectory(dir, attrs);
+        } finally {
+            listingCache.invalidate(dir);
+        }
+    }
+
+    @Override
+    public void createSymbolicLink(final Path link, final Path target, final FileAttribute<?>[] attrs)
+            throws IOException {
+        log.trace("createSymbolicLink({}, {}, {})", link, target, attrs);
+        try {
+            super.createSymbolicLink(link, target, attrs);
+        } finally {
+            listingCache.invalidate(link);
+        }
+    }
+
+    @Override
+    public void createLink(final Path link, final Path existing) throws IOException {
+        log.trace("createLink({}, {})", link, existing);
+        try {
+            super.createLink(link, existing);
+        } finally {
+            listingCache.invalidate(link);
+        }
+    }
+
+    @Override
+    public void delete(final Path path) throws IOException {
+        log.trace("delete({})", path);
+        try {
+            super.delete(path);
+        } finally {
+            listingCache.invalidate(path);
+        }
+    }
+
+    @Override
+    public boolean deleteIfExists(final Path path) throws IOException {
+        log.trace("deleteIfExists({})", path);
+        try {
+            return super.deleteIfExists(path);
+        } finally {
+            listingCache.invalidate(path);
+        }
+    }
+
+    @Override
+    public void copy(final Path source, final Path target, final CopyOption... options) throws IOException {
+        log.trace("copy({}, {}, {})", source, target, options);
+        try {
+            super.copy(source, target, options);
+        } finally {
+            listingCache.invalidate(target);
+        }
+    }
+
+    @Override
+    public void move(final Path source, final Path target, final CopyOption... options) throws IOException {
+        log.trace("move({}, {}, {})", source, target, options);
+        try {
+            super.move(source, target, options);
+        } finally {
+            listingCache.invalidate(source);
+            listingCache.invalidate(target);
+        }
+    }
+
+    @Override
+    public void setAttribute(final Path path, final String attribute, final Object value, final LinkOption... options)
+            throws IOException {
+        log.trace("setAttribute({}, {}, {}, {})", path, attribute, value, options);
+        try {
+            super.setAttribute(path, attribute, value, options);
+        } finally {
+            listingCache.invalidate(path);
+        }
+    }
+
+    private static boolean isReadOnly(final Set<? extends OpenOption> options) {
+        return !options.contains(StandardOpenOption.WRITE) && !options.contains(StandardOpenOption.APPEND);
+    }
+
+    /**
+     * A directory stream over the entries of a listing, filtered for the client. Given somewhere to put them, it
+     * collects every entry as it goes and hands them over once the listing is complete, unless there are too many to
+     * be worth holding.
+     */
+    private static final class FilteredDirectoryStream implements DirectoryStream<Path> {
+
+        private final Iterator<Path> entries;
+
+        private final DirectoryStream.Filter<? super Path> filter;
+
+        private final Closeable source;
+
+        private final Consumer<List<S3Path>> listingConsumer;
+
+        private final long collectLimit;
+
+        private boolean iterated;
+
+        FilteredDirectoryStream(
+                final Iterator<Path> entries, final DirectoryStream.Filter<? super Path> filter,
+                final Closeable source, final Consumer<List<S3Path>> listingConsumer, final long collectLimit
+                               ) {
+            this.entries = entries;
+            this.filter = filter;
+            this.source = source;
+            this.listingConsumer = listingConsumer;
+            this.collectLimit = collectLimit;
+        }
+
+        @Override
+        public synchronized Iterator<Path> iterator() {
+            if (iterated) {
+                throw new IllegalStateException("Iterator already obtained");
+            }
+            iterated = true;
+            return new CollectingIterator();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (source != null) {
+                source.close();
+            }
+        }
+
+        /**
+         * Collects the entries of the listing, whether or not they are accepted, and hands them over once it has been
+         * read to its end.
+         */
+        private final class CollectingIterator extends FilteringIterator {
+
+            private final List<S3Path> listed = new ArrayList<>();
+
+            private boolean collecting = listingConsumer != null;
+
+            CollectingIterator() {
+                super(entries, filter);
+            }
+
+            @Override
+            protected void seen(final Path entry) {
+                if (!collecting) {
+                    return;
+                }
+                if (entry instanceof S3Path && listed.size() < collectLimit) {
+                    listed.add((S3Path) entry);
+                } else {
+                    collecting = false;
+                    listed.clear();
+                }
+            }
+
+            @Override
+            protected void exhausted() {
+                if (collecting) {
+                    collecting = false;
+                    listingConsumer.accept(listed);
+                }
+            }
+        }
+    }
+}
@@ -23,11 +23,17 @@
 
 package com.hubio.s3sftp.server.filesystem;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.hubio.s3sftp.server.S3PathEnhancer;
+import com.hubio.s3sftp.server.filechannel.FileChannelFactory;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.sshd.common.session.Session;
 
+import java.nio.file.Path;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
 /**
  * Factory for creating an {@link S3SftpFileSystemProvider}.
  *
@@ -38,14 +44,91 @@ import org.apache.sshd.common.session.Session;
 @RequiredArgsConstructor
 class DefaultS3SftpFileSystemProviderFactory implements S3SftpFileSystemProviderFactory {
 
+    private final FileChannelFactory fileChannelFactory;
+
+    private final ListingCache listingCache;
+
+    private final Executor executor;
+
+    private final RenameJournal renameJournal;
+
+    private final boolean deleteDirectoryTrees;
+
+    /**
+     * Constructor using a {@link FileChannelFactory} with the default configuration.
+     */
+    DefaultS3SftpFileSystemProviderFactory() {
+        this(FileChannelFactory.create());
+    }
+
+    /**
+     * Constructor using a {@link ListingCache} with the default configuration.
+     *
+     * @param fileChannelFactory The factory for creating file channels
+     */
+    DefaultS3SftpFileSystemProviderFactory(final FileChannelFactory fileChannelFactory) {
+        this(fileChannelFactory, ListingCache.create());
+    }
+
+    /**
+     * Constructor without a journal of directory renames.
+     *
+     * @param fileChannelFactory The factory for creating file channels
+     * @param listingCache       The cache to hold directory listings in
+     */
+    DefaultS3SftpFileSystemProviderFactory(
+            final FileChannelFactory fileChannelFactory, final ListingCache listingCache
+                                          ) {
+        this(fileChannelFactory, listingCache, null);
+    }
+
+    /**
+     * Constructor that deletes directories only when they are empty.
+     *
+     * @param fileChannelFactory     The factory for creating file channels
+     * @param listingCache           The cache to hold directory listings in
+     * @param renameJournalDirectory The directory to journal directory renames in, or {@code null}
+     */
+    DefaultS3SftpFileSystemProviderFactory(
+            final FileChannelFactory fileChannelFactory, final ListingCache listingCache,
+            final Path renameJournalDirectory
+                                          ) {
+        this(fileChannelFactory, listingCache, renameJournalDirectory, false);
+    }
+
+    /**
+     * Constructor listing, copying and deleting in the background on daemon threads of its own.
+     *
+     * @param fileChannelFactory     The factory for creating file channels
+     * @param listingCache           The cache to hold directory listings in
+     * @param renameJournalDirectory The directory to journal directory renames in, or {@code null}
+     * @param deleteDirectoryTrees   Whether a directory is deleted along with everything within it, rather than
+     *                               only when empty
+     */
+    DefaultS3SftpFileSystemProviderFactory(
+            final FileChannelFactory fileChannelFactory, final ListingCache listingCache,
+            final Path renameJournalDirectory, final boolean deleteDirectoryTrees
+                                          ) {
+        this(fileChannelFactory, listingCache, Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setNameFormat("s3-filesystem-%d")
+                                          .setDaemon(true)
+                                          .build()),
+             renameJournalDirectory == null ? null : new RenameJournal(renameJournalDirectory),
+             deleteDirectoryTrees);
+    }
+
     @Override
     public S3SftpFileSystemProvider createWith(final S3PathEnhancer s3PathEnhancer, final Session session) {
         log.trace("createWith({})", s3PathEnhancer);
         S3SftpFileSystemProvider provider = new DelegatableS3FileSystemProvider(session);
         provider = new S3SftpFileSystemProviderDecorator(provider);
-        provider = new FileChannelS3SftpFileSystemProvider(provider);
-        provider = new PathEnhancingS3SftpFileSystemProvider(provider, s3PathEnhancer);
+        provider = new ListedAttributesS3SftpFileSystemProvider(provider, listingCache, executor);
         provider = new PosixPermissionsS3SftpFileSystemProvider(provider);
+        provider = new FileChannelS3SftpFileSystemProvider(provider, fileChannelFactory);
+        provider = new BatchDeletingS3SftpFileSystemProvider(provider, executor, deleteDirectoryTrees);
+        provider = new DirectoryRenamingS3SftpFileSystemProvider(provider, executor, renameJournal);
+        provider = new CachedListingS3SftpFileSystemProvider(provider, listingCache);
+        provider = new PathEnhancingS3SftpFileSystemProvider(provider, s3PathEnhancer);
         provider = new JailedS3SftpFileSystemProvider(provider);
         provider = new PerUserS3SftpFileSystemProvider(provider);
         provider = new SingleBucketS3SftpFileSystemProvider(provider);
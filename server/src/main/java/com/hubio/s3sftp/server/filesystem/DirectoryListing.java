@@ -0,0 +1,195 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filesystem;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.upplication.s3fs.S3FileSystem;
+import com.upplication.s3fs.S3Path;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Lists the entries immediately within a directory in S3 as they are needed, a page at a time, keeping the
+ * {@link ListedFileAttributes} of each object, rather than only its size and last modified time, as s3fs does.
+ *
+ * <p>Only the page being returned and the one after it are held. The next page is fetched in the background while
+ * the entries of the current page are returned, so that a client working through a large directory rarely waits for
+ * S3, and no client waits for the whole directory to be listed before it sees the first entry.</p>
+ *
+ * <p>Directories are listed without attributes, as S3 lists nothing but their names.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@Slf4j
+class DirectoryListing implements Iterator<Path>, Closeable {
+
+    private static final String SEPARATOR = "/";
+
+    private final AmazonS3 client;
+
+    private final Executor executor;
+
+    private final S3FileSystem fileSystem;
+
+    private final String bucket;
+
+    private final String root;
+
+    private final String prefix;
+
+    private final List<Path> page = new ArrayList<>();
+
+    private Future<ListObjectsV2Result> nextPage;
+
+    private int cursor;
+
+    /**
+     * Constructor.
+     *
+     * <p>The first page is listed before returning, so that a directory that cannot be listed fails at once.</p>
+     *
+     * @param dir      The directory to list
+     * @param executor The executor to fetch the following pages on
+     */
+    DirectoryListing(final S3Path dir, final Executor executor) {
+        this.fileSystem = dir.getFileSystem();
+        this.client = fileSystem.getClient();
+        this.executor = executor;
+        this.bucket = dir.getFileStore()
+                         .name();
+        this.root = SEPARATOR + bucket;
+        this.prefix = directoryOf(dir.getKey());
+        load(fetch(null));
+    }
+
+    @Override
+    public synchronized boolean hasNext() {
+        while (cursor == page.size() && nextPage != null) {
+            load(awaitNextPage());
+        }
+        return cursor < page.size();
+    }
+
+    @Override
+    public synchronized Path next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.get(cursor++);
+    }
+
+    /**
+     * Stops fetching the next page, if it is still being fetched.
+     */
+    @Override
+    public synchronized void close() {
+        log.trace("close({})", prefix);
+        if (nextPage != null) {
+            nextPage.cancel(true);
+            nextPage = null;
+        }
+        page.clear();
+        cursor = 0;
+    }
+
+    private ListObjectsV2Result fetch(final String continuationToken) {
+        log.trace("fetch({}, {}, {})", bucket, prefix, continuationToken);
+        return client.listObjectsV2(new ListObjectsV2Request().withBucketName(bucket)
+                                                              .withPrefix(prefix)
+                                                              .withDelimiter(SEPARATOR)
+                                                              .withFetchOwner(true)
+                                                              .withContinuationToken(continuationToken));
+    }
+
+    private ListObjectsV2Result awaitNextPage() {
+        try {
+            return nextPage.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread()
+                  .interrupt();
+            throw new DirectoryIteratorException(new InterruptedIOException("Interrupted listing " + prefix));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new DirectoryIteratorException(new IOException("Cannot list " + prefix, e.getCause()));
+        }
+    }
+
+    private void load(final ListObjectsV2Result result) {
+        page.clear();
+        cursor = 0;
+        nextPage = null;
+        if (result.isTruncated()) {
+            final String continuationToken = result.getNextContinuationToken();
+            final FutureTask<ListObjectsV2Result> task = new FutureTask<>(() -> fetch(continuationToken));
+            executor.execute(task);
+            nextPage = task;
+        }
+        final Set<String> directories = new HashSet<>();
+        for (final String commonPrefix : result.getCommonPrefixes()) {
+            if (!SEPARATOR.equals(commonPrefix)) {
+                final String key = commonPrefix.substring(0, commonPrefix.length() - 1);
+                directories.add(key);
+                page.add(new S3Path(fileSystem, root, key));
+            }
+        }
+        for (final S3ObjectSummary summary : result.getObjectSummaries()) {
+            final String key = summary.getKey();
+            if (!key.equals(prefix) && !directories.contains(key)) {
+                final S3Path path = new S3Path(fileSystem, root, key);
+                path.setFileAttributes(ListedFileAttributes.of(summary));
+                page.add(path);
+            }
+        }
+    }
+
+    /**
+     * The key as the prefix of the keys within it, which ends with a slash unless it is the root.
+     */
+    private static String directoryOf(final String key) {
+        if (key.isEmpty() || key.endsWith(SEPARATOR)) {
+            return key;
+        }
+        return key + SEPARATOR;
+    }
+}
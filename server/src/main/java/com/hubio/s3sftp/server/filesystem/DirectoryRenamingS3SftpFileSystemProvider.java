@@ -0,0 +1,317 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filesystem;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.upplication.s3fs.S3Path;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Renames a directory by copying every object within it to the target within S3, several at once, and then deleting
+ * the source in batches with a {@link PrefixDeleter}.
+ *
+ * <p>The target must not exist. If any object cannot be copied, the objects already copied are deleted and the
+ * source is left as it was. Objects too large for a single copy request are copied by the provider.</p>
+ *
+ * <p>When there is a {@link RenameJournal}, each rename is recorded in it until it is done. The renames left in it by
+ * a server that stopped part way through are finished, or rolled back if they had not finished copying, the next time
+ * their owner lists a directory or renames one. Rolling back deletes only the copies of the objects in the source, so
+ * that anything else since written to the target is kept.</p>
+ *
+ * <p>Files are renamed by the provider.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@Slf4j
+@SuppressWarnings("classfanoutcomplexity")
+class DirectoryRenamingS3SftpFileSystemProvider extends S3SftpFileSystemProviderDecorator {
+
+    private static final int CONCURRENT_COPIES = 16;
+
+    private static final long MAXIMUM_COPY_SIZE = 5L * 1024 * 1024 * 1024;
+
+    private final Executor executor;
+
+    private final PrefixDeleter prefixDeleter;
+
+    private final RenameJournal journal;
+
+    private final AtomicBoolean recovered = new AtomicBoolean();
+
+    /**
+     * Constructor.
+     *
+     * @param provider The provider to rename files with
+     * @param executor The executor to copy and delete objects on
+     * @param journal  The journal to record renames in, or {@code null}
+     */
+    DirectoryRenamingS3SftpFileSystemProvider(
+            final S3SftpFileSystemProvider provider, final Executor executor, final RenameJournal journal
+                                             ) {
+        super(provider);
+        this.executor = executor;
+        this.prefixDeleter = new PrefixDeleter(executor);
+        this.journal = journal;
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(
+            final Path dir, final DirectoryStream.Filter<? super Path> filter
+                                                   ) throws IOException {
+        log.trace("newDirectoryStream({}, {})", dir, filter);
+        recover(dir);
+        return super.newDirectoryStream(dir, filter);
+    }
+
+    @Override
+    public void move(final Path source, final Path target, final CopyOption... options) throws IOException {
+        log.trace("move({}, {}, {})", source, target, options);
+        if (!(target instanceof S3Path) || !isDirectory(source)) {
+            super.move(source, target, options);
+            return;
+        }
+        if (Arrays.asList(options)
+                  .contains(StandardCopyOption.ATOMIC_MOVE)) {
+            throw new AtomicMoveNotSupportedException(source.toString(), target.toString(), "Atomic not supported");
+        }
+        recover(source);
+        final S3Path s3Source = (S3Path) source;
+        final S3Path s3Target = (S3Path) target;
+        if (exists(s3Target)) {
+            throw new FileAlreadyExistsException(target.toString());
+        }
+        final RenameEntry entry = new RenameEntry(s3Source.getFileSystem()
+                                                          .getKey(), bucketOf(s3Source), prefixOf(s3Source),
+                                                  bucketOf(s3Target), prefixOf(s3Target), RenameEntry.Phase.COPYING,
+                                                  System.currentTimeMillis());
+        if (entry.getSourceBucket()
+                 .equals(entry.getTargetBucket()) && entry.getTargetPrefix()
+                                                          .startsWith(entry.getSourcePrefix())) {
+            throw new FileSystemException(source.toString(), target.toString(), "Cannot move a directory into itself");
+        }
+        if (journal != null && !journal.claim(entry)) {
+            throw new FileSystemException(source.toString(), target.toString(), "Directory is already being renamed");
+        }
+        try {
+            rename(s3Source, s3Target, entry);
+        } finally {
+            if (journal != null) {
+                journal.release(entry);
+            }
+        }
+    }
+
+    private void rename(final S3Path source, final S3Path target, final RenameEntry entry) throws IOException {
+        final AmazonS3 client = source.getFileSystem()
+                                      .getClient();
+        record(entry);
+        final Map<String, String> failures = new ConcurrentSkipListMap<>();
+        final long attempted = copyTree(source, entry, failures);
+        if (!failures.isEmpty()) {
+            log.debug("rename({}, {}) rolling back after {} objects failed to copy", source, target, failures.size());
+            final FileSystemException failure = PrefixDeleter.failure(source.toString(), "copy", failures, attempted);
+            try {
+                rollBack(client, entry, target.toString());
+                remove(entry);
+            } catch (IOException e) {
+                failure.addSuppressed(e);
+            }
+            throw failure;
+        }
+        final RenameEntry deleting = entry.inPhase(RenameEntry.Phase.DELETING);
+        record(deleting);
+        prefixDeleter.delete(client, entry.getSourceBucket(), entry.getSourcePrefix(), source.toString());
+        remove(deleting);
+        log.debug("rename({}, {}) moved {} objects", source, target, attempted);
+    }
+
+    private long copyTree(final S3Path source, final RenameEntry entry, final Map<String, String> failures)
+            throws IOException {
+        final AmazonS3 client = source.getFileSystem()
+                                      .getClient();
+        final BoundedTasks copies = new BoundedTasks(executor, CONCURRENT_COPIES);
+        long attempted = 0;
+        try {
+            final ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(entry.getSourceBucket())
+                                                                           .withPrefix(entry.getSourcePrefix());
+            ListObjectsV2Result page;
+            do {
+                page = client.listObjectsV2(request);
+                for (final S3ObjectSummary summary : page.getObjectSummaries()) {
+                    copies.submit(() -> copy(source, entry, summary, failures));
+                    attempted++;
+                }
+                request.setContinuationToken(page.getNextContinuationToken());
+            } while (page.isTruncated());
+        } catch (InterruptedException e) {
+            Thread.currentThread()
+                  .interrupt();
+            throw new InterruptedIOException("Interrupted renaming " + source);
+        } catch (AmazonClientException e) {
+            throw new IOException("Cannot list " + source, e);
+        } finally {
+            copies.awaitAll();
+        }
+        return attempted;
+    }
+
+    private void copy(
+            final S3Path source, final RenameEntry entry, final S3ObjectSummary summary,
+            final Map<String, String> failures
+                     ) {
+        final String sourceKey = summary.getKey();
+        final String targetKey = entry.getTargetPrefix() + sourceKey.substring(entry.getSourcePrefix()
+                                                                                    .length());
+        log.trace("copy({}, {})", sourceKey, targetKey);
+        try {
+            if (summary.getSize() > MAXIMUM_COPY_SIZE) {
+                super.copy(new S3Path(source.getFileSystem(), "/" + entry.getSourceBucket(), sourceKey),
+                           new S3Path(source.getFileSystem(), "/" + entry.getTargetBucket(), targetKey),
+                           StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                source.getFileSystem()
+                      .getClient()
+                      .copyObject(new CopyObjectRequest(entry.getSourceBucket(), sourceKey, entry.getTargetBucket(),
+                                                        targetKey));
+            }
+        } catch (IOException | AmazonClientException e) {
+            log.warn("Could not copy {} to {}", sourceKey, targetKey, e);
+            failures.put(sourceKey, e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes the copies of the objects in the source, leaving anything else in the target as it is.
+     */
+    private void rollBack(final AmazonS3 client, final RenameEntry entry, final String path) throws IOException {
+        prefixDeleter.deleteCopies(client, entry.getSourceBucket(), entry.getSourcePrefix(), entry.getTargetBucket(),
+                                   entry.getTargetPrefix(), path);
+    }
+
+    /**
+     * Finishes, or rolls back, the renames of the owner of the path left in the journal by an earlier run of the
+     * server, the first time this is called with a path in S3. Renames in progress in any session are left alone.
+     */
+    private void recover(final Path path) {
+        if (journal == null || !(path instanceof S3Path) || !recovered.compareAndSet(false, true)) {
+            return;
+        }
+        final S3Path s3Path = (S3Path) path;
+        try {
+            for (final RenameEntry entry : journal.interrupted(s3Path.getFileSystem()
+                                                                     .getKey())) {
+                if (journal.claim(entry)) {
+                    try {
+                        recover(s3Path.getFileSystem()
+                                      .getClient(), entry);
+                    } finally {
+                        journal.release(entry);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Could not read rename journal", e);
+        }
+    }
+
+    private void recover(final AmazonS3 client, final RenameEntry entry) {
+        log.info("Recovering interrupted rename: {}", entry);
+        try {
+            if (entry.getPhase() == RenameEntry.Phase.COPYING) {
+                rollBack(client, entry, entry.getTargetPrefix());
+            } else {
+                prefixDeleter.delete(client, entry.getSourceBucket(), entry.getSourcePrefix(),
+                                     entry.getSourcePrefix());
+            }
+            journal.remove(entry);
+        } catch (IOException e) {
+            log.warn("Could not recover interrupted rename: {}", entry, e);
+        }
+    }
+
+    private void record(final RenameEntry entry) throws IOException {
+        if (journal != null) {
+            journal.record(entry);
+        }
+    }
+
+    private void remove(final RenameEntry entry) throws IOException {
+        if (journal != null) {
+            journal.remove(entry);
+        }
+    }
+
+    private boolean isDirectory(final Path path) throws IOException {
+        if (!(path instanceof S3Path) || ((S3Path) path).getKey()
+                                                       .isEmpty()) {
+            return false;
+        }
+        try {
+            return readAttributes(path, BasicFileAttributes.class).isDirectory();
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    private boolean exists(final S3Path path) throws IOException {
+        try {
+            readAttributes(path, BasicFileAttributes.class);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    private static String bucketOf(final S3Path path) {
+        return path.getFileStore()
+                   .name();
+    }
+
+    private static String prefixOf(final S3Path path) {
+        final String key = path.getKey();
+        return key.endsWith("/") ? key : key + "/";
+    }
+}
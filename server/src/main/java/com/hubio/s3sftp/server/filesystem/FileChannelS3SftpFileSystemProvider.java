@@ -24,31 +24,83 @@
 package com.hubio.s3sftp.server.filesystem;
 
 import com.hubio.s3sftp.server.filechannel.FileChannelFactory;
+import com.hubio.s3sftp.server.filechannel.ObjectChecksums;
 import com.upplication.s3fs.S3Path;
+import com.upplication.s3fs.attribute.S3BasicFileAttributes;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
 import java.nio.channels.FileChannel;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
 import java.util.Set;
 
 /**
  * Restores {@link FileChannel} support.
  *
+ * <p>A file with an abandoned upload that may be resumed reports the size uploaded so far, even before the object
+ * exists, so that a client resuming the upload knows where to continue from.</p>
+ *
+ * <p>The checksums stored for an object are read as the {@value ObjectChecksums#VIEW} attribute view.</p>
+ *
+ * <p>Files are copied within S3, however large, so that their content never passes through the server.</p>
+ *
+ * <p>A temporary file whose upload is being held back is moved by storing it under its new name, and is reported as
+ * existing with the size uploaded. Anything else that needs the file to be in S3, such as listing its directory,
+ * stores it first.</p>
+ *
+ * <p>Attributes set on a file while it is being uploaded, as clients preserving timestamps do, are stored with the
+ * object rather than applied to it once stored.</p>
+ *
+ * <p>The last modified time and permissions held for a file being uploaded, or uploaded moments ago, are read as its
+ * POSIX attributes. Those stored with objects are read back with the objects' other attributes, by the {@link
+ * ListedAttributesS3SftpFileSystemProvider}.</p>
+ *
  * @author Paul Campbell (paul.campbell@hubio.com)
  */
 @Slf4j
 class FileChannelS3SftpFileSystemProvider extends S3SftpFileSystemProviderDecorator {
 
+    private static final String CHECKSUM_ATTRIBUTES = ObjectChecksums.VIEW + ":";
+
+    private static final String POSIX_ATTRIBUTES = "posix:";
+
+    private final FileChannelFactory fileChannelFactory;
+
     /**
      * Constructor.
      *
      * @param provider The provider to restore {@link FileChannel} support to.
      */
     FileChannelS3SftpFileSystemProvider(final S3SftpFileSystemProvider provider) {
+        this(provider, FileChannelFactory.create());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param provider           The provider to restore {@link FileChannel} support to.
+     * @param fileChannelFactory The factory for creating the file channels
+     */
+    FileChannelS3SftpFileSystemProvider(
+            final S3SftpFileSystemProvider provider, final FileChannelFactory fileChannelFactory
+                                       ) {
         super(provider);
+        this.fileChannelFactory = fileChannelFactory;
     }
 
     @Override
@@ -57,8 +109,206 @@ class FileChannelS3SftpFileSystemProvider extends S3SftpFileSystemProviderDecora
                                      ) throws IOException {
         log.trace("newFileChannel({}, {}, {})", path, options, attrs);
         if (path instanceof S3Path) {
-            return FileChannelFactory.of((S3Path) path, options);
+            return fileChannelFactory.open((S3Path) path, options);
         }
         throw new IllegalArgumentException("path must be an instance of S3Path");
     }
+
+    /**
+     * Copies an object within S3, rather than s3fs's single {@code CopyObject}, which S3 limits to objects of 5GB.
+     *
+     * <p>Directories and paths outside S3 are left to the provider.</p>
+     */
+    @Override
+    public void copy(final Path source, final Path target, final CopyOption... options) throws IOException {
+        log.trace("copy({}, {}, {})", source, target, options);
+        if (!(source instanceof S3Path) || !(target instanceof S3Path) || isDirectory(source)) {
+            super.copy(source, target, options);
+            return;
+        }
+        if (source.equals(target)) {
+            return;
+        }
+        fileChannelFactory.copy((S3Path) source, (S3Path) target,
+                                Arrays.asList(options)
+                                      .contains(StandardCopyOption.REPLACE_EXISTING));
+    }
+
+    private boolean isDirectory(final Path path) throws IOException {
+        try {
+            return readAttributes(path, BasicFileAttributes.class).isDirectory();
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stores a temporary file whose upload is being held back under the target, rather than at the source first.
+     */
+    @Override
+    public void move(final Path source, final Path target, final CopyOption... options) throws IOException {
+        log.trace("move({}, {}, {})", source, target, options);
+        if (source instanceof S3Path && target instanceof S3Path
+                && fileChannelFactory.moveDeferred((S3Path) source, (S3Path) target,
+                                                   Arrays.asList(options)
+                                                         .contains(StandardCopyOption.REPLACE_EXISTING))) {
+            return;
+        }
+        super.move(source, target, options);
+    }
+
+    @Override
+    public void delete(final Path path) throws IOException {
+        log.trace("delete({})", path);
+        if (discardDeferred(path)) {
+            super.deleteIfExists(path);
+            return;
+        }
+        super.delete(path);
+    }
+
+    @Override
+    public boolean deleteIfExists(final Path path) throws IOException {
+        log.trace("deleteIfExists({})", path);
+        if (discardDeferred(path)) {
+            super.deleteIfExists(path);
+            return true;
+        }
+        return super.deleteIfExists(path);
+    }
+
+    private boolean discardDeferred(final Path path) {
+        return path instanceof S3Path && fileChannelFactory.discardDeferred((S3Path) path);
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(
+            final Path dir, final DirectoryStream.Filter<? super Path> filter
+                                                   ) throws IOException {
+        log.trace("newDirectoryStream({}, {})", dir, filter);
+        storeDeferred(dir);
+        return super.newDirectoryStream(dir, filter);
+    }
+
+    @Override
+    public void setAttribute(final Path path, final String attribute, final Object value, final LinkOption... options)
+            throws IOException {
+        log.trace("setAttribute({}, {}, {}, {})", path, attribute, value, options);
+        if (path instanceof S3Path && fileChannelFactory.holdAttribute((S3Path) path, attribute, value)) {
+            return;
+        }
+        storeDeferred(path);
+        super.setAttribute(path, attribute, value, options);
+    }
+
+    private void storeDeferred(final Path path) throws IOException {
+        if (path instanceof S3Path) {
+            fileChannelFactory.storeDeferred((S3Path) path);
+        }
+    }
+
+    @Override
+    public void checkAccess(final Path path, final AccessMode... modes) throws IOException {
+        log.trace("checkAccess({}, {})", path, modes);
+        if (deferredSize(path).isPresent()) {
+            return;
+        }
+        super.checkAccess(path, modes);
+    }
+
+    @Override
+    public <A extends BasicFileAttributes> A readAttributes(
+            final Path path, final Class<A> type, final LinkOption... options
+                                                           ) throws IOException {
+        log.trace("readAttributes({}, {}, {})", path, type, options);
+        final OptionalLong deferredSize = deferredSize(path);
+        if (deferredSize.isPresent() && type.isAssignableFrom(S3BasicFileAttributes.class)) {
+            return type.cast(new S3BasicFileAttributes(((S3Path) path).getKey(),
+                                                       FileTime.fromMillis(System.currentTimeMillis()),
+                                                       deferredSize.getAsLong(), false, true));
+        }
+        if (deferredSize.isPresent()) {
+            storeDeferred(path);
+        }
+        return super.readAttributes(path, type, options);
+    }
+
+    private OptionalLong deferredSize(final Path path) {
+        if (path instanceof S3Path) {
+            return fileChannelFactory.deferredSize((S3Path) path);
+        }
+        return OptionalLong.empty();
+    }
+
+    @Override
+    public Map<String, Object> readAttributes(final Path path, final String attributes, final LinkOption... options)
+            throws IOException {
+        log.trace("readAttributes({}, {}, {})", path, attributes, options);
+        if (path instanceof S3Path && attributes.startsWith(CHECKSUM_ATTRIBUTES)) {
+            return checksums((S3Path) path, attributes.substring(CHECKSUM_ATTRIBUTES.length()));
+        }
+        final OptionalLong deferredSize = deferredSize(path);
+        if (deferredSize.isPresent()) {
+            final Map<String, Object> attributeMap = partialUploadAttributes();
+            attributeMap.put("size", deferredSize.getAsLong());
+            return withHeldAttributes(path, attributes, attributeMap);
+        }
+        final OptionalLong resumableSize;
+        if (path instanceof S3Path) {
+            resumableSize = fileChannelFactory.resumableSize((S3Path) path);
+        } else {
+            resumableSize = OptionalLong.empty();
+        }
+        if (!resumableSize.isPresent()) {
+            return withHeldAttributes(path, attributes, super.readAttributes(path, attributes, options));
+        }
+        Map<String, Object> attributeMap;
+        try {
+            attributeMap = super.readAttributes(path, attributes, options);
+        } catch (NoSuchFileException e) {
+            attributeMap = partialUploadAttributes();
+        }
+        attributeMap.put("size", resumableSize.getAsLong());
+        return withHeldAttributes(path, attributes, attributeMap);
+    }
+
+    /**
+     * Replaces the last modified time and permissions read for a file with any held for it, when POSIX attributes are
+     * read.
+     */
+    private Map<String, Object> withHeldAttributes(
+            final Path path, final String attributes, final Map<String, Object> attributeMap
+                                                  ) {
+        if (path instanceof S3Path && attributes.startsWith(POSIX_ATTRIBUTES)) {
+            fileChannelFactory.heldAttributes((S3Path) path)
+                              .forEach(attributeMap::replace);
+        }
+        return attributeMap;
+    }
+
+    private Map<String, Object> checksums(final S3Path path, final String names) throws IOException {
+        final List<String> requested = Arrays.asList(names.split(","));
+        final Map<String, Object> attributeMap = new HashMap<>();
+        fileChannelFactory.checksums(path)
+                          .forEach((name, checksum) -> {
+                              if (requested.contains("*") || requested.contains(name)) {
+                                  attributeMap.put(name, checksum);
+                              }
+                          });
+        return attributeMap;
+    }
+
+    private static Map<String, Object> partialUploadAttributes() {
+        final FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+        final Map<String, Object> attributeMap = new HashMap<>();
+        attributeMap.put("lastModifiedTime", now);
+        attributeMap.put("lastAccessTime", now);
+        attributeMap.put("creationTime", now);
+        attributeMap.put("isRegularFile", true);
+        attributeMap.put("isDirectory", false);
+        attributeMap.put("isSymbolicLink", false);
+        attributeMap.put("isOther", false);
+        attributeMap.put("permissions", PosixPermissionsS3SftpFileSystemProvider.PERMISSIONS);
+        return attributeMap;
+    }
 }
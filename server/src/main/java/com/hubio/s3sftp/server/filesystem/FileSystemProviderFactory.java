@@ -23,8 +23,11 @@
 
 package com.hubio.s3sftp.server.filesystem;
 
+import com.hubio.s3sftp.server.filechannel.FileChannelFactory;
 import org.apache.sshd.common.session.Session;
 
+import java.nio.file.Path;
+
 /**
  * Factory interface for creating File System objects.
  *
@@ -50,6 +53,72 @@ public interface FileSystemProviderFactory {
         return new DefaultS3SftpFileSystemProviderFactory();
     }
 
+    /**
+     * Create a factory for creating S3Sftp Filesystems that open file channels with the given factory.
+     *
+     * @param fileChannelFactory The factory for creating file channels
+     *
+     * @return a factory for creating an S3Sftp Filesystem
+     */
+    static S3SftpFileSystemProviderFactory s3SftpProviderFactory(final FileChannelFactory fileChannelFactory) {
+        return new DefaultS3SftpFileSystemProviderFactory(fileChannelFactory);
+    }
+
+    /**
+     * Create a factory for creating S3Sftp Filesystems that open file channels with the given factory and cache
+     * directory listings in the given cache.
+     *
+     * @param fileChannelFactory The factory for creating file channels
+     * @param listingCache       The cache for directory listings, shared by all sessions
+     *
+     * @return a factory for creating an S3Sftp Filesystem
+     */
+    static S3SftpFileSystemProviderFactory s3SftpProviderFactory(
+            final FileChannelFactory fileChannelFactory, final ListingCache listingCache
+                                                                ) {
+        return new DefaultS3SftpFileSystemProviderFactory(fileChannelFactory, listingCache);
+    }
+
+    /**
+     * Create a factory for creating S3Sftp Filesystems that open file channels with the given factory, cache
+     * directory listings in the given cache and journal directory renames in the given directory.
+     *
+     * @param fileChannelFactory     The factory for creating file channels
+     * @param listingCache           The cache for directory listings, shared by all sessions
+     * @param renameJournalDirectory The directory to journal directory renames in, so that those interrupted may be
+     *                               finished or rolled back, or {@code null} not to journal them
+     *
+     * @return a factory for creating an S3Sftp Filesystem
+     */
+    static S3SftpFileSystemProviderFactory s3SftpProviderFactory(
+            final FileChannelFactory fileChannelFactory, final ListingCache listingCache,
+            final Path renameJournalDirectory
+                                                                ) {
+        return new DefaultS3SftpFileSystemProviderFactory(fileChannelFactory, listingCache, renameJournalDirectory);
+    }
+
+    /**
+     * Create a factory for creating S3Sftp Filesystems that open file channels with the given factory, cache
+     * directory listings in the given cache, journal directory renames in the given directory and, if asked to,
+     * delete directories along with everything within them.
+     *
+     * @param fileChannelFactory     The factory for creating file channels
+     * @param listingCache           The cache for directory listings, shared by all sessions
+     * @param renameJournalDirectory The directory to journal directory renames in, so that those interrupted may be
+     *                               finished or rolled back, or {@code null} not to journal them
+     * @param deleteDirectoryTrees   Whether deleting a directory deletes everything within it, rather than failing
+     *                               unless it is empty
+     *
+     * @return a factory for creating an S3Sftp Filesystem
+     */
+    static S3SftpFileSystemProviderFactory s3SftpProviderFactory(
+            final FileChannelFactory fileChannelFactory, final ListingCache listingCache,
+            final Path renameJournalDirectory, final boolean deleteDirectoryTrees
+                                                                ) {
+        return new DefaultS3SftpFileSystemProviderFactory(fileChannelFactory, listingCache, renameJournalDirectory,
+                                                          deleteDirectoryTrees);
+    }
+
     /**
      * Create a provider of delegatable filesystems for the session.
      *
@@ -0,0 +1,112 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.hubio.s3sftp.server.filesystem;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the entries of a listing accepted by a filter.
+ *
+ * <p>Subclasses may watch every entry of the listing, whether or not it is accepted, and learn when the listing has
+ * been read to its end.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+class FilteringIterator implements Iterator<Path> {
+
+    private final Iterator<Path> entries;
+
+    private final DirectoryStream.Filter<? super Path> filter;
+
+    private Path next;
+
+    private boolean exhausted;
+
+    /**
+     * Constructor.
+     *
+     * @param entries The entries of the listing
+     * @param filter  The filter for the entries to return, or {@code null} to return them all
+     */
+    FilteringIterator(final Iterator<Path> entries, final DirectoryStream.Filter<? super Path> filter) {
+        this.entries = entries;
+        this.filter = filter;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null && entries.hasNext()) {
+            final Path entry = entries.next();
+            seen(entry);
+            if (accept(entry)) {
+                next = entry;
+            }
+        }
+        if (next == null && !exhausted) {
+            exhausted = true;
+            exhausted();
+        }
+        return next != null;
+    }
+
+    private boolean accept(final Path entry) {
+        try {
+            return filter == null || filter.accept(entry);
+        } catch (IOException e) {
+            throw new DirectoryIteratorException(e);
+        }
+    }
+
+    @Override
+    public Path next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final Path result = next;
+        next = null;
+        return result;
+    }
+
+    /**
+     * Called with each entry of the listing, before it is filtered.
+     *
+     * @param entry The entry
+     */
+    protected void seen(final Path entry) {
+        // nothing to do by default
+    }
+
+    /**
+     * Called once, when the listing has been read to its end.
+     */
+    protected void exhausted() {
+        // nothing to do by default
+    }
+}
@@ -0,0 +1,295 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filesystem;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.hubio.s3sftp.server.filechannel.HeldAttributes;
+import com.upplication.s3fs.S3Path;
+import com.upplication.s3fs.attribute.S3BasicFileAttributes;
+import com.upplication.s3fs.attribute.S3PosixFileAttributes;
+import com.upplication.s3fs.util.AttributesUtils;
+import com.upplication.s3fs.util.Cache;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.AccessMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+
+/**
+ * Answers for the attributes of objects from the listing of their directory, where it has them, rather than sending
+ * S3 a HEAD request, and another for the object's access control list, for every file a client lists.
+ *
+ * <p>Directories are listed a page at a time, keeping the {@link ListedFileAttributes} of each object. They are read
+ * from the path the listing returned while they are as fresh as s3fs would allow, or else from the {@link
+ * ListingCache}. Attributes that a listing does not have, such as those of the root and of paths that end with a slash,
+ * are read by the provider.</p>
+ *
+ * <p>An object that has not been listed is looked up with a single HEAD request, rather than the provider's HEAD and
+ * requests for its access control list, and the last modified time and permissions stored with it are read from the
+ * metadata that returns. Its tags are only read if it has any. The stored attributes found are kept in the
+ * {@link ListingCache}, and given to the object whenever it is listed again, so that a listing and a lookup agree. A
+ * path that is not an object is looked for as a directory, and has no stored attributes to read.</p>
+ *
+ * <p>Paths the {@link ListingCache} knows not to exist are reported missing without asking the provider, and those the
+ * provider reports missing are remembered by it.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@Slf4j
+class ListedAttributesS3SftpFileSystemProvider extends S3SftpFileSystemProviderDecorator {
+
+    private static final String[] BASIC_ATTRIBUTES = {
+            "creationTime", "fileKey", "isDirectory", "isOther", "isRegularFile", "isSymbolicLink", "lastAccessTime",
+            "lastModifiedTime", "size"
+    };
+
+    private static final Cache CACHE = new Cache();
+
+    private static final int NOT_FOUND = 404;
+
+    private final ListingCache listingCache;
+
+    private final Executor executor;
+
+    /**
+     * Constructor.
+     *
+     * @param provider     The provider to read the attributes not listed from
+     * @param listingCache The cache of listings to read the attributes of paths from
+     * @param executor     The executor to fetch the pages of listings on ahead of them being needed
+     */
+    ListedAttributesS3SftpFileSystemProvider(
+            final S3SftpFileSystemProvider provider, final ListingCache listingCache, final Executor executor
+                                            ) {
+        super(provider);
+        this.listingCache = listingCache;
+        this.executor = executor;
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(
+            final Path dir, final DirectoryStream.Filter<? super Path> filter
+                                                   ) throws IOException {
+        log.trace("newDirectoryStream({}, {})", dir, filter);
+        if (!(dir instanceof S3Path)) {
+            return super.newDirectoryStream(dir, filter);
+        }
+        final DirectoryListing listing = new DirectoryListing((S3Path) dir, executor);
+        return new DirectoryStream<Path>() {
+            @Override
+            public Iterator<Path> iterator() {
+                return new FilteringIterator(listing, filter) {
+                    @Override
+                    protected void seen(final Path entry) {
+                        final S3Path s3Entry = (S3Path) entry;
+                        final S3BasicFileAttributes attributes = s3Entry.getFileAttributes();
+                        if (attributes instanceof ListedFileAttributes) {
+                            s3Entry.setFileAttributes(
+                                    listingCache.withStored(s3Entry, (ListedFileAttributes) attributes));
+                        }
+                    }
+                };
+            }
+
+            @Override
+            public void close() {
+                listing.close();
+            }
+        };
+    }
+
+    @Override
+    public <A extends BasicFileAttributes> A readAttributes(
+            final Path path, final Class<A> type, final LinkOption... options
+                                                           ) throws IOException {
+        log.trace("readAttributes({}, {}, {})", path, type, options);
+        if (type == BasicFileAttributes.class || type == PosixFileAttributes.class) {
+            if (isObject(path)) {
+                return type.cast(attributesOf((S3Path) path));
+            }
+            return unlessMissing(path, () -> super.readAttributes(path, type, options));
+        }
+        return super.readAttributes(path, type, options);
+    }
+
+    @Override
+    public Map<String, Object> readAttributes(final Path path, final String attributes, final LinkOption... options)
+            throws IOException {
+        log.trace("readAttributes({}, {}, {})", path, attributes, options);
+        final boolean posix = attributes.startsWith("posix:");
+        final boolean basic = !attributes.contains(":") || attributes.startsWith("basic:");
+        if (!posix && !basic) {
+            return super.readAttributes(path, attributes, options);
+        }
+        if (!isObject(path)) {
+            return unlessMissing(path, () -> super.readAttributes(path, attributes, options));
+        }
+        final S3PosixFileAttributes found = attributesOf((S3Path) path);
+        if ("posix:*".equals(attributes)) {
+            return AttributesUtils.fileAttributeToMap(found);
+        }
+        if ("*".equals(attributes) || "basic:*".equals(attributes)) {
+            return AttributesUtils.fileAttributeToMap(found, BASIC_ATTRIBUTES);
+        }
+        return AttributesUtils.fileAttributeToMap(found, attributes.split(","));
+    }
+
+    @Override
+    public void checkAccess(final Path path, final AccessMode... modes) throws IOException {
+        log.trace("checkAccess({}, {})", path, modes);
+        if (modes.length == 0 && listed(path).isPresent()) {
+            return;
+        }
+        unlessMissing(path, () -> {
+            super.checkAccess(path, modes);
+            return null;
+        });
+    }
+
+    /**
+     * Whether the path may be an object, rather than the root or a path that names a directory.
+     */
+    private static boolean isObject(final Path path) {
+        if (!(path instanceof S3Path)) {
+            return false;
+        }
+        final String key = ((S3Path) path).getKey();
+        return !key.isEmpty() && !key.endsWith("/");
+    }
+
+    /**
+     * The attributes the path was listed with, or else those it is looked up with.
+     */
+    private S3PosixFileAttributes attributesOf(final S3Path path) throws IOException {
+        final Optional<ListedFileAttributes> listed = listed(path);
+        if (listed.isPresent()) {
+            return listed.get();
+        }
+        return unlessMissing(path, () -> lookUp(path));
+    }
+
+    /**
+     * Looks up a path with a single HEAD request, reading the attributes stored with the object from its metadata,
+     * rather than leaving it to the provider, which also asks for the object's access control list. A path that is
+     * not an object is looked for as a directory, as the provider would, which has no stored attributes to read.
+     */
+    private S3PosixFileAttributes lookUp(final S3Path path) throws NoSuchFileException {
+        final AmazonS3 client = path.getFileSystem()
+                                    .getClient();
+        final String bucket = path.getFileStore()
+                                  .name();
+        final String key = path.getKey();
+        final long marker = listingCache.marker();
+        try {
+            final ObjectMetadata metadata = client.getObjectMetadata(bucket, key);
+            final ListedFileAttributes attributes =
+                    ListedFileAttributes.of(key, metadata, HeldAttributes.read(client, bucket, key, metadata));
+            listingCache.putStored(path, attributes, marker);
+            path.setFileAttributes(attributes);
+            return attributes;
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() != NOT_FOUND) {
+                throw e;
+            }
+        }
+        final String directory = key + "/";
+        final List<S3ObjectSummary> summaries =
+                client.listObjects(new ListObjectsRequest(bucket, directory, null, null, 1))
+                      .getObjectSummaries();
+        if (summaries.isEmpty()) {
+            throw new NoSuchFileException(path.toString());
+        }
+        final S3ObjectSummary first = summaries.get(0);
+        final FileTime lastModifiedTime = first.getLastModified() == null
+                                          ? null
+                                          : FileTime.fromMillis(first.getLastModified()
+                                                                     .getTime());
+        final long size = directory.equals(first.getKey()) ? first.getSize() : 0L;
+        return new S3PosixFileAttributes(directory, lastModifiedTime, size, true, false, null, null, null);
+    }
+
+    /**
+     * Looks up a path, unless it is known not to exist, remembering if it is found not to.
+     */
+    private <T> T unlessMissing(final Path path, final Lookup<T> lookup) throws IOException {
+        if (!(path instanceof S3Path)) {
+            return lookup.apply();
+        }
+        final S3Path s3Path = (S3Path) path;
+        if (listingCache.isMissing(s3Path)) {
+            log.debug("unlessMissing({}) known to be missing", path);
+            throw new NoSuchFileException(path.toString());
+        }
+        final long marker = listingCache.marker();
+        try {
+            return lookup.apply();
+        } catch (NoSuchFileException e) {
+            listingCache.putMissing(s3Path, marker);
+            throw e;
+        }
+    }
+
+    /**
+     * The attributes the path was listed with, either those it was returned with, if they are still fresh, or those
+     * in the cached listing of its directory.
+     */
+    private Optional<ListedFileAttributes> listed(final Path path) {
+        if (!(path instanceof S3Path)) {
+            return Optional.empty();
+        }
+        final S3Path s3Path = (S3Path) path;
+        final S3BasicFileAttributes attached = s3Path.getFileAttributes();
+        if (attached instanceof ListedFileAttributes && CACHE.isInTime(s3Path.getFileSystem()
+                                                                             .getCache(), attached)) {
+            return Optional.of((ListedFileAttributes) attached);
+        }
+        return listingCache.attributes(s3Path)
+                           .filter(ListedFileAttributes.class::isInstance)
+                           .map(ListedFileAttributes.class::cast);
+    }
+
+    /**
+     * A lookup of a path in S3.
+     */
+    @FunctionalInterface
+    private interface Lookup<T> {
+
+        T apply() throws IOException;
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filesystem;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.Owner;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.upplication.s3fs.attribute.S3PosixFileAttributes;
+import com.upplication.s3fs.attribute.S3UserPrincipal;
+import lombok.Getter;
+
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The attributes of an object as they were listed, including its ETag, so that reading them does not need another
+ * request to S3.
+ *
+ * <p>A listing does not include the object's access control list, so there are no permissions, other than any stored
+ * with the object. The last modified time and permissions stored with an object replace those it was listed with,
+ * where they are known.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+class ListedFileAttributes extends S3PosixFileAttributes {
+
+    @Getter
+    private final String eTag;
+
+    /**
+     * The last modified time and permissions stored with the object, by the names of their attributes.
+     */
+    @Getter
+    private final Map<String, Object> stored;
+
+    private final FileTime objectLastModifiedTime;
+
+    private final S3UserPrincipal objectOwner;
+
+    /**
+     * Constructor.
+     *
+     * @param key              The key of the object
+     * @param lastModifiedTime The time the object was last modified, or {@code null}
+     * @param size             The size of the object
+     * @param owner            The owner of the object, or {@code null}
+     * @param eTag             The ETag of the object
+     */
+    ListedFileAttributes(
+            final String key, final FileTime lastModifiedTime, final long size, final S3UserPrincipal owner,
+            final String eTag
+                        ) {
+        this(key, lastModifiedTime, size, owner, eTag, Collections.emptyMap());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param key              The key of the object
+     * @param lastModifiedTime The time the object was last modified, or {@code null}
+     * @param size             The size of the object
+     * @param owner            The owner of the object, or {@code null}
+     * @param eTag             The ETag of the object
+     * @param stored           The last modified time and permissions stored with the object, by the names of their
+     *                         attributes
+     */
+    @SuppressWarnings("unchecked")
+    ListedFileAttributes(
+            final String key, final FileTime lastModifiedTime, final long size, final S3UserPrincipal owner,
+            final String eTag, final Map<String, Object> stored
+                        ) {
+        super(key, (FileTime) stored.getOrDefault("lastModifiedTime", lastModifiedTime), size, false, true, owner,
+              null, (Set<PosixFilePermission>) stored.get("permissions"));
+        this.eTag = eTag;
+        this.stored = Collections.unmodifiableMap(stored);
+        this.objectLastModifiedTime = lastModifiedTime;
+        this.objectOwner = owner;
+    }
+
+    /**
+     * Creates the attributes of a listed object.
+     *
+     * @param summary The summary of the object from the listing
+     *
+     * @return the attributes
+     */
+    static ListedFileAttributes of(final S3ObjectSummary summary) {
+        final Owner owner = summary.getOwner();
+        final S3UserPrincipal principal = owner == null
+                                          ? null
+                                          : new S3UserPrincipal(owner.getId() + ":" + owner.getDisplayName());
+        return new ListedFileAttributes(summary.getKey(), fileTime(summary.getLastModified()), summary.getSize(),
+                                        principal, summary.getETag());
+    }
+
+    /**
+     * Creates the attributes of an object from its metadata, which has no owner.
+     *
+     * @param key      The key of the object
+     * @param metadata The metadata of the object
+     * @param stored   The last modified time and permissions stored with the object, by the names of their attributes
+     *
+     * @return the attributes
+     */
+    static ListedFileAttributes of(final String key, final ObjectMetadata metadata, final Map<String, Object> stored) {
+        return new ListedFileAttributes(key, fileTime(metadata.getLastModified()), metadata.getContentLength(), null,
+                                        metadata.getETag(), stored);
+    }
+
+    /**
+     * These attributes, with the last modified time and permissions stored with the object.
+     *
+     * @param stored The last modified time and permissions stored with the object, by the names of their attributes
+     *
+     * @return the attributes
+     */
+    ListedFileAttributes withStored(final Map<String, Object> stored) {
+        return new ListedFileAttributes((String) fileKey(), objectLastModifiedTime, size(), objectOwner, eTag, stored);
+    }
+
+    private static FileTime fileTime(final Date date) {
+        if (date == null) {
+            return null;
+        }
+        return FileTime.fromMillis(date.getTime());
+    }
+}
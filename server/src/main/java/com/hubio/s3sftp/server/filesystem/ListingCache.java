@@ -0,0 +1,405 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filesystem;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.upplication.s3fs.S3FileSystem;
+import com.upplication.s3fs.S3Path;
+import com.upplication.s3fs.attribute.S3BasicFileAttributes;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Recent listings of directories in S3, shared by all sessions, so that clients that list the same directory again
+ * after every operation do not each time wait for S3 to list it.
+ *
+ * <p>Listings expire after a time to live, to pick up changes made other than through this server, and the least
+ * recently used are evicted once the entries held across all listings reach a maximum. Changes made through this
+ * server {@link #invalidate(Path) invalidate} the listings they affect as they happen.</p>
+ *
+ * <p>Listings are held separately for each file system, identified by its key, as users may not be allowed to list
+ * the same directories.</p>
+ *
+ * <p>The attributes each entry was listed with are held with it, so that they can be read again without asking S3.</p>
+ *
+ * <p>Only directories of up to a few thousand entries are cached, as each listing is collected in memory while it is
+ * being read. Larger directories are listed from S3 each time.</p>
+ *
+ * <p>Paths found not to exist are also remembered, for a shorter time to live, as clients look for many paths that do
+ * not exist, such as partial uploads to resume, before they write. Each of those would otherwise cost a request for
+ * the object and another to list it as a directory. A path is also known not to exist when it is missing from the
+ * cached listing of its directory. Changes made through this server forget the missing paths they affect, as they do
+ * listings.</p>
+ *
+ * <p>The last modified time and permissions stored with objects, as they are found when the objects are looked up, are
+ * held for an hour, and given to the objects wherever they are listed with the same ETag. They are otherwise only
+ * known from a request for each object, which listing would not make. Changes made through this server forget them
+ * as they do listings.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@Slf4j
+public final class ListingCache {
+
+    private static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofSeconds(10);
+
+    private static final long DEFAULT_MAXIMUM_ENTRIES = 100_000L;
+
+    private static final Duration DEFAULT_MISSING_TIME_TO_LIVE = Duration.ofSeconds(5);
+
+    private static final long MAXIMUM_LISTING_ENTRIES = 5_000L;
+
+    private static final Duration STORED_TIME_TO_LIVE = Duration.ofHours(1);
+
+    private final Cache<Listing, Map<String, S3BasicFileAttributes>> listings;
+
+    private final Cache<Listing, Boolean> missing;
+
+    private final Cache<Listing, ListedFileAttributes> stored;
+
+    /**
+     * The most entries a single listing may have to be cached.
+     */
+    @Getter(AccessLevel.PACKAGE)
+    private final long maximumListingEntries;
+
+    private long invalidations;
+
+    private ListingCache(final Duration timeToLive, final long maximumEntries, final Duration missingTimeToLive) {
+        this.maximumListingEntries = Math.min(maximumEntries, MAXIMUM_LISTING_ENTRIES);
+        this.missing = CacheBuilder.newBuilder()
+                                   .expireAfterWrite(missingTimeToLive.toMillis(), TimeUnit.MILLISECONDS)
+                                   .maximumSize(maximumEntries)
+                                   .build();
+        this.stored = CacheBuilder.newBuilder()
+                                  .expireAfterWrite(STORED_TIME_TO_LIVE.toMillis(), TimeUnit.MILLISECONDS)
+                                  .maximumSize(maximumEntries)
+                                  .build();
+        this.listings = CacheBuilder.newBuilder()
+                                    .expireAfterWrite(timeToLive.toMillis(), TimeUnit.MILLISECONDS)
+                                    .maximumWeight(maximumEntries)
+                                    .weigher((Listing listing, Map<String, S3BasicFileAttributes> entries) ->
+                                                     Math.max(1, entries.size()))
+                                    .build();
+    }
+
+    /**
+     * Creates a cache that holds listings for 10 seconds, with up to 100,000 entries across all listings, and missing
+     * paths for 5 seconds.
+     *
+     * @return the cache
+     */
+    public static ListingCache create() {
+        return create(DEFAULT_TIME_TO_LIVE, DEFAULT_MAXIMUM_ENTRIES, DEFAULT_MISSING_TIME_TO_LIVE);
+    }
+
+    /**
+     * Creates a cache that holds missing paths for 5 seconds.
+     *
+     * @param timeToLive     How long a listing is held for
+     * @param maximumEntries The maximum number of entries held across all listings
+     *
+     * @return the cache
+     */
+    public static ListingCache create(final Duration timeToLive, final long maximumEntries) {
+        return create(timeToLive, maximumEntries, DEFAULT_MISSING_TIME_TO_LIVE);
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param timeToLive        How long a listing is held for
+     * @param maximumEntries    The maximum number of entries held across all listings, and of missing paths
+     * @param missingTimeToLive How long a path found not to exist is remembered for
+     *
+     * @return the cache
+     */
+    public static ListingCache create(
+            final Duration timeToLive, final long maximumEntries, final Duration missingTimeToLive
+                                     ) {
+        return new ListingCache(timeToLive, maximumEntries, missingTimeToLive);
+    }
+
+    /**
+     * Creates a cache that holds no listings and remembers no missing paths.
+     *
+     * @return the cache
+     */
+    public static ListingCache disabled() {
+        return create(Duration.ZERO, 0L, Duration.ZERO);
+    }
+
+    /**
+     * The cached listing of a directory.
+     *
+     * @param dir The directory
+     *
+     * @return the paths of the entries of the directory, with the attributes they were listed with, if it is cached
+     */
+    Optional<List<Path>> get(final S3Path dir) {
+        log.trace("get({})", dir);
+        final Map<String, S3BasicFileAttributes> entries = listings.getIfPresent(Listing.of(dir));
+        if (entries == null) {
+            return Optional.empty();
+        }
+        final S3FileSystem fileSystem = dir.getFileSystem();
+        final String bucket = dir.getFileStore()
+                                 .name();
+        return Optional.of(entries.entrySet()
+                                  .stream()
+                                  .map(entry -> toPath(fileSystem, "/" + bucket, entry.getKey(),
+                                                       withStored(new Listing(fileSystem.getKey(), bucket,
+                                                                              directoryOf(entry.getKey())),
+                                                                  entry.getValue())))
+                                  .collect(Collectors.toList()));
+    }
+
+    /**
+     * The attributes a path was listed with in the cached listing of its directory.
+     *
+     * @param path The path
+     *
+     * @return the attributes, if the directory is cached and the path was listed with attributes
+     */
+    Optional<S3BasicFileAttributes> attributes(final S3Path path) {
+        log.trace("attributes({})", path);
+        final String key = path.getKey();
+        if (key.isEmpty()) {
+            return Optional.empty();
+        }
+        final String name = nameOf(key);
+        final Map<String, S3BasicFileAttributes> entries = listings.getIfPresent(parentOf(path, name));
+        if (entries == null) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(withStored(Listing.of(path), entries.get(name)));
+    }
+
+    /**
+     * The attributes an object was listed with, with the last modified time and permissions stored with it, if they
+     * are known for the object as it was listed.
+     *
+     * @param path   The path of the object
+     * @param listed The attributes the object was listed with
+     *
+     * @return the attributes
+     */
+    ListedFileAttributes withStored(final S3Path path, final ListedFileAttributes listed) {
+        return (ListedFileAttributes) withStored(Listing.of(path), listed);
+    }
+
+    /**
+     * Remembers the last modified time and permissions stored with an object, as it was looked up, unless anything has
+     * changed since it was.
+     *
+     * @param path       The path of the object
+     * @param attributes The attributes of the object
+     * @param marker     The {@link #marker()} taken before the object was looked up
+     */
+    synchronized void putStored(final S3Path path, final ListedFileAttributes attributes, final long marker) {
+        log.trace("putStored({})", path);
+        if (marker != invalidations || attributes.getStored()
+                                                 .isEmpty()) {
+            return;
+        }
+        stored.put(Listing.of(path), attributes);
+    }
+
+    /**
+     * Whether the path is known not to exist, either because it was recently found not to, or because it is missing
+     * from the cached listing of its directory.
+     *
+     * @param path The path
+     *
+     * @return true if the path is known not to exist
+     */
+    boolean isMissing(final S3Path path) {
+        log.trace("isMissing({})", path);
+        final String key = path.getKey();
+        if (key.isEmpty()) {
+            return false;
+        }
+        if (missing.getIfPresent(Listing.of(path)) != null) {
+            return true;
+        }
+        final String name = nameOf(key);
+        final Map<String, S3BasicFileAttributes> entries = listings.getIfPresent(parentOf(path, name));
+        return entries != null && !entries.containsKey(name);
+    }
+
+    /**
+     * Remembers that a path does not exist, unless anything has changed since it was looked for.
+     *
+     * @param path   The path
+     * @param marker The {@link #marker()} taken before the path was looked for
+     */
+    synchronized void putMissing(final S3Path path, final long marker) {
+        log.trace("putMissing({})", path);
+        if (marker != invalidations || path.getKey()
+                                           .isEmpty()) {
+            return;
+        }
+        missing.put(Listing.of(path), Boolean.TRUE);
+    }
+
+    /**
+     * A marker to give to {@link #put(S3Path, List, long)} for a listing started now, so that it is not cached if the
+     * directory changes before it is complete.
+     *
+     * @return the marker
+     */
+    synchronized long marker() {
+        return invalidations;
+    }
+
+    /**
+     * Caches the listing of a directory, unless it has changed since the listing started.
+     *
+     * @param dir     The directory
+     * @param entries The paths of the entries of the directory
+     * @param marker  The {@link #marker()} taken when the listing started
+     */
+    synchronized void put(final S3Path dir, final List<S3Path> entries, final long marker) {
+        log.trace("put({}, {})", dir, entries.size());
+        if (marker != invalidations) {
+            return;
+        }
+        final Map<String, S3BasicFileAttributes> listing = new LinkedHashMap<>();
+        entries.forEach(entry -> listing.put(entry.getKey(), entry.getFileAttributes()));
+        listings.put(Listing.of(dir), Collections.unmodifiableMap(listing));
+    }
+
+    /**
+     * Discards the listings a change to a path may affect, for every file system: those of the directories above it,
+     * where the path, or a directory implied by it, may appear or disappear, and those of the path itself and any
+     * directories below it. Missing paths that the change may create are forgotten in the same way.
+     *
+     * @param path The path that has changed, which is ignored if it is not in S3
+     */
+    synchronized void invalidate(final Path path) {
+        log.trace("invalidate({})", path);
+        if (!(path instanceof S3Path)) {
+            return;
+        }
+        final S3Path s3Path = (S3Path) path;
+        final String bucket = s3Path.getFileStore()
+                                    .name();
+        final String key = directoryOf(s3Path.getKey());
+        invalidations++;
+        listings.asMap()
+                .keySet()
+                .removeIf(listing -> listing.isAffectedBy(bucket, key));
+        missing.asMap()
+               .keySet()
+               .removeIf(listing -> listing.isAffectedBy(bucket, key));
+        stored.asMap()
+              .keySet()
+              .removeIf(listing -> listing.isAffectedBy(bucket, key));
+    }
+
+    private S3BasicFileAttributes withStored(final Listing listing, final S3BasicFileAttributes attributes) {
+        if (!(attributes instanceof ListedFileAttributes)) {
+            return attributes;
+        }
+        final ListedFileAttributes listed = (ListedFileAttributes) attributes;
+        final ListedFileAttributes found = stored.getIfPresent(listing);
+        if (found == null || !Objects.equals(found.getETag(), listed.getETag())) {
+            return attributes;
+        }
+        return listed.withStored(found.getStored());
+    }
+
+    /**
+     * The key without any trailing slash, as it appears in the listing of its directory.
+     */
+    private static String nameOf(final String key) {
+        if (key.endsWith("/")) {
+            return key.substring(0, key.length() - 1);
+        }
+        return key;
+    }
+
+    private static Listing parentOf(final S3Path path, final String name) {
+        return new Listing(path.getFileSystem()
+                               .getKey(), path.getFileStore()
+                                              .name(), name.substring(0, name.lastIndexOf('/') + 1));
+    }
+
+    private static S3Path toPath(
+            final S3FileSystem fileSystem, final String root, final String key, final S3BasicFileAttributes attributes
+                                ) {
+        final S3Path path = new S3Path(fileSystem, root, key);
+        path.setFileAttributes(attributes);
+        return path;
+    }
+
+    /**
+     * The key as a directory prefix, which ends with a slash unless it is the root.
+     */
+    private static String directoryOf(final String key) {
+        if (key.isEmpty() || key.endsWith("/")) {
+            return key;
+        }
+        return key + "/";
+    }
+
+    /**
+     * A directory in a bucket, as seen by a file system. Missing paths, and objects whose stored attributes are held,
+     * are held as if they were directories, so that a change affects them as it would a listing of them.
+     */
+    @Value
+    private static class Listing {
+
+        private final String owner;
+
+        private final String bucket;
+
+        private final String directory;
+
+        static Listing of(final S3Path dir) {
+            return new Listing(dir.getFileSystem()
+                                  .getKey(), dir.getFileStore()
+                                                .name(), directoryOf(dir.getKey()));
+        }
+
+        boolean isAffectedBy(final String changedBucket, final String changedDirectory) {
+            return bucket.equals(changedBucket)
+                    && (changedDirectory.startsWith(directory) || directory.startsWith(changedDirectory));
+        }
+    }
+}
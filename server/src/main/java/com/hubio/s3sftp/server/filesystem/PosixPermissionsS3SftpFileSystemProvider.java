@@ -28,17 +28,29 @@ import lombok.extern.slf4j.Slf4j;
 import java.io.IOException;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Adds support for POSIX permissions.
  *
+ * <p>Files and directories without permissions of their own, such as those stored with an object, are reported with
+ * the {@link #PERMISSIONS default permissions}.</p>
+ *
  * @author Paul Campbell (paul.campbell@hubio.com)
  */
 @Slf4j
 class PosixPermissionsS3SftpFileSystemProvider extends S3SftpFileSystemProviderDecorator {
 
+    /**
+     * The permissions reported for files and directories that have none stored.
+     */
+    static final Set<PosixFilePermission> PERMISSIONS =
+            Collections.unmodifiableSet(PosixFilePermissions.fromString("rw-rw----"));
+
     /**
      * Constructor.
      *
@@ -53,7 +65,9 @@ class PosixPermissionsS3SftpFileSystemProvider extends S3SftpFileSystemProviderD
             throws IOException {
         log.trace("readAttributes({}, {}, {})", path, attributes, options);
         final Map<String, Object> attributeMap = super.readAttributes(path, attributes, options);
-        attributeMap.put("permissions", PosixFilePermissions.fromString("rw-rw----"));
+        if (attributeMap.get("permissions") == null) {
+            attributeMap.put("permissions", PERMISSIONS);
+        }
         return attributeMap;
     }
 
@@ -0,0 +1,193 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filesystem;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileSystemException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
+
+/**
+ * Deletes every object below a prefix, in batches of up to 1,000 objects with a single request each, rather than a
+ * request for every object.
+ *
+ * <p>The objects are listed a page at a time, and each page is deleted as a batch while the next is listed, with
+ * several batches in flight at once. Every batch is attempted, even once some objects have failed to delete. The
+ * objects that could not be deleted are then reported in the error, which is an {@link AccessDeniedException} if S3
+ * refused to delete any of them, so that the client sees which paths remain and why.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@Slf4j
+class PrefixDeleter {
+
+    private static final int CONCURRENT_BATCHES = 4;
+
+    private static final int REPORTED_FAILURES = 10;
+
+    private static final String ACCESS_DENIED = "AccessDenied";
+
+    private final Executor executor;
+
+    /**
+     * Constructor.
+     *
+     * @param executor The executor to delete batches on
+     */
+    PrefixDeleter(final Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Deletes every object whose key starts with a prefix.
+     *
+     * @param client The client to delete the objects with
+     * @param bucket The bucket containing the objects
+     * @param prefix The prefix of the keys of the objects
+     * @param path   The path the objects are below, to report failures against
+     *
+     * @throws IOException if the objects could not all be listed or deleted
+     */
+    void delete(final AmazonS3 client, final String bucket, final String prefix, final String path)
+            throws IOException {
+        log.trace("delete({}, {}, {})", bucket, prefix, path);
+        deleteCopies(client, bucket, prefix, bucket, prefix, path);
+    }
+
+    /**
+     * Deletes the copies below a target prefix of every object whose key starts with a source prefix, leaving any
+     * other objects below the target prefix as they are.
+     *
+     * @param client       The client to list and delete the objects with
+     * @param sourceBucket The bucket containing the objects that were copied
+     * @param sourcePrefix The prefix of the keys of the objects that were copied
+     * @param targetBucket The bucket containing the copies
+     * @param targetPrefix The prefix the copies have in place of the source prefix
+     * @param path         The path the copies are below, to report failures against
+     *
+     * @throws IOException if the objects could not all be listed, or their copies deleted
+     */
+    void deleteCopies(
+            final AmazonS3 client, final String sourceBucket, final String sourcePrefix, final String targetBucket,
+            final String targetPrefix, final String path
+                     ) throws IOException {
+        log.trace("deleteCopies({}, {}, {}, {}, {})", sourceBucket, sourcePrefix, targetBucket, targetPrefix, path);
+        final Map<String, String> failures = new ConcurrentSkipListMap<>();
+        final BoundedTasks batches = new BoundedTasks(executor, CONCURRENT_BATCHES);
+        long attempted = 0;
+        try {
+            final ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(sourceBucket)
+                                                                           .withPrefix(sourcePrefix);
+            ListObjectsV2Result page;
+            do {
+                page = client.listObjectsV2(request);
+                final List<String> keys = page.getObjectSummaries()
+                                              .stream()
+                                              .map(S3ObjectSummary::getKey)
+                                              .map(key -> targetPrefix + key.substring(sourcePrefix.length()))
+                                              .collect(Collectors.toList());
+                if (!keys.isEmpty()) {
+                    batches.submit(() -> deleteBatch(client, targetBucket, keys, failures));
+                    attempted += keys.size();
+                }
+                request.setContinuationToken(page.getNextContinuationToken());
+            } while (page.isTruncated());
+        } catch (InterruptedException e) {
+            Thread.currentThread()
+                  .interrupt();
+            throw new InterruptedIOException("Interrupted deleting " + path);
+        } catch (AmazonClientException e) {
+            throw new IOException("Cannot list " + path, e);
+        } finally {
+            batches.awaitAll();
+        }
+        log.debug("delete({}) deleted {} objects, {} failed", path, attempted - failures.size(), failures.size());
+        if (!failures.isEmpty()) {
+            throw failure(path, "delete", failures, attempted);
+        }
+    }
+
+    private static void deleteBatch(
+            final AmazonS3 client, final String bucket, final List<String> keys, final Map<String, String> failures
+                                   ) {
+        log.trace("deleteBatch({}, {})", bucket, keys.size());
+        final DeleteObjectsRequest request = new DeleteObjectsRequest(bucket).withKeys(keys.toArray(new String[0]))
+                                                                             .withQuiet(true);
+        try {
+            client.deleteObjects(request);
+        } catch (MultiObjectDeleteException e) {
+            e.getErrors()
+             .forEach(error -> failures.put(error.getKey(), error.getCode()));
+        } catch (AmazonClientException e) {
+            log.warn("Could not delete {} objects from {}", keys.size(), bucket, e);
+            final String reason = e.getMessage();
+            keys.forEach(key -> failures.put(key, reason));
+        }
+    }
+
+    /**
+     * The error reporting the objects that could not be processed, as an {@link AccessDeniedException} if S3 refused
+     * any of them.
+     *
+     * @param path      The path the objects are below
+     * @param action    What could not be done to the objects
+     * @param failures  The reasons each object failed, by key
+     * @param attempted The number of objects attempted
+     *
+     * @return the error
+     */
+    static FileSystemException failure(
+            final String path, final String action, final Map<String, String> failures, final long attempted
+                                      ) {
+        final List<String> reported = new ArrayList<>();
+        failures.entrySet()
+                .stream()
+                .limit(REPORTED_FAILURES)
+                .forEach(failure -> reported.add(failure.getKey() + " (" + failure.getValue() + ")"));
+        if (failures.size() > REPORTED_FAILURES) {
+            reported.add("...");
+        }
+        final String reason = String.format("Could not %s %d of %d objects: %s", action, failures.size(), attempted,
+                                            String.join(", ", reported));
+        if (failures.containsValue(ACCESS_DENIED)) {
+            return new AccessDeniedException(path, null, reason);
+        }
+        return new FileSystemException(path, null, reason);
+    }
+}
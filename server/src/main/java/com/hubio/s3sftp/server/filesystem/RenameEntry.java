@@ -0,0 +1,82 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filesystem;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+/**
+ * The state of a directory rename, as kept in a {@link RenameJournal}, so that a rename that was interrupted can be
+ * finished or rolled back.
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@Getter
+@ToString
+@RequiredArgsConstructor
+class RenameEntry {
+
+    /**
+     * How far a rename has got.
+     */
+    enum Phase {
+
+        /**
+         * Objects are being copied to the target, and the source is intact, so the rename is rolled back.
+         */
+        COPYING,
+
+        /**
+         * Every object has been copied to the target, and the source is being deleted, so the rename is finished.
+         */
+        DELETING
+    }
+
+    private final String owner;
+
+    private final String sourceBucket;
+
+    private final String sourcePrefix;
+
+    private final String targetBucket;
+
+    private final String targetPrefix;
+
+    private final Phase phase;
+
+    private final long updated;
+
+    /**
+     * The same rename, having moved on to another phase.
+     *
+     * @param next The phase the rename is now in
+     *
+     * @return the entry for the rename
+     */
+    RenameEntry inPhase(final Phase next) {
+        return new RenameEntry(owner, sourceBucket, sourcePrefix, targetBucket, targetPrefix, next,
+                               System.currentTimeMillis());
+    }
+}
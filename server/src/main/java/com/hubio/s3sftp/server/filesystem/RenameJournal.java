@@ -0,0 +1,236 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2017 Hubio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.hubio.s3sftp.server.filesystem;
+
+import com.google.common.hash.Hashing;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * A local journal of the directory renames in progress.
+ *
+ * <p>Each rename is kept in a properties file in the journal directory, named for the owner and the directory being
+ * renamed. Files are replaced atomically, so an entry is never left half written.</p>
+ *
+ * <p>The journal is shared by every session of the server, and knows which of its renames are being worked on by
+ * one of them. Only entries left by an earlier run of the server, that no session has claimed, are {@link
+ * #interrupted(String) interrupted}, so that a rename still in progress in another session is never recovered.</p>
+ *
+ * @author Paul Campbell (paul.campbell@hubio.com)
+ */
+@Slf4j
+class RenameJournal {
+
+    private static final String SUFFIX = ".properties";
+
+    private static final String OWNER = "owner";
+
+    private static final String SOURCE_BUCKET = "sourceBucket";
+
+    private static final String SOURCE_PREFIX = "sourcePrefix";
+
+    private static final String TARGET_BUCKET = "targetBucket";
+
+    private static final String TARGET_PREFIX = "targetPrefix";
+
+    private static final String PHASE = "phase";
+
+    private static final String UPDATED = "updated";
+
+    private final Path directory;
+
+    private final long started;
+
+    private final Set<Path> claimed = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Constructor.
+     *
+     * @param directory The directory to keep the journal in
+     */
+    RenameJournal(final Path directory) {
+        this(directory, System.currentTimeMillis());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param directory The directory to keep the journal in
+     * @param started   The time the server started, in milliseconds since the epoch
+     */
+    RenameJournal(final Path directory, final long started) {
+        this.directory = directory;
+        this.started = started;
+    }
+
+    /**
+     * Claims a rename for the caller, so that it is not worked on by any other session until it is {@link
+     * #release(RenameEntry) released}.
+     *
+     * @param entry The entry for the rename
+     *
+     * @return true if the rename was claimed, or false if it is already claimed
+     */
+    boolean claim(final RenameEntry entry) {
+        log.trace("claim({})", entry);
+        return claimed.add(fileFor(entry));
+    }
+
+    /**
+     * Releases a rename claimed by the caller.
+     *
+     * @param entry The entry for the rename
+     */
+    void release(final RenameEntry entry) {
+        log.trace("release({})", entry);
+        claimed.remove(fileFor(entry));
+    }
+
+    /**
+     * Records the state of a rename, replacing any earlier entry for the same owner and source directory.
+     *
+     * @param entry The entry for the rename
+     *
+     * @throws IOException if the entry could not be written
+     */
+    void record(final RenameEntry entry) throws IOException {
+        log.trace("record({})", entry);
+        final Properties properties = new Properties();
+        properties.setProperty(OWNER, entry.getOwner());
+        properties.setProperty(SOURCE_BUCKET, entry.getSourceBucket());
+        properties.setProperty(SOURCE_PREFIX, entry.getSourcePrefix());
+        properties.setProperty(TARGET_BUCKET, entry.getTargetBucket());
+        properties.setProperty(TARGET_PREFIX, entry.getTargetPrefix());
+        properties.setProperty(PHASE, entry.getPhase()
+                                           .name());
+        properties.setProperty(UPDATED, Long.toString(entry.getUpdated()));
+        Files.createDirectories(directory);
+        final Path temp = Files.createTempFile(directory, "rename-", ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            properties.store(out, "Directory rename");
+        }
+        Files.move(temp, fileFor(entry), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Removes the entry for a rename, if there is one.
+     *
+     * @param entry The entry for the rename
+     *
+     * @throws IOException if the entry could not be removed
+     */
+    void remove(final RenameEntry entry) throws IOException {
+        log.trace("remove({})", entry);
+        Files.deleteIfExists(fileFor(entry));
+    }
+
+    /**
+     * The entries in the journal for an owner. Entries that cannot be read are logged and skipped.
+     *
+     * @param owner The owner of the renames
+     *
+     * @return the entries
+     *
+     * @throws IOException if the journal directory could not be listed
+     */
+    List<RenameEntry> entries(final String owner) throws IOException {
+        final List<RenameEntry> entries = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return entries;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (final Path file : files) {
+                try {
+                    final RenameEntry entry = read(file);
+                    if (entry.getOwner()
+                             .equals(owner)) {
+                        entries.add(entry);
+                    }
+                } catch (IOException | IllegalArgumentException e) {
+                    log.warn("Could not read journal entry {}", file, e);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * The entries for an owner that were interrupted, i.e. that were last updated before the server started and are
+     * not claimed.
+     *
+     * @param owner The owner of the renames
+     *
+     * @return the entries
+     *
+     * @throws IOException if the journal directory could not be listed
+     */
+    List<RenameEntry> interrupted(final String owner) throws IOException {
+        return entries(owner).stream()
+                             .filter(entry -> entry.getUpdated() < started)
+                             .filter(entry -> !claimed.contains(fileFor(entry)))
+                             .collect(Collectors.toList());
+    }
+
+    private Path fileFor(final RenameEntry entry) {
+        final String name = Hashing.sha256()
+                                   .hashString(entry.getOwner() + '\n' + entry.getSourceBucket() + '/'
+                                                       + entry.getSourcePrefix(), StandardCharsets.UTF_8)
+                                   .toString();
+        return directory.resolve(name + SUFFIX);
+    }
+
+    private static RenameEntry read(final Path file) throws IOException {
+        final Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        return new RenameEntry(required(properties, OWNER), required(properties, SOURCE_BUCKET),
+                               required(properties, SOURCE_PREFIX), required(properties, TARGET_BUCKET),
+                               required(properties, TARGET_PREFIX),
+                               RenameEntry.Phase.valueOf(required(properties, PHASE)),
+                               Long.parseLong(required(properties, UPDATED)));
+    }
+
+    private static String required(final Properties properties, final String name) {
+        final String value = properties.getProperty(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Journal entry has no " + name);
+        }
+        return value;
+    }
+}
@@ -1,5 +1,7 @@
 package com.hubio.s3sftp.server;
 
+import com.hubio.s3sftp.server.filechannel.FileChannelFactory;
+import com.hubio.s3sftp.server.filesystem.ListingCache;
 import lombok.val;
 import org.apache.sshd.server.SshServer;
 import org.apache.sshd.server.auth.password.PasswordAuthenticator;
@@ -270,7 +272,8 @@ class DefaultS3SftpServerTest implements WithAssertions {
         val authenticationProvider = S3SftpServer.simpleAuthenticator(users);
         val configuration = new S3SftpServerConfiguration(
                 2000, "hka", "hkp", new File("hkfp"),
-                authenticationProvider, sessionBucket, sessionHome, SftpSession::getUsername, "uri");
+                authenticationProvider, sessionBucket, sessionHome, SftpSession::getUsername, "uri",
+                FileChannelFactory.create(), ListingCache.create(), null, false);
         val sshServer = mock(SshServer.class);
         val server = new DefaultS3SftpServer(sshServer, configuration);
         //when
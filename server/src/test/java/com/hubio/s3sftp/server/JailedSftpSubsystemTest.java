@@ -7,6 +7,8 @@ import lombok.val;
 import net.kemitix.mon.maybe.Maybe;
 import org.apache.sshd.common.Factory;
 import org.apache.sshd.common.random.Random;
+import org.apache.sshd.common.subsystem.sftp.extensions.openssh.AbstractOpenSSHExtensionParser.OpenSSHExtension;
+import org.apache.sshd.common.subsystem.sftp.extensions.openssh.FsyncExtensionParser;
 import org.apache.sshd.common.util.threads.CloseableExecutorService;
 import org.apache.sshd.server.ServerFactoryManager;
 import org.apache.sshd.server.session.ServerSession;
@@ -71,6 +73,26 @@ class JailedSftpSubsystemTest implements WithAssertions {
                 .doesNotContainValue("drop me");
     }
 
+    @Test
+    void fsyncIsAdvertisedByDefault() {
+        //when
+        val extensions = sftpSubsystem.resolveOpenSSHExtensions(serverSession);
+        //then
+        assertThat(extensions).extracting(OpenSSHExtension::getName)
+                              .contains(FsyncExtensionParser.NAME);
+    }
+
+    @Test
+    void fsyncIsAdvertisedWhenSessionConfiguresExtensions() {
+        //given
+        given(serverSession.getString(SftpSubsystem.OPENSSH_EXTENSIONS_PROP)).willReturn("other@example.com=2");
+        //when
+        val extensions = sftpSubsystem.resolveOpenSSHExtensions(serverSession);
+        //then
+        assertThat(extensions).extracting(OpenSSHExtension::getName)
+                              .containsExactly("other@example.com", FsyncExtensionParser.NAME);
+    }
+
     @Nested
     class ResolveFile {
 
@@ -0,0 +1,89 @@
+package com.hubio.s3sftp.server.filechannel;
+
+import lombok.val;
+import org.assertj.core.api.WithAssertions;
+import org.junit.jupiter.api.Test;
+
+class BufferPoolTest implements WithAssertions {
+
+    private static final int KB = 1024;
+
+    private final BufferPool subject = new BufferPool(256 * KB);
+
+    @Test
+    void leaseIsDirectAndLimitedToSizeRequested() {
+        //when
+        val buffer = subject.lease(100);
+        //then
+        assertThat(buffer.isDirect()).isTrue();
+        assertThat(buffer.position()).isZero();
+        assertThat(buffer.limit()).isEqualTo(100);
+        assertThat(buffer.capacity()).isEqualTo(64 * KB);
+        assertThat(subject.getLeasedBytes()).isEqualTo(64 * KB);
+    }
+
+    @Test
+    void leaseIsRoundedUpToPowerOfTwo() {
+        assertThat(subject.lease(65 * KB)
+                          .capacity()).isEqualTo(128 * KB);
+        assertThat(subject.lease(128 * KB)
+                          .capacity()).isEqualTo(128 * KB);
+    }
+
+    @Test
+    void releasedBufferIsReused() {
+        //given
+        val buffer = subject.lease(100);
+        subject.release(buffer);
+        //when
+        val result = subject.lease(200);
+        //then
+        assertThat(result).isSameAs(buffer);
+        assertThat(result.limit()).isEqualTo(200);
+        assertThat(subject.getAllocatedBytes()).isEqualTo(64 * KB);
+    }
+
+    @Test
+    void exhaustedPoolLeasesHeapBuffer() {
+        //given
+        subject.lease(128 * KB);
+        subject.lease(128 * KB);
+        //when
+        val result = subject.lease(100);
+        //then
+        assertThat(result.isDirect()).isFalse();
+        assertThat(result.limit()).isEqualTo(100);
+        assertThat(subject.getAllocationFailures()).isEqualTo(1L);
+        assertThat(subject.getAllocatedBytes()).isEqualTo(256 * KB);
+    }
+
+    @Test
+    void freeBuffersOfOtherSizesAreDroppedToMakeRoom() {
+        //given
+        subject.release(subject.lease(128 * KB));
+        subject.release(subject.lease(64 * KB));
+        subject.release(subject.lease(64 * KB));
+        //when
+        val result = subject.lease(256 * KB);
+        //then
+        assertThat(result.isDirect()).isTrue();
+        assertThat(subject.getAllocatedBytes()).isEqualTo(256 * KB);
+        assertThat(subject.getAllocationFailures()).isZero();
+    }
+
+    @Test
+    void releasingHeapBufferIsIgnored() {
+        //given
+        subject.lease(256 * KB);
+        val heap = subject.lease(100);
+        //when
+        subject.release(heap);
+        //then
+        assertThat(subject.getLeasedBytes()).isEqualTo(256 * KB);
+    }
+
+    @Test
+    void releasingNullIsIgnored() {
+        assertThatCode(() -> subject.release(null)).doesNotThrowAnyException();
+    }
+}
@@ -0,0 +1,58 @@
+package com.hubio.s3sftp.server.filechannel;
+
+import lombok.val;
+import org.assertj.core.api.WithAssertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+class ByteBufferInputStreamTest implements WithAssertions {
+
+    private static ByteBuffer direct(final String content) {
+        val bytes = content.getBytes(StandardCharsets.UTF_8);
+        val buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    void readsRemainingContentWithoutMovingBuffer() throws Exception {
+        //given
+        val buffer = direct("abcdef");
+        buffer.position(2);
+        val subject = new ByteBufferInputStream(buffer);
+        val bytes = new byte[10];
+        //when
+        final int result = subject.read(bytes, 0, 10);
+        //then
+        assertThat(result).isEqualTo(4);
+        assertThat(new String(bytes, 0, 4, StandardCharsets.UTF_8)).isEqualTo("cdef");
+        assertThat(subject.read()).isEqualTo(-1);
+        assertThat(buffer.position()).isEqualTo(2);
+    }
+
+    @Test
+    void resetReturnsToMark() throws Exception {
+        //given
+        val subject = new ByteBufferInputStream(direct("abc"));
+        subject.read();
+        subject.mark(10);
+        subject.read();
+        //when
+        subject.reset();
+        //then
+        assertThat(subject.markSupported()).isTrue();
+        assertThat(subject.read()).isEqualTo('b');
+        assertThat(subject.available()).isEqualTo(1);
+    }
+
+    @Test
+    void skipIsLimitedToRemaining() {
+        //given
+        val subject = new ByteBufferInputStream(direct("abc"));
+        //then
+        assertThat(subject.skip(10L)).isEqualTo(3L);
+    }
+}
@@ -0,0 +1,451 @@
+package com.hubio.s3sftp.server.filechannel;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.SetObjectTaggingRequest;
+import com.amazonaws.services.s3.model.Tag;
+import com.upplication.s3fs.S3FileSystem;
+import com.upplication.s3fs.S3Path;
+import lombok.val;
+import org.assertj.core.api.WithAssertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.EnumSet;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.then;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+
+class DefaultFileChannelFactoryTest implements WithAssertions {
+
+    private final S3FileSystem fileSystem = mock(S3FileSystem.class);
+
+    private final AmazonS3 client = mock(AmazonS3.class);
+
+    private final FileChannelConfiguration configuration = FileChannelConfiguration.builder()
+                                                                                   .smallObjectThreshold(0)
+                                                                                   .parallelDownloadThreshold(1000L)
+                                                                                   .temporaryFileDelay(
+                                                                                           Duration.ofSeconds(2))
+                                                                                   .build();
+
+    private final FileChannelFactory subject = FileChannelFactory.create(configuration);
+
+    private S3Path givenObjectOfSize(final long size) {
+        given(fileSystem.getClient()).willReturn(client);
+        val metadata = new ObjectMetadata();
+        metadata.setContentLength(size);
+        given(client.getObjectMetadata("bucket", "key")).willReturn(metadata);
+        return new S3Path(fileSystem, "/bucket/key");
+    }
+
+    @Test
+    void readOnlyChannelHasSizeOfObject() throws Exception {
+        //given
+        val path = givenObjectOfSize(10L);
+        //when
+        val result = subject.open(path, EnumSet.of(StandardOpenOption.READ));
+        //then
+        assertThat(result).isInstanceOf(S3FileChannel.class);
+        assertThat(result.size()).isEqualTo(10L);
+    }
+
+    @Test
+    void readOnlyChannelForLargeObjectHasSizeOfObject() throws Exception {
+        //given
+        val path = givenObjectOfSize(5000L);
+        //when
+        val result = subject.open(path, EnumSet.of(StandardOpenOption.READ));
+        //then
+        assertThat(result.size()).isEqualTo(5000L);
+    }
+
+    private FileChannelFactory smallObjectFactory() {
+        return FileChannelFactory.create(FileChannelConfiguration.builder()
+                                                                 .smallObjectThreshold(100)
+                                                                 .build());
+    }
+
+    private S3Path givenGetAnswers(final long size, final String content) {
+        given(fileSystem.getClient()).willReturn(client);
+        val object = new S3Object();
+        object.getObjectMetadata()
+              .setHeader("Content-Range", "bytes 0-" + (content.length() - 1) + "/" + size);
+        object.setObjectContent(new ByteArrayInputStream(content.getBytes()));
+        given(client.getObject(any(GetObjectRequest.class))).willReturn(object);
+        return new S3Path(fileSystem, "/bucket/key");
+    }
+
+    @Test
+    void smallObjectIsReadWholeWithSingleGet() throws Exception {
+        //given
+        val path = givenGetAnswers(5L, "hello");
+        //when
+        val result = smallObjectFactory().open(path, EnumSet.of(StandardOpenOption.READ));
+        //then
+        assertThat(result.size()).isEqualTo(5L);
+        val buffer = ByteBuffer.allocate(10);
+        assertThat(result.read(buffer, 1L)).isEqualTo(4);
+        assertThat(new String(buffer.array(), 0, 4)).isEqualTo("ello");
+        val request = ArgumentCaptor.forClass(GetObjectRequest.class);
+        then(client).should()
+                    .getObject(request.capture());
+        assertThat(request.getValue()
+                          .getRange()).containsExactly(0L, 99L);
+        then(client).should(never())
+                    .getObjectMetadata(any(), any());
+        result.close();
+    }
+
+    @Test
+    void emptyObjectIsReadWithoutContent() throws Exception {
+        //given
+        given(fileSystem.getClient()).willReturn(client);
+        val exception = new AmazonS3Exception("invalid range");
+        exception.setStatusCode(416);
+        given(client.getObject(any(GetObjectRequest.class))).willThrow(exception);
+        val path = new S3Path(fileSystem, "/bucket/key");
+        //when
+        val result = smallObjectFactory().open(path, EnumSet.of(StandardOpenOption.READ));
+        //then
+        assertThat(result.size()).isZero();
+        assertThat(result.read(ByteBuffer.allocate(1))).isEqualTo(-1);
+    }
+
+    @Test
+    void largeObjectIsStreamedWithSizeFromFirstGet() throws Exception {
+        //given
+        val path = givenGetAnswers(5000L, "x");
+        //when
+        val result = smallObjectFactory().open(path, EnumSet.of(StandardOpenOption.READ));
+        //then
+        assertThat(result.size()).isEqualTo(5000L);
+        then(client).should(never())
+                    .getObjectMetadata(any(), any());
+    }
+
+    @Test
+    void largeObjectIsReadFromFirstGetWithoutRequestingAgain() throws Exception {
+        //given
+        val first = new String(new char[100]).replace('\0', 'a');
+        val path = givenGetAnswers(5000L, first);
+        val result = smallObjectFactory().open(path, EnumSet.of(StandardOpenOption.READ));
+        val buffer = ByteBuffer.allocate(10);
+        //when
+        val read = result.read(buffer);
+        //then
+        assertThat(read).isEqualTo(10);
+        assertThat(new String(buffer.array())).isEqualTo("aaaaaaaaaa");
+        then(client).should()
+                    .getObject(any(GetObjectRequest.class));
+        result.close();
+    }
+
+    @Test
+    void missingObjectIsNoSuchFileWhenReadWhole() {
+        //given
+        given(fileSystem.getClient()).willReturn(client);
+        val exception = new AmazonS3Exception("not found");
+        exception.setStatusCode(404);
+        given(client.getObject(any(GetObjectRequest.class))).willThrow(exception);
+        val path = new S3Path(fileSystem, "/bucket/key");
+        //then
+        assertThatThrownBy(() -> smallObjectFactory().open(path, EnumSet.of(StandardOpenOption.READ)))
+                .isInstanceOf(NoSuchFileException.class);
+    }
+
+    @Test
+    void defaultConfiguration() {
+        //when
+        val configuration = FileChannelConfiguration.builder()
+                                                    .build();
+        //then
+        assertThat(configuration.getSmallObjectThreshold()).isEqualTo(1024 * 1024);
+        assertThat(configuration.getTemporaryFileDelay()).isEqualTo(Duration.ZERO);
+        assertThat(configuration.getSpoolTimeout()).isEqualTo(Duration.ofSeconds(30));
+        assertThat(configuration.getReadAheadBlockSize()).isEqualTo(256 * 1024);
+        assertThat(configuration.getReadAheadMaxWindow()).isEqualTo(16);
+        assertThat(configuration.getParallelDownloadThreshold()).isEqualTo(64L * 1024 * 1024);
+        assertThat(configuration.getParallelDownloadBlockSize()).isEqualTo(8 * 1024 * 1024);
+        assertThat(configuration.getParallelDownloadPerTransfer()).isEqualTo(8);
+        assertThat(configuration.getParallelDownloadGlobal()).isEqualTo(32);
+        assertThat(configuration.getBufferPoolCapacity()).isEqualTo(256L * 1024 * 1024);
+    }
+
+    @Test
+    void bufferPoolHasConfiguredCapacity() {
+        assertThat(subject.getBufferPool()
+                          .getCapacity()).isEqualTo(configuration.getBufferPoolCapacity());
+    }
+
+    @Test
+    void metricsAreSharedByTheFactory() {
+        assertThat(subject.getReadAheadMetrics()).isSameAs(subject.getReadAheadMetrics());
+    }
+
+    @Test
+    void truncatingWriteIsStreamedUpload() throws Exception {
+        //given
+        given(fileSystem.getClient()).willReturn(client);
+        val path = new S3Path(fileSystem, "/bucket/key");
+        val options = EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                                 StandardOpenOption.TRUNCATE_EXISTING);
+        //when
+        val result = subject.open(path, options);
+        //then
+        assertThat(result.size()).isZero();
+        assertThatThrownBy(() -> result.read(ByteBuffer.allocate(1)))
+                .isInstanceOf(NonReadableChannelException.class);
+        then(client).shouldHaveZeroInteractions();
+    }
+
+    @Test
+    void createNewWhenObjectExistsIsFileAlreadyExists() {
+        //given
+        val path = givenObjectOfSize(10L);
+        val options = EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+        //then
+        assertThatThrownBy(() -> subject.open(path, options))
+                .isInstanceOf(FileAlreadyExistsException.class);
+    }
+
+    @Test
+    void truncateWithoutCreateWhenObjectMissingIsNoSuchFile() {
+        //given
+        given(fileSystem.getClient()).willReturn(client);
+        val exception = new AmazonS3Exception("not found");
+        exception.setStatusCode(404);
+        given(client.getObjectMetadata("bucket", "key")).willThrow(exception);
+        val path = new S3Path(fileSystem, "/bucket/key");
+        val options = EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        //then
+        assertThatThrownBy(() -> subject.open(path, options))
+                .isInstanceOf(NoSuchFileException.class);
+    }
+
+    @Test
+    void spooledUploadCanBeMapped() throws Exception {
+        //given
+        val directory = Files.createTempDirectory("spool");
+        val spooled = FileChannelFactory.create(FileChannelConfiguration.builder()
+                                                                        .spoolDirectory(directory)
+                                                                        .build());
+        given(fileSystem.getClient()).willReturn(client);
+        given(fileSystem.getKey()).willReturn("user@host");
+        val path = new S3Path(fileSystem, "/bucket/key");
+        val options = EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+        given(client.getObjectMetadata("bucket", "key")).willThrow(new AmazonS3Exception("not found") {
+            @Override
+            public int getStatusCode() {
+                return 404;
+            }
+        });
+        //when
+        val result = spooled.open(path, options);
+        //then
+        assertThat(result.map(FileChannel.MapMode.READ_WRITE, 0L, 10L)
+                         .capacity()).isEqualTo(10);
+        assertThat(result.size()).isEqualTo(10L);
+    }
+
+    @Test
+    void abandonedUploadIsResumedByWriteWithoutTruncate() throws Exception {
+        //given
+        val journalDirectory = Files.createTempDirectory("journal");
+        val journaling = FileChannelFactory.create(FileChannelConfiguration.builder()
+                                                                           .multipartPartSize(4)
+                                                                           .uploadJournalDirectory(journalDirectory)
+                                                                           .build());
+        new UploadJournal(journalDirectory).record(
+                new JournalEntry("user@host", "bucket", "key", "upload-id", 4,
+                                 Collections.singletonList(new PartETag(1, "etag-1")), 0L));
+        given(fileSystem.getClient()).willReturn(client);
+        given(fileSystem.getKey()).willReturn("user@host");
+        val path = new S3Path(fileSystem, "/bucket/key");
+        //when
+        val result = journaling.open(path, EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE));
+        //then
+        assertThat(result.size()).isEqualTo(4L);
+        assertThat(journaling.resumableSize(path)).hasValue(4L);
+        then(client).shouldHaveZeroInteractions();
+    }
+
+    @Test
+    void temporaryFileRenamedSoonAfterUploadIsStoredOnlyUnderNewName() throws Exception {
+        //given
+        given(fileSystem.getClient()).willReturn(client);
+        given(fileSystem.getKey()).willReturn("user@host");
+        val path = new S3Path(fileSystem, "/bucket/key.filepart");
+        val target = new S3Path(fileSystem, "/bucket/key");
+        val channel = subject.open(path, EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING));
+        channel.write(ByteBuffer.wrap("abc".getBytes()));
+        channel.close();
+        then(client).shouldHaveZeroInteractions();
+        assertThat(subject.deferredSize(path)).hasValue(3L);
+        //when
+        val result = subject.moveDeferred(path, target, true);
+        //then
+        assertThat(result).isTrue();
+        val put = ArgumentCaptor.forClass(PutObjectRequest.class);
+        then(client).should()
+                    .putObject(put.capture());
+        assertThat(put.getValue()
+                      .getKey()).isEqualTo("key");
+        assertThat(subject.deferredSize(path)).isEmpty();
+    }
+
+    @Test
+    void attributeSetWhileUploadingIsStoredWithObject() throws Exception {
+        //given
+        given(fileSystem.getClient()).willReturn(client);
+        given(fileSystem.getKey()).willReturn("user@host");
+        val path = new S3Path(fileSystem, "/bucket/key");
+        val channel = subject.open(path, EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING));
+        channel.write(ByteBuffer.wrap("abc".getBytes()));
+        //when
+        val held = subject.holdAttribute(path, "basic:lastModifiedTime", FileTime.fromMillis(1_500_000_000_000L));
+        channel.close();
+        //then
+        assertThat(held).isTrue();
+        val put = ArgumentCaptor.forClass(PutObjectRequest.class);
+        then(client).should()
+                    .putObject(put.capture());
+        assertThat(put.getValue()
+                      .getMetadata()
+                      .getUserMetadata()).containsEntry("s3sftp-mtime", "1500000000");
+        assertThat(subject.heldAttributes(path)).containsOnly(
+                entry("lastModifiedTime", FileTime.fromMillis(1_500_000_000_000L)));
+    }
+
+    @Test
+    void attributeSetJustAfterUploadIsStoredByTaggingObject() throws Exception {
+        //given
+        given(fileSystem.getClient()).willReturn(client);
+        given(fileSystem.getKey()).willReturn("user@host");
+        val path = new S3Path(fileSystem, "/bucket/key");
+        val channel = subject.open(path, EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING));
+        channel.write(ByteBuffer.wrap("abc".getBytes()));
+        channel.close();
+        //when
+        val held = subject.holdAttribute(path, "posix:permissions", PosixFilePermissions.fromString("rw-r-----"));
+        //then
+        assertThat(held).isTrue();
+        val tagging = ArgumentCaptor.forClass(SetObjectTaggingRequest.class);
+        then(client).should()
+                    .setObjectTagging(tagging.capture());
+        assertThat(tagging.getValue()
+                          .getTagging()
+                          .getTagSet()).extracting(Tag::getKey, Tag::getValue)
+                                       .contains(tuple("s3sftp-permissions", "rw-r-----"));
+        assertThat(subject.heldAttributes(path)).containsOnly(
+                entry("permissions", PosixFilePermissions.fromString("rw-r-----")));
+    }
+
+    @Test
+    void fileNotBeingUploadedHasNoHeldAttributesAndS3IsNotAsked() {
+        //given
+        val path = new S3Path(fileSystem, "/bucket/key");
+        //when
+        val result = subject.heldAttributes(path);
+        //then
+        assertThat(result).isEmpty();
+        then(client).shouldHaveZeroInteractions();
+    }
+
+    @Test
+    void fileNotHeldBackIsNotMovedByFactory() throws Exception {
+        //given
+        val path = new S3Path(fileSystem, "/bucket/key.filepart");
+        val target = new S3Path(fileSystem, "/bucket/key");
+        //then
+        assertThat(subject.moveDeferred(path, target, true)).isFalse();
+        then(client).shouldHaveZeroInteractions();
+    }
+
+    @Test
+    void withoutJournalNothingIsResumable() throws Exception {
+        //given
+        val path = new S3Path(fileSystem, "/bucket/key");
+        //then
+        assertThat(subject.resumableSize(path)).isEmpty();
+    }
+
+    @Test
+    void objectIsCopiedWithinS3() throws Exception {
+        //given
+        val source = givenObjectOfSize(10L);
+        val target = new S3Path(fileSystem, "/bucket/copy");
+        //when
+        subject.copy(source, target, true);
+        //then
+        val captor = ArgumentCaptor.forClass(CopyObjectRequest.class);
+        then(client).should().copyObject(captor.capture());
+        assertThat(captor.getValue()
+                         .getSourceKey()).isEqualTo("key");
+        assertThat(captor.getValue()
+                         .getDestinationKey()).isEqualTo("copy");
+    }
+
+    @Test
+    void copyOverExistingObjectWithoutReplaceIsFileAlreadyExists() {
+        //given
+        val source = givenObjectOfSize(10L);
+        given(client.getObjectMetadata("bucket", "copy")).willReturn(new ObjectMetadata());
+        val target = new S3Path(fileSystem, "/bucket/copy");
+        //then
+        assertThatThrownBy(() -> subject.copy(source, target, false))
+                .isInstanceOf(FileAlreadyExistsException.class);
+        then(client).should(never()).copyObject(any(CopyObjectRequest.class));
+    }
+
+    @Test
+    void appendToMissingObjectWithoutCreateIsNoSuchFile() {
+        //given
+        given(fileSystem.getClient()).willReturn(client);
+        val exception = new AmazonS3Exception("not found");
+        exception.setStatusCode(404);
+        given(client.getObjectMetadata("bucket", "key")).willThrow(exception);
+        val path = new S3Path(fileSystem, "/bucket/key");
+        val options = EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        //then
+        assertThatThrownBy(() -> subject.open(path, options))
+                .isInstanceOf(NoSuchFileException.class);
+    }
+
+    @Test
+    void appendToSmallObjectStartsAtItsEnd() throws Exception {
+        //given
+        val path = givenObjectOfSize(0L);
+        val options = EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        //when
+        val result = subject.open(path, options);
+        //then
+        assertThat(result.size()).isZero();
+        assertThatThrownBy(() -> result.read(ByteBuffer.allocate(1)))
+                .isInstanceOf(NonReadableChannelException.class);
+    }
+}
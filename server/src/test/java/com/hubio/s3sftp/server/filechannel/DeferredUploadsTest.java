@@ -0,0 +1,206 @@
+package com.hubio.s3sftp.server.filechannel;
+
+import com.upplication.s3fs.S3FileSystem;
+import com.upplication.s3fs.S3Path;
+import lombok.val;
+import org.assertj.core.api.WithAssertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.then;
+import static org.mockito.BDDMockito.willAnswer;
+import static org.mockito.BDDMockito.willThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+
+class DeferredUploadsTest implements WithAssertions {
+
+    private final S3FileSystem fileSystem = mock(S3FileSystem.class);
+
+    private final ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+
+    private final ScheduledFuture<?> expiry = mock(ScheduledFuture.class);
+
+    private final List<Runnable> scheduled = new ArrayList<>();
+
+    private final S3ObjectWriter objectWriter = mock(S3ObjectWriter.class);
+
+    private final S3ObjectWriter targetWriter = mock(S3ObjectWriter.class);
+
+    private final List<String> stored = new ArrayList<>();
+
+    private final S3Path path = new S3Path(fileSystem, "/bucket/dir/file.filepart");
+
+    private final S3Path target = new S3Path(fileSystem, "/bucket/dir/file");
+
+    private final DeferredUploads subject =
+            new DeferredUploads(new BufferPool(1024L * 1024), Arrays.asList(".filepart", ".tmp"),
+                                Duration.ofSeconds(2), scheduler, Runnable::run);
+
+    @BeforeEach
+    void setUp() throws Exception {
+        given(fileSystem.getKey()).willReturn("user@host");
+        willAnswer(invocation -> {
+            scheduled.add(invocation.getArgument(0));
+            return expiry;
+        }).given(scheduler)
+          .schedule(any(Runnable.class), eq(2000L), eq(TimeUnit.MILLISECONDS));
+        willAnswer(invocation -> stored.add("source:" + textOf(invocation.getArgument(0)))).given(objectWriter)
+                                                                                              .put(any(), any());
+        willAnswer(invocation -> stored.add("target:" + textOf(invocation.getArgument(0)))).given(targetWriter)
+                                                                                              .put(any(), any());
+    }
+
+    private static String textOf(final ByteBuffer content) {
+        val bytes = new byte[content.remaining()];
+        content.duplicate()
+               .get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private boolean defer(final S3Path deferred, final String content) {
+        return subject.defer(deferred, objectWriter, ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8)),
+                             Collections.emptyMap());
+    }
+
+    @Test
+    void temporaryFilesAreRecognisedByName() {
+        assertThat(subject.isTemporary(path)).isTrue();
+        assertThat(subject.isTemporary(new S3Path(fileSystem, "/bucket/upload.tmp"))).isTrue();
+        assertThat(subject.isTemporary(target)).isFalse();
+    }
+
+    @Test
+    void deferredUploadIsNotStored() throws Exception {
+        //when
+        val result = defer(path, "abc");
+        //then
+        assertThat(result).isTrue();
+        assertThat(subject.size(path)).hasValue(3L);
+        assertThat(stored).isEmpty();
+    }
+
+    @Test
+    void movedUploadIsStoredOnlyAtTarget() throws Exception {
+        //given
+        defer(path, "abc");
+        //when
+        val result = subject.move(path, target, targetWriter);
+        //then
+        assertThat(result).isTrue();
+        assertThat(stored).containsExactly("target:abc");
+        assertThat(subject.size(path)).isEmpty();
+        then(expiry).should()
+                    .cancel(false);
+    }
+
+    @Test
+    void attributesHeldByMovedUploadAreStoredAtTarget() throws Exception {
+        //given
+        defer(path, "abc");
+        given(objectWriter.hold("basic:lastModifiedTime", FileTime.fromMillis(0L))).willReturn(true);
+        //when
+        val held = subject.hold(path, "basic:lastModifiedTime", FileTime.fromMillis(0L));
+        subject.move(path, target, targetWriter);
+        //then
+        assertThat(held).isTrue();
+        then(targetWriter).should()
+                          .holdAttributesOf(objectWriter);
+        assertThat(subject.hold(path, "basic:lastModifiedTime", FileTime.fromMillis(0L))).isFalse();
+    }
+
+    @Test
+    void moveWithoutDeferredUploadIsNotHandled() throws Exception {
+        assertThat(subject.move(path, target, targetWriter)).isFalse();
+        assertThat(stored).isEmpty();
+    }
+
+    @Test
+    void uploadNotMovedInTimeIsStoredAtItsPath() throws Exception {
+        //given
+        defer(path, "abc");
+        //when
+        scheduled.forEach(Runnable::run);
+        //then
+        assertThat(stored).containsExactly("source:abc");
+        assertThat(subject.size(path)).isEmpty();
+        assertThat(subject.move(path, target, targetWriter)).isFalse();
+    }
+
+    @Test
+    void uploadThatCannotBeStoredAtTargetIsStoredAtItsPath() throws Exception {
+        //given
+        defer(path, "abc");
+        willThrow(new IOException("denied")).given(targetWriter)
+                                            .put(any(), any());
+        //then
+        assertThatThrownBy(() -> subject.move(path, target, targetWriter)).hasMessage("denied");
+        assertThat(stored).containsExactly("source:abc");
+    }
+
+    @Test
+    void deferringAgainReplacesUpload() throws Exception {
+        //given
+        defer(path, "abc");
+        //when
+        defer(path, "abcdef");
+        scheduled.forEach(Runnable::run);
+        //then
+        assertThat(stored).containsExactly("source:abcdef");
+    }
+
+    @Test
+    void storingDirectoryStoresUploadsBelowIt() throws Exception {
+        //given
+        defer(path, "abc");
+        defer(new S3Path(fileSystem, "/bucket/other.tmp"), "xyz");
+        //when
+        subject.store(new S3Path(fileSystem, "/bucket/dir"));
+        //then
+        assertThat(stored).containsExactly("source:abc");
+        assertThat(subject.size(path)).isEmpty();
+    }
+
+    @Test
+    void discardedUploadIsNeverStored() throws Exception {
+        //given
+        defer(path, "abc");
+        //when
+        val result = subject.discard(path);
+        scheduled.forEach(Runnable::run);
+        //then
+        assertThat(result).isTrue();
+        assertThat(stored).isEmpty();
+        assertThat(subject.size(path)).isEmpty();
+    }
+
+    @Test
+    void uploadIsStoredAtOnceWhenBufferPoolIsExhausted() throws Exception {
+        //given
+        val exhausted = new DeferredUploads(new BufferPool(0L), Collections.singletonList(".filepart"),
+                                            Duration.ofSeconds(2), scheduler, Runnable::run);
+        //when
+        val result = exhausted.defer(path, objectWriter, ByteBuffer.wrap(new byte[3]), Collections.emptyMap());
+        //then
+        assertThat(result).isFalse();
+        then(scheduler).should(never())
+                       .schedule(any(Runnable.class), anyLong(), any());
+    }
+}
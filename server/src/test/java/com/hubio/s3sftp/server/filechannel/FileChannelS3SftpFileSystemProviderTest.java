@@ -2,7 +2,9 @@ package com.hubio.s3sftp.server.filechannel;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.AccessControlList;
+import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
 import com.hubio.s3sftp.server.filesystem.FileSystemProviderMother;
 import com.hubio.s3sftp.server.filesystem.S3SftpFileSystemProvider;
 import com.upplication.s3fs.S3FileSystem;
@@ -17,6 +19,7 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.migrationsupport.rules.EnableRuleMigrationSupport;
 import org.junit.rules.TemporaryFolder;
 
+import java.io.ByteArrayInputStream;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
@@ -50,6 +53,10 @@ class FileChannelS3SftpFileSystemProviderTest implements WithAssertions {
         val objectMetadata = mock(ObjectMetadata.class);
         given(amazonS3.getObjectMetadata(any(), any())).willReturn(objectMetadata);
 
+        val object = new S3Object();
+        object.setObjectContent(new ByteArrayInputStream(new byte[0]));
+        given(amazonS3.getObject(any(GetObjectRequest.class))).willReturn(object);
+
         val accessControlList = mock(AccessControlList.class);
         given(amazonS3.getObjectAcl(any(), any())).willReturn(accessControlList);
 
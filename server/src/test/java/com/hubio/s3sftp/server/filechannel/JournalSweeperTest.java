@@ -0,0 +1,77 @@
+package com.hubio.s3sftp.server.filechannel;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import lombok.val;
+import org.assertj.core.api.WithAssertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.BDDMockito.then;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+
+class JournalSweeperTest implements WithAssertions {
+
+    private static final long EXPIRY = 1000L;
+
+    private final AmazonS3 client = mock(AmazonS3.class);
+
+    private final Map<String, AmazonS3> clients = new HashMap<>();
+
+    private final UploadJournal journal;
+
+    private final JournalSweeper subject;
+
+    JournalSweeperTest() throws Exception {
+        journal = new UploadJournal(Files.createTempDirectory("journal"));
+        subject = new JournalSweeper(journal, clients, EXPIRY);
+    }
+
+    private void givenEntry(final String owner, final long updated) throws Exception {
+        journal.record(new JournalEntry(owner, "bucket", "key", "upload-id", 4, Collections.emptyList(), updated));
+    }
+
+    @Test
+    void staleUploadIsAborted() throws Exception {
+        //given
+        clients.put("user", client);
+        givenEntry("user", 0L);
+        //when
+        subject.sweep(EXPIRY);
+        //then
+        val captor = ArgumentCaptor.forClass(AbortMultipartUploadRequest.class);
+        then(client).should().abortMultipartUpload(captor.capture());
+        assertThat(captor.getValue()
+                         .getUploadId()).isEqualTo("upload-id");
+        assertThat(journal.entries()).isEmpty();
+    }
+
+    @Test
+    void recentUploadIsKept() throws Exception {
+        //given
+        clients.put("user", client);
+        givenEntry("user", 1L);
+        //when
+        subject.sweep(EXPIRY);
+        //then
+        then(client).should(never()).abortMultipartUpload(any());
+        assertThat(journal.entries()).hasSize(1);
+    }
+
+    @Test
+    void staleUploadOfOwnerWithoutClientIsKept() throws Exception {
+        //given
+        givenEntry("user", 0L);
+        //when
+        subject.sweep(EXPIRY);
+        //then
+        assertThat(journal.entries()).hasSize(1);
+    }
+}
@@ -0,0 +1,792 @@
+package com.hubio.s3sftp.server.filechannel;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.Tag;
+import lombok.val;
+import org.assertj.core.api.WithAssertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.MockitoAnnotations;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.then;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+
+class MultipartUploadChannelTest implements WithAssertions {
+
+    private static final int PART_SIZE = 4;
+
+    private final S3ObjectWriter objectWriter = mock(S3ObjectWriter.class);
+
+    private final List<String> uploadedParts = new ArrayList<>();
+
+    @Captor
+    private ArgumentCaptor<List<Tag>> tagsCaptor;
+
+    @Captor
+    private ArgumentCaptor<List<PartETag>> partsCaptor;
+
+    @Captor
+    private ArgumentCaptor<Map<String, byte[]>> checksumsCaptor;
+
+    private final Semaphore globalPermits = new Semaphore(10);
+
+    private final BufferPool bufferPool = new BufferPool(1024 * 1024);
+
+    private final MultipartUploadChannel subject =
+            new MultipartUploadChannel(objectWriter, PART_SIZE, Runnable::run, globalPermits, 2,
+                                       PartBuffers.pooled(bufferPool, PART_SIZE));
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.initMocks(this);
+        given(objectWriter.getKey()).willReturn("key");
+    }
+
+    private static ByteBuffer content(final String content) {
+        return ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String asString(final ByteBuffer buffer) {
+        val bytes = new byte[buffer.remaining()];
+        buffer.duplicate()
+              .get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void givenUploads() throws IOException {
+        given(objectWriter.initiate(any())).willReturn("upload-id");
+        given(objectWriter.uploadPart(eq("upload-id"), anyInt(), any(), any())).willAnswer(invocation -> {
+            final int partNumber = invocation.getArgument(1);
+            uploadedParts.add(asString(invocation.getArgument(2)));
+            return new PartETag(partNumber, "etag-" + partNumber);
+        });
+    }
+
+    @Test
+    void smallFileIsStoredWithSinglePut() throws Exception {
+        //when
+        subject.write(content("abc"));
+        subject.close();
+        //then
+        val captor = ArgumentCaptor.forClass(ByteBuffer.class);
+        then(objectWriter).should().put(captor.capture(), any());
+        assertThat(asString(captor.getValue())).isEqualTo("abc");
+        then(objectWriter).should(never()).initiate(any());
+    }
+
+    @Test
+    void emptyFileIsStoredWithSinglePut() throws Exception {
+        //when
+        subject.close();
+        //then
+        then(objectWriter).should().put(any(), any());
+    }
+
+    @Test
+    void partIsUploadedAsSoonAsItFills() throws Exception {
+        //given
+        givenUploads();
+        //when
+        subject.write(content("abcdef"));
+        //then
+        assertThat(uploadedParts).containsExactly("abcd");
+        then(objectWriter).should(never()).complete(any(), anyList());
+    }
+
+    @Test
+    void closeUploadsRemainderAndCompletes() throws Exception {
+        //given
+        givenUploads();
+        subject.write(content("abcdef"));
+        subject.write(content("ghij"));
+        //when
+        subject.close();
+        //then
+        assertThat(uploadedParts).containsExactly("abcd", "efgh", "ij");
+        then(objectWriter).should().complete(eq("upload-id"), any());
+        assertThat(subject.isOpen()).isFalse();
+    }
+
+    @Test
+    void completedUploadIsTaggedWithItsChecksum() throws Exception {
+        //given
+        givenUploads();
+        subject.write(content("abcdef"));
+        //when
+        subject.close();
+        //then
+        then(objectWriter).should().tag(tagsCaptor.capture());
+        assertThat(tagsCaptor.getValue()).extracting(Tag::getKey, Tag::getValue)
+                                         .containsExactlyInAnyOrder(
+                                                 tuple("s3sftp-checksum-md5", "e80b5017098950fc58aad83c8c14978e"),
+                                                 tuple("s3sftp-checksum-crc32c", "53bceff1"));
+    }
+
+    @Test
+    void smallFileIsStoredWithItsChecksums() throws Exception {
+        //given
+        subject.write(content("abc"));
+        //when
+        subject.close();
+        //then
+        then(objectWriter).should().put(any(), checksumsCaptor.capture());
+        assertThat(checksumsCaptor.getValue()).containsOnlyKeys(ObjectChecksums.MD5, ObjectChecksums.CRC32C);
+        assertThat(checksumsCaptor.getValue()
+                                  .get(ObjectChecksums.CRC32C)).containsExactly(0x36, 0x4b, 0x3f, 0xb7);
+    }
+
+    @Test
+    void uploadWrittenOutOfOrderIsNotTagged() throws Exception {
+        //given
+        givenUploads();
+        writeAt(4L, "efgh");
+        writeAt(0L, "abcd");
+        //when
+        subject.close();
+        //then
+        then(objectWriter).should(never()).tag(any());
+    }
+
+    @Test
+    void positionAndSizeFollowWrites() throws Exception {
+        //given
+        givenUploads();
+        //when
+        subject.write(content("abcdef"));
+        //then
+        assertThat(subject.position()).isEqualTo(6L);
+        assertThat(subject.size()).isEqualTo(6L);
+        assertThat(subject.position(6L)).isSameAs(subject);
+    }
+
+    private void writeAt(final long position, final String content) throws IOException {
+        subject.position(position);
+        subject.write(content(content));
+    }
+
+    @Test
+    void outOfOrderWritesUploadPartOnceContiguous() throws Exception {
+        //given
+        givenUploads();
+        writeAt(2L, "cd");
+        writeAt(6L, "gh");
+        assertThat(uploadedParts).isEmpty();
+        //when
+        writeAt(0L, "ab");
+        //then
+        assertThat(uploadedParts).containsExactly("abcd");
+    }
+
+    @Test
+    void laterPartMayBeUploadedBeforeEarlierPart() throws Exception {
+        //given
+        givenUploads();
+        writeAt(0L, "ab");
+        //when
+        writeAt(4L, "efgh");
+        //then
+        assertThat(uploadedParts).containsExactly("efgh");
+        then(objectWriter).should().uploadPart(eq("upload-id"), eq(2), any(), aryEq(UploadChecksums.md5(
+                ByteBuffer.wrap("efgh".getBytes(StandardCharsets.UTF_8)))));
+    }
+
+    @Test
+    void closeCompletesPartsInOrderFillingGapsWithZeros() throws Exception {
+        //given
+        givenUploads();
+        writeAt(4L, "efgh");
+        writeAt(0L, "a");
+        writeAt(12L, "m");
+        //when
+        subject.close();
+        //then
+        assertThat(uploadedParts).containsExactly("efgh", "a\0\0\0", "\0\0\0\0", "m");
+        then(objectWriter).should().complete(eq("upload-id"), partsCaptor.capture());
+        assertThat(partsCaptor.getValue()).extracting(PartETag::getPartNumber)
+                                          .containsExactly(1, 2, 3, 4);
+    }
+
+    @Test
+    void sparseSmallFileIsStoredWithSinglePut() throws Exception {
+        //given
+        writeAt(2L, "c");
+        //when
+        subject.close();
+        //then
+        val captor = ArgumentCaptor.forClass(ByteBuffer.class);
+        then(objectWriter).should().put(captor.capture(), any());
+        assertThat(asString(captor.getValue())).isEqualTo("\0\0c");
+    }
+
+    @Test
+    void sizeIsEndOfFurthestWrite() throws Exception {
+        //given
+        givenUploads();
+        writeAt(10L, "k");
+        //when
+        writeAt(1L, "b");
+        //then
+        assertThat(subject.size()).isEqualTo(11L);
+        assertThat(subject.position()).isEqualTo(2L);
+    }
+
+    @Test
+    void rewritingUploadedPartIsRejected() throws Exception {
+        //given
+        givenUploads();
+        writeAt(0L, "abcd");
+        //then
+        assertThatThrownBy(() -> writeAt(1L, "x"))
+                .isInstanceOf(IOException.class)
+                .hasMessage("Cannot rewrite part 1 of key after it has been uploaded");
+    }
+
+    @Test
+    void failedPartAbortsUpload() throws Exception {
+        //given
+        given(objectWriter.initiate(any())).willReturn("upload-id");
+        given(objectWriter.uploadPart(any(), anyInt(), any(), any())).willThrow(new IOException("failed"));
+        subject.write(content("abcd"));
+        //when
+        assertThatThrownBy(() -> subject.write(content("e")))
+                .hasMessage("failed");
+        //then
+        then(objectWriter).should().abort("upload-id");
+        assertThatThrownBy(() -> subject.write(content("f")))
+                .isInstanceOf(IOException.class);
+        subject.close();
+        then(objectWriter).should(never()).complete(any(), anyList());
+    }
+
+    @Test
+    void readIsNotPermitted() {
+        assertThatThrownBy(() -> subject.read(ByteBuffer.allocate(1)))
+                .isInstanceOf(NonReadableChannelException.class);
+    }
+
+    @Test
+    void writeAfterCloseIsClosedChannel() throws Exception {
+        //given
+        subject.close();
+        //then
+        assertThatThrownBy(() -> subject.write(content("a")))
+                .isInstanceOf(ClosedChannelException.class);
+    }
+
+    @Test
+    void failedPartIsReportedOnClose() throws Exception {
+        //given
+        given(objectWriter.initiate(any())).willReturn("upload-id");
+        given(objectWriter.uploadPart(any(), anyInt(), any(), any())).willThrow(new IOException("failed"));
+        subject.write(content("abcd"));
+        //then
+        assertThatThrownBy(subject::close)
+                .hasMessage("failed");
+        then(objectWriter).should().abort("upload-id");
+        then(objectWriter).should(never()).complete(any(), anyList());
+    }
+
+    @Test
+    void writerStallsWhenTooManyPartsAreInFlight() throws Exception {
+        //given
+        givenUploads();
+        val release = new CountDownLatch(1);
+        val executor = Executors.newCachedThreadPool();
+        given(objectWriter.uploadPart(eq("upload-id"), anyInt(), any(), any())).willAnswer(invocation -> {
+            release.await();
+            return new PartETag(invocation.getArgument(1), "etag");
+        });
+        val channel = new MultipartUploadChannel(objectWriter, PART_SIZE, executor, globalPermits, 1,
+                                                 PartBuffers.pooled(bufferPool, PART_SIZE));
+        channel.write(content("abcd"));
+        //when
+        val writer = executor.submit(() -> channel.write(content("efgh")));
+        //then
+        assertThatThrownBy(() -> writer.get(200, TimeUnit.MILLISECONDS))
+                .isInstanceOf(TimeoutException.class);
+        release.countDown();
+        assertThat(writer.get(1, TimeUnit.SECONDS)).isEqualTo(4);
+        channel.close();
+        executor.shutdown();
+        assertThat(executor.awaitTermination(1, TimeUnit.SECONDS)).isTrue();
+        assertThat(globalPermits.availablePermits()).isEqualTo(10);
+    }
+
+    @Test
+    void writerStallsWhenGlobalPermitsAreExhausted() throws Exception {
+        //given
+        givenUploads();
+        globalPermits.drainPermits();
+        val executor = Executors.newSingleThreadExecutor();
+        //when
+        val writer = executor.submit(() -> subject.write(content("abcd")));
+        //then
+        assertThatThrownBy(() -> writer.get(200, TimeUnit.MILLISECONDS))
+                .isInstanceOf(TimeoutException.class);
+        globalPermits.release();
+        assertThat(writer.get(1, TimeUnit.SECONDS)).isEqualTo(4);
+        assertThat(uploadedParts).containsExactly("abcd");
+        executor.shutdown();
+    }
+
+    @Test
+    void reusedBuffersAreZeroedWhereNotWritten() throws Exception {
+        //given
+        val dirty = bufferPool.lease(PART_SIZE);
+        dirty.put("xxxx".getBytes(StandardCharsets.UTF_8));
+        bufferPool.release(dirty);
+        writeAt(1L, "b");
+        writeAt(2L, "c");
+        //when
+        subject.close();
+        //then
+        val captor = ArgumentCaptor.forClass(ByteBuffer.class);
+        then(objectWriter).should().put(captor.capture(), any());
+        assertThat(asString(captor.getValue())).isEqualTo("\0bc");
+    }
+
+    @Test
+    void partBuffersAreReturnedToPool() throws Exception {
+        //given
+        givenUploads();
+        writeAt(0L, "abcdef");
+        //when
+        subject.close();
+        //then
+        assertThat(bufferPool.getLeasedBytes()).isZero();
+    }
+
+    @Test
+    void spooledPartsAreUploadedFromSpoolFile() throws Exception {
+        //given
+        givenUploads();
+        val spool = new Spool(Files.createTempDirectory("spool"), PART_SIZE, 1024, 1024, Duration.ofSeconds(30));
+        val channel = new MultipartUploadChannel(objectWriter, PART_SIZE, Runnable::run, globalPermits, 2,
+                                                 spool.open("user", "key"));
+        channel.write(content("abcdef"));
+        //when
+        channel.close();
+        //then
+        assertThat(uploadedParts).containsExactly("abcd", "ef");
+        assertThat(spool.availableParts()).isEqualTo(256);
+    }
+
+    @Test
+    void mappedRegionIsUploadedOnClose() throws Exception {
+        //given
+        givenUploads();
+        val spool = new Spool(Files.createTempDirectory("spool"), PART_SIZE, 1024, 1024, Duration.ofSeconds(30));
+        val channel = new MultipartUploadChannel(objectWriter, PART_SIZE, Runnable::run, globalPermits, 2,
+                                                 spool.open("user", "key"));
+        channel.write(content("ab"));
+        val mapped = channel.map(FileChannel.MapMode.READ_WRITE, 2L, 2L);
+        channel.position(4L);
+        channel.write(content("efgh"));
+        //when
+        mapped.put(content("cd"));
+        channel.close();
+        //then
+        assertThat(uploadedParts).containsExactly("efgh", "abcd");
+    }
+
+    @Test
+    void mappingAcrossPartsIsRejected() throws Exception {
+        //given
+        val spool = new Spool(Files.createTempDirectory("spool"), PART_SIZE, 1024, 1024, Duration.ofSeconds(30));
+        val channel = new MultipartUploadChannel(objectWriter, PART_SIZE, Runnable::run, globalPermits, 2,
+                                                 spool.open("user", "key"));
+        //then
+        assertThatThrownBy(() -> channel.map(FileChannel.MapMode.READ_WRITE, 2L, 4L))
+                .isInstanceOf(IOException.class)
+                .hasMessage("Cannot map 4 bytes at 2 of key across parts");
+    }
+
+    @Test
+    void mappingReadOnlyIsNotPermitted() {
+        assertThatThrownBy(() -> subject.map(FileChannel.MapMode.READ_ONLY, 0L, 1L))
+                .isInstanceOf(NonReadableChannelException.class);
+    }
+
+    @Test
+    void mappingPooledPartsIsNotSupported() {
+        assertThatThrownBy(() -> subject.map(FileChannel.MapMode.READ_WRITE, 0L, 1L))
+                .isInstanceOf(UnsupportedOperationException.class);
+    }
+
+    @Test
+    void abandoningWithoutJournalCompletesUpload() throws Exception {
+        //given
+        subject.write(content("ab"));
+        //when
+        subject.abandon();
+        //then
+        then(objectWriter).should().put(any(), any());
+        assertThat(subject.isOpen()).isFalse();
+    }
+
+    @Test
+    void forceStoresSmallFileWithPutAndLeavesChannelOpen() throws Exception {
+        //given
+        subject.write(content("ab"));
+        subject.position(3L);
+        subject.write(content("d"));
+        //when
+        subject.force();
+        //then
+        val captor = ArgumentCaptor.forClass(ByteBuffer.class);
+        then(objectWriter).should().put(captor.capture(), any());
+        assertThat(asString(captor.getValue())).isEqualTo("ab\u0000d");
+        assertThat(subject.isOpen()).isTrue();
+        assertThat(subject.position()).isEqualTo(4L);
+    }
+
+    @Test
+    void forcedSmallFileIsReplacedOnClose() throws Exception {
+        //given
+        givenUploads();
+        subject.write(content("ab"));
+        subject.force();
+        //when
+        subject.write(content("cdef"));
+        subject.close();
+        //then
+        assertThat(uploadedParts).containsExactly("abcd", "ef");
+        then(objectWriter).should().complete(eq("upload-id"), any());
+    }
+
+    @Test
+    void forceLeavesTrailingPartBuffered() throws Exception {
+        //given
+        givenUploads();
+        subject.write(content("abcdef"));
+        //when
+        subject.force();
+        //then
+        assertThat(uploadedParts).containsExactly("abcd");
+        then(objectWriter).should(never()).put(any(), any());
+        then(objectWriter).should(never()).complete(any(), anyList());
+    }
+
+    @Test
+    void forceWaitsForPartsInFlight() throws Exception {
+        //given
+        val executor = Executors.newSingleThreadExecutor();
+        val channel = new MultipartUploadChannel(objectWriter, PART_SIZE, executor, globalPermits, 2,
+                                                 PartBuffers.pooled(bufferPool, PART_SIZE));
+        given(objectWriter.initiate(any())).willReturn("upload-id");
+        val uploaded = new CountDownLatch(1);
+        given(objectWriter.uploadPart(eq("upload-id"), anyInt(), any(), any())).willAnswer(invocation -> {
+            TimeUnit.MILLISECONDS.sleep(50);
+            uploaded.countDown();
+            return new PartETag(1, "etag-1");
+        });
+        channel.write(content("abcd"));
+        //when
+        channel.force();
+        //then
+        assertThat(uploaded.getCount()).isZero();
+        executor.shutdown();
+    }
+
+    @Nested
+    class Append {
+
+        private final S3ObjectReader objectReader = mock(S3ObjectReader.class);
+
+        private final ObjectMetadata existing = new ObjectMetadata();
+
+        @BeforeEach
+        void setUp() throws IOException {
+            givenUploads();
+            given(objectReader.getBucket()).willReturn("bucket");
+            given(objectReader.getKey()).willReturn("key");
+            given(objectWriter.initiateAppend(existing)).willReturn("upload-id");
+            given(objectWriter.copyPart(eq("upload-id"), anyInt(), eq("bucket"), eq("key"), anyLong(), anyLong()))
+                    .willAnswer(invocation -> new PartETag(invocation.getArgument(1), "copy"));
+        }
+
+        @Test
+        void largeObjectIsCopiedAsFirstPart() throws Exception {
+            //given
+            existing.setContentLength(MultipartUploadChannel.MIN_COPY_PART_SIZE);
+            subject.appendTo(objectReader, existing);
+            //when
+            subject.write(content("abcd"));
+            subject.close();
+            //then
+            then(objectWriter).should()
+                              .copyPart("upload-id", 1, "bucket", "key", 0L,
+                                        MultipartUploadChannel.MIN_COPY_PART_SIZE - 1);
+            then(objectWriter).should().uploadPart(eq("upload-id"), eq(2), any(), any());
+            assertThat(uploadedParts).containsExactly("abcd");
+            then(objectWriter).should().complete(eq("upload-id"), partsCaptor.capture());
+            assertThat(partsCaptor.getValue()).extracting(PartETag::getPartNumber)
+                                              .containsExactly(1, 2);
+            then(objectReader).should(never()).read(any(), anyLong());
+        }
+
+        @Test
+        void appendStartsAtEndOfExistingObject() throws Exception {
+            //given
+            existing.setContentLength(MultipartUploadChannel.MIN_COPY_PART_SIZE);
+            //when
+            subject.appendTo(objectReader, existing);
+            //then
+            assertThat(subject.size()).isEqualTo(MultipartUploadChannel.MIN_COPY_PART_SIZE);
+            assertThat(subject.position()).isEqualTo(MultipartUploadChannel.MIN_COPY_PART_SIZE);
+        }
+
+        @Test
+        void objectLargerThanCopyLimitIsCopiedInSeveralParts() throws Exception {
+            //given
+            final long length = MultipartUploadChannel.MAX_COPY_PART_SIZE * 2 + 3;
+            existing.setContentLength(length);
+            //when
+            subject.appendTo(objectReader, existing);
+            subject.close();
+            //then
+            then(objectWriter).should().copyPart("upload-id", 1, "bucket", "key", 0L, length / 3 - 1);
+            then(objectWriter).should().copyPart("upload-id", 2, "bucket", "key", length / 3, length * 2 / 3 - 1);
+            then(objectWriter).should().copyPart("upload-id", 3, "bucket", "key", length * 2 / 3, length - 1);
+        }
+
+        @Test
+        void copiedContentCannotBeRewritten() throws Exception {
+            //given
+            existing.setContentLength(MultipartUploadChannel.MIN_COPY_PART_SIZE);
+            subject.appendTo(objectReader, existing);
+            //then
+            assertThatThrownBy(() -> writeAt(0L, "x"))
+                    .isInstanceOf(IOException.class)
+                    .hasMessage("Cannot rewrite part 1 of key after it has been uploaded");
+        }
+
+        @Test
+        void smallObjectIsReadIntoFirstPart() throws Exception {
+            //given
+            existing.setContentLength(1L);
+            given(objectReader.read(any(), eq(0L))).willAnswer(invocation -> {
+                final ByteBuffer buffer = invocation.getArgument(0);
+                buffer.put((byte) 'a');
+                return 1;
+            });
+            subject.appendTo(objectReader, existing);
+            //when
+            subject.write(content("b"));
+            subject.close();
+            //then
+            val captor = ArgumentCaptor.forClass(ByteBuffer.class);
+            then(objectWriter).should().put(captor.capture(), any());
+            assertThat(asString(captor.getValue())).isEqualTo("ab");
+            then(objectWriter).should(never()).copyPart(any(), anyInt(), any(), any(), anyLong(), anyLong());
+        }
+
+        @Test
+        void emptyChannelStartsWithCopyOfObject() throws Exception {
+            //given
+            existing.setContentLength(MultipartUploadChannel.MIN_COPY_PART_SIZE);
+            given(objectReader.metadata()).willReturn(existing);
+            //when
+            val result = subject.copyOf(objectReader);
+            subject.close();
+            //then
+            assertThat(result).isTrue();
+            then(objectWriter).should()
+                              .copyPart("upload-id", 1, "bucket", "key", 0L,
+                                        MultipartUploadChannel.MIN_COPY_PART_SIZE - 1);
+            then(objectWriter).should().complete(eq("upload-id"), any());
+        }
+
+        @Test
+        void channelWrittenToIsNotCopied() throws Exception {
+            //given
+            subject.write(content("a"));
+            //when
+            val result = subject.copyOf(objectReader);
+            //then
+            assertThat(result).isFalse();
+            then(objectReader).shouldHaveZeroInteractions();
+        }
+
+        @Test
+        void failedCopyAbortsUpload() throws Exception {
+            //given
+            existing.setContentLength(MultipartUploadChannel.MIN_COPY_PART_SIZE);
+            given(objectWriter.copyPart(any(), anyInt(), any(), any(), anyLong(), anyLong()))
+                    .willThrow(new IOException("failed"));
+            subject.appendTo(objectReader, existing);
+            //then
+            assertThatThrownBy(() -> subject.write(content("a")))
+                    .hasMessage("failed");
+            then(objectWriter).should().abort("upload-id");
+        }
+    }
+
+    @Nested
+    class Journaled {
+
+        private final UploadJournal journal;
+
+        private final MultipartUploadChannel journaled;
+
+        Journaled() throws IOException {
+            journal = new UploadJournal(Files.createTempDirectory("journal"));
+            journaled = new MultipartUploadChannel(objectWriter, PART_SIZE, Runnable::run, globalPermits, 2,
+                                                   PartBuffers.pooled(bufferPool, PART_SIZE), journal, "user",
+                                                   false);
+        }
+
+        @BeforeEach
+        void setUp() throws IOException {
+            given(objectWriter.getBucket()).willReturn("bucket");
+            givenUploads();
+        }
+
+        private JournalEntry journalEntry() throws IOException {
+            return journal.find("user", "bucket", "key")
+                          .orElseThrow(() -> new AssertionError("no journal entry"));
+        }
+
+        @Test
+        void completedPartsAreJournaled() throws Exception {
+            //given
+            journaled.write(content("abcdefgh"));
+            //when
+            journaled.write(content("i"));
+            //then
+            val entry = journalEntry();
+            assertThat(entry.getUploadId()).isEqualTo("upload-id");
+            assertThat(entry.getParts()).extracting(PartETag::getETag)
+                                        .containsExactly("etag-1", "etag-2");
+        }
+
+        @Test
+        void abandonedUploadIsLeftIncompleteInJournal() throws Exception {
+            //given
+            journaled.write(content("abcdef"));
+            //when
+            journaled.abandon();
+            //then
+            assertThat(uploadedParts).containsExactly("abcd");
+            assertThat(journalEntry().size()).isEqualTo(4L);
+            then(objectWriter).should(never()).complete(any(), anyList());
+            then(objectWriter).should(never()).abort(any());
+            assertThat(journaled.isOpen()).isFalse();
+            assertThat(bufferPool.getLeasedBytes()).isZero();
+        }
+
+        @Test
+        void uploadStartedWithCopyIsNotJournaledAndIsCompletedWhenAbandoned() throws Exception {
+            //given
+            val objectReader = mock(S3ObjectReader.class);
+            val existing = new ObjectMetadata();
+            existing.setContentLength(MultipartUploadChannel.MIN_COPY_PART_SIZE);
+            given(objectReader.metadata()).willReturn(existing);
+            given(objectReader.getBucket()).willReturn("bucket");
+            given(objectReader.getKey()).willReturn("key");
+            given(objectWriter.initiateAppend(existing)).willReturn("upload-id");
+            given(objectWriter.copyPart(eq("upload-id"), anyInt(), eq("bucket"), eq("key"), anyLong(), anyLong()))
+                    .willAnswer(invocation -> new PartETag(invocation.getArgument(1), "copy"));
+            journaled.copyOf(objectReader);
+            journaled.write(content("abcdefgh"));
+            //when
+            journaled.force();
+            //then
+            assertThat(journal.find("user", "bucket", "key")).isEmpty();
+            journaled.abandon();
+            then(objectWriter).should().complete(eq("upload-id"), partsCaptor.capture());
+            assertThat(partsCaptor.getValue()).extracting(PartETag::getPartNumber)
+                                              .containsExactly(1, 2, 3);
+            assertThat(journal.find("user", "bucket", "key")).isEmpty();
+        }
+
+        @Test
+        void abandonedUploadBeforeFirstPartIsNotJournaled() throws Exception {
+            //given
+            journaled.write(content("ab"));
+            //when
+            journaled.abandon();
+            //then
+            assertThat(journal.find("user", "bucket", "key")).isEmpty();
+            then(objectWriter).should(never()).put(any(), any());
+        }
+
+        @Test
+        void resumedUploadContinuesFromJournaledParts() throws Exception {
+            //given
+            journaled.resume(new JournalEntry("user", "bucket", "key", "upload-id", PART_SIZE,
+                                              Collections.singletonList(new PartETag(1, "etag-1")), 0L));
+            //when
+            journaled.write(content("ef"));
+            journaled.close();
+            //then
+            assertThat(uploadedParts).containsExactly("ef");
+            then(objectWriter).should(never()).initiate(any());
+            then(objectWriter).should().complete(eq("upload-id"), partsCaptor.capture());
+            assertThat(partsCaptor.getValue()).hasSize(2);
+            assertThat(journal.find("user", "bucket", "key")).isEmpty();
+        }
+
+        @Test
+        void resumedUploadStartsAtEndOfJournaledParts() throws Exception {
+            //when
+            journaled.resume(new JournalEntry("user", "bucket", "key", "upload-id", PART_SIZE,
+                                              Collections.singletonList(new PartETag(1, "etag-1")), 0L));
+            //then
+            assertThat(journaled.size()).isEqualTo(4L);
+            assertThat(journaled.position()).isEqualTo(4L);
+        }
+
+        @Test
+        void forceJournalsUploadedParts() throws Exception {
+            //given
+            journaled.write(content("abcdef"));
+            //when
+            journaled.force();
+            //then
+            assertThat(journalEntry().getParts()).extracting(PartETag::getETag)
+                                                 .containsExactly("etag-1");
+        }
+
+        @Test
+        void failedUploadIsRemovedFromJournal() throws Exception {
+            //given
+            given(objectWriter.uploadPart(any(), anyInt(), any(), any())).willThrow(new IOException("failed"));
+            journaled.write(content("abcd"));
+            //when
+            assertThatThrownBy(journaled::close).hasMessage("failed");
+            //then
+            assertThat(journal.find("user", "bucket", "key")).isEmpty();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.hubio.s3sftp.server.filechannel;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.Tag;
+import lombok.val;
+import org.assertj.core.api.WithAssertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.then;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+
+class ObjectChecksumsTest implements WithAssertions {
+
+    private static final String MD5_OF_ABC = "900150983cd24fb0d6963f7d28e17f72";
+
+    private final S3ObjectReader objectReader = mock(S3ObjectReader.class);
+
+    private final ObjectMetadata metadata = new ObjectMetadata();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        given(objectReader.metadata()).willReturn(metadata);
+        given(objectReader.tags()).willReturn(Collections.emptyList());
+    }
+
+    private static byte[] hex(final String hex) {
+        val bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    @Test
+    void plainETagIsMd5() throws Exception {
+        //given
+        metadata.setHeader("ETag", MD5_OF_ABC);
+        //when
+        val result = ObjectChecksums.read(objectReader);
+        //then
+        assertThat(result).containsOnlyKeys(ObjectChecksums.MD5);
+        assertThat(result.get(ObjectChecksums.MD5)).isEqualTo(hex(MD5_OF_ABC));
+    }
+
+    @Test
+    void multipartETagIsNotMd5() throws Exception {
+        //given
+        metadata.setHeader("ETag", MD5_OF_ABC + "-2");
+        //when
+        val result = ObjectChecksums.read(objectReader);
+        //then
+        assertThat(result).isEmpty();
+    }
+
+    @Test
+    void eTagOfObjectEncryptedWithKmsIsNotMd5() throws Exception {
+        //given
+        metadata.setHeader("ETag", MD5_OF_ABC);
+        metadata.setSSEAlgorithm("aws:kms");
+        //when
+        val result = ObjectChecksums.read(objectReader);
+        //then
+        assertThat(result).isEmpty();
+    }
+
+    @Test
+    void checksumsAreReadFromTags() throws Exception {
+        //given
+        metadata.setHeader("ETag", MD5_OF_ABC + "-2");
+        given(objectReader.tags()).willReturn(Arrays.asList(new Tag("s3sftp-checksum-md5", MD5_OF_ABC),
+                                                            new Tag("project", "other")));
+        //when
+        val result = ObjectChecksums.read(objectReader);
+        //then
+        assertThat(result).containsOnlyKeys(ObjectChecksums.MD5);
+        assertThat(result.get(ObjectChecksums.MD5)).isEqualTo(hex(MD5_OF_ABC));
+    }
+
+    @Test
+    void checksumsAreReadFromUserMetadataWithoutReadingTags() throws Exception {
+        //given
+        metadata.addUserMetadata("s3sftp-checksum-crc32c", "364b3fb7");
+        metadata.addUserMetadata("owner", "someone");
+        //when
+        val result = ObjectChecksums.read(objectReader);
+        //then
+        assertThat(result).containsOnlyKeys(ObjectChecksums.CRC32C);
+        assertThat(result.get(ObjectChecksums.CRC32C)).containsExactly(0x36, 0x4b, 0x3f, 0xb7);
+        then(objectReader).should(never()).tags();
+    }
+
+    @Test
+    void checksumsAreRemovedFromUserMetadata() {
+        //given
+        val userMetadata = new HashMap<String, String>();
+        userMetadata.put("s3sftp-checksum-md5", MD5_OF_ABC);
+        userMetadata.put("owner", "someone");
+        //when
+        val result = ObjectChecksums.withoutChecksums(userMetadata);
+        //then
+        assertThat(result).containsOnly(entry("owner", "someone"));
+    }
+
+    @Test
+    void unreadableTagsAreIgnored() throws Exception {
+        //given
+        given(objectReader.tags()).willThrow(new IOException("denied", new AmazonS3Exception("denied")));
+        //when
+        val result = ObjectChecksums.read(objectReader);
+        //then
+        assertThat(result).isEmpty();
+    }
+
+    @Test
+    void checksumsAreTaggedAsHex() {
+        //when
+        val result = ObjectChecksums.tags(Collections.singletonMap(ObjectChecksums.MD5, hex(MD5_OF_ABC)));
+        //then
+        assertThat(result).extracting(Tag::getKey, Tag::getValue)
+                          .containsExactly(tuple("s3sftp-checksum-md5", MD5_OF_ABC));
+    }
+}
@@ -0,0 +1,277 @@
+package com.hubio.s3sftp.server.filechannel;
+
+import lombok.val;
+import org.assertj.core.api.WithAssertions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.then;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+
+class ReadAheadChannelTest implements WithAssertions {
+
+    private static final byte[] CONTENT = "abcdefghijklmnopqrstuvwxyz".getBytes(StandardCharsets.UTF_8);
+
+    private static final int BLOCK_SIZE = 4;
+
+    private static final int MAX_WINDOW = 4;
+
+    private final S3StreamingReadChannel delegate = mock(S3StreamingReadChannel.class);
+
+    private final S3ObjectReader objectReader = mock(S3ObjectReader.class);
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private final ReadAheadMetrics metrics = new ReadAheadMetrics();
+
+    private final Semaphore permits = new Semaphore(100);
+
+    private final BufferPool bufferPool = new BufferPool(1024 * 1024);
+
+    private final ReadAheadChannel subject =
+            new ReadAheadChannel(delegate, objectReader, CONTENT.length, executor, permits, bufferPool, metrics,
+                                 BLOCK_SIZE, 1, MAX_WINDOW);
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private void givenObjectContent() throws IOException {
+        given(objectReader.read(any(ByteBuffer.class), anyLong())).willAnswer(invocation -> {
+            final ByteBuffer dst = invocation.getArgument(0);
+            final int position = ((Long) invocation.getArgument(1)).intValue();
+            final int length = Math.min(dst.remaining(), CONTENT.length - position);
+            dst.put(CONTENT, position, length);
+            return length;
+        });
+        given(delegate.read(any(ByteBuffer.class))).willAnswer(invocation -> {
+            final ByteBuffer dst = invocation.getArgument(0);
+            final int length = Math.min(dst.remaining(), 2);
+            dst.put(CONTENT, (int) subject.position(), length);
+            return length;
+        });
+    }
+
+    private String read(final int length) throws IOException {
+        val dst = ByteBuffer.allocate(length);
+        subject.read(dst);
+        return new String(dst.array(), 0, dst.position(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void firstReadIsPassedToDelegate() throws Exception {
+        //given
+        givenObjectContent();
+        //when
+        val result = read(2);
+        //then
+        assertThat(result).isEqualTo("ab");
+        assertThat(subject.getWindow()).isZero();
+        then(delegate).should().position(0L);
+        then(delegate).should(never()).release();
+        then(objectReader).should(never()).read(any(), anyLong());
+    }
+
+    @Test
+    void openingWindowReleasesDelegateRequest() throws Exception {
+        //given
+        givenObjectContent();
+        read(2);
+        //when
+        read(2);
+        read(4);
+        //then
+        then(delegate).should().release();
+    }
+
+    @Test
+    void sequentialReadsOpenWindow() throws Exception {
+        //given
+        givenObjectContent();
+        read(2);
+        //when
+        val result = read(2);
+        //then
+        assertThat(result).isEqualTo("cd");
+        assertThat(subject.getWindow()).isEqualTo(1);
+        then(objectReader).should().read(any(), eq(0L));
+        then(objectReader).should(timeout(1000)).read(any(), eq(4L));
+    }
+
+    @Test
+    void windowDoublesAsReaderMovesThroughBlocksUpToMaximum() throws Exception {
+        //given
+        givenObjectContent();
+        read(2);
+        read(2);
+        //when
+        val result = read(16);
+        //then
+        assertThat(result).isEqualTo("efghijklmnopqrst");
+        assertThat(subject.getWindow()).isEqualTo(MAX_WINDOW);
+        assertThat(metrics.getWindowBlocks()).isEqualTo(MAX_WINDOW);
+    }
+
+    @Test
+    void readsToEndOfObject() throws Exception {
+        //given
+        givenObjectContent();
+        read(2);
+        read(2);
+        //when
+        val result = read(100);
+        //then
+        assertThat(result).isEqualTo("efghijklmnopqrstuvwxyz");
+        assertThat(subject.read(ByteBuffer.allocate(1))).isEqualTo(-1);
+    }
+
+    @Test
+    void randomAccessCollapsesWindow() throws Exception {
+        //given
+        givenObjectContent();
+        read(2);
+        read(2);
+        read(8);
+        //when
+        subject.position(1L);
+        val result = read(2);
+        //then
+        assertThat(result).isEqualTo("bc");
+        assertThat(subject.getWindow()).isZero();
+        assertThat(metrics.getWindowBlocks()).isZero();
+        then(delegate).should().position(1L);
+    }
+
+    @Test
+    void prefetchedBlocksAreHits() throws Exception {
+        //given
+        givenObjectContent();
+        read(2);
+        read(2);
+        //when
+        Thread.sleep(100);
+        read(4);
+        //then
+        assertThat(metrics.getHits()).isGreaterThanOrEqualTo(1L);
+        assertThat(metrics.getHitRate()).isGreaterThan(0);
+    }
+
+    @Test
+    void readAheadFailureIsReported() throws Exception {
+        //given
+        givenObjectContent();
+        read(2);
+        given(objectReader.read(any(ByteBuffer.class), anyLong())).willThrow(new IOException("failed"));
+        //then
+        assertThatThrownBy(() -> read(2))
+                .isInstanceOf(IOException.class)
+                .hasMessage("failed");
+    }
+
+    @Test
+    void closeCollapsesWindowAndClosesDelegate() throws Exception {
+        //given
+        givenObjectContent();
+        read(2);
+        read(2);
+        //when
+        subject.close();
+        //then
+        assertThat(metrics.getWindowBlocks()).isZero();
+        assertThat(subject.isOpen()).isFalse();
+        then(delegate).should().close();
+        assertThatThrownBy(() -> read(1))
+                .isInstanceOf(ClosedChannelException.class);
+    }
+
+    @Test
+    void writeIsNotPermitted() {
+        assertThatThrownBy(() -> subject.write(ByteBuffer.allocate(1)))
+                .isInstanceOf(NonWritableChannelException.class);
+    }
+
+    @Test
+    void hitRateWithNoReadsIsZero() {
+        assertThat(metrics.getHitRate()).isZero();
+    }
+
+    @Test
+    void largeInitialWindowFetchesRangesConcurrently() throws Exception {
+        //given
+        givenObjectContent();
+        val parallel = new ReadAheadChannel(delegate, objectReader, CONTENT.length, executor, permits, bufferPool,
+                                            metrics, BLOCK_SIZE, MAX_WINDOW, MAX_WINDOW);
+        parallel.read(ByteBuffer.allocate(2));
+        //when
+        parallel.read(ByteBuffer.allocate(2));
+        //then
+        assertThat(parallel.getWindow()).isEqualTo(MAX_WINDOW);
+        for (long position = 0; position <= BLOCK_SIZE * MAX_WINDOW; position += BLOCK_SIZE) {
+            then(objectReader).should(timeout(1000)).read(any(), eq(position));
+        }
+    }
+
+    @Test
+    void noReadAheadWithoutPermits() throws Exception {
+        //given
+        givenObjectContent();
+        permits.drainPermits();
+        read(2);
+        //when
+        val result = read(6);
+        //then
+        assertThat(result).isEqualTo("cdefgh");
+        assertThat(permits.availablePermits()).isZero();
+        then(objectReader).should().read(any(), eq(0L));
+        then(objectReader).should().read(any(), eq(4L));
+        then(objectReader).shouldHaveNoMoreInteractions();
+    }
+
+    @Test
+    void permitsAreReturnedWhenBlocksAreFetchedOrDiscarded() throws Exception {
+        //given
+        givenObjectContent();
+        read(2);
+        read(2);
+        read(8);
+        //when
+        subject.close();
+        //then
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.SECONDS);
+        assertThat(permits.availablePermits()).isEqualTo(100);
+    }
+
+    @Test
+    void blockBuffersAreReturnedToPoolOnClose() throws Exception {
+        //given
+        givenObjectContent();
+        read(2);
+        read(2);
+        read(8);
+        //when
+        subject.close();
+        //then
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.SECONDS);
+        assertThat(bufferPool.getLeasedBytes()).isZero();
+        assertThat(bufferPool.getAllocatedBytes()).isPositive();
+    }
+}
@@ -1,5 +1,8 @@
 package com.hubio.s3sftp.server.filechannel;
 
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import lombok.val;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.assertj.core.api.ThrowableAssert;
 import org.assertj.core.api.WithAssertions;
 import org.junit.jupiter.api.AfterEach;
@@ -7,14 +10,28 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.BDDMockito.then;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 
 class S3FileChannelTest implements WithAssertions {
 
@@ -28,7 +45,9 @@ class S3FileChannelTest implements WithAssertions {
     private final ByteBuffer src2 = mock(ByteBuffer.class);
     private final ByteBuffer[] sources = new ByteBuffer[3];
 
-    private final S3FileChannel wrapper = new S3FileChannel(content);
+    private final BufferPool bufferPool = new BufferPool(1024 * 1024);
+
+    private final S3FileChannel wrapper = new S3FileChannel(content, bufferPool);
 
     @BeforeEach
     void setUp() {
@@ -50,11 +69,6 @@ class S3FileChannelTest implements WithAssertions {
             assertThatCode(callable).isInstanceOf(UnsupportedOperationException.class);
         }
 
-        @Test
-        void force() {
-            callable = () -> wrapper.force(true);
-        }
-
         @Test
         void lockFile() {
             callable = wrapper::lock;
@@ -70,21 +84,6 @@ class S3FileChannelTest implements WithAssertions {
             callable = () -> wrapper.map(null, 0, 0);
         }
 
-        @Test
-        void readByBufferFromPosition() {
-            callable = () -> wrapper.read(dst, 123L);
-        }
-
-        @Test
-        void transferFrom() {
-            callable = () -> wrapper.transferFrom(null, 0, 0);
-        }
-
-        @Test
-        void transferTo() {
-            callable = () -> wrapper.transferTo(0, 0, null);
-        }
-
         @Test
         void tryLockFile() {
             callable = wrapper::tryLock;
@@ -95,11 +94,6 @@ class S3FileChannelTest implements WithAssertions {
             callable = () -> wrapper.tryLock(0, 0, false);
         }
 
-        @Test
-        void writeByteBufferToPosition() {
-            callable = () -> wrapper.write(src, 456L);
-        }
-
     }
 
     @Test
@@ -115,9 +109,10 @@ class S3FileChannelTest implements WithAssertions {
     @Test
     void setPosition() throws Exception {
         //when
-        wrapper.position(200L);
+        final FileChannel result = wrapper.position(200L);
         //then
         verify(content).position(200L);
+        assertThat(result).isSameAs(wrapper);
     }
 
     @Test
@@ -154,6 +149,138 @@ class S3FileChannelTest implements WithAssertions {
         assertThat(result).isEqualTo(123 + 321);
     }
 
+    @Test
+    void readByteBufferFromPositionUsesObjectReader() throws Exception {
+        //given
+        final S3ObjectReader objectReader = mock(S3ObjectReader.class);
+        final S3FileChannel channel = new S3FileChannel(content, objectReader, bufferPool);
+        given(objectReader.read(dst, 123L)).willReturn(45);
+        //when
+        final int result = channel.read(dst, 123L);
+        //then
+        assertThat(result).isEqualTo(45);
+        verifyZeroInteractions(content);
+    }
+
+    @Test
+    void readByteBufferFromPositionWithoutObjectReaderRestoresPosition() throws Exception {
+        //given
+        given(content.position()).willReturn(10L);
+        given(content.read(dst)).willReturn(45);
+        //when
+        final int result = wrapper.read(dst, 123L);
+        //then
+        assertThat(result).isEqualTo(45);
+        val inOrder = inOrder(content);
+        inOrder.verify(content).position(123L);
+        inOrder.verify(content).read(dst);
+        inOrder.verify(content).position(10L);
+    }
+
+    @Test
+    void readByteBufferFromNegativePositionIsRejected() {
+        assertThatIllegalArgumentException().isThrownBy(() -> wrapper.read(dst, -1L));
+    }
+
+    @Test
+    void writeByteBufferToPositionRestoresPosition() throws Exception {
+        //given
+        given(content.position()).willReturn(10L);
+        given(content.write(src)).willReturn(45);
+        //when
+        final int result = wrapper.write(src, 456L);
+        //then
+        assertThat(result).isEqualTo(45);
+        val inOrder = inOrder(content);
+        inOrder.verify(content).position(456L);
+        inOrder.verify(content).write(src);
+        inOrder.verify(content).position(10L);
+    }
+
+    @Test
+    void writeByteBufferToNegativePositionIsRejected() {
+        assertThatIllegalArgumentException().isThrownBy(() -> wrapper.write(src, -1L));
+    }
+
+    private static SeekableByteChannel fileWithContent(final String content) throws IOException {
+        val file = Files.createTempFile("s3-file-channel", ".tmp");
+        file.toFile()
+            .deleteOnExit();
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return Files.newByteChannel(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    @Test
+    void transferToStreamsRangeFromObjectReader() throws Exception {
+        //given
+        val objectReader = mock(S3ObjectReader.class);
+        val channel = new S3FileChannel(content, objectReader, bufferPool);
+        given(content.size()).willReturn(10L);
+        val stream = new S3ObjectInputStream(
+                new ByteArrayInputStream("cdefg".getBytes(StandardCharsets.UTF_8)), mock(HttpRequestBase.class));
+        given(objectReader.openStream(2L, 6L)).willReturn(stream);
+        val out = new ByteArrayOutputStream();
+        //when
+        final long result = channel.transferTo(2L, 5L, Channels.newChannel(out));
+        //then
+        assertThat(result).isEqualTo(5L);
+        assertThat(out.toString("UTF-8")).isEqualTo("cdefg");
+    }
+
+    @Test
+    void transferOfWholeObjectToNewUploadIsCopiedWithinS3() throws Exception {
+        //given
+        val objectReader = mock(S3ObjectReader.class);
+        val channel = new S3FileChannel(content, objectReader, bufferPool);
+        given(content.size()).willReturn(10L);
+        val upload = mock(MultipartUploadChannel.class);
+        given(upload.copyOf(objectReader)).willReturn(true);
+        //when
+        final long result = channel.transferTo(0L, 10L, new S3FileChannel(upload, bufferPool));
+        //then
+        assertThat(result).isEqualTo(10L);
+        then(objectReader).should(never()).openStream(anyLong(), anyLong());
+    }
+
+    @Test
+    void transferToIsLimitedToSize() throws Exception {
+        //given
+        val channel = new S3FileChannel(fileWithContent("abcdef"), bufferPool);
+        val out = new ByteArrayOutputStream();
+        //when
+        final long result = channel.transferTo(4L, 100L, Channels.newChannel(out));
+        //then
+        assertThat(result).isEqualTo(2L);
+        assertThat(out.toString("UTF-8")).isEqualTo("ef");
+        assertThat(channel.position()).isZero();
+    }
+
+    @Test
+    void transferToFromEndIsNothing() throws Exception {
+        //given
+        given(content.size()).willReturn(10L);
+        //when
+        final long result = wrapper.transferTo(10L, 5L, Channels.newChannel(new ByteArrayOutputStream()));
+        //then
+        assertThat(result).isZero();
+    }
+
+    @Test
+    void transferFromWritesAtPosition() throws Exception {
+        //given
+        val file = fileWithContent("abcdef");
+        val channel = new S3FileChannel(file, bufferPool);
+        val in = Channels.newChannel(new ByteArrayInputStream("XYZ".getBytes(StandardCharsets.UTF_8)));
+        //when
+        final long result = channel.transferFrom(in, 1L, 2L);
+        //then
+        assertThat(result).isEqualTo(2L);
+        assertThat(channel.position()).isZero();
+        val check = ByteBuffer.allocate(6);
+        file.read(check);
+        assertThat(new String(check.array(), StandardCharsets.UTF_8)).isEqualTo("aXYdef");
+    }
+
     @Test
     void size() throws Exception {
         //given
@@ -167,9 +294,10 @@ class S3FileChannelTest implements WithAssertions {
     @Test
     void truncate() throws Exception {
         //when
-        wrapper.truncate(123L);
+        final FileChannel result = wrapper.truncate(123L);
         //then
         verify(content).truncate(123L);
+        assertThat(result).isSameAs(wrapper);
     }
 
     @Test
@@ -205,6 +333,38 @@ class S3FileChannelTest implements WithAssertions {
         assertThat(result).isEqualTo(321 + 456);
     }
 
+    @Test
+    void mapIsDelegatedToUpload() throws Exception {
+        //given
+        val upload = mock(MultipartUploadChannel.class);
+        val mapped = mock(MappedByteBuffer.class);
+        given(upload.map(FileChannel.MapMode.READ_WRITE, 4L, 2L)).willReturn(mapped);
+        val channel = new S3FileChannel(upload, bufferPool);
+        //when
+        val result = channel.map(FileChannel.MapMode.READ_WRITE, 4L, 2L);
+        //then
+        assertThat(result).isSameAs(mapped);
+    }
+
+    @Test
+    void forceIsDelegatedToUpload() throws Exception {
+        //given
+        val upload = mock(MultipartUploadChannel.class);
+        val channel = new S3FileChannel(upload, bufferPool);
+        //when
+        channel.force(true);
+        //then
+        then(upload).should().force();
+    }
+
+    @Test
+    void forceWithNothingToCommitDoesNothing() throws Exception {
+        //when
+        wrapper.force(false);
+        //then
+        verifyZeroInteractions(content);
+    }
+
     @Test
     void whenCloseChannelThenByteChannelIsClosed() throws IOException {
         //when
@@ -212,4 +372,39 @@ class S3FileChannelTest implements WithAssertions {
         //then
         then(content).should().close();
     }
+
+    @Test
+    void actionsRunOnceWhenClosed() throws Exception {
+        //given
+        val closed = new AtomicInteger();
+        wrapper.whenClosed(closed::incrementAndGet);
+        //when
+        wrapper.close();
+        wrapper.close();
+        //then
+        assertThat(closed).hasValue(1);
+    }
+
+    @Test
+    void actionRunsAtOnceWhenAlreadyClosed() throws Exception {
+        //given
+        val closed = new AtomicInteger();
+        wrapper.close();
+        //when
+        wrapper.whenClosed(closed::incrementAndGet);
+        //then
+        assertThat(closed).hasValue(1);
+    }
+
+    @Test
+    void actionsRunWhenCloseFails() throws Exception {
+        //given
+        val closed = new AtomicInteger();
+        wrapper.whenClosed(closed::incrementAndGet);
+        doThrow(new IOException("failed")).when(content)
+                                          .close();
+        //then
+        assertThatThrownBy(wrapper::close).isInstanceOf(IOException.class);
+        assertThat(closed).hasValue(1);
+    }
 }
@@ -0,0 +1,172 @@
+package com.hubio.s3sftp.server.filechannel;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.GetObjectTaggingRequest;
+import com.amazonaws.services.s3.model.GetObjectTaggingResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.Tag;
+import lombok.val;
+import org.assertj.core.api.WithAssertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.util.Collections;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.then;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+class S3ObjectReaderTest implements WithAssertions {
+
+    private final AmazonS3 client = mock(AmazonS3.class);
+
+    private final S3ObjectReader subject = new S3ObjectReader(client, "bucket", "key");
+
+    private static S3Object objectWithContent(final String content) {
+        val object = new S3Object();
+        object.setObjectContent(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+        return object;
+    }
+
+    private static AmazonS3Exception exceptionWithStatus(final int status) {
+        val exception = new AmazonS3Exception("error");
+        exception.setStatusCode(status);
+        return exception;
+    }
+
+    @Test
+    void readRequestsOnlyTheRemainingBytesFromPosition() throws Exception {
+        //given
+        given(client.getObject(any(GetObjectRequest.class))).willReturn(objectWithContent("abcde"));
+        val dst = ByteBuffer.allocate(5);
+        //when
+        final int result = subject.read(dst, 100L);
+        //then
+        assertThat(result).isEqualTo(5);
+        assertThat(new String(dst.array(), StandardCharsets.UTF_8)).isEqualTo("abcde");
+        val captor = ArgumentCaptor.forClass(GetObjectRequest.class);
+        then(client).should().getObject(captor.capture());
+        val request = captor.getValue();
+        assertThat(request.getBucketName()).isEqualTo("bucket");
+        assertThat(request.getKey()).isEqualTo("key");
+        assertThat(request.getRange()).containsExactly(100L, 104L);
+    }
+
+    @Test
+    void readIntoDirectBuffer() throws Exception {
+        //given
+        given(client.getObject(any(GetObjectRequest.class))).willReturn(objectWithContent("abc"));
+        val dst = ByteBuffer.allocateDirect(10);
+        //when
+        final int result = subject.read(dst, 0L);
+        //then
+        assertThat(result).isEqualTo(3);
+        assertThat(dst.position()).isEqualTo(3);
+    }
+
+    @Test
+    void readWithFullBufferDoesNotRequest() throws Exception {
+        //when
+        final int result = subject.read(ByteBuffer.allocate(0), 0L);
+        //then
+        assertThat(result).isZero();
+        verifyZeroInteractions(client);
+    }
+
+    @Test
+    void readBeyondEndOfObjectIsEndOfStream() throws Exception {
+        //given
+        given(client.getObject(any(GetObjectRequest.class))).willThrow(exceptionWithStatus(416));
+        //when
+        final int result = subject.read(ByteBuffer.allocate(10), 1000L);
+        //then
+        assertThat(result).isEqualTo(-1);
+    }
+
+    @Test
+    void readMissingObjectIsNoSuchFile() {
+        //given
+        given(client.getObject(any(GetObjectRequest.class))).willThrow(exceptionWithStatus(404));
+        //then
+        assertThatThrownBy(() -> subject.read(ByteBuffer.allocate(10), 0L))
+                .isInstanceOf(NoSuchFileException.class);
+    }
+
+    @Test
+    void readOtherErrorIsIOException() {
+        //given
+        given(client.getObject(any(GetObjectRequest.class))).willThrow(exceptionWithStatus(500));
+        //then
+        assertThatThrownBy(() -> subject.read(ByteBuffer.allocate(10), 0L))
+                .isInstanceOf(IOException.class)
+                .hasMessage("Cannot read object: bucket/key");
+    }
+
+    @Test
+    void sizeIsContentLength() throws Exception {
+        //given
+        val metadata = new ObjectMetadata();
+        metadata.setContentLength(1234L);
+        given(client.getObjectMetadata("bucket", "key")).willReturn(metadata);
+        //when
+        final long result = subject.size();
+        //then
+        assertThat(result).isEqualTo(1234L);
+    }
+
+    @Test
+    void sizeOfMissingObjectIsNoSuchFile() {
+        //given
+        given(client.getObjectMetadata("bucket", "key")).willThrow(exceptionWithStatus(404));
+        //then
+        assertThatThrownBy(subject::size)
+                .isInstanceOf(NoSuchFileException.class);
+    }
+
+    @Test
+    void openStreamRequestsFromPositionToEnd() throws Exception {
+        //given
+        given(client.getObject(any(GetObjectRequest.class))).willReturn(objectWithContent("abc"));
+        //when
+        subject.openStream(42L);
+        //then
+        val captor = ArgumentCaptor.forClass(GetObjectRequest.class);
+        then(client).should().getObject(captor.capture());
+        assertThat(captor.getValue()
+                         .getRange()).containsExactly(42L, Long.MAX_VALUE - 1);
+    }
+
+    @Test
+    void tagsAreReadFromObject() throws Exception {
+        //given
+        given(client.getObjectTagging(any())).willReturn(
+                new GetObjectTaggingResult(Collections.singletonList(new Tag("name", "value"))));
+        //when
+        val result = subject.tags();
+        //then
+        assertThat(result).extracting(Tag::getKey)
+                          .containsExactly("name");
+        val captor = ArgumentCaptor.forClass(GetObjectTaggingRequest.class);
+        then(client).should().getObjectTagging(captor.capture());
+        assertThat(captor.getValue()
+                         .getKey()).isEqualTo("key");
+    }
+
+    @Test
+    void tagsOfMissingObjectIsNoSuchFile() {
+        //given
+        given(client.getObjectTagging(any())).willThrow(exceptionWithStatus(404));
+        //then
+        assertThatThrownBy(subject::tags).isInstanceOf(NoSuchFileException.class);
+    }
+}
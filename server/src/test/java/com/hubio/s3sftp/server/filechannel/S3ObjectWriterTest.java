@@ -0,0 +1,294 @@
+package com.hubio.s3sftp.server.filechannel;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.SetObjectTaggingRequest;
+import com.amazonaws.services.s3.model.Tag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import lombok.val;
+import org.assertj.core.api.WithAssertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.then;
+import static org.mockito.BDDMockito.willThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+
+class S3ObjectWriterTest implements WithAssertions {
+
+    private final AmazonS3 client = mock(AmazonS3.class);
+
+    private final S3ObjectWriter subject = new S3ObjectWriter(client, "bucket", "key", "file.txt");
+
+    private static ByteBuffer content(final String content) {
+        return ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void putSendsContentWithLengthAndContentType() throws Exception {
+        //when
+        subject.put(content("hello"), Collections.emptyMap());
+        //then
+        val captor = ArgumentCaptor.forClass(PutObjectRequest.class);
+        then(client).should().putObject(captor.capture());
+        val request = captor.getValue();
+        assertThat(request.getBucketName()).isEqualTo("bucket");
+        assertThat(request.getKey()).isEqualTo("key");
+        assertThat(request.getMetadata()
+                          .getContentLength()).isEqualTo(5L);
+        assertThat(request.getMetadata()
+                          .getContentType()).isEqualTo("text/plain");
+    }
+
+    @Test
+    void initiateReturnsUploadId() throws Exception {
+        //given
+        val result = new InitiateMultipartUploadResult();
+        result.setUploadId("upload-id");
+        given(client.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).willReturn(result);
+        //then
+        assertThat(subject.initiate(content("hello"))).isEqualTo("upload-id");
+    }
+
+    @Test
+    void uploadPartSendsOnlyRemainingContentWithItsMd5() throws Exception {
+        //given
+        val result = new UploadPartResult();
+        result.setPartNumber(3);
+        result.setETag("etag");
+        given(client.uploadPart(any(UploadPartRequest.class))).willReturn(result);
+        val buffer = content("abcdef");
+        buffer.position(2);
+        //when
+        val partETag = subject.uploadPart("upload-id", 3, buffer, UploadChecksums.md5(buffer));
+        //then
+        assertThat(partETag.getETag()).isEqualTo("etag");
+        val captor = ArgumentCaptor.forClass(UploadPartRequest.class);
+        then(client).should().uploadPart(captor.capture());
+        val request = captor.getValue();
+        assertThat(request.getUploadId()).isEqualTo("upload-id");
+        assertThat(request.getPartNumber()).isEqualTo(3);
+        assertThat(request.getPartSize()).isEqualTo(4L);
+        assertThat(request.getMd5Digest()).isEqualTo("W+3jJnPJk2e8VKXly0Gulg==");
+    }
+
+    @Test
+    void putSendsMd5AndStoresChecksumsAsUserMetadata() throws Exception {
+        //given
+        final Map<String, byte[]> checksums = new HashMap<>();
+        checksums.put(ObjectChecksums.CRC32C, new byte[]{0x01, 0x02, 0x03, (byte) 0xff});
+        //when
+        subject.put(content("hello"), checksums);
+        //then
+        val captor = ArgumentCaptor.forClass(PutObjectRequest.class);
+        then(client).should().putObject(captor.capture());
+        val metadata = captor.getValue()
+                             .getMetadata();
+        assertThat(metadata.getContentMD5()).isEqualTo("XUFAKrxLKna5cZ2REBfFkg==");
+        assertThat(metadata.getUserMetadata()).containsOnly(entry("s3sftp-checksum-crc32c", "010203ff"));
+    }
+
+    @Test
+    void initiateAppendKeepsContentTypeOfExistingObject() throws Exception {
+        //given
+        val result = new InitiateMultipartUploadResult();
+        result.setUploadId("upload-id");
+        given(client.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).willReturn(result);
+        val existing = new ObjectMetadata();
+        existing.setContentType("application/x-log");
+        existing.addUserMetadata("owner", "someone");
+        existing.addUserMetadata("s3sftp-checksum-md5", "5d41402abc4b2a76b9719d911017c592");
+        //when
+        val uploadId = subject.initiateAppend(existing);
+        //then
+        assertThat(uploadId).isEqualTo("upload-id");
+        val captor = ArgumentCaptor.forClass(InitiateMultipartUploadRequest.class);
+        then(client).should().initiateMultipartUpload(captor.capture());
+        assertThat(captor.getValue()
+                         .getObjectMetadata()
+                         .getContentType()).isEqualTo("application/x-log");
+        assertThat(captor.getValue()
+                         .getObjectMetadata()
+                         .getUserMetadata()).containsOnlyKeys("owner");
+    }
+
+    @Test
+    void tagReplacesTagsOfObject() {
+        //when
+        subject.tag(Collections.singletonList(new Tag("name", "value")));
+        //then
+        val captor = ArgumentCaptor.forClass(SetObjectTaggingRequest.class);
+        then(client).should().setObjectTagging(captor.capture());
+        assertThat(captor.getValue()
+                         .getKey()).isEqualTo("key");
+        assertThat(captor.getValue()
+                         .getTagging()
+                         .getTagSet()).extracting(Tag::getKey)
+                                      .containsExactly("name");
+    }
+
+    @Test
+    void heldAttributesAreStoredAsUserMetadataWithPut() throws Exception {
+        //given
+        subject.hold("basic:lastModifiedTime", FileTime.fromMillis(1_500_000_000_000L));
+        subject.hold("posix:permissions", PosixFilePermissions.fromString("rw-r-----"));
+        //when
+        subject.put(content("hello"), Collections.emptyMap());
+        //then
+        val captor = ArgumentCaptor.forClass(PutObjectRequest.class);
+        then(client).should().putObject(captor.capture());
+        assertThat(captor.getValue()
+                         .getMetadata()
+                         .getUserMetadata()).containsOnly(entry("s3sftp-mtime", "1500000000"),
+                                                          entry("s3sftp-permissions", "rw-r-----"));
+    }
+
+    @Test
+    void heldAttributesAreAddedToTags() {
+        //given
+        subject.hold("lastModifiedTime", FileTime.fromMillis(1_500_000_000_000L));
+        //when
+        subject.tag(Collections.singletonList(new Tag("name", "value")));
+        //then
+        val captor = ArgumentCaptor.forClass(SetObjectTaggingRequest.class);
+        then(client).should().setObjectTagging(captor.capture());
+        assertThat(captor.getValue()
+                         .getTagging()
+                         .getTagSet()).extracting(Tag::getKey)
+                                      .containsExactlyInAnyOrder("name", "s3sftp-mtime");
+    }
+
+    @Test
+    void attributeStoredAfterTaggingTagsObjectAgainKeepingEarlierTags() {
+        //given
+        subject.tag(Collections.singletonList(new Tag("name", "value")));
+        //when
+        val stored = subject.store("basic:lastModifiedTime", FileTime.fromMillis(1_500_000_000_000L));
+        //then
+        assertThat(stored).isTrue();
+        val captor = ArgumentCaptor.forClass(SetObjectTaggingRequest.class);
+        then(client).should(times(2)).setObjectTagging(captor.capture());
+        assertThat(captor.getValue()
+                         .getTagging()
+                         .getTagSet()).extracting(Tag::getKey, Tag::getValue)
+                                      .containsExactlyInAnyOrder(tuple("name", "value"),
+                                                                 tuple("s3sftp-mtime", "1500000000"));
+        assertThat(subject.heldAttributes()).containsOnly(
+                entry("lastModifiedTime", FileTime.fromMillis(1_500_000_000_000L)));
+    }
+
+    @Test
+    void attributeWithoutPlaceInS3IsNotStored() {
+        assertThat(subject.store("posix:owner", "someone")).isFalse();
+        then(client).shouldHaveZeroInteractions();
+    }
+
+    @Test
+    void timesWithoutPlaceInS3AreAcceptedButNotHeld() {
+        assertThat(subject.hold("basic:lastAccessTime", FileTime.fromMillis(0L))).isTrue();
+        assertThat(subject.hold("basic:creationTime", FileTime.fromMillis(0L))).isTrue();
+        assertThat(subject.hold("posix:owner", "someone")).isFalse();
+        assertThat(subject.hasHeldAttributes()).isFalse();
+    }
+
+    @Test
+    void failureToTagIsNotThrown() {
+        //given
+        given(client.setObjectTagging(any())).willThrow(new AmazonS3Exception("denied"));
+        //then
+        assertThatCode(() -> subject.tag(Collections.emptyList())).doesNotThrowAnyException();
+    }
+
+    @Test
+    void copyReplacesObjectWithCopyOfSource() throws Exception {
+        //when
+        subject.copy("source-bucket", "source-key");
+        //then
+        val captor = ArgumentCaptor.forClass(CopyObjectRequest.class);
+        then(client).should().copyObject(captor.capture());
+        val request = captor.getValue();
+        assertThat(request.getSourceBucketName()).isEqualTo("source-bucket");
+        assertThat(request.getSourceKey()).isEqualTo("source-key");
+        assertThat(request.getDestinationBucketName()).isEqualTo("bucket");
+        assertThat(request.getDestinationKey()).isEqualTo("key");
+    }
+
+    @Test
+    void copyPartCopiesRangeOfSourceIntoUpload() throws Exception {
+        //given
+        val result = new CopyPartResult();
+        result.setPartNumber(2);
+        result.setETag("etag");
+        given(client.copyPart(any(CopyPartRequest.class))).willReturn(result);
+        //when
+        val partETag = subject.copyPart("upload-id", 2, "source-bucket", "source-key", 10L, 19L);
+        //then
+        assertThat(partETag.getETag()).isEqualTo("etag");
+        val captor = ArgumentCaptor.forClass(CopyPartRequest.class);
+        then(client).should().copyPart(captor.capture());
+        val request = captor.getValue();
+        assertThat(request.getSourceBucketName()).isEqualTo("source-bucket");
+        assertThat(request.getSourceKey()).isEqualTo("source-key");
+        assertThat(request.getDestinationBucketName()).isEqualTo("bucket");
+        assertThat(request.getDestinationKey()).isEqualTo("key");
+        assertThat(request.getUploadId()).isEqualTo("upload-id");
+        assertThat(request.getPartNumber()).isEqualTo(2);
+        assertThat(request.getFirstByte()).isEqualTo(10L);
+        assertThat(request.getLastByte()).isEqualTo(19L);
+    }
+
+    @Test
+    void completeSendsParts() throws Exception {
+        //given
+        val parts = Collections.singletonList(new PartETag(1, "etag"));
+        //when
+        subject.complete("upload-id", parts);
+        //then
+        val captor = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        then(client).should().completeMultipartUpload(captor.capture());
+        assertThat(captor.getValue()
+                         .getPartETags()).isEqualTo(parts);
+    }
+
+    @Test
+    void abortFailureIsNotThrown() {
+        //given
+        willThrow(new AmazonS3Exception("error")).given(client)
+                                                 .abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        //then
+        assertThatCode(() -> subject.abort("upload-id")).doesNotThrowAnyException();
+    }
+
+    @Test
+    void s3ErrorIsIOException() {
+        //given
+        given(client.putObject(any(PutObjectRequest.class))).willThrow(new AmazonS3Exception("error"));
+        //then
+        assertThatThrownBy(() -> subject.put(content("hello"), Collections.emptyMap()))
+                .isInstanceOf(IOException.class)
+                .hasMessage("Cannot write object: bucket/key");
+    }
+}
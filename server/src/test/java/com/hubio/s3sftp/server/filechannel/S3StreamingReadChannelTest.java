@@ -0,0 +1,201 @@
+package com.hubio.s3sftp.server.filechannel;
+
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import lombok.val;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.assertj.core.api.WithAssertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.charset.StandardCharsets;
+
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.then;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+class S3StreamingReadChannelTest implements WithAssertions {
+
+    private static final String CONTENT = "abcdefghij";
+
+    private final S3ObjectReader objectReader = mock(S3ObjectReader.class);
+
+    private final HttpRequestBase httpRequest = mock(HttpRequestBase.class);
+
+    private final S3StreamingReadChannel subject = new S3StreamingReadChannel(objectReader, CONTENT.length());
+
+    private S3ObjectInputStream streamFrom(final int position) {
+        val bytes = CONTENT.substring(position)
+                           .getBytes(StandardCharsets.UTF_8);
+        return new S3ObjectInputStream(new ByteArrayInputStream(bytes), httpRequest);
+    }
+
+    private void givenStreams() throws Exception {
+        given(objectReader.openStream(anyLong())).willAnswer(
+                invocation -> streamFrom(((Long) invocation.getArgument(0)).intValue()));
+    }
+
+    private static String read(final S3StreamingReadChannel channel, final int length) throws Exception {
+        val dst = ByteBuffer.allocate(length);
+        channel.read(dst);
+        return new String(dst.array(), 0, dst.position(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void sequentialReadsUseOneRequest() throws Exception {
+        //given
+        givenStreams();
+        //when
+        val first = read(subject, 4);
+        val second = read(subject, 4);
+        //then
+        assertThat(first).isEqualTo("abcd");
+        assertThat(second).isEqualTo("efgh");
+        assertThat(subject.position()).isEqualTo(8L);
+        then(objectReader).should().openStream(0L);
+        then(objectReader).shouldHaveNoMoreInteractions();
+    }
+
+    @Test
+    void readAtEndIsEndOfStream() throws Exception {
+        //given
+        subject.position(CONTENT.length());
+        //when
+        final int result = subject.read(ByteBuffer.allocate(4));
+        //then
+        assertThat(result).isEqualTo(-1);
+        then(objectReader).shouldHaveZeroInteractions();
+    }
+
+    @Test
+    void shortForwardSeekSkipsWithinStream() throws Exception {
+        //given
+        givenStreams();
+        read(subject, 2);
+        //when
+        subject.position(6L);
+        val result = read(subject, 2);
+        //then
+        assertThat(result).isEqualTo("gh");
+        then(objectReader).should().openStream(0L);
+        then(objectReader).shouldHaveNoMoreInteractions();
+    }
+
+    @Test
+    void backwardSeekReopensStreamAtPosition() throws Exception {
+        //given
+        givenStreams();
+        read(subject, 6);
+        //when
+        subject.position(1L);
+        val result = read(subject, 3);
+        //then
+        assertThat(result).isEqualTo("bcd");
+        then(objectReader).should().openStream(0L);
+        then(objectReader).should().openStream(1L);
+        verify(httpRequest).abort();
+    }
+
+    @Test
+    void closeAbortsUnfinishedStream() throws Exception {
+        //given
+        givenStreams();
+        read(subject, 2);
+        //when
+        subject.close();
+        //then
+        verify(httpRequest).abort();
+        assertThat(subject.isOpen()).isFalse();
+    }
+
+    @Test
+    void releaseAbortsStreamAndNextReadReopensAtPosition() throws Exception {
+        //given
+        givenStreams();
+        read(subject, 2);
+        //when
+        subject.release();
+        val result = read(subject, 2);
+        //then
+        assertThat(result).isEqualTo("cd");
+        verify(httpRequest).abort();
+        then(objectReader).should().openStream(0L);
+        then(objectReader).should().openStream(2L);
+        assertThat(subject.isOpen()).isTrue();
+    }
+
+    @Test
+    void firstStreamIsReadBeforeRequestingRest() throws Exception {
+        //given
+        givenStreams();
+        val firstRequest = mock(HttpRequestBase.class);
+        val firstStream = new S3ObjectInputStream(new ByteArrayInputStream("abcd".getBytes(StandardCharsets.UTF_8)),
+                                                  firstRequest);
+        val channel = new S3StreamingReadChannel(objectReader, CONTENT.length(), firstStream, 4L);
+        //when
+        val first = read(channel, 6);
+        val second = read(channel, 2);
+        //then
+        assertThat(first).isEqualTo("abcd");
+        assertThat(second).isEqualTo("ef");
+        then(objectReader).should().openStream(4L);
+        then(objectReader).shouldHaveNoMoreInteractions();
+        verify(firstRequest, never()).abort();
+    }
+
+    @Test
+    void unreadFirstStreamIsAbortedOnClose() throws Exception {
+        //given
+        val firstRequest = mock(HttpRequestBase.class);
+        val firstStream = new S3ObjectInputStream(new ByteArrayInputStream("abcd".getBytes(StandardCharsets.UTF_8)),
+                                                  firstRequest);
+        val channel = new S3StreamingReadChannel(objectReader, CONTENT.length(), firstStream, 4L);
+        //when
+        channel.close();
+        //then
+        verify(firstRequest).abort();
+        then(objectReader).shouldHaveZeroInteractions();
+    }
+
+    @Test
+    void closeAfterReadingToEndDoesNotAbort() throws Exception {
+        //given
+        givenStreams();
+        read(subject, CONTENT.length());
+        //when
+        subject.close();
+        //then
+        verify(httpRequest, never()).abort();
+    }
+
+    @Test
+    void sizeIsObjectSize() throws Exception {
+        assertThat(subject.size()).isEqualTo(CONTENT.length());
+    }
+
+    @Test
+    void readAfterCloseIsClosedChannel() throws Exception {
+        //given
+        subject.close();
+        //then
+        assertThatThrownBy(() -> subject.read(ByteBuffer.allocate(1)))
+                .isInstanceOf(ClosedChannelException.class);
+    }
+
+    @Test
+    void writeIsNotPermitted() {
+        assertThatThrownBy(() -> subject.write(ByteBuffer.allocate(1)))
+                .isInstanceOf(NonWritableChannelException.class);
+    }
+
+    @Test
+    void truncateIsNotPermitted() {
+        assertThatThrownBy(() -> subject.truncate(0L))
+                .isInstanceOf(NonWritableChannelException.class);
+    }
+}
@@ -0,0 +1,123 @@
+package com.hubio.s3sftp.server.filechannel;
+
+import lombok.val;
+import org.assertj.core.api.WithAssertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+class SpoolFileTest implements WithAssertions {
+
+    private static final int PART_SIZE = 16;
+
+    private Spool spool(final long capacity, final long capacityPerOwner) throws Exception {
+        return spool(capacity, capacityPerOwner, Duration.ofSeconds(30));
+    }
+
+    private Spool spool(final long capacity, final long capacityPerOwner, final Duration timeout) throws Exception {
+        final Path directory = Files.createTempDirectory("spool");
+        directory.toFile()
+                 .deleteOnExit();
+        return new Spool(directory, PART_SIZE, capacity, capacityPerOwner, timeout);
+    }
+
+    @Test
+    void slotsAreReusedOnceReleased() throws Exception {
+        //given
+        val subject = spool(1024, 1024).open("user", "key");
+        val first = subject.acquire();
+        subject.release(first);
+        //when
+        val second = subject.acquire();
+        //then
+        assertThat(second).isSameAs(first);
+        assertThat(second.remaining()).isEqualTo(PART_SIZE);
+        assertThat(subject.getSlots()).isEqualTo(1);
+        subject.close();
+    }
+
+    @Test
+    void mappedRegionSharesSlot() throws Exception {
+        //given
+        val subject = spool(1024, 1024).open("user", "key");
+        subject.acquire();
+        val slot = subject.acquire();
+        //when
+        subject.map(slot, 4, 3)
+               .put("abc".getBytes(StandardCharsets.UTF_8));
+        //then
+        val bytes = new byte[3];
+        slot.position(4);
+        slot.get(bytes);
+        assertThat(new String(bytes, StandardCharsets.UTF_8)).isEqualTo("abc");
+        subject.close();
+    }
+
+    @Test
+    void acquireWaitsForOwnerCapacity() throws Exception {
+        //given
+        val spool = spool(1024, PART_SIZE);
+        val subject = spool.open("user", "key");
+        val other = spool.open("other", "key");
+        val held = subject.acquire();
+        val executor = Executors.newSingleThreadExecutor();
+        //when
+        val waiting = executor.submit(subject::acquire);
+        //then
+        assertThat(other.acquire()).isNotNull();
+        assertThatThrownBy(() -> waiting.get(200, TimeUnit.MILLISECONDS))
+                .isInstanceOf(TimeoutException.class);
+        subject.release(held);
+        assertThat(waiting.get(1, TimeUnit.SECONDS)).isSameAs(held);
+        executor.shutdown();
+    }
+
+    @Test
+    void acquireWaitsForSharedCapacity() throws Exception {
+        //given
+        val spool = spool(PART_SIZE, 1024);
+        val subject = spool.open("user", "key");
+        val other = spool.open("other", "key");
+        val held = other.acquire();
+        val executor = Executors.newSingleThreadExecutor();
+        //when
+        val waiting = executor.submit(subject::acquire);
+        //then
+        assertThatThrownBy(() -> waiting.get(200, TimeUnit.MILLISECONDS))
+                .isInstanceOf(TimeoutException.class);
+        other.release(held);
+        assertThat(waiting.get(1, TimeUnit.SECONDS)).isNotNull();
+        executor.shutdown();
+    }
+
+    @Test
+    void acquireFailsWhenNoCapacityIsReleasedInTime() throws Exception {
+        //given
+        val spool = spool(PART_SIZE, 1024, Duration.ofMillis(100));
+        val subject = spool.open("user", "key");
+        subject.acquire();
+        //then
+        assertThatThrownBy(subject::acquire).isInstanceOf(IOException.class)
+                                           .hasMessage("Timed out waiting for spool for key");
+        assertThat(spool.availableParts()).isZero();
+    }
+
+    @Test
+    void releasingUnknownBufferIsIgnored() throws Exception {
+        //given
+        val spool = spool(PART_SIZE, PART_SIZE);
+        val subject = spool.open("user", "key");
+        //when
+        subject.release(ByteBuffer.allocate(PART_SIZE));
+        //then
+        assertThat(spool.availableParts()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,104 @@
+package com.hubio.s3sftp.server.filechannel;
+
+import lombok.val;
+import org.assertj.core.api.WithAssertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+class UploadChecksumsTest implements WithAssertions {
+
+    private final UploadChecksums subject = new UploadChecksums(false);
+
+    private static ByteBuffer content(final String content) {
+        return ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] md5(final String content) throws Exception {
+        return MessageDigest.getInstance("MD5")
+                            .digest(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void partsInOrderAreDigestedAsWholeObject() throws Exception {
+        //given
+        val part = content("abcd");
+        //when
+        subject.update(0, part);
+        subject.update(1, content("ef"));
+        //then
+        assertThat(subject.checksums()
+                          .get(ObjectChecksums.MD5)).isEqualTo(md5("abcdef"));
+        assertThat(part.remaining()).isEqualTo(4);
+    }
+
+    @Test
+    void partLargerThanChunkIsDigestedWhole() throws Exception {
+        //given
+        val text = new StringBuilder();
+        while (text.length() < 150_000) {
+            text.append("abcdefghij");
+        }
+        val part = content(text.toString());
+        //when
+        val partMd5 = subject.update(0, part);
+        //then
+        assertThat(partMd5).isEqualTo(md5(text.toString()));
+        assertThat(subject.checksums()
+                          .get(ObjectChecksums.MD5)).isEqualTo(md5(text.toString()));
+        assertThat(part.remaining()).isEqualTo(text.length());
+    }
+
+    @Test
+    void partMd5IsComputedOnceChecksumsAreInvalidated() throws Exception {
+        //given
+        subject.invalidate();
+        //when
+        val partMd5 = subject.update(3, content("ef"));
+        //then
+        assertThat(partMd5).isEqualTo(md5("ef"));
+        assertThat(subject.checksums()).isEmpty();
+    }
+
+    @Test
+    void crc32cIsBigEndian() {
+        //when
+        subject.update(0, content("1234"));
+        subject.update(1, content("56789"));
+        //then
+        assertThat(subject.checksums()
+                          .get(ObjectChecksums.CRC32C)).containsExactly(0xe3, 0x06, 0x92, 0x83);
+    }
+
+    @Test
+    void sha256IsOnlyComputedWhenRequested() throws Exception {
+        //when
+        val result = UploadChecksums.of(true, content("abcdef"));
+        //then
+        assertThat(result.get(ObjectChecksums.SHA256)).isEqualTo(MessageDigest.getInstance("SHA-256")
+                                                                              .digest("abcdef".getBytes(
+                                                                                      StandardCharsets.UTF_8)));
+        assertThat(subject.checksums()).doesNotContainKey(ObjectChecksums.SHA256);
+    }
+
+    @Test
+    void partOutOfOrderInvalidatesChecksums() {
+        //when
+        subject.update(1, content("ef"));
+        subject.update(0, content("abcd"));
+        //then
+        assertThat(subject.checksums()).isEmpty();
+    }
+
+    @Test
+    void invalidatedChecksumsAreEmpty() {
+        //given
+        subject.update(0, content("abcd"));
+        //when
+        subject.invalidate();
+        //then
+        assertThat(subject.checksums()).isEmpty();
+    }
+}
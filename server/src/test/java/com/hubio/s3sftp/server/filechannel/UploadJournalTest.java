@@ -0,0 +1,89 @@
+package com.hubio.s3sftp.server.filechannel;
+
+import com.amazonaws.services.s3.model.PartETag;
+import lombok.val;
+import org.assertj.core.api.WithAssertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+class UploadJournalTest implements WithAssertions {
+
+    private final UploadJournal subject;
+
+    UploadJournalTest() throws Exception {
+        subject = new UploadJournal(Files.createTempDirectory("journal")
+                                         .resolve("uploads"));
+    }
+
+    private static JournalEntry entry(final String owner, final String key) {
+        return new JournalEntry(owner, "bucket", key, "upload-id", 4,
+                                Arrays.asList(new PartETag(1, "etag-1"), new PartETag(2, "etag-2")), 1234L);
+    }
+
+    @Test
+    void recordedEntryIsFound() throws Exception {
+        //given
+        subject.record(entry("user", "key"));
+        //when
+        val result = subject.find("user", "bucket", "key");
+        //then
+        assertThat(result).hasValueSatisfying(entry -> {
+            assertThat(entry.getUploadId()).isEqualTo("upload-id");
+            assertThat(entry.getPartSize()).isEqualTo(4);
+            assertThat(entry.getParts()).extracting(PartETag::getETag)
+                                        .containsExactly("etag-1", "etag-2");
+            assertThat(entry.getUpdated()).isEqualTo(1234L);
+            assertThat(entry.size()).isEqualTo(8L);
+        });
+    }
+
+    @Test
+    void entriesAreKeptForEachOwner() throws Exception {
+        //given
+        subject.record(entry("user", "key"));
+        //then
+        assertThat(subject.find("other", "bucket", "key")).isEmpty();
+    }
+
+    @Test
+    void recordingReplacesEntry() throws Exception {
+        //given
+        subject.record(entry("user", "key"));
+        //when
+        subject.record(new JournalEntry("user", "bucket", "key", "upload-id", 4, Collections.emptyList(), 5678L));
+        //then
+        assertThat(subject.find("user", "bucket", "key")).hasValueSatisfying(
+                entry -> assertThat(entry.getParts()).isEmpty());
+        assertThat(subject.entries()).hasSize(1);
+    }
+
+    @Test
+    void removedEntryIsNotFound() throws Exception {
+        //given
+        subject.record(entry("user", "key"));
+        //when
+        subject.remove("user", "bucket", "key");
+        //then
+        assertThat(subject.find("user", "bucket", "key")).isEmpty();
+    }
+
+    @Test
+    void entriesListsAllEntries() throws Exception {
+        //given
+        subject.record(entry("user", "key"));
+        subject.record(entry("user", "other-key"));
+        //when
+        val result = subject.entries();
+        //then
+        assertThat(result).extracting(JournalEntry::getKey)
+                          .containsExactlyInAnyOrder("key", "other-key");
+    }
+
+    @Test
+    void emptyJournalHasNoEntries() throws Exception {
+        assertThat(subject.entries()).isEmpty();
+    }
+}
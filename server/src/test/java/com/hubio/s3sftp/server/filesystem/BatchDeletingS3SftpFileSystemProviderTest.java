@@ -0,0 +1,194 @@
+package com.hubio.s3sftp.server.filesystem;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.upplication.s3fs.S3FileSystem;
+import com.upplication.s3fs.S3Path;
+import lombok.val;
+import org.assertj.core.api.WithAssertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.stream.Collectors;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.then;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+
+class BatchDeletingS3SftpFileSystemProviderTest implements WithAssertions {
+
+    private final S3FileSystem fileSystem = mock(S3FileSystem.class);
+
+    private final AmazonS3 client = mock(AmazonS3.class);
+
+    private final S3SftpFileSystemProvider provider = mock(S3SftpFileSystemProvider.class);
+
+    private final BatchDeletingS3SftpFileSystemProvider subject =
+            new BatchDeletingS3SftpFileSystemProvider(provider, Runnable::run, true);
+
+    private final BatchDeletingS3SftpFileSystemProvider emptyOnly =
+            new BatchDeletingS3SftpFileSystemProvider(provider, Runnable::run, false);
+
+    private final S3Path dir = new S3Path(fileSystem, "/bucket/dir");
+
+    @BeforeEach
+    void setUp() {
+        given(fileSystem.getClient()).willReturn(client);
+    }
+
+    private void givenDirectory(final S3Path path) throws Exception {
+        val attributes = mock(BasicFileAttributes.class);
+        given(attributes.isDirectory()).willReturn(true);
+        given(provider.readAttributes(path, BasicFileAttributes.class)).willReturn(attributes);
+    }
+
+    private static ListObjectsV2Result page(final String token, final String... keys) {
+        val page = new ListObjectsV2Result();
+        Arrays.stream(keys)
+              .forEach(key -> {
+                  val summary = new S3ObjectSummary();
+                  summary.setKey(key);
+                  page.getObjectSummaries()
+                      .add(summary);
+              });
+        page.setTruncated(token != null);
+        page.setNextContinuationToken(token);
+        return page;
+    }
+
+    @Test
+    void fileIsDeletedByProvider() throws Exception {
+        //given
+        val file = new S3Path(fileSystem, "/bucket/file");
+        given(provider.readAttributes(file, BasicFileAttributes.class)).willReturn(mock(BasicFileAttributes.class));
+        //when
+        subject.delete(file);
+        //then
+        then(provider).should()
+                      .delete(file);
+        then(client).shouldHaveZeroInteractions();
+    }
+
+    @Test
+    void missingPathIsDeletedByProvider() throws Exception {
+        //given
+        given(provider.readAttributes(dir, BasicFileAttributes.class)).willThrow(new NoSuchFileException("dir"));
+        given(provider.deleteIfExists(dir)).willReturn(false);
+        //when
+        val result = subject.deleteIfExists(dir);
+        //then
+        assertThat(result).isFalse();
+        then(client).shouldHaveZeroInteractions();
+    }
+
+    @Test
+    void nonEmptyDirectoryIsNotDeletedUnlessTreesAre() throws Exception {
+        //given
+        givenDirectory(dir);
+        given(client.listObjectsV2(any(ListObjectsV2Request.class))).willReturn(page(null, "dir/", "dir/a"));
+        //then
+        assertThatThrownBy(() -> emptyOnly.delete(dir)).isInstanceOf(DirectoryNotEmptyException.class);
+        assertThatThrownBy(() -> emptyOnly.deleteIfExists(dir)).isInstanceOf(DirectoryNotEmptyException.class);
+        then(client).should(never())
+                    .deleteObjects(any());
+        then(provider).should(never())
+                      .delete(any());
+        then(provider).should(never())
+                      .deleteIfExists(any());
+    }
+
+    @Test
+    void emptyDirectoryIsDeletedByProviderUnlessTreesAre() throws Exception {
+        //given
+        givenDirectory(dir);
+        given(client.listObjectsV2(any(ListObjectsV2Request.class))).willReturn(page(null, "dir/"));
+        //when
+        emptyOnly.delete(dir);
+        //then
+        then(provider).should()
+                      .delete(dir);
+        then(client).should(never())
+                    .deleteObjects(any());
+    }
+
+    @Test
+    void directoryIsDeletedABatchForEachPageOfItsTree() throws Exception {
+        //given
+        givenDirectory(dir);
+        given(client.listObjectsV2(any(ListObjectsV2Request.class)))
+                .willReturn(page("next", "dir/", "dir/a", "dir/sub/b"))
+                .willReturn(page(null, "dir/sub/c"));
+        //when
+        subject.delete(dir);
+        //then
+        val listed = ArgumentCaptor.forClass(ListObjectsV2Request.class);
+        then(client).should(times(2))
+                    .listObjectsV2(listed.capture());
+        assertThat(listed.getValue()
+                         .getPrefix()).isEqualTo("dir/");
+        assertThat(listed.getValue()
+                         .getDelimiter()).isNull();
+        val deleted = ArgumentCaptor.forClass(DeleteObjectsRequest.class);
+        then(client).should(times(2))
+                    .deleteObjects(deleted.capture());
+        assertThat(deleted.getAllValues()
+                          .stream()
+                          .map(batch -> batch.getKeys()
+                                             .stream()
+                                             .map(DeleteObjectsRequest.KeyVersion::getKey)
+                                             .collect(Collectors.toList()))).containsExactly(
+                Arrays.asList("dir/", "dir/a", "dir/sub/b"), Collections.singletonList("dir/sub/c"));
+        then(provider).should(never())
+                      .delete(any());
+    }
+
+    @Test
+    void objectsRefusedAreReportedAsAccessDenied() throws Exception {
+        //given
+        givenDirectory(dir);
+        given(client.listObjectsV2(any(ListObjectsV2Request.class))).willReturn(page(null, "dir/a", "dir/b"));
+        val error = new MultiObjectDeleteException.DeleteError();
+        error.setKey("dir/b");
+        error.setCode("AccessDenied");
+        given(client.deleteObjects(any())).willThrow(
+                new MultiObjectDeleteException(Collections.singletonList(error), Collections.emptyList()));
+        //then
+        assertThatThrownBy(() -> subject.delete(dir))
+                .isInstanceOf(AccessDeniedException.class)
+                .hasMessageContaining("Could not delete 1 of 2 objects: dir/b (AccessDenied)");
+    }
+
+    @Test
+    void everyBatchIsAttemptedWhenOneFails() throws Exception {
+        //given
+        givenDirectory(dir);
+        given(client.listObjectsV2(any(ListObjectsV2Request.class)))
+                .willReturn(page("next", "dir/a"))
+                .willReturn(page(null, "dir/b"));
+        given(client.deleteObjects(any()))
+                .willThrow(new AmazonServiceException("unavailable"))
+                .willReturn(null);
+        //then
+        assertThatThrownBy(() -> subject.delete(dir))
+                .isExactlyInstanceOf(FileSystemException.class)
+                .hasMessageContaining("Could not delete 1 of 2 objects: dir/a");
+        then(client).should(times(2))
+                    .deleteObjects(any());
+    }
+}
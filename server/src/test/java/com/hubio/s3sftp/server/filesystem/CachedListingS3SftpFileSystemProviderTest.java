@@ -0,0 +1,181 @@
+package com.hubio.s3sftp.server.filesystem;
+
+import com.hubio.s3sftp.server.filechannel.NotifyingChannel;
+import com.upplication.s3fs.S3FileSystem;
+import com.upplication.s3fs.S3Path;
+import lombok.val;
+import org.assertj.core.api.WithAssertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.then;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.withSettings;
+
+class CachedListingS3SftpFileSystemProviderTest implements WithAssertions {
+
+    private final S3FileSystem fileSystem = mock(S3FileSystem.class);
+
+    private final S3SftpFileSystemProvider provider = mock(S3SftpFileSystemProvider.class);
+
+    private final ListingCache listingCache = ListingCache.create(Duration.ofMinutes(1), 100L);
+
+    private final CachedListingS3SftpFileSystemProvider subject =
+            new CachedListingS3SftpFileSystemProvider(provider, listingCache);
+
+    private final S3Path dir = path("/bucket/dir");
+
+    @BeforeEach
+    void setUp() {
+        given(fileSystem.getKey()).willReturn("user@host");
+    }
+
+    private S3Path path(final String path) {
+        return new S3Path(fileSystem, path);
+    }
+
+    private void givenListing(final Path... entries) throws IOException {
+        given(provider.newDirectoryStream(any(), any())).willAnswer(invocation -> streamOf(entries));
+    }
+
+    private static DirectoryStream<Path> streamOf(final Path... entries) {
+        return new DirectoryStream<Path>() {
+            @Override
+            public Iterator<Path> iterator() {
+                return Arrays.asList(entries)
+                             .iterator();
+            }
+
+            @Override
+            public void close() {
+                // nothing to close
+            }
+        };
+    }
+
+    private List<Path> list(final DirectoryStream.Filter<Path> filter) throws IOException {
+        final List<Path> result = new ArrayList<>();
+        try (DirectoryStream<Path> stream = subject.newDirectoryStream(dir, filter)) {
+            stream.forEach(result::add);
+        }
+        return result;
+    }
+
+    private List<Path> list() throws IOException {
+        return list(entry -> true);
+    }
+
+    @Test
+    void directoryListedAgainIsListedFromCache() throws Exception {
+        //given
+        givenListing(path("/bucket/dir/a"), path("/bucket/dir/b"));
+        list();
+        //when
+        val result = list();
+        //then
+        assertThat(result).containsExactly(path("/bucket/dir/a"), path("/bucket/dir/b"));
+        then(provider).should(times(1))
+                      .newDirectoryStream(any(), any());
+    }
+
+    @Test
+    void filterIsAppliedToCachedListing() throws Exception {
+        //given
+        givenListing(path("/bucket/dir/a"), path("/bucket/dir/b"));
+        val filtered = list(entry -> entry.getFileName()
+                                          .toString()
+                                          .equals("a"));
+        //when
+        val result = list();
+        //then
+        assertThat(filtered).containsExactly(path("/bucket/dir/a"));
+        assertThat(result).containsExactly(path("/bucket/dir/a"), path("/bucket/dir/b"));
+    }
+
+    @Test
+    void listingNotReadToTheEndIsNotCached() throws Exception {
+        //given
+        givenListing(path("/bucket/dir/a"), path("/bucket/dir/b"));
+        try (DirectoryStream<Path> stream = subject.newDirectoryStream(dir, entry -> true)) {
+            stream.iterator()
+                  .next();
+        }
+        //when
+        list();
+        //then
+        then(provider).should(times(2))
+                      .newDirectoryStream(any(), any());
+    }
+
+    @Test
+    void deleteInvalidatesListing() throws Exception {
+        //given
+        givenListing(path("/bucket/dir/a"));
+        list();
+        //when
+        subject.delete(path("/bucket/dir/a"));
+        list();
+        //then
+        then(provider).should(times(2))
+                      .newDirectoryStream(any(), any());
+    }
+
+    @Test
+    void moveInvalidatesListingsOfSourceAndTarget() throws Exception {
+        //given
+        givenListing(path("/bucket/dir/a"));
+        list();
+        //when
+        subject.move(path("/bucket/other/a"), path("/bucket/dir/a"));
+        //then
+        assertThat(listingCache.get(dir)).isEmpty();
+    }
+
+    @Test
+    void writeInvalidatesListingWhenOpenedAndWhenClosed() throws Exception {
+        //given
+        givenListing(path("/bucket/dir/a"));
+        val channel = mock(FileChannel.class, withSettings().extraInterfaces(NotifyingChannel.class));
+        val options = EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        given(provider.newFileChannel(any(), any(), any())).willReturn(channel);
+        list();
+        //when
+        subject.newFileChannel(path("/bucket/dir/b"), options);
+        //then
+        assertThat(listingCache.get(dir)).isEmpty();
+        list();
+        val captor = ArgumentCaptor.forClass(Runnable.class);
+        then((NotifyingChannel) channel).should()
+                                        .whenClosed(captor.capture());
+        captor.getValue()
+              .run();
+        assertThat(listingCache.get(dir)).isEmpty();
+    }
+
+    @Test
+    void readDoesNotInvalidateListing() throws Exception {
+        //given
+        givenListing(path("/bucket/dir/a"));
+        list();
+        //when
+        subject.newFileChannel(path("/bucket/dir/a"), EnumSet.of(StandardOpenOption.READ));
+        //then
+        assertThat(listingCache.get(dir)).isPresent();
+    }
+}
@@ -0,0 +1,222 @@
+package com.hubio.s3sftp.server.filesystem;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.upplication.s3fs.S3FileSystem;
+import com.upplication.s3fs.S3Path;
+import lombok.val;
+import org.assertj.core.api.WithAssertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.then;
+import static org.mockito.BDDMockito.willReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+
+class DirectoryRenamingS3SftpFileSystemProviderTest implements WithAssertions {
+
+    private final S3FileSystem fileSystem = mock(S3FileSystem.class);
+
+    private final AmazonS3 client = mock(AmazonS3.class);
+
+    private final S3SftpFileSystemProvider provider = mock(S3SftpFileSystemProvider.class);
+
+    private final RenameJournal journal;
+
+    private final DirectoryRenamingS3SftpFileSystemProvider subject;
+
+    private final S3Path source = new S3Path(fileSystem, "/bucket/source");
+
+    private final S3Path target = new S3Path(fileSystem, "/bucket/target");
+
+    DirectoryRenamingS3SftpFileSystemProviderTest() throws Exception {
+        journal = new RenameJournal(Files.createTempDirectory("journal"));
+        subject = new DirectoryRenamingS3SftpFileSystemProvider(provider, Runnable::run, journal);
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        given(fileSystem.getClient()).willReturn(client);
+        given(fileSystem.getKey()).willReturn("user@host");
+        val attributes = mock(BasicFileAttributes.class);
+        given(attributes.isDirectory()).willReturn(true);
+        given(provider.readAttributes(source, BasicFileAttributes.class)).willReturn(attributes);
+        given(provider.readAttributes(target, BasicFileAttributes.class)).willThrow(new NoSuchFileException("target"));
+    }
+
+    private void givenObjects(final String prefix, final String... keys) {
+        val page = new ListObjectsV2Result();
+        Arrays.stream(keys)
+              .forEach(key -> {
+                  val summary = new S3ObjectSummary();
+                  summary.setKey(key);
+                  page.getObjectSummaries()
+                      .add(summary);
+              });
+        given(client.listObjectsV2(argThat((ListObjectsV2Request request) -> request != null && prefix.equals(
+                request.getPrefix())))).willReturn(page);
+    }
+
+    private List<String> deletedKeys() {
+        val deleted = ArgumentCaptor.forClass(DeleteObjectsRequest.class);
+        then(client).should()
+                    .deleteObjects(deleted.capture());
+        return deleted.getValue()
+                      .getKeys()
+                      .stream()
+                      .map(DeleteObjectsRequest.KeyVersion::getKey)
+                      .collect(Collectors.toList());
+    }
+
+    @Test
+    void fileIsMovedByProvider() throws Exception {
+        //given
+        val file = new S3Path(fileSystem, "/bucket/file");
+        given(provider.readAttributes(file, BasicFileAttributes.class)).willReturn(mock(BasicFileAttributes.class));
+        //when
+        subject.move(file, target);
+        //then
+        then(provider).should()
+                      .move(file, target);
+        then(client).shouldHaveZeroInteractions();
+    }
+
+    @Test
+    void directoryIsCopiedWithinS3ThenDeleted() throws Exception {
+        //given
+        givenObjects("source/", "source/", "source/a", "source/sub/b");
+        //when
+        subject.move(source, target);
+        //then
+        val copies = ArgumentCaptor.forClass(CopyObjectRequest.class);
+        then(client).should(times(3))
+                    .copyObject(copies.capture());
+        assertThat(copies.getAllValues()).extracting(CopyObjectRequest::getDestinationKey)
+                                         .containsExactlyInAnyOrder("target/", "target/a", "target/sub/b");
+        assertThat(deletedKeys()).containsExactly("source/", "source/a", "source/sub/b");
+        assertThat(journal.entries("user@host")).isEmpty();
+        then(provider).should(never())
+                      .move(any(), any());
+    }
+
+    @Test
+    void existingTargetIsFileAlreadyExists() throws Exception {
+        //given
+        willReturn(mock(BasicFileAttributes.class)).given(provider)
+                                                   .readAttributes(target, BasicFileAttributes.class);
+        //then
+        assertThatThrownBy(() -> subject.move(source, target)).isInstanceOf(FileAlreadyExistsException.class);
+        then(client).shouldHaveZeroInteractions();
+    }
+
+    @Test
+    void directoryCannotBeMovedIntoItself() throws Exception {
+        //given
+        val inside = new S3Path(fileSystem, "/bucket/source/inside");
+        given(provider.readAttributes(inside, BasicFileAttributes.class)).willThrow(new NoSuchFileException("in"));
+        //then
+        assertThatThrownBy(() -> subject.move(source, inside)).isInstanceOf(FileSystemException.class)
+                                                              .hasMessageContaining("into itself");
+        then(client).shouldHaveZeroInteractions();
+    }
+
+    @Test
+    void atomicMoveIsNotSupported() {
+        assertThatThrownBy(() -> subject.move(source, target, StandardCopyOption.ATOMIC_MOVE))
+                .isInstanceOf(AtomicMoveNotSupportedException.class);
+    }
+
+    @Test
+    void failedCopyIsRolledBack() throws Exception {
+        //given
+        givenObjects("source/", "source/a", "source/b");
+        given(client.copyObject(argThat((CopyObjectRequest request) -> request != null && "source/b".equals(
+                request.getSourceKey())))).willThrow(new AmazonServiceException("denied"));
+        //then
+        assertThatThrownBy(() -> subject.move(source, target))
+                .isInstanceOf(FileSystemException.class)
+                .hasMessageContaining("Could not copy 1 of 2 objects: source/b");
+        assertThat(deletedKeys()).containsExactly("target/a", "target/b");
+        then(client).should(never())
+                    .listObjectsV2(argThat((ListObjectsV2Request request) -> request != null && "target/".equals(
+                            request.getPrefix())));
+        assertThat(journal.entries("user@host")).isEmpty();
+    }
+
+    @Test
+    void interruptedCopyIsRolledBackWhenOwnerNextLists() throws Exception {
+        //given
+        journal.record(new RenameEntry("user@host", "bucket", "source/", "bucket", "target/",
+                                       RenameEntry.Phase.COPYING, 1L));
+        givenObjects("source/", "source/a");
+        //when
+        subject.newDirectoryStream(source, entry -> true);
+        subject.newDirectoryStream(source, entry -> true);
+        //then
+        assertThat(deletedKeys()).containsExactly("target/a");
+        assertThat(journal.entries("user@host")).isEmpty();
+    }
+
+    @Test
+    void renameInProgressIsNotRecoveredByAnotherSession() throws Exception {
+        //given
+        val other = new DirectoryRenamingS3SftpFileSystemProvider(provider, Runnable::run, journal);
+        givenObjects("source/", "source/a");
+        given(client.copyObject(any(CopyObjectRequest.class))).willAnswer(invocation -> {
+            other.newDirectoryStream(source, entry -> true);
+            return null;
+        });
+        //when
+        subject.move(source, target);
+        //then
+        assertThat(deletedKeys()).containsExactly("source/a");
+        assertThat(journal.entries("user@host")).isEmpty();
+    }
+
+    @Test
+    void entryWrittenSinceServerStartedIsNotRecovered() throws Exception {
+        //given
+        journal.record(new RenameEntry("user@host", "bucket", "source/", "bucket", "target/",
+                                       RenameEntry.Phase.COPYING, System.currentTimeMillis()));
+        //when
+        subject.newDirectoryStream(source, entry -> true);
+        //then
+        then(client).shouldHaveZeroInteractions();
+        assertThat(journal.entries("user@host")).hasSize(1);
+    }
+
+    @Test
+    void interruptedDeleteIsFinishedWhenOwnerNextLists() throws Exception {
+        //given
+        journal.record(new RenameEntry("user@host", "bucket", "source/", "bucket", "target/",
+                                       RenameEntry.Phase.DELETING, 1L));
+        givenObjects("source/", "source/b");
+        //when
+        subject.newDirectoryStream(source, entry -> true);
+        //then
+        assertThat(deletedKeys()).containsExactly("source/b");
+        assertThat(journal.entries("user@host")).isEmpty();
+    }
+}
@@ -0,0 +1,76 @@
+package com.hubio.s3sftp.server.filesystem;
+
+import lombok.val;
+import org.assertj.core.api.WithAssertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+class FilteringIteratorTest implements WithAssertions {
+
+    private final List<Path> entries = Arrays.asList(Paths.get("a"), Paths.get("b"), Paths.get("c"));
+
+    @Test
+    void onlyAcceptedEntriesAreReturned() {
+        //given
+        val subject = new FilteringIterator(entries.iterator(), entry -> !"b".equals(entry.toString()));
+        //when
+        val result = new ArrayList<Path>();
+        subject.forEachRemaining(result::add);
+        //then
+        assertThat(result).containsExactly(Paths.get("a"), Paths.get("c"));
+        assertThatThrownBy(subject::next).isInstanceOf(NoSuchElementException.class);
+    }
+
+    @Test
+    void withoutFilterEveryEntryIsReturned() {
+        //given
+        val subject = new FilteringIterator(entries.iterator(), null);
+        //when
+        val result = new ArrayList<Path>();
+        subject.forEachRemaining(result::add);
+        //then
+        assertThat(result).isEqualTo(entries);
+    }
+
+    @Test
+    void filterFailureIsDirectoryIteratorException() {
+        //given
+        val subject = new FilteringIterator(entries.iterator(), entry -> {
+            throw new IOException("failed");
+        });
+        //then
+        assertThatThrownBy(subject::hasNext).isInstanceOf(DirectoryIteratorException.class);
+    }
+
+    @Test
+    void everyEntryIsSeenAndEndIsReportedOnce() {
+        //given
+        val seen = new ArrayList<Path>();
+        val ends = new ArrayList<Boolean>();
+        val subject = new FilteringIterator(entries.iterator(), entry -> false) {
+            @Override
+            protected void seen(final Path entry) {
+                seen.add(entry);
+            }
+
+            @Override
+            protected void exhausted() {
+                ends.add(true);
+            }
+        };
+        //when
+        subject.hasNext();
+        subject.hasNext();
+        //then
+        assertThat(seen).isEqualTo(entries);
+        assertThat(ends).hasSize(1);
+    }
+}
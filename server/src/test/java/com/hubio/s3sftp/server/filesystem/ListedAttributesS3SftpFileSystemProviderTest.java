@@ -0,0 +1,441 @@
+package com.hubio.s3sftp.server.filesystem;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectTaggingResult;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.Owner;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.Tag;
+import com.upplication.s3fs.S3FileSystem;
+import com.upplication.s3fs.S3Path;
+import lombok.val;
+import org.assertj.core.api.WithAssertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.then;
+import static org.mockito.BDDMockito.willThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+
+class ListedAttributesS3SftpFileSystemProviderTest implements WithAssertions {
+
+    private static final Date LAST_MODIFIED = new Date(1_500_000_000_000L);
+
+    private final S3FileSystem fileSystem = mock(S3FileSystem.class);
+
+    private final AmazonS3 client = mock(AmazonS3.class);
+
+    private final S3SftpFileSystemProvider provider = mock(S3SftpFileSystemProvider.class);
+
+    private final ListingCache listingCache = ListingCache.create(Duration.ofMinutes(1), 100L);
+
+    private final List<Runnable> prefetches = new ArrayList<>();
+
+    private final ListedAttributesS3SftpFileSystemProvider subject =
+            new ListedAttributesS3SftpFileSystemProvider(provider, listingCache, prefetches::add);
+
+    @BeforeEach
+    void setUp() {
+        given(fileSystem.getKey()).willReturn("user@host");
+        given(fileSystem.getClient()).willReturn(client);
+        given(fileSystem.getCache()).willReturn(60000);
+    }
+
+    private S3Path path(final String path) {
+        return new S3Path(fileSystem, path);
+    }
+
+    private static S3ObjectSummary summary(final String key, final long size) {
+        val summary = new S3ObjectSummary();
+        summary.setKey(key);
+        summary.setSize(size);
+        summary.setLastModified(LAST_MODIFIED);
+        summary.setETag("etag-" + key);
+        val owner = new Owner("owner-id", "owner");
+        summary.setOwner(owner);
+        return summary;
+    }
+
+    private static ListObjectsV2Result listing(final List<String> directories, final S3ObjectSummary... summaries) {
+        val listing = new ListObjectsV2Result();
+        listing.setCommonPrefixes(directories);
+        Collections.addAll(listing.getObjectSummaries(), summaries);
+        return listing;
+    }
+
+    private static ListObjectsV2Result truncated(final ListObjectsV2Result listing, final String token) {
+        listing.setTruncated(true);
+        listing.setNextContinuationToken(token);
+        return listing;
+    }
+
+    private void givenListing(final ListObjectsV2Result... pages) {
+        given(client.listObjectsV2(any(ListObjectsV2Request.class))).willAnswer(invocation -> {
+            final String token = invocation.getArgument(0, ListObjectsV2Request.class)
+                                           .getContinuationToken();
+            return token == null ? pages[0] : pages[Integer.parseInt(token)];
+        });
+    }
+
+    private List<Path> list(final String dir) throws IOException {
+        final List<Path> result = new ArrayList<>();
+        try (DirectoryStream<Path> stream = subject.newDirectoryStream(path(dir), entry -> true)) {
+            val iterator = stream.iterator();
+            while (!prefetches.isEmpty() || iterator.hasNext()) {
+                prefetches.forEach(Runnable::run);
+                prefetches.clear();
+                if (iterator.hasNext()) {
+                    result.add(iterator.next());
+                }
+            }
+        }
+        return result;
+    }
+
+    @Test
+    void directoryIsListedWithAttributesOfEachObject() throws Exception {
+        //given
+        givenListing(listing(Collections.singletonList("dir/sub/"), summary("dir/", 0L), summary("dir/file", 10L)));
+        //when
+        val result = list("/bucket/dir");
+        //then
+        assertThat(result).containsExactly(path("/bucket/dir/sub"), path("/bucket/dir/file"));
+        assertThat(((S3Path) result.get(0)).getFileAttributes()).isNull();
+        val attributes = (ListedFileAttributes) ((S3Path) result.get(1)).getFileAttributes();
+        assertThat(attributes.size()).isEqualTo(10L);
+        assertThat(attributes.lastModifiedTime()).isEqualTo(FileTime.fromMillis(LAST_MODIFIED.getTime()));
+        assertThat(attributes.getETag()).isEqualTo("etag-dir/file");
+        assertThat(attributes.owner()
+                             .getName()).isEqualTo("owner-id:owner");
+        val request = ArgumentCaptor.forClass(ListObjectsV2Request.class);
+        then(client).should()
+                    .listObjectsV2(request.capture());
+        assertThat(request.getValue()
+                          .getPrefix()).isEqualTo("dir/");
+        assertThat(request.getValue()
+                          .getDelimiter()).isEqualTo("/");
+        assertThat(request.getValue()
+                          .isFetchOwner()).isTrue();
+    }
+
+    @Test
+    void truncatedListingIsContinued() throws Exception {
+        //given
+        givenListing(truncated(listing(Collections.emptyList(), summary("dir/a", 1L)), "1"),
+                     truncated(listing(Collections.emptyList(), summary("dir/b", 2L)), "2"),
+                     listing(Collections.emptyList(), summary("dir/c", 3L)));
+        //when
+        val result = list("/bucket/dir");
+        //then
+        assertThat(result).containsExactly(path("/bucket/dir/a"), path("/bucket/dir/b"), path("/bucket/dir/c"));
+    }
+
+    @Test
+    void onlyTheNextPageIsFetchedAhead() throws Exception {
+        //given
+        givenListing(truncated(listing(Collections.emptyList(), summary("dir/a", 1L)), "1"),
+                     truncated(listing(Collections.emptyList(), summary("dir/b", 2L)), "2"),
+                     listing(Collections.emptyList(), summary("dir/c", 3L)));
+        //when
+        try (DirectoryStream<Path> stream = subject.newDirectoryStream(path("/bucket/dir"), entry -> true)) {
+            val first = stream.iterator()
+                              .next();
+            //then
+            assertThat(first).isEqualTo(path("/bucket/dir/a"));
+            then(client).should()
+                        .listObjectsV2(any(ListObjectsV2Request.class));
+            assertThat(prefetches).hasSize(1);
+        }
+    }
+
+    @Test
+    void closingListingStopsFetchingAhead() throws Exception {
+        //given
+        givenListing(truncated(listing(Collections.emptyList(), summary("dir/a", 1L)), "1"),
+                     listing(Collections.emptyList(), summary("dir/b", 2L)));
+        val stream = subject.newDirectoryStream(path("/bucket/dir"), entry -> true);
+        //when
+        stream.close();
+        prefetches.forEach(Runnable::run);
+        //then
+        then(client).should()
+                    .listObjectsV2(any(ListObjectsV2Request.class));
+    }
+
+    @Test
+    void failureToFetchNextPageIsThrownWhenItIsNeeded() throws Exception {
+        //given
+        val exception = new AmazonS3Exception("denied");
+        given(client.listObjectsV2(any(ListObjectsV2Request.class)))
+                .willReturn(truncated(listing(Collections.emptyList(), summary("dir/a", 1L)), "1"))
+                .willThrow(exception);
+        val iterator = subject.newDirectoryStream(path("/bucket/dir"), entry -> true)
+                              .iterator();
+        iterator.next();
+        prefetches.forEach(Runnable::run);
+        //then
+        assertThatThrownBy(iterator::hasNext).isSameAs(exception);
+    }
+
+    @Test
+    void listingIsFiltered() throws Exception {
+        //given
+        givenListing(listing(Collections.emptyList(), summary("dir/a", 1L), summary("dir/b", 2L)));
+        //when
+        final List<Path> result = new ArrayList<>();
+        try (DirectoryStream<Path> stream = subject.newDirectoryStream(path("/bucket/dir"),
+                                                                       entry -> entry.endsWith("b"))) {
+            stream.forEach(result::add);
+        }
+        //then
+        assertThat(result).containsExactly(path("/bucket/dir/b"));
+    }
+
+    @Test
+    void attributesOfListedPathAreReadWithoutAskingProvider() throws Exception {
+        //given
+        givenListing(listing(Collections.emptyList(), summary("dir/file", 10L)));
+        val file = list("/bucket/dir").get(0);
+        //when
+        val basic = subject.readAttributes(file, BasicFileAttributes.class);
+        val posix = subject.readAttributes(file, PosixFileAttributes.class);
+        val all = subject.readAttributes(file, "*");
+        val posixMap = subject.readAttributes(file, "posix:*");
+        val some = subject.readAttributes(file, "size,lastModifiedTime");
+        subject.checkAccess(file);
+        //then
+        assertThat(basic.size()).isEqualTo(10L);
+        assertThat(posix.owner()
+                        .getName()).isEqualTo("owner-id:owner");
+        assertThat(all).containsEntry("size", 10L)
+                       .containsEntry("isRegularFile", true)
+                       .doesNotContainKey("owner");
+        assertThat(posixMap).containsKey("owner");
+        assertThat(some).containsOnlyKeys("size", "lastModifiedTime");
+        then(provider).shouldHaveZeroInteractions();
+    }
+
+    @Test
+    void attributesOfPathInCachedListingAreReadFromIt() throws Exception {
+        //given
+        givenListing(listing(Collections.emptyList(), summary("dir/file", 10L)));
+        listingCache.put(path("/bucket/dir"), Collections.singletonList((S3Path) list("/bucket/dir").get(0)),
+                         listingCache.marker());
+        //when
+        val result = subject.readAttributes(path("/bucket/dir/file"), "size");
+        //then
+        assertThat(result).containsEntry("size", 10L);
+        then(provider).shouldHaveZeroInteractions();
+    }
+
+    private ObjectMetadata givenObject(final String key, final long size) {
+        val metadata = new ObjectMetadata();
+        metadata.setContentLength(size);
+        metadata.setLastModified(LAST_MODIFIED);
+        metadata.setHeader("ETag", "etag-" + key);
+        given(client.getObjectMetadata("bucket", key)).willReturn(metadata);
+        return metadata;
+    }
+
+    private void givenNoObject(final String key) {
+        val notFound = new AmazonS3Exception("Not Found");
+        notFound.setStatusCode(404);
+        given(client.getObjectMetadata("bucket", key)).willThrow(notFound);
+    }
+
+    private void givenDirectoryListing(final S3ObjectSummary... summaries) {
+        val listing = new ObjectListing();
+        Collections.addAll(listing.getObjectSummaries(), summaries);
+        given(client.listObjects(any(ListObjectsRequest.class))).willReturn(listing);
+    }
+
+    @Test
+    void staleAttributesAreLookedUpAgain() throws Exception {
+        //given
+        given(fileSystem.getCache()).willReturn(0);
+        val file = path("/bucket/dir/file");
+        val attributes = new ListedFileAttributes("dir/file", null, 10L, null, "etag");
+        attributes.setCacheCreated(0L);
+        file.setFileAttributes(attributes);
+        givenObject("dir/file", 3L);
+        //when
+        val result = subject.readAttributes(file, BasicFileAttributes.class);
+        //then
+        assertThat(result.size()).isEqualTo(3L);
+        then(provider).shouldHaveZeroInteractions();
+    }
+
+    @Test
+    void unlistedObjectIsLookedUpWithSingleRequest() throws Exception {
+        //given
+        val file = path("/bucket/dir/file");
+        givenObject("dir/file", 3L);
+        //when
+        val basic = subject.readAttributes(file, "basic:*");
+        val posix = subject.readAttributes(file, "posix:*");
+        //then
+        assertThat(basic).containsEntry("size", 3L)
+                         .containsEntry("isRegularFile", true)
+                         .containsEntry("lastModifiedTime", FileTime.fromMillis(LAST_MODIFIED.getTime()));
+        assertThat(posix).containsEntry("size", 3L)
+                         .containsEntry("permissions", null);
+        then(client).should()
+                    .getObjectMetadata("bucket", "dir/file");
+        then(client).shouldHaveNoMoreInteractions();
+        then(provider).shouldHaveZeroInteractions();
+    }
+
+    @Test
+    void attributesStoredWithUnlistedObjectAreReadFromItsMetadataWithTagsTakingPrecedence() throws Exception {
+        //given
+        val file = path("/bucket/dir/file");
+        val metadata = givenObject("dir/file", 3L);
+        metadata.addUserMetadata("s3sftp-mtime", "1500000000");
+        metadata.addUserMetadata("s3sftp-permissions", "rw-r-----");
+        metadata.setHeader("x-amz-tagging-count", "1");
+        given(client.getObjectTagging(any())).willReturn(new GetObjectTaggingResult(
+                Collections.singletonList(new Tag("s3sftp-mtime", "1600000000"))));
+        //when
+        val result = subject.readAttributes(file, PosixFileAttributes.class);
+        //then
+        assertThat(result.lastModifiedTime()).isEqualTo(FileTime.fromMillis(1_600_000_000_000L));
+        assertThat(result.permissions()).isEqualTo(PosixFilePermissions.fromString("rw-r-----"));
+    }
+
+    @Test
+    void unlistedDirectoryIsLookedUpWithoutReadingStoredAttributes() throws Exception {
+        //given
+        val dir = path("/bucket/dir");
+        givenNoObject("dir");
+        givenDirectoryListing(summary("dir/file", 10L));
+        //when
+        val result = subject.readAttributes(dir, "posix:*");
+        //then
+        assertThat(result).containsEntry("isDirectory", true)
+                          .containsEntry("size", 0L);
+        val request = ArgumentCaptor.forClass(ListObjectsRequest.class);
+        then(client).should()
+                    .listObjects(request.capture());
+        assertThat(request.getValue()
+                          .getPrefix()).isEqualTo("dir/");
+        assertThat(request.getValue()
+                          .getMaxKeys()).isEqualTo(1);
+        then(client).should(never())
+                    .getObjectTagging(any());
+        then(provider).shouldHaveZeroInteractions();
+    }
+
+    @Test
+    void attributesStoredWithObjectLookedUpAreGivenToItWhenListedWithSameETag() throws Exception {
+        //given
+        val metadata = givenObject("dir/file", 10L);
+        metadata.addUserMetadata("s3sftp-mtime", "1600000000");
+        metadata.addUserMetadata("s3sftp-permissions", "rw-r-----");
+        val looked = subject.readAttributes(path("/bucket/dir/file"), PosixFileAttributes.class);
+        val changed = summary("dir/other", 10L);
+        givenListing(listing(Collections.emptyList(), summary("dir/file", 10L), changed));
+        //when
+        val listed = list("/bucket/dir");
+        //then
+        val file = subject.readAttributes(listed.get(0), PosixFileAttributes.class);
+        assertThat(file.lastModifiedTime()).isEqualTo(looked.lastModifiedTime())
+                                           .isEqualTo(FileTime.fromMillis(1_600_000_000_000L));
+        assertThat(file.permissions()).isEqualTo(looked.permissions());
+        assertThat(file.owner()
+                       .getName()).isEqualTo("owner-id:owner");
+        val other = subject.readAttributes(listed.get(1), PosixFileAttributes.class);
+        assertThat(other.lastModifiedTime()).isEqualTo(FileTime.fromMillis(LAST_MODIFIED.getTime()));
+        assertThat(other.permissions()).isNull();
+    }
+
+    @Test
+    void attributesStoredWithObjectAreNotGivenToItWhenListedWithAnotherETag() throws Exception {
+        //given
+        val metadata = givenObject("dir/file", 10L);
+        metadata.addUserMetadata("s3sftp-mtime", "1600000000");
+        subject.readAttributes(path("/bucket/dir/file"), PosixFileAttributes.class);
+        val replaced = summary("dir/file", 20L);
+        replaced.setETag("another-etag");
+        givenListing(listing(Collections.emptyList(), replaced));
+        //when
+        val listed = list("/bucket/dir");
+        //then
+        assertThat(subject.readAttributes(listed.get(0), BasicFileAttributes.class)
+                          .lastModifiedTime()).isEqualTo(FileTime.fromMillis(LAST_MODIFIED.getTime()));
+    }
+
+    @Test
+    void accessToUnlistedPathIsCheckedByProvider() throws Exception {
+        //given
+        val file = path("/bucket/dir/file");
+        //when
+        subject.checkAccess(file);
+        //then
+        then(provider).should()
+                      .checkAccess(file);
+        then(client).should(never())
+                    .listObjectsV2(any(ListObjectsV2Request.class));
+    }
+
+    @Test
+    void pathFoundMissingIsNotLookedUpAgain() throws Exception {
+        //given
+        val file = path("/bucket/dir/file");
+        givenNoObject("dir/file");
+        givenDirectoryListing();
+        assertThatThrownBy(() -> subject.readAttributes(file, BasicFileAttributes.class))
+                .isInstanceOf(NoSuchFileException.class);
+        //when
+        assertThatThrownBy(() -> subject.checkAccess(path("/bucket/dir/file")))
+                .isInstanceOf(NoSuchFileException.class);
+        assertThatThrownBy(() -> subject.readAttributes(path("/bucket/dir/file"), "*"))
+                .isInstanceOf(NoSuchFileException.class);
+        //then
+        then(client).should()
+                    .getObjectMetadata("bucket", "dir/file");
+        then(client).should()
+                    .listObjects(any(ListObjectsRequest.class));
+        then(client).shouldHaveNoMoreInteractions();
+        then(provider).shouldHaveZeroInteractions();
+    }
+
+    @Test
+    void pathCreatedAfterItWasFoundMissingIsLookedUpAgain() throws Exception {
+        //given
+        val file = path("/bucket/dir/file");
+        willThrow(new NoSuchFileException("file")).willDoNothing()
+                                                 .given(provider)
+                                                 .checkAccess(file);
+        assertThatThrownBy(() -> subject.checkAccess(file)).isInstanceOf(NoSuchFileException.class);
+        //when
+        listingCache.invalidate(file);
+        subject.checkAccess(file);
+        //then
+        then(provider).should(times(2))
+                      .checkAccess(file);
+    }
+}
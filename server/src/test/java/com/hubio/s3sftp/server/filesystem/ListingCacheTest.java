@@ -0,0 +1,263 @@
+package com.hubio.s3sftp.server.filesystem;
+
+import com.upplication.s3fs.S3FileSystem;
+import com.upplication.s3fs.S3Path;
+import com.upplication.s3fs.attribute.S3BasicFileAttributes;
+import lombok.val;
+import org.assertj.core.api.WithAssertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.stream.Collectors;
+
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+
+class ListingCacheTest implements WithAssertions {
+
+    private final S3FileSystem fileSystem = mock(S3FileSystem.class);
+
+    private final S3FileSystem otherFileSystem = mock(S3FileSystem.class);
+
+    private final ListingCache subject = ListingCache.create(Duration.ofMinutes(1), 10L);
+
+    @BeforeEach
+    void setUp() {
+        given(fileSystem.getKey()).willReturn("user@host");
+        given(otherFileSystem.getKey()).willReturn("other@host");
+    }
+
+    private S3Path path(final String path) {
+        return new S3Path(fileSystem, path);
+    }
+
+    private void givenListing(final String dir, final String... entries) {
+        subject.put(path(dir), Arrays.stream(entries)
+                                     .map(this::path)
+                                     .collect(Collectors.toList()), subject.marker());
+    }
+
+    @Test
+    void listingIsRebuiltWithItsAttributes() {
+        //given
+        val entry = path("/bucket/dir/file");
+        val now = FileTime.fromMillis(System.currentTimeMillis());
+        val attributes = new S3BasicFileAttributes("dir/file", now, 10L, false, true);
+        entry.setFileAttributes(attributes);
+        subject.put(path("/bucket/dir"), Collections.singletonList(entry), subject.marker());
+        //when
+        val result = subject.get(path("/bucket/dir/"));
+        //then
+        assertThat(result).hasValueSatisfying(paths -> {
+            assertThat(paths).containsExactly(path("/bucket/dir/file"));
+            assertThat(((S3Path) paths.get(0)).getFileAttributes()).isSameAs(attributes);
+            assertThat(paths.get(0)).isNotSameAs(entry);
+        });
+    }
+
+    @Test
+    void attributesOfEntryAreReadFromListingOfItsDirectory() {
+        //given
+        val entry = path("/bucket/dir/file");
+        val attributes = new S3BasicFileAttributes("dir/file", null, 10L, false, true);
+        entry.setFileAttributes(attributes);
+        subject.put(path("/bucket/dir"), Collections.singletonList(entry), subject.marker());
+        //then
+        assertThat(subject.attributes(path("/bucket/dir/file"))).containsSame(attributes);
+        assertThat(subject.attributes(path("/bucket/dir/other"))).isEmpty();
+        assertThat(subject.attributes(new S3Path(otherFileSystem, "/bucket/dir/file"))).isEmpty();
+    }
+
+    @Test
+    void attributesOfEntryListedWithoutThemAreEmpty() {
+        //given
+        givenListing("/bucket", "/bucket/dir");
+        //then
+        assertThat(subject.attributes(path("/bucket/dir"))).isEmpty();
+        assertThat(subject.attributes(path("/bucket/"))).isEmpty();
+    }
+
+    @Test
+    void uncachedDirectoryIsEmpty() {
+        assertThat(subject.get(path("/bucket/dir"))).isEmpty();
+    }
+
+    @Test
+    void listingIsHeldForEachFileSystem() {
+        //given
+        givenListing("/bucket/dir", "/bucket/dir/file");
+        //then
+        assertThat(subject.get(new S3Path(otherFileSystem, "/bucket/dir"))).isEmpty();
+    }
+
+    @Test
+    void changeInvalidatesListingsAboveAndBelowIt() {
+        //given
+        givenListing("/bucket", "/bucket/dir");
+        givenListing("/bucket/dir", "/bucket/dir/sub");
+        givenListing("/bucket/dir/sub", "/bucket/dir/sub/file");
+        givenListing("/bucket/dirty", "/bucket/dirty/file");
+        givenListing("/other", "/other/dir");
+        //when
+        subject.invalidate(new S3Path(otherFileSystem, "/bucket/dir"));
+        //then
+        assertThat(subject.get(path("/bucket"))).isEmpty();
+        assertThat(subject.get(path("/bucket/dir"))).isEmpty();
+        assertThat(subject.get(path("/bucket/dir/sub"))).isEmpty();
+        assertThat(subject.get(path("/bucket/dirty"))).isPresent();
+        assertThat(subject.get(path("/other"))).isPresent();
+    }
+
+    @Test
+    void listingStartedBeforeChangeIsNotCached() {
+        //given
+        val marker = subject.marker();
+        subject.invalidate(path("/bucket/dir/file"));
+        //when
+        subject.put(path("/bucket/dir"), Collections.singletonList(path("/bucket/dir/old")), marker);
+        //then
+        assertThat(subject.get(path("/bucket/dir"))).isEmpty();
+    }
+
+    @Test
+    void disabledCacheHoldsNothing() {
+        //given
+        val disabled = ListingCache.disabled();
+        //when
+        disabled.put(path("/bucket/dir"), Collections.singletonList(path("/bucket/dir/file")), disabled.marker());
+        //then
+        assertThat(disabled.get(path("/bucket/dir"))).isEmpty();
+    }
+
+    @Test
+    void missingPathIsRememberedForItsFileSystem() {
+        //when
+        subject.putMissing(path("/bucket/dir/file"), subject.marker());
+        //then
+        assertThat(subject.isMissing(path("/bucket/dir/file"))).isTrue();
+        assertThat(subject.isMissing(path("/bucket/dir/other"))).isFalse();
+        assertThat(subject.isMissing(new S3Path(otherFileSystem, "/bucket/dir/file"))).isFalse();
+    }
+
+    @Test
+    void pathAbsentFromCachedListingIsMissing() {
+        //given
+        givenListing("/bucket/dir", "/bucket/dir/file", "/bucket/dir/sub");
+        //then
+        assertThat(subject.isMissing(path("/bucket/dir/other"))).isTrue();
+        assertThat(subject.isMissing(path("/bucket/dir/file"))).isFalse();
+        assertThat(subject.isMissing(path("/bucket/dir/sub/"))).isFalse();
+        assertThat(subject.isMissing(path("/bucket/elsewhere/other"))).isFalse();
+    }
+
+    @Test
+    void changeForgetsMissingPathsItMayCreate() {
+        //given
+        subject.putMissing(path("/bucket/dir"), subject.marker());
+        subject.putMissing(path("/bucket/dir/file"), subject.marker());
+        subject.putMissing(path("/bucket/dir/file.part"), subject.marker());
+        //when
+        subject.invalidate(path("/bucket/dir/file"));
+        //then
+        assertThat(subject.isMissing(path("/bucket/dir"))).isFalse();
+        assertThat(subject.isMissing(path("/bucket/dir/file"))).isFalse();
+        assertThat(subject.isMissing(path("/bucket/dir/file.part"))).isTrue();
+    }
+
+    @Test
+    void pathLookedForBeforeChangeIsNotRememberedMissing() {
+        //given
+        val marker = subject.marker();
+        subject.invalidate(path("/bucket/dir/file"));
+        //when
+        subject.putMissing(path("/bucket/dir/file"), marker);
+        //then
+        assertThat(subject.isMissing(path("/bucket/dir/file"))).isFalse();
+    }
+
+    @Test
+    void bucketIsNeverMissing() {
+        //when
+        subject.putMissing(path("/bucket/"), subject.marker());
+        //then
+        assertThat(subject.isMissing(path("/bucket/"))).isFalse();
+    }
+
+    @Test
+    void disabledCacheRemembersNoMissingPaths() {
+        //given
+        val disabled = ListingCache.disabled();
+        //when
+        disabled.putMissing(path("/bucket/dir/file"), disabled.marker());
+        //then
+        assertThat(disabled.isMissing(path("/bucket/dir/file"))).isFalse();
+    }
+
+    @Test
+    void pathOutsideS3IsIgnored() {
+        //given
+        givenListing("/bucket/dir", "/bucket/dir/file");
+        //when
+        subject.invalidate(mock(Path.class));
+        //then
+        assertThat(subject.get(path("/bucket/dir"))).isPresent();
+    }
+
+    @Test
+    void listingsOfOnlyAFewThousandEntriesAreCollected() {
+        assertThat(ListingCache.create()
+                               .getMaximumListingEntries()).isEqualTo(5_000L);
+        assertThat(subject.getMaximumListingEntries()).isEqualTo(10L);
+    }
+
+    private ListedFileAttributes lookedUp(final String key, final String eTag) {
+        return new ListedFileAttributes(key, null, 10L, null, eTag, Collections.singletonMap(
+                "lastModifiedTime", FileTime.fromMillis(1_600_000_000_000L)));
+    }
+
+    @Test
+    void storedAttributesAreGivenToEntryListedWithSameETag() {
+        //given
+        subject.putStored(path("/bucket/dir/file"), lookedUp("dir/file", "etag"), subject.marker());
+        val entry = path("/bucket/dir/file");
+        entry.setFileAttributes(new ListedFileAttributes("dir/file", null, 10L, null, "etag"));
+        subject.put(path("/bucket/dir"), Collections.singletonList(entry), subject.marker());
+        //then
+        assertThat(subject.attributes(path("/bucket/dir/file"))).hasValueSatisfying(
+                attributes -> assertThat(attributes.lastModifiedTime()).isEqualTo(
+                        FileTime.fromMillis(1_600_000_000_000L)));
+        assertThat(subject.withStored(path("/bucket/dir/file"),
+                                      new ListedFileAttributes("dir/file", null, 10L, null, "other"))
+                          .lastModifiedTime()).isNull();
+    }
+
+    @Test
+    void changeForgetsStoredAttributes() {
+        //given
+        subject.putStored(path("/bucket/dir/file"), lookedUp("dir/file", "etag"), subject.marker());
+        //when
+        subject.invalidate(path("/bucket/dir/file"));
+        //then
+        assertThat(subject.withStored(path("/bucket/dir/file"),
+                                      new ListedFileAttributes("dir/file", null, 10L, null, "etag"))
+                          .getStored()).isEmpty();
+    }
+
+    @Test
+    void attributesLookedUpBeforeChangeAreNotStored() {
+        //given
+        val marker = subject.marker();
+        subject.invalidate(path("/bucket/dir/file"));
+        //when
+        subject.putStored(path("/bucket/dir/file"), lookedUp("dir/file", "etag"), marker);
+        //then
+        assertThat(subject.withStored(path("/bucket/dir/file"),
+                                      new ListedFileAttributes("dir/file", null, 10L, null, "etag"))
+                          .getStored()).isEmpty();
+    }
+}
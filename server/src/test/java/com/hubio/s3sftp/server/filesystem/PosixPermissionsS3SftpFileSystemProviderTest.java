@@ -7,6 +7,7 @@ import org.junit.jupiter.api.Test;
 
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.Map;
 
 import static org.mockito.BDDMockito.given;
@@ -35,6 +36,20 @@ class PosixPermissionsS3SftpFileSystemProviderTest implements WithAssertions {
                           .containsKey("permissions");
     }
 
+    @Test
+    void permissionsReadAreKept() throws Exception {
+        //given
+        val path = mock(Path.class);
+        val permissions = PosixFilePermissions.fromString("rw-r-----");
+        final Map<String, Object> read = new MapBuilder<String, Object>().put("permissions", permissions)
+                                                                         .build();
+        given(delegate.readAttributes(path, "posix:*")).willReturn(read);
+        //when
+        final Map<String, Object> result = subject.readAttributes(path, "posix:*");
+        //then
+        assertThat(result).containsEntry("permissions", permissions);
+    }
+
     private Map<String, Object> emptyMap() {
         return new MapBuilder<String, Object>().build();
     }
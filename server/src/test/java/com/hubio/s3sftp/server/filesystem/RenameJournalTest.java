@@ -0,0 +1,101 @@
+package com.hubio.s3sftp.server.filesystem;
+
+import lombok.val;
+import org.assertj.core.api.WithAssertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+class RenameJournalTest implements WithAssertions {
+
+    private final Path directory;
+
+    private final RenameJournal subject;
+
+    RenameJournalTest() throws Exception {
+        directory = Files.createTempDirectory("journal")
+                         .resolve("renames");
+        subject = new RenameJournal(directory, 2000L);
+    }
+
+    private static RenameEntry entry(final String owner, final String source) {
+        return new RenameEntry(owner, "bucket", source, "target-bucket", "target/", RenameEntry.Phase.COPYING,
+                               1234L);
+    }
+
+    @Test
+    void recordedEntryIsFoundForItsOwner() throws Exception {
+        //given
+        subject.record(entry("user", "source/"));
+        subject.record(entry("other", "source/"));
+        //when
+        val result = subject.entries("user");
+        //then
+        assertThat(result).hasSize(1);
+        val entry = result.get(0);
+        assertThat(entry.getSourceBucket()).isEqualTo("bucket");
+        assertThat(entry.getSourcePrefix()).isEqualTo("source/");
+        assertThat(entry.getTargetBucket()).isEqualTo("target-bucket");
+        assertThat(entry.getTargetPrefix()).isEqualTo("target/");
+        assertThat(entry.getPhase()).isEqualTo(RenameEntry.Phase.COPYING);
+        assertThat(entry.getUpdated()).isEqualTo(1234L);
+    }
+
+    @Test
+    void recordingNextPhaseReplacesEntry() throws Exception {
+        //given
+        val entry = entry("user", "source/");
+        subject.record(entry);
+        //when
+        subject.record(entry.inPhase(RenameEntry.Phase.DELETING));
+        //then
+        assertThat(subject.entries("user")).extracting(RenameEntry::getPhase)
+                                           .containsExactly(RenameEntry.Phase.DELETING);
+    }
+
+    @Test
+    void removedEntryIsGone() throws Exception {
+        //given
+        val entry = entry("user", "source/");
+        subject.record(entry);
+        //when
+        subject.remove(entry);
+        //then
+        assertThat(subject.entries("user")).isEmpty();
+    }
+
+    @Test
+    void onlyUnclaimedEntriesFromBeforeStartAreInterrupted() throws Exception {
+        //given
+        val claimed = entry("user", "claimed/");
+        subject.record(entry("user", "interrupted/"));
+        subject.record(claimed);
+        subject.record(new RenameEntry("user", "bucket", "recent/", "target-bucket", "target/",
+                                       RenameEntry.Phase.COPYING, 3000L));
+        //when
+        val claimedFirst = subject.claim(claimed);
+        //then
+        assertThat(claimedFirst).isTrue();
+        assertThat(subject.claim(claimed)).isFalse();
+        assertThat(subject.interrupted("user")).extracting(RenameEntry::getSourcePrefix)
+                                               .containsExactly("interrupted/");
+        subject.release(claimed);
+        assertThat(subject.interrupted("user")).extracting(RenameEntry::getSourcePrefix)
+                                               .containsExactlyInAnyOrder("interrupted/", "claimed/");
+    }
+
+    @Test
+    void withoutDirectoryThereAreNoEntries() throws Exception {
+        assertThat(subject.entries("user")).isEmpty();
+    }
+
+    @Test
+    void unreadableEntryIsSkipped() throws Exception {
+        //given
+        subject.record(entry("user", "source/"));
+        Files.write(directory.resolve("broken.properties"), "owner=user\n".getBytes());
+        //then
+        assertThat(subject.entries("user")).hasSize(1);
+    }
+}